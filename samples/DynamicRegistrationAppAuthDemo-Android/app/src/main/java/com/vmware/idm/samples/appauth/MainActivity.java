@@ -213,7 +213,6 @@ public class MainActivity extends AppCompatActivity {
                 registrationRequest,
                 TokenActivity.createPostDeviceRegistrationIntent(
                         this,
-                        registrationRequest,
                         authState),
                 mAuthService.createCustomTabsIntentBuilder()
                         .setToolbarColor(getColorCompat(R.color.colorAccent))
@@ -45,7 +45,6 @@ import net.openid.appauth.AuthorizationService;
 import net.openid.appauth.AuthorizationServiceDiscovery;
 import net.openid.appauth.ClientAuthentication;
 import net.openid.appauth.DeviceAuthorizationService;
-import net.openid.appauth.DeviceRegistrationRequest;
 import net.openid.appauth.DeviceRegistrationResponse;
 import net.openid.appauth.RegistrationResponse;
 import net.openid.appauth.TokenRequest;
@@ -563,15 +562,13 @@ public class TokenActivity extends AppCompatActivity {
      * Create the intent that will be used after the device registration step to start this activity.
      *
      * @param context   the activity context
-     * @param request   the original device registration request
      * @param authState the initial auth state
-     * @return The intent to start this activity.
+     * @return The intent to start this activity, kept with the request until the response arrives.
      */
-    public static PendingIntent createPostDeviceRegistrationIntent(
-            @NonNull Context context,
-            @NonNull DeviceRegistrationRequest request, AuthState authState) {
+    public static Intent createPostDeviceRegistrationIntent(
+            @NonNull Context context, AuthState authState) {
         Intent intent = new Intent(context, TokenActivity.class);
         intent.putExtra(EXTRA_AUTH_STATE, authState.jsonSerializeString());
-        return PendingIntent.getActivity(context, request.hashCode(), intent, 0);
+        return intent;
     }
 }
@@ -18,7 +18,9 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
@@ -34,7 +36,19 @@ import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Map;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static net.openid.appauth.Utils.*;
 
@@ -44,8 +58,34 @@ import static net.openid.appauth.Utils.*;
 public class DeviceAuthorizationService extends AuthorizationService {
 
     private static String TAG = DeviceAuthorizationService.class.getSimpleName();
+
+    @VisibleForTesting
+    static final int ACTIVATION_THREADS = 2;
+    private static final int MAX_QUEUED_ACTIVATIONS = 8;
+    private static final long ACTIVATION_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    @VisibleForTesting
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    @VisibleForTesting
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+    @VisibleForTesting
+    static final int DEFAULT_MAX_RETRIES = 2;
+    private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
     private final BrowserHandler browserHandler;
     private final UrlBuilder urlBuilder;
+    private final ThreadPoolExecutor mActivationExecutor = newActivationExecutor();
+    private final Set<DeviceActivationRequestTask> mActivations =
+            Collections.newSetFromMap(
+                    new ConcurrentHashMap<DeviceActivationRequestTask, Boolean>());
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile int mReadTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private volatile long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private volatile boolean mDisposed;
 
     /**
      * Creates an AuthorizationService instance based on the provided configuration. Note that
@@ -82,10 +122,34 @@ public class DeviceAuthorizationService extends AuthorizationService {
             @NonNull DeviceRegistrationRequest request,
             @NonNull PendingIntent resultHandlerIntent,
             @NonNull CustomTabsIntent customTabsIntent) {
-        // checkNotDisposed();
-        Uri requestUri = request.toUri();
+        checkNotDisposed();
         DeviceRegistrationPendingIntentStore.getInstance()
                 .addPendingIntent(request, resultHandlerIntent);
+        startDeviceRegistrationRequest(request, customTabsIntent);
+    }
+
+    /**
+     * Sends a device registration request to the authorization service, like
+     * {@link #performDeviceRegistrationRequest(DeviceRegistrationRequest, PendingIntent, CustomTabsIntent)}, and
+     * starts the given {@link Intent completion intent} with the response. Unlike a pending intent, the completion
+     * intent is persisted with the request, in the background: the response is still delivered if the process is
+     * killed while the user is in the browser.
+     *
+     * @param completionIntent The intent of the activity handling the response, which is added to its extras.
+     */
+    public void performDeviceRegistrationRequest(
+            @NonNull DeviceRegistrationRequest request,
+            @NonNull Intent completionIntent,
+            @NonNull CustomTabsIntent customTabsIntent) {
+        checkNotDisposed();
+        DeviceRegistrationPendingIntentStore.getInstance()
+                .addCompletionIntent(mContext, request, completionIntent);
+        startDeviceRegistrationRequest(request, customTabsIntent);
+    }
+
+    private void startDeviceRegistrationRequest(@NonNull DeviceRegistrationRequest request,
+                                                @NonNull CustomTabsIntent customTabsIntent) {
+        Uri requestUri = request.toUri();
         Intent intent = customTabsIntent.intent;
         intent.setData(requestUri);
         if (TextUtils.isEmpty(intent.getPackage())) {
@@ -101,18 +165,107 @@ public class DeviceAuthorizationService extends AuthorizationService {
         mContext.startActivity(intent);
     }
 
+    /**
+     * Sets the timeouts of the activation requests. A request which can't connect or read the
+     * response in time fails like a network error, and is retried.
+     *
+     * @param connectTimeoutMillis the connect timeout in milliseconds, {@code 0} for none
+     * @param readTimeoutMillis    the read timeout in milliseconds, {@code 0} for none
+     */
+    public void setActivationTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Sets how the activation requests failing before reaching the server are retried: up to
+     * {@code maxRetries} times, after a delay starting at {@code initialBackoffMillis} and
+     * doubled on each retry.
+     * <p>
+     * The activation code can only be exchanged once, so only the failures where the server
+     * did not process the request are retried: the connection could not be established, or
+     * the server answered with a 503 or 429 status. A request failing once connected, e.g. on
+     * a read timeout, may have consumed the code and is not retried, as another attempt would
+     * fail and the client secret of the first one would be lost.
+     *
+     * @param maxRetries           the number of retries, {@code 0} for none
+     * @param initialBackoffMillis the delay before the first retry, in milliseconds
+     */
+    public void setActivationRetries(int maxRetries, long initialBackoffMillis) {
+        mMaxRetries = maxRetries;
+        mInitialBackoffMillis = initialBackoffMillis;
+    }
+
     /**
      * Sends a request to activate the device by exchanging the activation code
      * and get back the client id and secret.
+     * <p>
+     * The request is sent by a pool of {@value #ACTIVATION_THREADS} threads, and the callback
+     * is invoked on the main thread, unless the request is cancelled first, through the
+     * returned future or by {@link #dispose()}.
      *
      * @param request the activation request
+     * @return the pending request, whose result is the registration response, or an
+     * {@link java.util.concurrent.ExecutionException} caused by the
+     * {@link AuthorizationException} passed to the callback
      */
-    public void performActivationRequest(@NonNull DeviceActivationRequest request,
-                                         @NonNull DeviceActivationResponseCallback callback) {
-        // TODO:  checkNotDisposed();
-        Log.d(TAG, String.format("Exchanging activation code to %s",
-                request.activationEndpoint.toString()));
-        new DeviceActivationRequestTask(request, callback).execute();
+    public Future<RegistrationResponse> performActivationRequest(
+            @NonNull DeviceActivationRequest request,
+            @NonNull DeviceActivationResponseCallback callback) {
+        checkNotDisposed();
+        Logger.debug("Exchanging activation code to %s", request.activationEndpoint);
+        DeviceActivationRequestTask task = new DeviceActivationRequestTask(request, callback);
+        mActivations.add(task);
+        try {
+            mActivationExecutor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            Logger.error("Too many pending activation requests");
+            task.fail(AuthorizationException.fromTemplate(
+                    AuthorizationException.GeneralErrors.NETWORK_ERROR, ex));
+        }
+        return task;
+    }
+
+    /**
+     * Disposes the state of the service, and cancels the pending activation requests: their
+     * callbacks are not invoked.
+     */
+    @Override
+    public void dispose() {
+        mDisposed = true;
+        for (DeviceActivationRequestTask task : mActivations) {
+            task.cancel(true);
+        }
+        mActivationExecutor.shutdownNow();
+        super.dispose();
+    }
+
+    private void checkNotDisposed() {
+        if (mDisposed) {
+            throw new IllegalStateException("Service has been disposed and rendered inoperable");
+        }
+    }
+
+    private static ThreadPoolExecutor newActivationExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(ACTIVATION_THREADS,
+                ACTIVATION_THREADS, ACTIVATION_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_ACTIVATIONS),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "DeviceActivation #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
 
@@ -137,36 +290,128 @@ public class DeviceAuthorizationService extends AuthorizationService {
                                           @Nullable AuthorizationException ex);
     }
 
-    private class DeviceActivationRequestTask
-            extends AsyncTask<Void, Void, JSONObject> {
-        private DeviceActivationRequest mRequest;
-        private DeviceActivationResponseCallback mCallback;
-
-        private AuthorizationException mException;
+    private class DeviceActivationRequestTask extends FutureTask<RegistrationResponse> {
+        private final DeviceActivationResponseCallback mCallback;
+        private final ActivationCall mCall;
 
         DeviceActivationRequestTask(DeviceActivationRequest request,
                                     DeviceActivationResponseCallback callback) {
-            mRequest = request;
+            this(new ActivationCall(request), callback);
+        }
+
+        private DeviceActivationRequestTask(ActivationCall call,
+                                            DeviceActivationResponseCallback callback) {
+            super(call);
+            mCall = call;
             mCallback = callback;
         }
 
         @Override
-        protected JSONObject doInBackground(Void... voids) {
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                // HttpURLConnection does not check the interrupted flag of its thread
+                mCall.disconnect();
+            }
+            return cancelled;
+        }
+
+        void fail(AuthorizationException ex) {
+            setException(ex);
+        }
+
+        @Override
+        protected void done() {
+            mActivations.remove(this);
+            if (isCancelled()) {
+                Logger.debug("Activation cancelled");
+                return;
+            }
+            RegistrationResponse response = null;
+            AuthorizationException exception = null;
+            try {
+                response = get();
+                Logger.debug("Device activation completed");
+            } catch (ExecutionException ex) {
+                exception = ex.getCause() instanceof AuthorizationException
+                        ? (AuthorizationException) ex.getCause()
+                        : AuthorizationException.fromTemplate(
+                                AuthorizationException.GeneralErrors.NETWORK_ERROR, ex.getCause());
+            } catch (InterruptedException ex) {
+                // not reached: the task is done
+                Thread.currentThread().interrupt();
+                return;
+            }
+            final RegistrationResponse finalResponse = response;
+            final AuthorizationException finalException = exception;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onActivationRequestCompleted(finalResponse, finalException);
+                }
+            });
+        }
+    }
+
+    private class ActivationCall implements Callable<RegistrationResponse> {
+        private final DeviceActivationRequest mRequest;
+        private volatile HttpURLConnection mConnection;
+        private volatile boolean mDisconnected;
+
+        ActivationCall(DeviceActivationRequest request) {
+            mRequest = request;
+        }
+
+        @Override
+        public RegistrationResponse call() throws AuthorizationException, InterruptedException {
+            long backoffMillis = mInitialBackoffMillis;
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return toRegistrationResponse(post());
+                } catch (TransientActivationException ex) {
+                    if (attempt >= mMaxRetries || mDisconnected) {
+                        Log.e(TAG, "Failed to complete device activation request", ex.getCause());
+                        throw AuthorizationException.fromTemplate(
+                                AuthorizationException.GeneralErrors.NETWORK_ERROR, ex.getCause());
+                    }
+                    Logger.debug("Activation request failed, retrying in %d ms", backoffMillis);
+                    Thread.sleep(backoffMillis);
+                    backoffMillis *= 2;
+                }
+            }
+        }
+
+        void disconnect() {
+            mDisconnected = true;
+            HttpURLConnection conn = mConnection;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+
+        private JSONObject post() throws AuthorizationException, TransientActivationException {
             InputStream is = null;
             String postData = mRequest.getActivationCode();
+            int code = -1;
+            boolean connected = false;
 
             try {
                 URL requestUrl = DeviceAuthorizationService.this.urlBuilder
                         .buildUrlFromString(mRequest.getActivationEndpoint().toString());
                 HttpURLConnection conn = (HttpURLConnection) requestUrl.openConnection();
+                mConnection = conn;
+                conn.setConnectTimeout(mConnectTimeoutMillis);
+                conn.setReadTimeout(mReadTimeoutMillis);
                 conn.setRequestMethod("POST");
                 conn.setDoOutput(true);
                 conn.setRequestProperty("Content-Length", String.valueOf(postData.length()));
                 OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
+                // from now on the server may receive the activation code
+                connected = true;
                 wr.write(postData);
                 wr.flush();
 
-                int code = conn.getResponseCode();
+                code = conn.getResponseCode();
 
                 Logger.debug("Sent activation request:" + requestUrl.toString());
                 Logger.debug("with body:" + postData);
@@ -176,46 +421,45 @@ public class DeviceAuthorizationService extends AuthorizationService {
                 String response = Utils.readInputStream(is);
                 return new JSONObject(response);
             } catch (IOException ex) {
+                if (!connected || code == HttpURLConnection.HTTP_UNAVAILABLE
+                        || code == HTTP_TOO_MANY_REQUESTS) {
+                    throw new TransientActivationException(ex);
+                }
                 Log.e(TAG, "Failed to complete device activation request", ex);
-                mException = AuthorizationException.fromTemplate(
+                throw AuthorizationException.fromTemplate(
                         AuthorizationException.GeneralErrors.NETWORK_ERROR, ex);
             } catch (JSONException ex) {
                 Log.e(TAG, "Failed to complete device activation request", ex);
-                mException = AuthorizationException.fromTemplate(
+                throw AuthorizationException.fromTemplate(
                         AuthorizationException.GeneralErrors.JSON_DESERIALIZATION_ERROR, ex);
             } finally {
                 closeQuietly(is);
             }
-            return null;
         }
 
-        @Override
-        protected void onPostExecute(JSONObject json) {
-            if (mException != null) {
-                mCallback.onActivationRequestCompleted(null, mException);
-                return;
-            }
-            Log.d(TAG, "Activation completed");
-            RegistrationResponse response;
+        private RegistrationResponse toRegistrationResponse(JSONObject json)
+                throws AuthorizationException {
             try {
                 DeviceActivationResponse activationResponse =
                         new DeviceActivationResponse.Builder(mRequest).fromResponseJson(json)
                                 .build();
-                response =
-                        new RegistrationResponse.Builder(mRequest.toRegistrationRequest())
-                                .setClientId(activationResponse.clientId)
-                                .setClientSecret(activationResponse.clientSecret).build();
-
+                return new RegistrationResponse.Builder(mRequest.toRegistrationRequest())
+                        .setClientId(activationResponse.clientId)
+                        .setClientSecret(activationResponse.clientSecret).build();
             } catch (JSONException jsonEx) {
-                mCallback.onActivationRequestCompleted(null,
-                        AuthorizationException.fromTemplate(
-                                AuthorizationException.GeneralErrors.JSON_DESERIALIZATION_ERROR,
-                                jsonEx));
-                return;
+                throw AuthorizationException.fromTemplate(
+                        AuthorizationException.GeneralErrors.JSON_DESERIALIZATION_ERROR, jsonEx);
             }
+        }
+    }
 
-            Logger.debug("Device activation completed");
-            mCallback.onActivationRequestCompleted(response, null);
+    /**
+     * A failure worth retrying, the server not having processed the activation code: it could
+     * not be reached, or answered with a 503 or 429 status.
+     */
+    private static class TransientActivationException extends Exception {
+        TransientActivationException(IOException cause) {
+            super(cause);
         }
     }
 
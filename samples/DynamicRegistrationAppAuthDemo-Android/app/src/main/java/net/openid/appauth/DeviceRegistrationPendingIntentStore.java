@@ -15,11 +15,25 @@
 package net.openid.appauth;
 
 import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.customtabs.CustomTabsIntent;
 
-import java.util.HashMap;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.URISyntaxException;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Singleton to mimic PendingIntentStore to store our {@link net.openid.appauth.DeviceRegistrationRequest}
@@ -28,10 +42,32 @@ import java.util.Map;
  * {@link DeviceAuthorizationService#performDeviceRegistrationRequest(DeviceRegistrationRequest, PendingIntent, CustomTabsIntent)}.
  * The pending intents are read and sent by
  * the {@link RedirectUriRegistrationReceiverActivity} when the redirect Uri is received.
+ * <p>
+ * A registration whose redirect never arrives, e.g. because the user closed the browser, expires after
+ * {@link #PENDING_REGISTRATION_TTL_MS}, and only the {@link #MAX_PENDING_REGISTRATIONS} most recent registrations
+ * are kept.
+ * <p>
+ * The registrations made with a completion {@link Intent} are also written to the shared preferences, in the
+ * background, so that they survive the death of the process while the user is in the browser. They are read on the
+ * first lookup of a registration. A {@link PendingIntent} can't be persisted, the registrations made with one are
+ * only kept in memory.
  */
 class DeviceRegistrationPendingIntentStore {
-    private Map<String, DeviceRegistrationRequest> mRequests = new HashMap<>();
-    private Map<String, PendingIntent> mPendingIntents = new HashMap<>();
+
+    @VisibleForTesting
+    static final int MAX_PENDING_REGISTRATIONS = 10;
+
+    @VisibleForTesting
+    static final long PENDING_REGISTRATION_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final String PREFS_NAME = "net.openid.appauth.DeviceRegistrationPendingIntentStore";
+    private static final String KEY_REQUEST = "request";
+    private static final String KEY_COMPLETION_INTENT = "completionIntent";
+    private static final String KEY_EXPIRES_AT = "expiresAt";
+
+    private final Map<String, PendingRegistration> mPendingRegistrations = new ConcurrentHashMap<>();
+    private Executor mWriteExecutor = Executors.newSingleThreadExecutor();
+    private volatile boolean mRestored;
 
     private static DeviceRegistrationPendingIntentStore sInstance;
 
@@ -47,25 +83,205 @@ class DeviceRegistrationPendingIntentStore {
 
     public void addPendingIntent(DeviceRegistrationRequest request, PendingIntent intent) {
         Logger.verbose("Adding pending intent for state %s", request.state);
-        mRequests.put(request.state, request);
-        mPendingIntents.put(request.state, intent);
+        add(new PendingRegistration(request, intent, null,
+                SystemClock.elapsedRealtime() + PENDING_REGISTRATION_TTL_MS), null);
+    }
+
+    /**
+     * Adds a registration whose response is delivered by starting the given intent, persisted in the background.
+     */
+    public void addCompletionIntent(@NonNull Context context, DeviceRegistrationRequest request,
+                                    Intent completionIntent) {
+        Logger.verbose("Adding completion intent for state %s", request.state);
+        add(new PendingRegistration(request, null, new Intent(completionIntent),
+                SystemClock.elapsedRealtime() + PENDING_REGISTRATION_TTL_MS), getPreferences(context));
     }
 
-    public DeviceRegistrationRequest getOriginalRequest(String state) {
-        Logger.verbose("Retrieving original request for state %s", state);
-        return mRequests.remove(state);
+    /**
+     * Removes the registration waiting for the redirect with the given state, reading the persisted registrations
+     * on the first call.
+     *
+     * @return the registration, or null if the state is unknown or the registration expired
+     */
+    @Nullable
+    public PendingRegistration removePendingRegistration(@NonNull Context context, @Nullable String state) {
+        Logger.verbose("Retrieving pending registration for state %s", state);
+        if (state == null) {
+            return null;
+        }
+        SharedPreferences preferences = getPreferences(context);
+        if (!mRestored) {
+            restore(preferences);
+        }
+        PendingRegistration registration = mPendingRegistrations.remove(state);
+        if (registration == null) {
+            return null;
+        }
+        if (registration.completionIntent != null) {
+            unpersist(preferences, state);
+        }
+        if (registration.isExpired(SystemClock.elapsedRealtime())) {
+            Logger.debug("Pending registration for state %s expired", state);
+            return null;
+        }
+        return registration;
     }
 
-    public PendingIntent getPendingIntent(String state) {
-        Logger.verbose("Retrieving pending intent for scheme %s", state);
-        return mPendingIntents.remove(state);
+    @VisibleForTesting
+    int size() {
+        return mPendingRegistrations.size();
     }
 
+    /**
+     * Forgets the registrations kept in memory, as the death of the process does.
+     */
     @VisibleForTesting
     void clearAll() {
-        mPendingIntents.clear();
-        mRequests.clear();
+        mPendingRegistrations.clear();
+        mRestored = false;
     }
-}
 
+    @VisibleForTesting
+    void setWriteExecutor(Executor writeExecutor) {
+        mWriteExecutor = writeExecutor;
+    }
 
+    private void add(PendingRegistration registration, @Nullable SharedPreferences preferences) {
+        String state = registration.request.state;
+        long now = SystemClock.elapsedRealtime();
+        removeExpired(now);
+        mPendingRegistrations.put(state, registration);
+        if (preferences != null) {
+            persist(preferences, state, registration);
+        }
+        while (mPendingRegistrations.size() > MAX_PENDING_REGISTRATIONS) {
+            removeOldest();
+        }
+    }
+
+    private void removeExpired(long now) {
+        Iterator<PendingRegistration> registrations = mPendingRegistrations.values().iterator();
+        while (registrations.hasNext()) {
+            if (registrations.next().isExpired(now)) {
+                registrations.remove();
+            }
+        }
+    }
+
+    private void removeOldest() {
+        Map.Entry<String, PendingRegistration> oldest = null;
+        for (Map.Entry<String, PendingRegistration> entry : mPendingRegistrations.entrySet()) {
+            if (oldest == null || entry.getValue().mExpiresAt < oldest.getValue().mExpiresAt) {
+                oldest = entry;
+            }
+        }
+        if (oldest != null && mPendingRegistrations.remove(oldest.getKey(), oldest.getValue())) {
+            Logger.debug("Too many pending registrations, dropping the one for state %s", oldest.getKey());
+        }
+    }
+
+    private SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // the expiration is persisted in wall clock time, as the elapsed realtime restarts with the device
+    private void persist(final SharedPreferences preferences, final String state,
+                         final PendingRegistration registration) {
+        final long expiresAt = System.currentTimeMillis() + registration.mExpiresAt - SystemClock.elapsedRealtime();
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject json = new JSONObject();
+                    json.put(KEY_REQUEST, registration.request.jsonSerialize());
+                    json.put(KEY_COMPLETION_INTENT, registration.completionIntent.toUri(Intent.URI_INTENT_SCHEME));
+                    json.put(KEY_EXPIRES_AT, expiresAt);
+                    SharedPreferences.Editor editor = preferences.edit().putString(state, json.toString());
+                    // the registrations dropped from memory are not restored
+                    long now = System.currentTimeMillis();
+                    for (Map.Entry<String, ?> persisted : preferences.getAll().entrySet()) {
+                        if (!persisted.getKey().equals(state)
+                                && !mPendingRegistrations.containsKey(persisted.getKey())
+                                && getPersistedExpiration(persisted.getValue()) <= now) {
+                            editor.remove(persisted.getKey());
+                        }
+                    }
+                    editor.commit();
+                } catch (JSONException ex) {
+                    Logger.errorWithStack(ex, "Unable to persist the pending registration for state %s", state);
+                }
+            }
+        });
+    }
+
+    private void unpersist(final SharedPreferences preferences, final String state) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                preferences.edit().remove(state).commit();
+            }
+        });
+    }
+
+    private synchronized void restore(SharedPreferences preferences) {
+        if (mRestored) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long elapsedNow = SystemClock.elapsedRealtime();
+        for (Map.Entry<String, ?> persisted : preferences.getAll().entrySet()) {
+            String state = persisted.getKey();
+            try {
+                JSONObject json = new JSONObject((String) persisted.getValue());
+                long expiresAt = json.getLong(KEY_EXPIRES_AT);
+                if (expiresAt > now && !mPendingRegistrations.containsKey(state)) {
+                    PendingRegistration registration = new PendingRegistration(
+                            DeviceRegistrationRequest.jsonDeserialize(json.getJSONObject(KEY_REQUEST)), null,
+                            Intent.parseUri(json.getString(KEY_COMPLETION_INTENT), Intent.URI_INTENT_SCHEME),
+                            elapsedNow + expiresAt - now);
+                    mPendingRegistrations.put(state, registration);
+                    Logger.debug("Restored the pending registration for state %s", state);
+                }
+            } catch (JSONException | URISyntaxException | ClassCastException ex) {
+                Logger.errorWithStack(ex, "Unable to restore the pending registration for state %s", state);
+            }
+        }
+        while (mPendingRegistrations.size() > MAX_PENDING_REGISTRATIONS) {
+            removeOldest();
+        }
+        mRestored = true;
+    }
+
+    private static long getPersistedExpiration(Object persisted) {
+        try {
+            return new JSONObject((String) persisted).getLong(KEY_EXPIRES_AT);
+        } catch (JSONException | ClassCastException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * A registration request and either the pending intent to send with its response, or the intent to start with
+     * it.
+     */
+    static final class PendingRegistration {
+        final DeviceRegistrationRequest request;
+        @Nullable
+        final PendingIntent pendingIntent;
+        @Nullable
+        final Intent completionIntent;
+        private final long mExpiresAt;
+
+        PendingRegistration(DeviceRegistrationRequest request, @Nullable PendingIntent pendingIntent,
+                            @Nullable Intent completionIntent, long expiresAt) {
+            this.request = request;
+            this.pendingIntent = pendingIntent;
+            this.completionIntent = completionIntent;
+            mExpiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= mExpiresAt;
+        }
+    }
+}
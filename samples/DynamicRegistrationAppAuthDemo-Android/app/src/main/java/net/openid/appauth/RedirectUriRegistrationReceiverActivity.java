@@ -24,8 +24,8 @@ import android.support.annotation.VisibleForTesting;
 
 /**
  * Activity that receives the redirect Uri sent by the device registration endpoint. This activity gets launched
- * when the user approves the app for use and it starts the {@link PendingIntent} given in
- * {@link DeviceAuthorizationService#performDeviceRegistrationRequest}.
+ * when the user approves the app for use and it starts the {@link PendingIntent} or the completion {@link Intent}
+ * given to {@link DeviceAuthorizationService#performDeviceRegistrationRequest}.
  * <p>
  * <p>App developers using this code <em>must</em> to register this activity in the manifest
  * with one intent filter for each redirect URI they are intending to use.
@@ -52,26 +52,30 @@ public class RedirectUriRegistrationReceiverActivity extends Activity {
         Intent intent = getIntent();
         Uri data = intent.getData();
         String state = data.getQueryParameter(KEY_STATE);
-        DeviceRegistrationRequest request =
-                DeviceRegistrationPendingIntentStore.getInstance().getOriginalRequest(state);
-        PendingIntent target =
-                DeviceRegistrationPendingIntentStore.getInstance().getPendingIntent(state);
+        DeviceRegistrationPendingIntentStore.PendingRegistration registration =
+                DeviceRegistrationPendingIntentStore.getInstance().removePendingRegistration(this, state);
 
-        if (request == null) {
+        if (registration == null) {
             Logger.error("Response received for unknown device registration request with state %s",
                     state);
             finish();
             return;
         }
 
-        DeviceRegistrationResponse response = DeviceRegistrationResponse.fromUri(request, data);
+        DeviceRegistrationResponse response = DeviceRegistrationResponse.fromUri(registration.request, data);
         Intent responseData = response.toIntent();
 
         Logger.debug("Forwarding redirect, data=" + data.toString());
-        try {
-            target.send(this, 0, responseData);
-        } catch (PendingIntent.CanceledException e) {
-            Logger.errorWithStack(e, "Unable to send pending intent");
+        if (registration.pendingIntent != null) {
+            try {
+                registration.pendingIntent.send(this, 0, responseData);
+            } catch (PendingIntent.CanceledException e) {
+                Logger.errorWithStack(e, "Unable to send pending intent");
+            }
+        } else {
+            Intent completionIntent = registration.completionIntent;
+            completionIntent.putExtras(responseData);
+            startActivity(completionIntent);
         }
 
         finish();
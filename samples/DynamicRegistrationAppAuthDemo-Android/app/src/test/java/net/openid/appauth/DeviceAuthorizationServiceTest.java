@@ -15,24 +15,34 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -45,7 +55,10 @@ import static org.mockito.Mockito.when;
 public class DeviceAuthorizationServiceTest extends VMwareAppAuthTest {
 
     private static final int CALLBACK_TIMEOUT_MILLIS = 1000;
+    private static final int CALLBACK_POLL_MILLIS = 10;
     private static final String TEST_BROWSER_PACKAGE = "com.browser.test";
+    private static final int TEST_MAX_RETRIES = 2;
+    private static final long TEST_BACKOFF_MILLIS = 10;
 
     private static final String ACTIVATION_CODE_EXCHANGE_RESPONSE_JSON = "{" +
             "\"client_id\": \"" + TEST_CLIENT_ID + "\"," +
@@ -87,6 +100,7 @@ public class DeviceAuthorizationServiceTest extends VMwareAppAuthTest {
         mActivationCallback = new DeviceActivationResponseCallbackTest();
         mBuilder = new InjectedUrlBuilder();
         mService = new DeviceAuthorizationService(mContext, mBuilder, mBrowserHandler);
+        mService.setActivationRetries(TEST_MAX_RETRIES, TEST_BACKOFF_MILLIS);
         mOutputStream = new ByteArrayOutputStream();
         when(mHttpConnection.getOutputStream()).thenReturn(mOutputStream);
         //when(mContext.bindService(serviceIntentEq(), any(CustomTabsServiceConnection.class),
@@ -99,7 +113,7 @@ public class DeviceAuthorizationServiceTest extends VMwareAppAuthTest {
 
     @After
     public void tearDown() throws Exception {
-
+        mService.dispose();
     }
 
     @Test
@@ -174,6 +188,137 @@ public class DeviceAuthorizationServiceTest extends VMwareAppAuthTest {
                 mActivationCallback.error);
     }
 
+    @Test
+    public void testActivationRequestFuture() throws Exception {
+        InputStream is =
+                new ByteArrayInputStream(ACTIVATION_CODE_EXCHANGE_RESPONSE_JSON.getBytes());
+        when(mHttpConnection.getInputStream()).thenReturn(is);
+
+        Future<RegistrationResponse> future = mService.performActivationRequest(
+                getTestDeviceActivationRequest(), mActivationCallback);
+
+        assertRegistrationResponse(future.get(CALLBACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        mActivationCallback.waitForCallback();
+        assertRegistrationResponse(mActivationCallback.response);
+    }
+
+    @Test
+    public void testActivationRequestSetsTimeouts() throws Exception {
+        InputStream is =
+                new ByteArrayInputStream(ACTIVATION_CODE_EXCHANGE_RESPONSE_JSON.getBytes());
+        when(mHttpConnection.getInputStream()).thenReturn(is);
+        mService.setActivationTimeouts(1234, 5678);
+
+        mService.performActivationRequest(getTestDeviceActivationRequest(), mActivationCallback);
+        mActivationCallback.waitForCallback();
+
+        verify(mHttpConnection).setConnectTimeout(1234);
+        verify(mHttpConnection).setReadTimeout(5678);
+    }
+
+    @Test
+    public void testActivationRequestRetriesConnectFailure() throws Exception {
+        InputStream is =
+                new ByteArrayInputStream(ACTIVATION_CODE_EXCHANGE_RESPONSE_JSON.getBytes());
+        when(mHttpConnection.getOutputStream())
+                .thenThrow(new ConnectException()).thenReturn(mOutputStream);
+        when(mHttpConnection.getInputStream()).thenReturn(is);
+
+        mService.performActivationRequest(getTestDeviceActivationRequest(), mActivationCallback);
+        mActivationCallback.waitForCallback();
+
+        assertRegistrationResponse(mActivationCallback.response);
+        verify(mHttpConnection, times(2)).getOutputStream();
+    }
+
+    @Test
+    public void testActivationRequestRetriesTooManyRequests() throws Exception {
+        InputStream is =
+                new ByteArrayInputStream(ACTIVATION_CODE_EXCHANGE_RESPONSE_JSON.getBytes());
+        when(mHttpConnection.getResponseCode()).thenReturn(429, HttpURLConnection.HTTP_OK);
+        when(mHttpConnection.getInputStream()).thenThrow(new IOException()).thenReturn(is);
+
+        mService.performActivationRequest(getTestDeviceActivationRequest(), mActivationCallback);
+        mActivationCallback.waitForCallback();
+
+        assertRegistrationResponse(mActivationCallback.response);
+        verify(mHttpConnection, times(2)).getInputStream();
+    }
+
+    @Test
+    public void testActivationRequestDoesNotRetryReadTimeout() throws Exception {
+        when(mHttpConnection.getResponseCode()).thenThrow(new SocketTimeoutException());
+
+        mService.performActivationRequest(getTestDeviceActivationRequest(), mActivationCallback);
+        mActivationCallback.waitForCallback();
+
+        assertEquals(AuthorizationException.GeneralErrors.NETWORK_ERROR, mActivationCallback.error);
+        assertThat(mOutputStream.toString()).isEqualTo(getTestDeviceActivationRequest().activationCode);
+        verify(mHttpConnection, times(1)).getOutputStream();
+        verify(mHttpConnection, times(1)).getResponseCode();
+    }
+
+    @Test
+    public void testActivationRequestGivesUpAfterRetries() throws Exception {
+        when(mHttpConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_UNAVAILABLE);
+        when(mHttpConnection.getInputStream()).thenThrow(new IOException());
+
+        mService.performActivationRequest(getTestDeviceActivationRequest(), mActivationCallback);
+        mActivationCallback.waitForCallback();
+
+        assertEquals(AuthorizationException.GeneralErrors.NETWORK_ERROR, mActivationCallback.error);
+        verify(mHttpConnection, times(TEST_MAX_RETRIES + 1)).getInputStream();
+    }
+
+    @Test
+    public void testActivationRequestDoesNotRetryClientError() throws Exception {
+        when(mHttpConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_BAD_REQUEST);
+        when(mHttpConnection.getInputStream()).thenThrow(new IOException());
+
+        mService.performActivationRequest(getTestDeviceActivationRequest(), mActivationCallback);
+        mActivationCallback.waitForCallback();
+
+        assertEquals(AuthorizationException.GeneralErrors.NETWORK_ERROR, mActivationCallback.error);
+        verify(mHttpConnection, times(1)).getInputStream();
+    }
+
+    @Test
+    public void testActivationRequestCancelledOnDispose() throws Exception {
+        final CountDownLatch requestSent = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        when(mHttpConnection.getInputStream()).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                requestSent.countDown();
+                disconnected.await(CALLBACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                throw new IOException("disconnected");
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                disconnected.countDown();
+                return null;
+            }
+        }).when(mHttpConnection).disconnect();
+
+        Future<RegistrationResponse> future = mService.performActivationRequest(
+                getTestDeviceActivationRequest(), mActivationCallback);
+        assertTrue(requestSent.await(CALLBACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        mService.dispose();
+
+        assertTrue(future.isCancelled());
+        verify(mHttpConnection).disconnect();
+        assertFalse(mActivationCallback.hasCallback(CALLBACK_TIMEOUT_MILLIS / 4));
+        verify(mHttpConnection, times(1)).getInputStream();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testActivationRequestAfterDispose() throws Exception {
+        mService.dispose();
+        mService.performActivationRequest(getTestDeviceActivationRequest(), mActivationCallback);
+    }
+
     private void assertRegistrationResponse(RegistrationResponse response) {
         assertNotNull(response);
         assertEquals(TEST_CLIENT_ID, response.clientId);
@@ -218,8 +363,20 @@ public class DeviceAuthorizationServiceTest extends VMwareAppAuthTest {
         }
 
         public void waitForCallback() throws Exception {
-            assertTrue(mSemaphore.tryAcquire(CALLBACK_TIMEOUT_MILLIS,
-                    TimeUnit.MILLISECONDS));
+            assertTrue(hasCallback(CALLBACK_TIMEOUT_MILLIS));
+        }
+
+        public boolean hasCallback(long timeoutMillis) throws Exception {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            do {
+                // the callback is posted to the main looper from a pool thread, which Robolectric
+                // only runs once the looper is idled
+                ShadowLooper.idleMainLooper();
+                if (mSemaphore.tryAcquire(CALLBACK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } while (System.currentTimeMillis() < deadline);
+            return false;
         }
 
     }
@@ -0,0 +1,173 @@
+package net.openid.appauth;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import com.vmware.idm.samples.appauth.TokenActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static net.openid.appauth.DeviceRegistrationPendingIntentStore.MAX_PENDING_REGISTRATIONS;
+import static net.openid.appauth.DeviceRegistrationPendingIntentStore.PENDING_REGISTRATION_TTL_MS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the pending registrations are removed once, dropped when expired or too many, and restored after the death
+ * of the process when made with a completion intent.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = com.vmware.idm.samples.appauth.BuildConfig.class, sdk = 16, manifest = "src/main/AndroidManifest.xml")
+public class DeviceRegistrationPendingIntentStoreTest extends VMwareAppAuthTest {
+
+    private DeviceRegistrationPendingIntentStore mStore;
+    private Context mContext;
+
+    @Mock
+    PendingIntent mPendingIntent;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mContext = RuntimeEnvironment.application;
+        mStore = DeviceRegistrationPendingIntentStore.getInstance();
+        mStore.clearAll();
+        mStore.setWriteExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mStore.clearAll();
+    }
+
+    @Test
+    public void testRemovePendingRegistration() {
+        DeviceRegistrationRequest request = getTestDeviceRegistrationRequestBuilder().build();
+        mStore.addPendingIntent(request, mPendingIntent);
+
+        DeviceRegistrationPendingIntentStore.PendingRegistration registration =
+                mStore.removePendingRegistration(mContext, TEST_STATE);
+        assertNotNull(registration);
+        assertSame(request, registration.request);
+        assertSame(mPendingIntent, registration.pendingIntent);
+        // a redirect is only forwarded once
+        assertNull(mStore.removePendingRegistration(mContext, TEST_STATE));
+    }
+
+    @Test
+    public void testRemovePendingRegistrationWithUnknownState() {
+        mStore.addPendingIntent(getTestDeviceRegistrationRequestBuilder().build(), mPendingIntent);
+
+        assertNull(mStore.removePendingRegistration(mContext, "unknown"));
+        assertNull(mStore.removePendingRegistration(mContext, null));
+        assertEquals(1, mStore.size());
+    }
+
+    @Test
+    public void testExpiredPendingRegistration() {
+        mStore.addPendingIntent(getTestDeviceRegistrationRequestBuilder().build(), mPendingIntent);
+        SystemClock.setCurrentTimeMillis(SystemClock.elapsedRealtime() + PENDING_REGISTRATION_TTL_MS);
+
+        assertNull(mStore.removePendingRegistration(mContext, TEST_STATE));
+    }
+
+    @Test
+    public void testExpiredPendingRegistrationsRemovedOnAdd() {
+        mStore.addPendingIntent(getTestDeviceRegistrationRequestBuilder().setState("abandoned").build(),
+                mPendingIntent);
+        SystemClock.setCurrentTimeMillis(SystemClock.elapsedRealtime() + PENDING_REGISTRATION_TTL_MS);
+
+        mStore.addPendingIntent(getTestDeviceRegistrationRequestBuilder().build(), mPendingIntent);
+        assertEquals(1, mStore.size());
+        assertNotNull(mStore.removePendingRegistration(mContext, TEST_STATE));
+    }
+
+    @Test
+    public void testOldestPendingRegistrationDroppedWhenFull() {
+        for (int i = 0; i <= MAX_PENDING_REGISTRATIONS; i++) {
+            mStore.addPendingIntent(getTestDeviceRegistrationRequestBuilder().setState("state" + i).build(),
+                    mPendingIntent);
+            SystemClock.setCurrentTimeMillis(SystemClock.elapsedRealtime() + 1);
+        }
+
+        assertEquals(MAX_PENDING_REGISTRATIONS, mStore.size());
+        assertNull(mStore.removePendingRegistration(mContext, "state0"));
+        assertNotNull(mStore.removePendingRegistration(mContext, "state" + MAX_PENDING_REGISTRATIONS));
+    }
+
+    @Test
+    public void testCompletionIntentRestoredAfterProcessDeath() {
+        Intent completionIntent = new Intent(mContext, TokenActivity.class).putExtra("extra", "value");
+        mStore.addCompletionIntent(mContext, getTestDeviceRegistrationRequestBuilder().build(), completionIntent);
+        mStore.clearAll();
+
+        DeviceRegistrationPendingIntentStore.PendingRegistration registration =
+                mStore.removePendingRegistration(mContext, TEST_STATE);
+        assertNotNull(registration);
+        assertEquals(TEST_STATE, registration.request.state);
+        assertEquals(TokenActivity.class.getName(), registration.completionIntent.getComponent().getClassName());
+        assertEquals("value", registration.completionIntent.getStringExtra("extra"));
+        // the persisted registration is removed with the one in memory
+        mStore.clearAll();
+        assertNull(mStore.removePendingRegistration(mContext, TEST_STATE));
+    }
+
+    @Test
+    public void testPendingIntentNotRestoredAfterProcessDeath() {
+        mStore.addPendingIntent(getTestDeviceRegistrationRequestBuilder().build(), mPendingIntent);
+        mStore.clearAll();
+
+        assertNull(mStore.removePendingRegistration(mContext, TEST_STATE));
+    }
+
+    @Test
+    public void testConcurrentAddAndRemove() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final String state = "state" + i;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    mStore.addPendingIntent(getTestDeviceRegistrationRequestBuilder().setState(state).build(),
+                            mPendingIntent);
+                    DeviceRegistrationPendingIntentStore.PendingRegistration registration =
+                            mStore.removePendingRegistration(mContext, state);
+                    // dropped when more than the maximum registrations are pending at once
+                    return registration == null || state.equals(registration.request.state);
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+        assertEquals(0, mStore.size());
+    }
+}
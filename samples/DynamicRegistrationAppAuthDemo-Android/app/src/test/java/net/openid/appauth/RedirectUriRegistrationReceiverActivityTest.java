@@ -5,6 +5,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 
+import com.vmware.idm.samples.appauth.TokenActivity;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -14,6 +16,7 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 import static net.openid.appauth.DeviceActivationRequest.KEY_ACTIVATION_CODE;
@@ -24,6 +27,7 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verify;
+import static org.robolectric.Shadows.shadowOf;
 
 /**
  * Testing registration redirection happens correctly on the activity.
@@ -89,6 +93,24 @@ public class RedirectUriRegistrationReceiverActivityTest extends VMwareAppAuthTe
     }
 
 
+    @Test
+    public void testRedirectUriActivityWithCompletionIntent() throws Exception {
+        DeviceRegistrationPendingIntentStore.getInstance().addCompletionIntent(RuntimeEnvironment.application,
+                mRequest, new Intent(RuntimeEnvironment.application, TokenActivity.class));
+        RedirectUriRegistrationReceiverActivity activity = Robolectric
+                .buildActivity(RedirectUriRegistrationReceiverActivity.class)
+                .withIntent(CODE_INTENT)
+                .create()
+                .get();
+
+        Intent resultIntent = shadowOf(activity).getNextStartedActivity();
+        assertEquals(TokenActivity.class.getName(), resultIntent.getComponent().getClassName());
+        DeviceRegistrationResponse response = DeviceRegistrationResponse.fromIntent(resultIntent);
+        assertEquals(TEST_STATE, response.state);
+        assertEquals(TEST_ACTIVATION_CODE, response.activationCode);
+        assertTrue(activity.isFinishing());
+    }
+
     @Test
     public void testRedirectUriActivityWithMissingPendingIntent() throws Exception {
         RedirectUriRegistrationReceiverActivity activity = Robolectric
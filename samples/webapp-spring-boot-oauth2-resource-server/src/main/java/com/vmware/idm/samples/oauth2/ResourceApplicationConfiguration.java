@@ -155,7 +155,7 @@ public class ResourceApplicationConfiguration extends ResourceServerConfigurerAd
      * (The default implementation looks for "user_name" but VMware Identity Manager does not include such key.
      * It includes "user_id" which can be used to fetch information back or - here - we just use "prn" to extract principal.
      */
-    private class VMwareUserAuthenticationConverter extends DefaultUserAuthenticationConverter {
+    public static class VMwareUserAuthenticationConverter extends DefaultUserAuthenticationConverter {
         private static final String PRINCIPAL_KEY = "prn";
 
         @Override
@@ -71,6 +71,22 @@ public class VMwareValidateTokenServices implements ResourceServerTokenServices
 
     @Override
     public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException, InvalidTokenException {
+        OAuth2AccessToken oAuth2AccessToken = decodeAccessToken(accessToken);
+
+        if (validateLocally) {
+            validateAccessTokenLocally(oAuth2AccessToken);
+        } else {
+            validateAccessToken(accessToken);
+        }
+
+        return readAuthentication(accessToken);
+    }
+
+    /**
+     * Decode the access token, checking its signature and its expiration date.
+     * will throw {@link InvalidTokenException} on errors.
+     */
+    public OAuth2AccessToken decodeAccessToken(String accessToken) {
         // This call is already checking for the signature and some basic expiration dates
         OAuth2AccessToken oAuth2AccessToken = tokenStore.readAccessToken(accessToken);
         if (oAuth2AccessToken == null) {
@@ -78,13 +94,13 @@ public class VMwareValidateTokenServices implements ResourceServerTokenServices
         } else if (oAuth2AccessToken.isExpired()) {
             throw new InvalidTokenException("Access token expired: " + oAuth2AccessToken.getExpiration());
         }
+        return oAuth2AccessToken;
+    }
 
-        if (validateLocally) {
-            validateAccessTokenLocally(oAuth2AccessToken);
-        } else {
-            validateAccessToken(accessToken);
-        }
-
+    /**
+     * Extract the authentication information from an access token already validated.
+     */
+    public OAuth2Authentication readAuthentication(String accessToken) {
         OAuth2Authentication result = tokenStore.readAuthentication(accessToken);
         if (result == null) {
             // in case of race condition
@@ -99,7 +115,7 @@ public class VMwareValidateTokenServices implements ResourceServerTokenServices
      *
      * @param accessToken the decoded access token used to access this resource server APIs
      */
-    private void validateAccessTokenLocally(OAuth2AccessToken accessToken) {
+    public void validateAccessTokenLocally(OAuth2AccessToken accessToken) {
         logger.info("Validate access token locally: " + accessToken.getAdditionalInformation());
 
         long now = new Date().getTime() / 1000;
@@ -133,11 +149,23 @@ public class VMwareValidateTokenServices implements ResourceServerTokenServices
         headers.set("Authorization", "Bearer " + accessToken);
         logger.info("Validate the token remotely using: " + this.validateTokenUrl);
         String isValid = restTemplate.getForObject(this.validateTokenUrl, String.class);
+        checkValidationResponse(isValid, accessToken);
+    }
+
+    /**
+     * Check the answer of the VMware endpoint validating the access token.
+     * will throw {@link InvalidTokenException} if the token is not valid.
+     */
+    public void checkValidationResponse(String isValid, String accessToken) {
         if (isValid == null || Boolean.FALSE.toString().equals(isValid)) {
             throw new InvalidTokenException("The token is not valid: " + accessToken);
         }
     }
 
+    public URI getValidateTokenUrl() {
+        return validateTokenUrl;
+    }
+
     @Override
     public OAuth2AccessToken readAccessToken(String accessToken) {
         return tokenStore.readAccessToken(accessToken);
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2.async;
+
+import org.springframework.security.authentication.InsufficientAuthenticationException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.authentication.BearerTokenExtractor;
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationDetails;
+import org.springframework.security.oauth2.provider.authentication.TokenExtractor;
+import org.springframework.security.web.AuthenticationEntryPoint;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Authenticate the requests bearing an access token without holding a request thread while the token is validated.
+ * <p>
+ * When the validation can not complete at once, e.g. while it is performed by VMware Identity Manager, the request is
+ * put in asynchronous mode and the thread released. The request is dispatched again once the token is validated, and
+ * goes down the filter chain authenticated, or is answered like the {@code OAuth2AuthenticationProcessingFilter} of
+ * the servlet variant would.
+ */
+public class AsyncBearerTokenFilter extends OncePerRequestFilter {
+
+    private static final String RESULT_ATTRIBUTE = AsyncBearerTokenFilter.class.getName() + ".RESULT";
+
+    private final AsyncTokenServices tokenServices;
+    private final AuthenticationEntryPoint authenticationEntryPoint;
+    private final TokenExtractor tokenExtractor = new BearerTokenExtractor();
+
+    public AsyncBearerTokenFilter(AsyncTokenServices tokenServices, AuthenticationEntryPoint authenticationEntryPoint) {
+        this.tokenServices = tokenServices;
+        this.authenticationEntryPoint = authenticationEntryPoint;
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Object result = request.getAttribute(RESULT_ATTRIBUTE);
+        if (result != null) {
+            // dispatched again once the token is validated
+            request.removeAttribute(RESULT_ATTRIBUTE);
+            proceed(request, response, chain, result);
+            return;
+        }
+        Authentication bearer = tokenExtractor.extract(request);
+        if (bearer == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        CompletableFuture<OAuth2Authentication> authentication =
+                tokenServices.loadAuthentication((String) bearer.getPrincipal());
+        if (authentication.isDone()) {
+            proceed(request, response, chain, resultOf(authentication));
+            return;
+        }
+        AsyncContext asyncContext = request.startAsync();
+        authentication.whenComplete((oAuth2Authentication, e) -> {
+            asyncContext.getRequest().setAttribute(RESULT_ATTRIBUTE,
+                    oAuth2Authentication != null ? oAuth2Authentication : unwrap(e));
+            asyncContext.dispatch();
+        });
+    }
+
+    private void proceed(HttpServletRequest request, HttpServletResponse response, FilterChain chain, Object result)
+            throws ServletException, IOException {
+        if (result instanceof OAuth2Authentication) {
+            OAuth2Authentication authentication = (OAuth2Authentication) result;
+            authentication.setDetails(new OAuth2AuthenticationDetails(request));
+            SecurityContextHolder.getContext().setAuthentication(authentication);
+            chain.doFilter(request, response);
+        } else if (result instanceof OAuth2Exception) {
+            OAuth2Exception failed = (OAuth2Exception) result;
+            SecurityContextHolder.clearContext();
+            authenticationEntryPoint.commence(request, response,
+                    new InsufficientAuthenticationException(failed.getMessage(), failed));
+        } else if (result instanceof RuntimeException) {
+            throw (RuntimeException) result;
+        } else {
+            throw new ServletException((Throwable) result);
+        }
+    }
+
+    private static Object resultOf(CompletableFuture<OAuth2Authentication> authentication) {
+        try {
+            return authentication.join();
+        } catch (CompletionException e) {
+            return unwrap(e);
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+}
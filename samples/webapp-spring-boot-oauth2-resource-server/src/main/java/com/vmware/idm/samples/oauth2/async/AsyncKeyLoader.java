@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2.async;
+
+import com.vmware.idm.samples.oauth2.VMwareValidateTokenServices;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.JwtTokenStore;
+import org.springframework.web.client.AsyncRestOperations;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Fetch the public key of VMware Identity Manager without blocking, and refresh it periodically.
+ * <p>
+ * The application starts without waiting for the key: the requests received before it is loaded wait for it, or fail
+ * if it can not be fetched, and the key is fetched again every few seconds until it is loaded.
+ */
+public class AsyncKeyLoader {
+
+    private static Logger logger = Logger.getLogger(AsyncKeyLoader.class.getSimpleName());
+
+    public static final long RETRY_DELAY_IN_MS = 10000;
+
+    private final String keyUri;
+    private final String checkTokenUri;
+    private final AccessTokenConverter accessTokenConverter;
+    private final AsyncRestOperations restTemplate;
+    private volatile CompletableFuture<VMwareValidateTokenServices> tokenServices = new CompletableFuture<>();
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> refresher;
+
+    /**
+     * @param keyUri               URL of the public key in PEM format
+     * @param checkTokenUri        URL of the VMware endpoint validating the access tokens
+     * @param accessTokenConverter converter extracting the authentication from the decoded access tokens
+     * @param restTemplate         client fetching the key
+     */
+    public AsyncKeyLoader(String keyUri, String checkTokenUri, AccessTokenConverter accessTokenConverter,
+                          AsyncRestOperations restTemplate) {
+        this.keyUri = keyUri;
+        this.checkTokenUri = checkTokenUri;
+        this.accessTokenConverter = accessTokenConverter;
+        this.restTemplate = restTemplate;
+    }
+
+    /**
+     * @return the token services verifying the access tokens with the last key loaded, completed once the first key
+     * is loaded
+     */
+    public CompletableFuture<VMwareValidateTokenServices> getTokenServices() {
+        return tokenServices;
+    }
+
+    /**
+     * Fetch the key now, and then periodically.
+     *
+     * @param scheduler       scheduler starting the refreshes
+     * @param refreshInterval delay in ms between two refreshes
+     */
+    public synchronized void startRefreshing(ScheduledExecutorService scheduler, long refreshInterval) {
+        stopRefreshing();
+        this.scheduler = scheduler;
+        refresher = scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopRefreshing() {
+        if (refresher != null) {
+            refresher.cancel(false);
+            refresher = null;
+        }
+    }
+
+    /**
+     * Fetch the key, and replace the token services once it is loaded.
+     */
+    public void refresh() {
+        logger.info("Fetch public key from " + keyUri);
+        try {
+            restTemplate.getForEntity(keyUri, String.class).addCallback(
+                    entity -> loaded(entity.getBody()),
+                    this::failed);
+        } catch (RuntimeException e) {
+            // the queue of the client is full
+            failed(e);
+        }
+    }
+
+    private void loaded(String publicKeyPem) {
+        VMwareValidateTokenServices services;
+        try {
+            JwtAccessTokenConverter converter = new JwtAccessTokenConverter();
+            converter.setVerifierKey(publicKeyPem);
+            converter.setAccessTokenConverter(accessTokenConverter);
+            converter.afterPropertiesSet();
+            services = new VMwareValidateTokenServices(checkTokenUri, new JwtTokenStore(converter));
+        } catch (Exception e) {
+            failed(e);
+            return;
+        }
+        if (!tokenServices.complete(services)) {
+            tokenServices = CompletableFuture.completedFuture(services);
+        }
+    }
+
+    private void failed(Throwable e) {
+        logger.warning("Unable to fetch the public key from " + keyUri + ": " + e);
+        CompletableFuture<VMwareValidateTokenServices> current = tokenServices;
+        if (!current.isDone()) {
+            // no key loaded yet: fail the requests waiting for it, and let the next ones wait for the next attempt
+            tokenServices = new CompletableFuture<>();
+            current.completeExceptionally(e);
+            scheduleRetry();
+        }
+    }
+
+    private synchronized void scheduleRetry() {
+        if (refresher != null) {
+            scheduler.schedule(this::refresh, RETRY_DELAY_IN_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2.async;
+
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.security.Principal;
+
+/**
+ * Variant of the resource server validating the access tokens without blocking the request threads, serving the
+ * same resources.
+ * <p>
+ * It is not a {@code @SpringBootApplication}, so that the tests of the servlet variant still find a single
+ * {@code @SpringBootConfiguration}.
+ */
+@Configuration
+@EnableAutoConfiguration
+@ComponentScan
+@RestController
+public class AsyncResourceApplication {
+
+    @RequestMapping("/")
+    public String home() {
+        return "Home resource (unprotected)\n";
+    }
+
+    @RequestMapping("/resource")
+    public String protectedResource(Principal principal) {
+        return "Resource granted to " + principal.getName() + "!\n";
+    }
+
+    /**
+     * A few request threads are enough as they are not held while the tokens are validated: Tomcat keeps the idle
+     * and waiting connections in its NIO poller.
+     */
+    @Bean
+    public EmbeddedServletContainerCustomizer connectorCustomizer(
+            @Value("${vmware.async.requestThreads}") int requestThreads,
+            @Value("${vmware.async.maxConnections}") int maxConnections) {
+        return container -> {
+            if (container instanceof TomcatEmbeddedServletContainerFactory) {
+                ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(connector -> {
+                    ProtocolHandler handler = connector.getProtocolHandler();
+                    if (handler instanceof AbstractProtocol) {
+                        ((AbstractProtocol<?>) handler).setMaxThreads(requestThreads);
+                        ((AbstractProtocol<?>) handler).setMaxConnections(maxConnections);
+                    }
+                });
+            }
+        };
+    }
+
+    public static void main(String[] args) {
+        SpringApplication.run(AsyncResourceApplication.class, args);
+    }
+}
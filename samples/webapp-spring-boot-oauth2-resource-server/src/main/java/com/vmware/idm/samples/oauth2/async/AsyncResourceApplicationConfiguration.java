@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2.async;
+
+import com.vmware.idm.samples.oauth2.ResourceApplicationConfiguration.VMwareUserAuthenticationConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.oauth2.provider.error.OAuth2AuthenticationEntryPoint;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.security.web.authentication.preauth.AbstractPreAuthenticatedProcessingFilter;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Configuration of the non-blocking resource server, reading the same "vmware.resource" properties as
+ * {@link com.vmware.idm.samples.oauth2.ResourceApplicationConfiguration} and its own "vmware.async" ones.
+ */
+@Configuration
+public class AsyncResourceApplicationConfiguration extends WebSecurityConfigurerAdapter {
+
+    @Value("${vmware.resource.id}")
+    private String resourceId;
+
+    @Value("${vmware.resource.jwt.keyUri}")
+    private String keyUri;
+
+    @Value("${vmware.resource.checkTokenUri}")
+    private String checkTokenUri;
+
+    @Value("${vmware.resource.localValidation}")
+    private boolean performLocalValidation;
+
+    @Value("${vmware.async.keyRefreshInterval}")
+    private long keyRefreshInterval;
+
+    @Value("${vmware.async.clientThreads}")
+    private int clientThreads;
+
+    @Value("${vmware.async.clientQueueCapacity}")
+    private int clientQueueCapacity;
+
+    @Value("${vmware.async.connectTimeout}")
+    private int connectTimeout;
+
+    @Value("${vmware.async.readTimeout}")
+    private int readTimeout;
+
+    /**
+     * Allow "/" to be accessed without any permissions and anything else is protected by a valid Oauth2 token,
+     * validated by the {@link AsyncBearerTokenFilter} where the servlet variant has its OAuth2 filter.
+     */
+    @Override
+    protected void configure(HttpSecurity http) throws Exception {
+        OAuth2AuthenticationEntryPoint authenticationEntryPoint = new OAuth2AuthenticationEntryPoint();
+        http
+                .sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+                .and()
+                .csrf().disable()
+                .exceptionHandling().authenticationEntryPoint(authenticationEntryPoint)
+                .and()
+                .addFilterBefore(new AsyncBearerTokenFilter(asyncTokenServices(), authenticationEntryPoint),
+                        AbstractPreAuthenticatedProcessingFilter.class)
+                .authorizeRequests()
+                .antMatchers("/").permitAll()
+                .anyRequest().authenticated();
+    }
+
+    /**
+     * Client of VMware Identity Manager. The JDK connections block the threads of their own small pool, not the
+     * request threads: a non-blocking request factory, e.g. the Netty one, would not need any. The timeouts keep a
+     * slow Identity Manager from holding these threads, and the requests beyond the capacity of the queue are
+     * rejected rather than waiting without limit.
+     */
+    @Bean
+    public AsyncRestTemplate asyncRestTemplate() {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(connectTimeout);
+        requestFactory.setReadTimeout(readTimeout);
+        requestFactory.setTaskExecutor(clientExecutor());
+        return new AsyncRestTemplate(requestFactory);
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor clientExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(clientThreads);
+        executor.setMaxPoolSize(clientThreads);
+        executor.setQueueCapacity(clientQueueCapacity);
+        executor.setThreadNamePrefix("vmware-client-");
+        return executor;
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService keyRefreshScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("key-refresh-"));
+    }
+
+    /**
+     * Fetch the public key of VMware Identity Manager in the background, the application does not wait for it.
+     */
+    @Bean(destroyMethod = "stopRefreshing")
+    public AsyncKeyLoader asyncKeyLoader() {
+        DefaultAccessTokenConverter accessTokenConverter = new DefaultAccessTokenConverter();
+        accessTokenConverter.setUserTokenConverter(new VMwareUserAuthenticationConverter());
+        String pemKeyUri = UriComponentsBuilder.fromHttpUrl(keyUri).queryParam("format", "pem").toUriString();
+        AsyncKeyLoader keyLoader = new AsyncKeyLoader(pemKeyUri, checkTokenUri, accessTokenConverter,
+                asyncRestTemplate());
+        keyLoader.startRefreshing(keyRefreshScheduler(), keyRefreshInterval);
+        return keyLoader;
+    }
+
+    @Bean
+    public AsyncTokenServices asyncTokenServices() {
+        AsyncTokenServices tokenServices = new AsyncTokenServices(asyncKeyLoader(), asyncRestTemplate(), resourceId);
+        tokenServices.setValidateLocally(performLocalValidation);
+        return tokenServices;
+    }
+}
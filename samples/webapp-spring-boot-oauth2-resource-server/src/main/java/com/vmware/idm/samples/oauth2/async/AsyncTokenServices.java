@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2.async;
+
+import com.vmware.idm.samples.oauth2.VMwareValidateTokenServices;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.web.client.AsyncRestOperations;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking counterpart of {@link VMwareValidateTokenServices}, applying the same checks.
+ * <p>
+ * The access tokens are verified with the key of an {@link AsyncKeyLoader}. A token validated locally is checked on
+ * the calling thread as soon as the key is loaded. A token validated by VMware Identity Manager is checked by an
+ * asynchronous call, shared by the requests presenting the same token while it is in progress. The resource ID is
+ * checked like the {@code OAuth2AuthenticationManager} of the servlet variant does, and each request gets its own
+ * copy of the authentication, which the filter completes with the details of the request.
+ */
+public class AsyncTokenServices {
+
+    private static Logger logger = Logger.getLogger(AsyncTokenServices.class.getSimpleName());
+
+    private final AsyncKeyLoader keyLoader;
+    private final AsyncRestOperations restTemplate;
+    private final String resourceId;
+    private final ConcurrentMap<String, CompletableFuture<OAuth2Authentication>> remoteValidations =
+            new ConcurrentHashMap<>();
+    private boolean validateLocally = true;
+
+    public AsyncTokenServices(AsyncKeyLoader keyLoader, AsyncRestOperations restTemplate, String resourceId) {
+        this.keyLoader = keyLoader;
+        this.restTemplate = restTemplate;
+        this.resourceId = resourceId;
+    }
+
+    /**
+     * @return the authentication of the access token, completed with an {@code InvalidTokenException} if the token
+     * is not valid
+     */
+    public CompletableFuture<OAuth2Authentication> loadAuthentication(String accessToken) {
+        return keyLoader.getTokenServices()
+                .thenCompose(services -> validateLocally
+                        ? CompletableFuture.completedFuture(services.loadAuthentication(accessToken))
+                        : validateRemotely(services, accessToken))
+                .thenApply(this::authenticated);
+    }
+
+    private CompletableFuture<OAuth2Authentication> validateRemotely(VMwareValidateTokenServices services,
+                                                                     String accessToken) {
+        services.decodeAccessToken(accessToken);
+        CompletableFuture<OAuth2Authentication> validation = new CompletableFuture<>();
+        CompletableFuture<OAuth2Authentication> inProgress = remoteValidations.putIfAbsent(accessToken, validation);
+        if (inProgress != null) {
+            return inProgress;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Authorization", "Bearer " + accessToken);
+        logger.fine("Validate the token remotely using: " + services.getValidateTokenUrl());
+        try {
+            restTemplate.exchange(services.getValidateTokenUrl(), HttpMethod.GET, new HttpEntity<>(headers),
+                    String.class).addCallback(response -> {
+                        remoteValidations.remove(accessToken);
+                        try {
+                            services.checkValidationResponse(response.getBody(), accessToken);
+                            validation.complete(services.readAuthentication(accessToken));
+                        } catch (RuntimeException e) {
+                            validation.completeExceptionally(e);
+                        }
+                    }, e -> {
+                        remoteValidations.remove(accessToken);
+                        validation.completeExceptionally(e);
+                    });
+        } catch (RuntimeException e) {
+            // the queue of the client is full
+            remoteValidations.remove(accessToken);
+            validation.completeExceptionally(e);
+        }
+        return validation;
+    }
+
+    private OAuth2Authentication authenticated(OAuth2Authentication authentication) {
+        Collection<String> resourceIds = authentication.getOAuth2Request().getResourceIds();
+        if (resourceId != null && resourceIds != null && !resourceIds.isEmpty() && !resourceIds.contains(resourceId)) {
+            throw new OAuth2AccessDeniedException("Invalid token does not contain resource id (" + resourceId + ")");
+        }
+        OAuth2Authentication copy = new OAuth2Authentication(authentication.getOAuth2Request(),
+                authentication.getUserAuthentication());
+        copy.setAuthenticated(true);
+        return copy;
+    }
+
+    public void setValidateLocally(boolean validateLocally) {
+        this.validateLocally = validateLocally;
+    }
+}
@@ -0,0 +1,200 @@
+package com.vmware.idm.samples.oauth2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.idm.samples.oauth2.async.AsyncResourceApplication;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Side-by-side load test of the servlet and the non-blocking variants of the resource server, with the same number
+ * of request threads and the same load, against a stub of VMware Identity Manager answering the token validations
+ * after a given latency. It is not part of the build, run it with:
+ * <pre>
+ * mvn test -Dtest=ResourceServerLoadBenchmark -Dbenchmark.localValidation=false -Dbenchmark.latency=20
+ * </pre>
+ * Each client sends its own token, so the validations in progress are not shared.
+ */
+public class ResourceServerLoadBenchmark {
+
+    private static final boolean LOCAL_VALIDATION = Boolean.parseBoolean(System.getProperty("benchmark.localValidation", "false"));
+    private static final int LATENCY_IN_MS = Integer.getInteger("benchmark.latency", 20);
+    private static final int CLIENTS = Integer.getInteger("benchmark.clients", 200);
+    private static final int SECONDS = Integer.getInteger("benchmark.seconds", 10);
+    private static final int REQUEST_THREADS = Integer.getInteger("benchmark.requestThreads", 16);
+    private static final int CLIENT_THREADS = Integer.getInteger("benchmark.clientThreads", 64);
+
+    private static HttpServer identityManager;
+    private static String baseUrl;
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void startIdentityManager() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        String publicKeyPem = "-----BEGIN PUBLIC KEY-----\n"
+                + Base64.getMimeEncoder().encodeToString(keyPair.getPublic().getEncoded())
+                + "\n-----END PUBLIC KEY-----";
+
+        identityManager = HttpServer.create(new InetSocketAddress("localhost", 0), 1000);
+        identityManager.setExecutor(Executors.newCachedThreadPool());
+        identityManager.createContext("/SAAS/API/1.0/REST/auth/token", exchange -> {
+            if (exchange.getRequestURI().getQuery().contains("attribute=publicKey")) {
+                respond(exchange, publicKeyPem);
+            } else {
+                try {
+                    Thread.sleep(LATENCY_IN_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, "true");
+            }
+        });
+        identityManager.start();
+        baseUrl = "http://localhost:" + identityManager.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void stopIdentityManager() {
+        identityManager.stop(0);
+    }
+
+    @Test
+    public void compareServletAndAsyncVariants() throws Exception {
+        List<String> results = new ArrayList<>();
+        results.add(run("servlet", new SpringApplicationBuilder(ResourceApplication.class),
+                "--server.tomcat.max-threads=" + REQUEST_THREADS));
+        results.add(run("async", new SpringApplicationBuilder(AsyncResourceApplication.class),
+                "--vmware.async.requestThreads=" + REQUEST_THREADS,
+                "--vmware.async.clientThreads=" + CLIENT_THREADS));
+
+        System.out.println(String.format("%n%d clients for %d s, %d request threads, %s validation (latency %d ms)",
+                CLIENTS, SECONDS, REQUEST_THREADS, LOCAL_VALIDATION ? "local" : "remote", LATENCY_IN_MS));
+        System.out.println(String.format("%-8s %10s %10s %10s %10s", "variant", "requests/s", "p50 ms", "p99 ms", "errors"));
+        results.forEach(System.out::println);
+    }
+
+    private String run(String variant, SpringApplicationBuilder builder, String... args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        arguments.add("--server.port=0");
+        arguments.add("--logging.level.root=WARN");
+        arguments.add("--logging.level.org.springframework.security=WARN");
+        arguments.add("--logging.level.VMwareValidateTokenServices=WARN");
+        arguments.add("--vmware.resource.localValidation=" + LOCAL_VALIDATION);
+        arguments.add("--vmware.resource.id=" + baseUrl + "/SAAS/auth/oauthtoken");
+        arguments.add("--vmware.resource.checkTokenUri=" + baseUrl + "/SAAS/API/1.0/REST/auth/token?attribute=isValid");
+        arguments.add("--vmware.resource.jwt.keyUri=" + baseUrl + "/SAAS/API/1.0/REST/auth/token?attribute=publicKey");
+        try (ConfigurableApplicationContext context = builder.run(arguments.toArray(new String[0]))) {
+            int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+            URL resource = new URL("http://localhost:" + port + "/resource");
+            load(resource, 2);
+            return variant + String.format(" %" + (19 - variant.length()) + "s", "") + load(resource, SECONDS);
+        }
+    }
+
+    private String load(URL resource, int seconds) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<long[]>> latencies = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            String token = aToken("client-" + i);
+            latencies.add(clients.submit(() -> {
+                long[] clientLatencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    boolean granted = get(resource, token);
+                    if (count == clientLatencies.length) {
+                        clientLatencies = Arrays.copyOf(clientLatencies, count * 2);
+                    }
+                    clientLatencies[count++] = granted ? System.nanoTime() - start : -1;
+                }
+                return Arrays.copyOf(clientLatencies, count);
+            }));
+        }
+        long[] all = new long[0];
+        for (Future<long[]> clientLatencies : latencies) {
+            long[] values = clientLatencies.get();
+            int offset = all.length;
+            all = Arrays.copyOf(all, offset + values.length);
+            System.arraycopy(values, 0, all, offset, values.length);
+        }
+        clients.shutdown();
+        Arrays.sort(all);
+        int errors = 0;
+        while (errors < all.length && all[errors] < 0) {
+            errors++;
+        }
+        long[] granted = Arrays.copyOfRange(all, errors, all.length);
+        assertThat(granted.length).isGreaterThan(0);
+        return String.format("%10d %10.1f %10.1f %10d", granted.length / seconds,
+                granted[granted.length / 2] / 1e6, granted[(int) (granted.length * 0.99)] / 1e6, errors);
+    }
+
+    private static boolean get(URL resource, String token) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) resource.openConnection();
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+            try (InputStream in = connection.getResponseCode() == 200
+                    ? connection.getInputStream() : connection.getErrorStream()) {
+                while (in != null && in.read() >= 0) {
+                    // drain the body so that the connection is kept alive
+                }
+            }
+            return connection.getResponseCode() == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String aToken(String principal) {
+        long now = System.currentTimeMillis() / 1000;
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("prn", principal);
+        claims.put("iss", baseUrl + "/SAAS/auth");
+        claims.put("aud", baseUrl + "/SAAS/auth/oauthtoken");
+        claims.put("iat", now);
+        claims.put("exp", now + 3600);
+        return JwtHelper.encode(JsonParserFactory.create().formatMap(claims),
+                new RsaSigner((RSAPrivateKey) keyPair.getPrivate())).getEncoded();
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.vmware.idm.samples.oauth2.async;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+/**
+ * The tokens are validated on another thread, the requests are dispatched again once they are.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = AsyncResourceApplication.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class AsyncResourceApplicationTest {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @MockBean
+    private AsyncTokenServices mockTokenServices;
+
+    @Test
+    public void canAccessHome() {
+        String body = this.restTemplate.getForObject("/", String.class);
+        assertThat(body).isEqualTo("Home resource (unprotected)\n");
+    }
+
+    @Test
+    public void cannotAccessProtectedResource() {
+        String body = this.restTemplate.getForObject("/resource", String.class);
+        assertThat(body).contains("{\"error\":\"unauthorized\",\"error_description\":\"Full authentication is required to access this resource\"}");
+    }
+
+    @Test
+    public void canAccessProtectedResourceOnceTheTokenIsValidated() {
+        OAuth2Request request = new OAuth2Request(null, null, null, true, null, null, null, null, null);
+        OAuth2Authentication authentication = new OAuth2Authentication(request,
+                new UsernamePasswordAuthenticationToken("test-username", null, Collections.emptyList()));
+        given(mockTokenServices.loadAuthentication("a-valid-token")).willReturn(later(authentication, null));
+
+        String body = getResource("a-valid-token");
+        assertThat(body).isEqualTo("Resource granted to test-username!\n");
+    }
+
+    @Test
+    public void cannotAccessProtectedResourceWithAnInvalidToken() {
+        given(mockTokenServices.loadAuthentication("an-invalid-token"))
+                .willReturn(later(null, new InvalidTokenException("Invalid access token: an-invalid-token")));
+
+        String body = getResource("an-invalid-token");
+        assertThat(body).contains("{\"error\":\"invalid_token\",\"error_description\":\"Invalid access token: an-invalid-token\"}");
+    }
+
+    private String getResource(String accessToken) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Authorization", "Bearer " + accessToken);
+        return this.restTemplate.exchange("/resource", HttpMethod.GET, new HttpEntity<>(headers), String.class).getBody();
+    }
+
+    private static CompletableFuture<OAuth2Authentication> later(OAuth2Authentication authentication,
+                                                                 RuntimeException failure) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return authentication;
+        });
+    }
+}
@@ -0,0 +1,214 @@
+package com.vmware.idm.samples.oauth2.async;
+
+import com.vmware.idm.samples.oauth2.ResourceApplicationConfiguration.VMwareUserAuthenticationConverter;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.util.JsonParser;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestOperations;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the non-blocking token validation, with tokens signed by a generated key.
+ */
+public class AsyncTokenServicesTest {
+
+    private static final String KEY_URI = "https://test.test.test/SAAS/API/1.0/REST/auth/token?attribute=publicKey&format=pem";
+    private static final String VALIDATE_TOKEN_URL = "https://test.test.test/SAAS/API/1.0/REST/auth/token?attribute=isValid";
+    private static final String RESOURCE_ID = "https://test.test.test/SAAS/auth/oauthtoken";
+
+    private static KeyPair keyPair;
+    private static String publicKeyPem;
+
+    private AsyncRestOperations mockRestTemplate;
+    private SettableListenableFuture<ResponseEntity<String>> keyResponse;
+    private AsyncKeyLoader keyLoader;
+    private AsyncTokenServices tokenServices;
+
+    @BeforeClass
+    public static void generateKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        publicKeyPem = "-----BEGIN PUBLIC KEY-----\n"
+                + Base64.getMimeEncoder().encodeToString(keyPair.getPublic().getEncoded())
+                + "\n-----END PUBLIC KEY-----";
+    }
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        mockRestTemplate = mock(AsyncRestOperations.class);
+        keyResponse = new SettableListenableFuture<>();
+        given(mockRestTemplate.getForEntity(KEY_URI, String.class)).willReturn(keyResponse);
+        DefaultAccessTokenConverter accessTokenConverter = new DefaultAccessTokenConverter();
+        accessTokenConverter.setUserTokenConverter(new VMwareUserAuthenticationConverter());
+        keyLoader = new AsyncKeyLoader(KEY_URI, VALIDATE_TOKEN_URL, accessTokenConverter, mockRestTemplate);
+        keyLoader.refresh();
+        tokenServices = new AsyncTokenServices(keyLoader, mockRestTemplate, RESOURCE_ID);
+    }
+
+    @Test
+    public void testLoadAuthenticationWaitsForTheKey() {
+        CompletableFuture<OAuth2Authentication> authentication = tokenServices.loadAuthentication(aValidToken());
+        assertThat(authentication.isDone()).isFalse();
+
+        keyResponse.set(ResponseEntity.ok(publicKeyPem));
+
+        assertThat(authentication.join().getName()).isEqualTo("test-username");
+    }
+
+    @Test
+    public void testLoadAuthenticationCanValidateLocally() {
+        keyResponse.set(ResponseEntity.ok(publicKeyPem));
+
+        CompletableFuture<OAuth2Authentication> authentication = tokenServices.loadAuthentication(aValidToken());
+
+        assertThat(authentication.isDone()).isTrue();
+        assertThat(authentication.join().getName()).isEqualTo("test-username");
+    }
+
+    @Test
+    public void testLoadAuthenticationDoesNotValidatesTokenWithInvalidIssuer() {
+        keyResponse.set(ResponseEntity.ok(publicKeyPem));
+        Map<String, Object> claims = aValidClaims();
+        claims.put("iss", "wrong!");
+
+        assertThat(failureOf(tokenServices.loadAuthentication(aToken(claims))))
+                .isInstanceOf(InvalidTokenException.class)
+                .hasMessage("Invalid issuer: 'wrong!', expected: 'https://test.test.test/SAAS/auth'");
+    }
+
+    @Test
+    public void testLoadAuthenticationFailsIfResourceIdDoesNotMatch() {
+        keyResponse.set(ResponseEntity.ok(publicKeyPem));
+        Map<String, Object> claims = aValidClaims();
+        claims.put("aud", "https://another.test/SAAS/auth/oauthtoken");
+
+        assertThat(failureOf(tokenServices.loadAuthentication(aToken(claims))))
+                .isInstanceOf(OAuth2AccessDeniedException.class)
+                .hasMessage("Invalid token does not contain resource id (" + RESOURCE_ID + ")");
+    }
+
+    @Test
+    public void testLoadAuthenticationFailsIfTheKeyCanNotBeFetched() {
+        CompletableFuture<OAuth2Authentication> authentication = tokenServices.loadAuthentication(aValidToken());
+
+        keyResponse.setException(new ResourceAccessException("test"));
+
+        assertThat(failureOf(authentication)).isInstanceOf(ResourceAccessException.class);
+        assertThat(keyLoader.getTokenServices().isDone()).isFalse();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRemoteValidationOfATokenIsSharedWhileInProgress() {
+        keyResponse.set(ResponseEntity.ok(publicKeyPem));
+        SettableListenableFuture<ResponseEntity<String>> validationResponse = new SettableListenableFuture<>();
+        given(mockRestTemplate.exchange(any(URI.class), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class)))
+                .willReturn(validationResponse);
+        tokenServices.setValidateLocally(false);
+        String token = aValidToken();
+
+        CompletableFuture<OAuth2Authentication> first = tokenServices.loadAuthentication(token);
+        CompletableFuture<OAuth2Authentication> second = tokenServices.loadAuthentication(token);
+        assertThat(first.isDone()).isFalse();
+        validationResponse.set(ResponseEntity.ok("true"));
+
+        assertThat(first.join().getName()).isEqualTo("test-username");
+        assertThat(second.join().getName()).isEqualTo("test-username");
+        assertThat(first.join()).isNotSameAs(second.join());
+        verify(mockRestTemplate, times(1)).exchange(any(URI.class), eq(HttpMethod.GET), any(HttpEntity.class),
+                eq(String.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLoadAuthenticationFailsIfRemoteValidationFails() {
+        keyResponse.set(ResponseEntity.ok(publicKeyPem));
+        SettableListenableFuture<ResponseEntity<String>> validationResponse = new SettableListenableFuture<>();
+        validationResponse.set(ResponseEntity.ok("false"));
+        given(mockRestTemplate.exchange(any(URI.class), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class)))
+                .willReturn(validationResponse);
+        tokenServices.setValidateLocally(false);
+        String token = aValidToken();
+
+        assertThat(failureOf(tokenServices.loadAuthentication(token)))
+                .isInstanceOf(InvalidTokenException.class)
+                .hasMessage("The token is not valid: " + token);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRejectedRemoteValidationIsNotShared() {
+        keyResponse.set(ResponseEntity.ok(publicKeyPem));
+        SettableListenableFuture<ResponseEntity<String>> validationResponse = new SettableListenableFuture<>();
+        validationResponse.set(ResponseEntity.ok("true"));
+        given(mockRestTemplate.exchange(any(URI.class), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class)))
+                .willThrow(new TaskRejectedException("test"))
+                .willReturn(validationResponse);
+        tokenServices.setValidateLocally(false);
+        String token = aValidToken();
+
+        assertThat(failureOf(tokenServices.loadAuthentication(token))).isInstanceOf(TaskRejectedException.class);
+        assertThat(tokenServices.loadAuthentication(token).join().getName()).isEqualTo("test-username");
+    }
+
+    private static Throwable failureOf(CompletableFuture<?> future) {
+        Throwable failure = catchThrowable(future::join);
+        assertThat(failure).isInstanceOf(CompletionException.class);
+        return failure.getCause();
+    }
+
+    private static String aValidToken() {
+        return aToken(aValidClaims());
+    }
+
+    private static Map<String, Object> aValidClaims() {
+        long now = System.currentTimeMillis() / 1000;
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("prn", "test-username");
+        claims.put("iss", "https://test.test.test/SAAS/auth");
+        claims.put("aud", RESOURCE_ID);
+        claims.put("iat", now);
+        claims.put("exp", now + 3600);
+        return claims;
+    }
+
+    private static String aToken(Map<String, Object> claims) {
+        JsonParser jsonParser = JsonParserFactory.create();
+        return JwtHelper.encode(jsonParser.formatMap(claims), new RsaSigner((RSAPrivateKey) keyPair.getPrivate()))
+                .getEncoded();
+    }
+}
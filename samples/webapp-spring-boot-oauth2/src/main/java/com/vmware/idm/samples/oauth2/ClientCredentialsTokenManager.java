@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.security.oauth2.client.token.AccessTokenProvider;
+import org.springframework.security.oauth2.client.token.DefaultAccessTokenRequest;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsAccessTokenProvider;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Obtains and caches the access token a backend application uses to call VMware Identity Manager APIs with its
+ * own identity (OAuth2 client credentials grant on {@code /SAAS/auth/oauthtoken}).
+ * <p>
+ * The token is shared by all the threads and handed out without any locking. When it gets close to its expiration,
+ * a single background refresh is started while callers keep using the current token, so that API calls do not wait
+ * for a new token in steady state. Callers only wait when there is no valid token at all (e.g. on the first call),
+ * and then share the same token request.
+ * <p>
+ * It is also a {@link ClientHttpRequestInterceptor} adding the token to the requests of a {@code RestTemplate}.
+ */
+public class ClientCredentialsTokenManager implements ClientHttpRequestInterceptor, DisposableBean {
+
+    private static Logger logger = Logger.getLogger(ClientCredentialsTokenManager.class.getSimpleName());
+
+    public static final long DEFAULT_REFRESH_BEFORE_EXPIRY_IN_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long RETRY_DELAY_IN_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private final ClientCredentialsResourceDetails resource;
+    private final AccessTokenProvider accessTokenProvider;
+    private final ExecutorService refreshExecutor;
+    private long refreshBeforeExpiryInMs = DEFAULT_REFRESH_BEFORE_EXPIRY_IN_MS;
+
+    private final AtomicReference<OAuth2AccessToken> accessToken = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<OAuth2AccessToken>> pendingRefresh = new AtomicReference<>();
+    private volatile long nextRefreshAttempt;
+
+    public ClientCredentialsTokenManager(ClientCredentialsResourceDetails resource) {
+        this(resource, new ClientCredentialsAccessTokenProvider());
+    }
+
+    public ClientCredentialsTokenManager(ClientCredentialsResourceDetails resource, AccessTokenProvider accessTokenProvider) {
+        this.resource = resource;
+        this.accessTokenProvider = accessTokenProvider;
+        this.refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "client-credentials-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return a valid access token, only blocking if none has been obtained yet or if the current one expired.
+     */
+    public OAuth2AccessToken getAccessToken() {
+        OAuth2AccessToken current = accessToken.get();
+        long now = System.currentTimeMillis();
+        if (current != null && !expiresWithin(current, now, refreshBeforeExpiryInMs)) {
+            return current;
+        }
+
+        if (current != null && !expiresWithin(current, now, 0)) {
+            // Still valid: refresh in the background (unless a recent attempt failed) and keep using it
+            if (now >= nextRefreshAttempt) {
+                refresh();
+            }
+            return current;
+        }
+
+        try {
+            return refresh().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution)
+            throws IOException {
+        OAuth2AccessToken token = getAccessToken();
+        request.getHeaders().set(HttpHeaders.AUTHORIZATION, OAuth2AccessToken.BEARER_TYPE + " " + token.getValue());
+        return execution.execute(request, body);
+    }
+
+    /**
+     * Start a token request, or join the one in progress.
+     */
+    private CompletableFuture<OAuth2AccessToken> refresh() {
+        while (true) {
+            CompletableFuture<OAuth2AccessToken> pending = pendingRefresh.get();
+            if (pending != null) {
+                return pending;
+            }
+            CompletableFuture<OAuth2AccessToken> created = new CompletableFuture<>();
+            if (pendingRefresh.compareAndSet(null, created)) {
+                try {
+                    refreshExecutor.execute(() -> obtainAccessToken(created));
+                } catch (RejectedExecutionException e) {
+                    // destroyed: fail this request and the ones that joined it, instead of leaving them waiting
+                    pendingRefresh.compareAndSet(created, null);
+                    created.completeExceptionally(e);
+                }
+                return created;
+            }
+        }
+    }
+
+    private void obtainAccessToken(CompletableFuture<OAuth2AccessToken> result) {
+        OAuth2AccessToken token = accessToken.get();
+        RuntimeException error = null;
+        try {
+            // another refresh may have completed just before this one was started
+            if (token == null || expiresWithin(token, System.currentTimeMillis(), refreshBeforeExpiryInMs)) {
+                logger.info("Obtain a client credentials access token from " + resource.getAccessTokenUri());
+                token = accessTokenProvider.obtainAccessToken(resource, new DefaultAccessTokenRequest());
+                accessToken.set(token);
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to obtain a client credentials access token", e);
+            nextRefreshAttempt = System.currentTimeMillis() + RETRY_DELAY_IN_MS;
+            error = e;
+        }
+        // Let the next caller start a new request before the waiting ones are released
+        pendingRefresh.compareAndSet(result, null);
+        if (error == null) {
+            result.complete(token);
+        } else {
+            result.completeExceptionally(error);
+        }
+    }
+
+    private static boolean expiresWithin(OAuth2AccessToken token, long now, long delayInMs) {
+        Date expiration = token.getExpiration();
+        return expiration != null && expiration.getTime() - delayInMs <= now;
+    }
+
+    /**
+     * @param refreshBeforeExpiryInMs how long before its expiration the token is renewed
+     */
+    public void setRefreshBeforeExpiryInMs(long refreshBeforeExpiryInMs) {
+        this.refreshBeforeExpiryInMs = refreshBeforeExpiryInMs;
+    }
+
+    @Override
+    public void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The minimal state of a logged-in (or logging-in) user that has to survive between two requests:
+ * the principal and its authorities, a reference to the access token issued by VMware Identity Manager
+ * and the state preserved while the user is redirected to the authorization endpoint.
+ * <p>
+ * Instances are immutable and are serialized with a compact binary format so they can be stored in a cookie
+ * or in any external store (see {@link ClientSessionStore}).
+ */
+final class ClientSession {
+
+    static final ClientSession EMPTY = new ClientSession(null, Collections.<String>emptyList(), null, 0, null, null);
+
+    private static final int VERSION = 1;
+
+    private final String principal;
+    private final List<String> authorities;
+    private final String accessToken;
+    private final long accessTokenExpiration;
+    private final String stateKey;
+    private final String preservedState;
+
+    private ClientSession(String principal, List<String> authorities, String accessToken, long accessTokenExpiration,
+                          String stateKey, String preservedState) {
+        this.principal = principal;
+        this.authorities = Collections.unmodifiableList(new ArrayList<>(authorities));
+        this.accessToken = accessToken;
+        this.accessTokenExpiration = accessTokenExpiration;
+        this.stateKey = stateKey;
+        this.preservedState = preservedState;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public List<String> getAuthorities() {
+        return authorities;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    /**
+     * @return the expiration of the access token in milliseconds since the epoch, or 0 if unknown.
+     */
+    public long getAccessTokenExpiration() {
+        return accessTokenExpiration;
+    }
+
+    public String getStateKey() {
+        return stateKey;
+    }
+
+    public String getPreservedState() {
+        return preservedState;
+    }
+
+    public boolean isEmpty() {
+        return principal == null && accessToken == null && stateKey == null;
+    }
+
+    public ClientSession withPrincipal(String principal, List<String> authorities) {
+        return new ClientSession(principal, authorities, accessToken, accessTokenExpiration, stateKey, preservedState);
+    }
+
+    public ClientSession withAccessToken(String accessToken, long accessTokenExpiration) {
+        return new ClientSession(principal, authorities, accessToken, accessTokenExpiration, stateKey, preservedState);
+    }
+
+    public ClientSession withPreservedState(String stateKey, String preservedState) {
+        return new ClientSession(principal, authorities, accessToken, accessTokenExpiration, stateKey, preservedState);
+    }
+
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            writeNullable(out, principal);
+            out.writeShort(authorities.size());
+            for (String authority : authorities) {
+                out.writeUTF(authority);
+            }
+            writeNullable(out, accessToken);
+            out.writeLong(accessTokenExpiration);
+            writeNullable(out, stateKey);
+            writeNullable(out, preservedState);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // cannot happen with an in-memory stream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read a session written by {@link #toBytes()}.
+     *
+     * @throws IllegalArgumentException if the bytes do not hold a session in a supported format
+     */
+    public static ClientSession fromBytes(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported client session version: " + version);
+            }
+            String principal = readNullable(in);
+            int count = in.readUnsignedShort();
+            List<String> authorities = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                authorities.add(in.readUTF());
+            }
+            String accessToken = readNullable(in);
+            long accessTokenExpiration = in.readLong();
+            String stateKey = readNullable(in);
+            String preservedState = readNullable(in);
+            return new ClientSession(principal, authorities, accessToken, accessTokenExpiration, stateKey, preservedState);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid client session", e);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ClientSession)) {
+            return false;
+        }
+        ClientSession that = (ClientSession) o;
+        return accessTokenExpiration == that.accessTokenExpiration
+                && Objects.equals(principal, that.principal)
+                && authorities.equals(that.authorities)
+                && Objects.equals(accessToken, that.accessToken)
+                && Objects.equals(stateKey, that.stateKey)
+                && Objects.equals(preservedState, that.preservedState);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(principal, authorities, accessToken, accessTokenExpiration, stateKey, preservedState);
+    }
+}
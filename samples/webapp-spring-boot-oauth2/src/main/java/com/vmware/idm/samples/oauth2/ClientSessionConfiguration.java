@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.security.oauth2.client.OAuth2ClientContext;
+import org.springframework.security.oauth2.client.token.AccessTokenRequest;
+
+/**
+ * Opt-in replacement of the servlet {@code HttpSession} by a {@link ClientSessionStore}, enabled by setting
+ * {@code vmware.session.store} in application.yml:
+ * <ul>
+ * <li>{@code cookie}: the session is encrypted in a cookie with the key given by {@code vmware.session.secret},</li>
+ * <li>{@code memory}: the cookie only holds a reference to a session kept by the in-memory reference store.</li>
+ * </ul>
+ * The {@link OAuth2ClientContext} defined here takes precedence over the session-scoped one registered by
+ * {@code @EnableOAuth2Client}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "vmware.session", name = "store")
+public class ClientSessionConfiguration {
+
+    @Bean
+    @ConfigurationProperties("vmware.session")
+    public ClientSessionProperties clientSessionProperties() {
+        return new ClientSessionProperties();
+    }
+
+    @Bean
+    public ClientSessionStore clientSessionStore() {
+        ClientSessionProperties properties = clientSessionProperties();
+        ClientSessionStore store;
+        if ("cookie".equals(properties.getStore())) {
+            store = new EncryptedCookieClientSessionStore(properties.getSecret(), properties.getMaxInactiveInterval());
+        } else if ("memory".equals(properties.getStore())) {
+            store = new InMemoryClientSessionStore(properties.getMaxInactiveInterval());
+        } else {
+            throw new IllegalArgumentException("Unknown session store '" + properties.getStore()
+                    + "', expecting 'cookie' or 'memory'");
+        }
+        store.setCookieName(properties.getCookieName());
+        return store;
+    }
+
+    @Bean
+    @Primary
+    public OAuth2ClientContext clientSessionOAuth2ClientContext(
+            @Qualifier("accessTokenRequest") AccessTokenRequest accessTokenRequest) {
+        return new ClientSessionOAuth2ClientContext(clientSessionStore(), accessTokenRequest);
+    }
+
+    static class ClientSessionProperties {
+
+        /**
+         * Either "cookie" or "memory".
+         */
+        private String store;
+
+        /**
+         * Base64-encoded AES key used by the cookie store. All the nodes must share the same key.
+         */
+        private String secret;
+
+        private String cookieName = ClientSessionStore.DEFAULT_COOKIE_NAME;
+
+        /**
+         * Inactivity timeout of the sessions in seconds: the age of the cookie for the cookie store, or the time
+         * since the last request for the memory store.
+         */
+        private int maxInactiveInterval = 1800;
+
+        public String getStore() {
+            return store;
+        }
+
+        public void setStore(String store) {
+            this.store = store;
+        }
+
+        public String getSecret() {
+            return secret;
+        }
+
+        public void setSecret(String secret) {
+            this.secret = secret;
+        }
+
+        public String getCookieName() {
+            return cookieName;
+        }
+
+        public void setCookieName(String cookieName) {
+            this.cookieName = cookieName;
+        }
+
+        public int getMaxInactiveInterval() {
+            return maxInactiveInterval;
+        }
+
+        public void setMaxInactiveInterval(int maxInactiveInterval) {
+            this.maxInactiveInterval = maxInactiveInterval;
+        }
+    }
+}
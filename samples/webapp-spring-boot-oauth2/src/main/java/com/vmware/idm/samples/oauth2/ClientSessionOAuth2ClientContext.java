@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import org.springframework.security.oauth2.client.OAuth2ClientContext;
+import org.springframework.security.oauth2.client.token.AccessTokenRequest;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Date;
+
+/**
+ * An {@link OAuth2ClientContext} that keeps the access token reference and the state preserved during the
+ * authorization code redirect in the {@link ClientSession} of the current request, instead of the default
+ * session-scoped {@link org.springframework.security.oauth2.client.DefaultOAuth2ClientContext}.
+ * <p>
+ * A single instance serves all the requests: the state is always read from the request bound to the current thread.
+ */
+class ClientSessionOAuth2ClientContext implements OAuth2ClientContext {
+
+    private final ClientSessionStore store;
+    private final AccessTokenRequest accessTokenRequest;
+
+    /**
+     * @param accessTokenRequest the request-scoped access token request defined by {@code @EnableOAuth2Client}
+     */
+    public ClientSessionOAuth2ClientContext(ClientSessionStore store, AccessTokenRequest accessTokenRequest) {
+        this.store = store;
+        this.accessTokenRequest = accessTokenRequest;
+    }
+
+    @Override
+    public OAuth2AccessToken getAccessToken() {
+        ClientSession session = store.load(currentRequest());
+        if (session.getAccessToken() == null) {
+            return null;
+        }
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(session.getAccessToken());
+        if (session.getAccessTokenExpiration() > 0) {
+            accessToken.setExpiration(new Date(session.getAccessTokenExpiration()));
+        }
+        return accessToken;
+    }
+
+    @Override
+    public void setAccessToken(OAuth2AccessToken accessToken) {
+        HttpServletRequest request = currentRequest();
+        ClientSession session = store.load(request);
+        if (accessToken == null) {
+            session = session.withAccessToken(null, 0);
+        } else {
+            Date expiration = accessToken.getExpiration();
+            session = session.withAccessToken(accessToken.getValue(), expiration == null ? 0 : expiration.getTime());
+        }
+        store.update(session, request);
+        accessTokenRequest.setExistingToken(accessToken);
+    }
+
+    @Override
+    public AccessTokenRequest getAccessTokenRequest() {
+        return accessTokenRequest;
+    }
+
+    /**
+     * Only one authorization can be in progress at a time: the preserved state is the redirect URI (a String)
+     * that {@link org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeAccessTokenProvider}
+     * stores when redirecting the user.
+     */
+    @Override
+    public void setPreservedState(String stateKey, Object preservedState) {
+        HttpServletRequest request = currentRequest();
+        String state = preservedState == null ? null : preservedState.toString();
+        store.update(store.load(request).withPreservedState(stateKey, state), request);
+    }
+
+    @Override
+    public Object removePreservedState(String stateKey) {
+        HttpServletRequest request = currentRequest();
+        ClientSession session = store.load(request);
+        if (stateKey == null || !stateKey.equals(session.getStateKey())) {
+            return null;
+        }
+        store.update(session.withPreservedState(null, null), request);
+        return session.getPreservedState();
+    }
+
+    private HttpServletRequest currentRequest() {
+        return ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getRequest();
+    }
+}
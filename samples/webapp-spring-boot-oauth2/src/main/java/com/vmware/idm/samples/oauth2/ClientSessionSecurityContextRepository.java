@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationDetails;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.SaveContextOnUpdateOrErrorResponseWrapper;
+import org.springframework.security.web.context.SecurityContextRepository;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces the {@code HttpSession} based repository: the security context is rebuilt on each request from the
+ * principal and authorities kept in the {@link ClientSession}.
+ * <p>
+ * Like {@link org.springframework.security.web.context.HttpSessionSecurityContextRepository}, the context is saved
+ * as soon as the response is committed (e.g. by the redirect following a successful login), since the session
+ * cookie cannot be added afterwards. This is also when the changes made to the {@link ClientSession} during the
+ * request are written to the {@link ClientSessionStore}.
+ */
+class ClientSessionSecurityContextRepository implements SecurityContextRepository {
+
+    private final ClientSessionStore store;
+
+    public ClientSessionSecurityContextRepository(ClientSessionStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public SecurityContext loadContext(HttpRequestResponseHolder requestResponseHolder) {
+        HttpServletRequest request = requestResponseHolder.getRequest();
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        ClientSession session = store.load(request);
+        if (session.getPrincipal() != null) {
+            List<GrantedAuthority> authorities = AuthorityUtils.createAuthorityList(
+                    session.getAuthorities().toArray(new String[session.getAuthorities().size()]));
+            context.setAuthentication(new UsernamePasswordAuthenticationToken(session.getPrincipal(), "N/A", authorities));
+        }
+        requestResponseHolder.setResponse(
+                new SaveToClientSessionResponseWrapper(requestResponseHolder.getResponse(), request));
+        return context;
+    }
+
+    @Override
+    public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+        SaveToClientSessionResponseWrapper wrapper = findWrapper(response);
+        if (wrapper == null) {
+            throw new IllegalStateException("Cannot find the response wrapper created by loadContext(). "
+                    + "Was the request processed by the SecurityContextPersistenceFilter?");
+        }
+        if (!wrapper.isContextSaved()) {
+            wrapper.saveContext(context);
+        }
+    }
+
+    @Override
+    public boolean containsContext(HttpServletRequest request) {
+        return store.load(request).getPrincipal() != null;
+    }
+
+    private SaveToClientSessionResponseWrapper findWrapper(HttpServletResponse response) {
+        HttpServletResponse current = response;
+        while (current instanceof HttpServletResponseWrapper) {
+            if (current instanceof SaveToClientSessionResponseWrapper) {
+                return (SaveToClientSessionResponseWrapper) current;
+            }
+            current = (HttpServletResponse) ((HttpServletResponseWrapper) current).getResponse();
+        }
+        return null;
+    }
+
+    private void save(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+        ClientSession session = store.load(request);
+        Authentication authentication = context.getAuthentication();
+        if (authentication == null || authentication instanceof AnonymousAuthenticationToken) {
+            if (session.getPrincipal() != null) {
+                // the user logged out
+                store.update(ClientSession.EMPTY, request);
+            }
+        } else {
+            List<String> authorities = new ArrayList<>();
+            for (GrantedAuthority authority : authentication.getAuthorities()) {
+                authorities.add(authority.getAuthority());
+            }
+            ClientSession updated = session.withPrincipal(authentication.getName(), authorities);
+            Object details = authentication.getDetails();
+            if (details instanceof OAuth2AuthenticationDetails && session.getAccessToken() == null) {
+                updated = updated.withAccessToken(((OAuth2AuthenticationDetails) details).getTokenValue(), 0);
+            }
+            store.update(updated, request);
+        }
+        store.flush(request, response);
+    }
+
+    private class SaveToClientSessionResponseWrapper extends SaveContextOnUpdateOrErrorResponseWrapper {
+
+        private final HttpServletRequest request;
+
+        SaveToClientSessionResponseWrapper(HttpServletResponse response, HttpServletRequest request) {
+            super(response, true);
+            this.request = request;
+        }
+
+        @Override
+        protected void saveContext(SecurityContext context) {
+            save(context, request, (HttpServletResponse) getResponse());
+        }
+    }
+}
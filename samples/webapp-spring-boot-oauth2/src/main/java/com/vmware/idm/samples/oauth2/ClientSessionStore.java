@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Stores the {@link ClientSession} of a user outside of the servlet {@code HttpSession}, so that any node can
+ * serve any request.
+ * <p>
+ * The session read from the request is cached as a request attribute: the security context repository and the
+ * OAuth2 client context both work on the same session instance during a request, and see each other's updates.
+ * Changes are only written once per request, by {@link #flush}, just before the response is committed.
+ * Subclasses only have to read, write and delete the serialized session.
+ */
+abstract class ClientSessionStore {
+
+    static final String DEFAULT_COOKIE_NAME = "VMWARE_SESSION";
+
+    private static final String SESSION_ATTRIBUTE = ClientSessionStore.class.getName() + ".SESSION";
+    private static final String DIRTY_ATTRIBUTE = ClientSessionStore.class.getName() + ".DIRTY";
+
+    private String cookieName = DEFAULT_COOKIE_NAME;
+
+    /**
+     * @return the session of the user issuing the request, or {@link ClientSession#EMPTY} if there is none.
+     */
+    public final ClientSession load(HttpServletRequest request) {
+        ClientSession session = (ClientSession) request.getAttribute(SESSION_ATTRIBUTE);
+        if (session == null) {
+            session = readSession(request);
+            if (session == null) {
+                session = ClientSession.EMPTY;
+            }
+            request.setAttribute(SESSION_ATTRIBUTE, session);
+        }
+        return session;
+    }
+
+    /**
+     * Replace the session for the rest of the request. The change is written by {@link #flush}.
+     */
+    public final void update(ClientSession session, HttpServletRequest request) {
+        if (!session.equals(load(request))) {
+            request.setAttribute(SESSION_ATTRIBUTE, session);
+            request.setAttribute(DIRTY_ATTRIBUTE, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Write the session if it changed during the request: an empty session removes the stored one.
+     * Must be called before the response is committed.
+     */
+    public final void flush(HttpServletRequest request, HttpServletResponse response) {
+        if (request.getAttribute(DIRTY_ATTRIBUTE) == null) {
+            return;
+        }
+        request.removeAttribute(DIRTY_ATTRIBUTE);
+        ClientSession session = load(request);
+        if (session.isEmpty()) {
+            deleteSession(request, response);
+        } else {
+            writeSession(session, request, response);
+        }
+    }
+
+    /**
+     * Have the session read from the request written again by {@link #flush}, even if it did not change, e.g. to
+     * extend its lifetime.
+     */
+    protected final void renew(HttpServletRequest request) {
+        request.setAttribute(DIRTY_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    protected abstract ClientSession readSession(HttpServletRequest request);
+
+    protected abstract void writeSession(ClientSession session, HttpServletRequest request, HttpServletResponse response);
+
+    protected abstract void deleteSession(HttpServletRequest request, HttpServletResponse response);
+
+    protected String readCookie(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (cookieName.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    protected void writeCookie(String value, HttpServletRequest request, HttpServletResponse response) {
+        Cookie cookie = new Cookie(cookieName, value);
+        cookie.setPath(cookiePath(request));
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        cookie.setMaxAge(value == null ? 0 : -1);
+        response.addCookie(cookie);
+    }
+
+    private String cookiePath(HttpServletRequest request) {
+        String contextPath = request.getContextPath();
+        return contextPath == null || contextPath.isEmpty() ? "/" : contextPath;
+    }
+
+    public void setCookieName(String cookieName) {
+        this.cookieName = cookieName;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the whole {@link ClientSession} in a cookie encrypted and authenticated with AES-GCM.
+ * <p>
+ * Nothing is kept on the server: all the nodes sharing the same secret key can read the session.
+ * A cookie that has been tampered with, or that was encrypted with another key, is simply ignored.
+ * <p>
+ * The time the cookie was issued is encrypted with the session, and a cookie older than the inactivity timeout is
+ * ignored as well: a captured cookie cannot be replayed forever, even though logging out only clears it in the
+ * browser. The cookie is issued again once half of the timeout has elapsed, so active users stay logged in.
+ */
+class EncryptedCookieClientSessionStore extends ClientSessionStore {
+
+    private static Logger logger = Logger.getLogger(EncryptedCookieClientSessionStore.class.getSimpleName());
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_IN_BITS = 128;
+
+    /**
+     * Browsers drop cookies bigger than 4KB.
+     */
+    private static final int MAX_COOKIE_LENGTH = 4000;
+
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private final long maxInactiveIntervalInMs;
+
+    /**
+     * @param secret                       a base64-encoded AES key of 16, 24 or 32 bytes
+     * @param maxInactiveIntervalInSeconds the age after which a cookie is no longer accepted
+     */
+    public EncryptedCookieClientSessionStore(String secret, int maxInactiveIntervalInSeconds) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("A secret is required to encrypt the session cookie");
+        }
+        byte[] keyBytes = Base64.getDecoder().decode(secret);
+        if (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32) {
+            throw new IllegalArgumentException("The session secret must be a base64-encoded key of 16, 24 or 32 bytes");
+        }
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        this.maxInactiveIntervalInMs = TimeUnit.SECONDS.toMillis(maxInactiveIntervalInSeconds);
+    }
+
+    @Override
+    protected ClientSession readSession(HttpServletRequest request) {
+        String value = readCookie(request);
+        if (value == null) {
+            return null;
+        }
+        ByteBuffer plain;
+        ClientSession session;
+        try {
+            plain = ByteBuffer.wrap(decrypt(Base64.getUrlDecoder().decode(value)));
+            long issuedAt = plain.getLong();
+            long age = System.currentTimeMillis() - issuedAt;
+            if (age > maxInactiveIntervalInMs) {
+                logger.fine("Ignoring expired session cookie, issued " + age + " ms ago");
+                return null;
+            }
+            byte[] sessionBytes = new byte[plain.remaining()];
+            plain.get(sessionBytes);
+            session = ClientSession.fromBytes(sessionBytes);
+            if (age > maxInactiveIntervalInMs / 2) {
+                renew(request);
+            }
+        } catch (GeneralSecurityException | BufferUnderflowException | IllegalArgumentException e) {
+            logger.fine("Ignoring invalid session cookie: " + e.getMessage());
+            return null;
+        }
+        return session;
+    }
+
+    @Override
+    protected void writeSession(ClientSession session, HttpServletRequest request, HttpServletResponse response) {
+        String value;
+        try {
+            value = encode(session, System.currentTimeMillis());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to encrypt the session cookie", e);
+        }
+        if (value.length() > MAX_COOKIE_LENGTH) {
+            logger.warning("The session cookie is " + value.length() + " characters long and may be dropped by the browser");
+        }
+        writeCookie(value, request, response);
+    }
+
+    @Override
+    protected void deleteSession(HttpServletRequest request, HttpServletResponse response) {
+        writeCookie(null, request, response);
+    }
+
+    String encode(ClientSession session, long issuedAt) throws GeneralSecurityException {
+        byte[] sessionBytes = session.toBytes();
+        byte[] plain = ByteBuffer.allocate(8 + sessionBytes.length).putLong(issuedAt).put(sessionBytes).array();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(encrypt(plain));
+    }
+
+    byte[] encrypt(byte[] plain) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_IN_BITS, iv));
+        byte[] encrypted = cipher.doFinal(plain);
+        return ByteBuffer.allocate(IV_LENGTH + encrypted.length).put(iv).put(encrypted).array();
+    }
+
+    byte[] decrypt(byte[] data) throws GeneralSecurityException {
+        if (data.length <= IV_LENGTH) {
+            throw new IllegalArgumentException("Session cookie is too short");
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_IN_BITS, data, 0, IV_LENGTH));
+        return cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH);
+    }
+}
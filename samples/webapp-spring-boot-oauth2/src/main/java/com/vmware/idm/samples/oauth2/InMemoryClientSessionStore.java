@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference implementation of an external session store: the cookie only holds a random session reference
+ * and the serialized {@link ClientSession} is kept in a map.
+ * <p>
+ * This is meant to show what a shared store (Redis, a database...) has to do: replace the map with the
+ * remote store and every node can serve every request. Sessions expire after a period of inactivity.
+ * <p>
+ * A new reference is issued whenever the principal or its authorities change, e.g. on login, and the previous one
+ * is forgotten: a reference planted in the browser before the login cannot be used to hijack the session.
+ */
+class InMemoryClientSessionStore extends ClientSessionStore {
+
+    private static final int ID_LENGTH = 24;
+
+    /**
+     * Purge expired sessions once every so many writes.
+     */
+    private static final int PURGE_INTERVAL = 1000;
+
+    private final ConcurrentMap<String, StoredSession> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long maxInactiveIntervalInMs;
+    private final AtomicInteger writesSincePurge = new AtomicInteger();
+
+    public InMemoryClientSessionStore(int maxInactiveIntervalInSeconds) {
+        this.maxInactiveIntervalInMs = TimeUnit.SECONDS.toMillis(maxInactiveIntervalInSeconds);
+    }
+
+    @Override
+    protected ClientSession readSession(HttpServletRequest request) {
+        String id = readCookie(request);
+        if (id == null) {
+            return null;
+        }
+        StoredSession stored = sessions.get(id);
+        long now = System.currentTimeMillis();
+        if (stored == null || stored.isExpired(now)) {
+            return null;
+        }
+        stored.lastAccessedTime = now;
+        return ClientSession.fromBytes(stored.data);
+    }
+
+    @Override
+    protected void writeSession(ClientSession session, HttpServletRequest request, HttpServletResponse response) {
+        String id = readCookie(request);
+        StoredSession previous = id == null ? null : sessions.get(id);
+        if (previous == null || !previous.hasSameUser(session)) {
+            if (previous != null) {
+                sessions.remove(id);
+            }
+            id = newSessionId();
+            writeCookie(id, request, response);
+        }
+        sessions.put(id, new StoredSession(session.toBytes(), System.currentTimeMillis()));
+        if (writesSincePurge.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purgeExpiredSessions();
+        }
+    }
+
+    @Override
+    protected void deleteSession(HttpServletRequest request, HttpServletResponse response) {
+        String id = readCookie(request);
+        if (id != null) {
+            sessions.remove(id);
+            writeCookie(null, request, response);
+        }
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    void purgeExpiredSessions() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, StoredSession>> it = sessions.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private String newSessionId() {
+        byte[] id = new byte[ID_LENGTH];
+        random.nextBytes(id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+    }
+
+    private class StoredSession {
+        private final byte[] data;
+        private volatile long lastAccessedTime;
+
+        StoredSession(byte[] data, long lastAccessedTime) {
+            this.data = data;
+            this.lastAccessedTime = lastAccessedTime;
+        }
+
+        boolean hasSameUser(ClientSession session) {
+            ClientSession stored = ClientSession.fromBytes(data);
+            return Objects.equals(stored.getPrincipal(), session.getPrincipal())
+                    && stored.getAuthorities().equals(session.getAuthorities());
+        }
+
+        boolean isExpired(long now) {
+            return now - lastAccessedTime > maxInactiveIntervalInMs;
+        }
+    }
+}
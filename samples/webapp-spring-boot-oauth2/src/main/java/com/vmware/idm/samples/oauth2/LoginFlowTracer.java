@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails;
+import org.springframework.security.oauth2.client.resource.UserRedirectRequiredException;
+import org.springframework.security.oauth2.client.token.AccessTokenProvider;
+import org.springframework.security.oauth2.client.token.AccessTokenRequest;
+import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeAccessTokenProvider;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Times the stages of a user login so that a slow login can be attributed to this application, to the network or
+ * to VMware Identity Manager:
+ * <ul>
+ * <li>{@code redirect}: request to /login/vmware until the redirect to the authorization endpoint is sent,</li>
+ * <li>{@code authorize}: from that redirect until the browser comes back with the code (user + Identity Manager),</li>
+ * <li>{@code callback}: processing of the callback request, which includes the two following stages,</li>
+ * <li>{@code token_exchange}: exchange of the authorization code for an access token,</li>
+ * <li>{@code userinfo}: request to the userinfo endpoint.</li>
+ * </ul>
+ * The two legs of a login are correlated by an ID carried in the OAuth2 {@code state} parameter, along with the time
+ * of the redirect. The {@code authorize} stage is only recorded once that state matched the one kept in the session
+ * for the redirect, so that a forged state can't submit arbitrary timings. Each stage is submitted as a
+ * {@code timer.login.<stage>} metric: with Dropwizard metrics on the classpath, the percentiles of each stage are
+ * exported by the actuator {@code /metrics} endpoint.
+ */
+@Component
+public class LoginFlowTracer {
+
+    private static Logger logger = Logger.getLogger(LoginFlowTracer.class.getSimpleName());
+
+    public static final String METRIC_PREFIX = "timer.login.";
+    private static final char STATE_SEPARATOR = '.';
+
+    enum Stage {
+        REDIRECT, AUTHORIZE, CALLBACK, TOKEN_EXCHANGE, USERINFO;
+
+        String metricName() {
+            return METRIC_PREFIX + name().toLowerCase();
+        }
+    }
+
+    /**
+     * Login being processed by the current request thread.
+     */
+    private static final ThreadLocal<LoginTrace> currentTrace = new ThreadLocal<>();
+
+    private final GaugeService gaugeService;
+    private final RandomValueStringGenerator correlationIdGenerator = new RandomValueStringGenerator(12);
+
+    @Autowired
+    public LoginFlowTracer(GaugeService gaugeService) {
+        this.gaugeService = gaugeService;
+    }
+
+    /**
+     * @return the servlet filter timing the redirect and callback requests, it must wrap the
+     * {@code OAuth2ClientContextFilter} to include the redirect
+     */
+    public Filter filter() {
+        return new LoginFlowTracingFilter();
+    }
+
+    /**
+     * Make the given provider generate {@code state} values made of a new correlation ID and of the current time.
+     */
+    public void configure(AuthorizationCodeAccessTokenProvider accessTokenProvider) {
+        accessTokenProvider.setStateKeyGenerator(resource -> {
+            String correlationId = correlationIdGenerator.generate();
+            LoginTrace trace = currentTrace.get();
+            if (trace != null) {
+                trace.correlationId = correlationId;
+            }
+            return correlationId + STATE_SEPARATOR + Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+        });
+    }
+
+    /**
+     * @return the given provider, timing the exchange of the authorization code
+     */
+    public AccessTokenProvider tracing(AccessTokenProvider accessTokenProvider) {
+        return new TracingAccessTokenProvider(accessTokenProvider);
+    }
+
+    /**
+     * @return the given token services, timing the request to the userinfo endpoint
+     */
+    public ResourceServerTokenServices tracing(ResourceServerTokenServices tokenServices) {
+        return new TracingTokenServices(tokenServices);
+    }
+
+    private void record(LoginTrace trace, Stage stage, long durationInMs) {
+        gaugeService.submit(stage.metricName(), durationInMs);
+        if (trace != null) {
+            trace.durations.put(stage, durationInMs);
+        }
+    }
+
+    private void recordSince(Stage stage, long startNanos) {
+        record(currentTrace.get(), stage, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    static String correlationIdOf(String state) {
+        int separator = state.lastIndexOf(STATE_SEPARATOR);
+        return separator < 0 ? state : state.substring(0, separator);
+    }
+
+    /**
+     * @return the time the state was generated, or -1 if it was not generated by this tracer
+     */
+    static long issuedAtOf(String state) {
+        int separator = state.lastIndexOf(STATE_SEPARATOR);
+        if (separator < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(state.substring(separator + 1), Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class LoginTrace {
+
+        private String correlationId;
+        private final Map<Stage, Long> durations = new EnumMap<>(Stage.class);
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Login ").append(correlationId).append(':');
+            for (Map.Entry<Stage, Long> duration : durations.entrySet()) {
+                builder.append(' ').append(duration.getKey().name().toLowerCase()).append('=')
+                        .append(duration.getValue()).append("ms");
+            }
+            return builder.toString();
+        }
+    }
+
+    private class LoginFlowTracingFilter extends OncePerRequestFilter {
+
+        @Override
+        protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+                throws ServletException, IOException {
+            String state = request.getParameter("state");
+            boolean callback = state != null;
+            LoginTrace trace = new LoginTrace();
+            if (callback) {
+                trace.correlationId = correlationIdOf(state);
+            }
+
+            currentTrace.set(trace);
+            long start = System.nanoTime();
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                currentTrace.remove();
+                // no correlation ID on the first leg: no redirect was needed (e.g. already authenticated)
+                if (callback || trace.correlationId != null) {
+                    record(trace, callback ? Stage.CALLBACK : Stage.REDIRECT,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    logger.info(trace.toString());
+                }
+            }
+        }
+    }
+
+    private class TracingAccessTokenProvider implements AccessTokenProvider {
+
+        private final AccessTokenProvider delegate;
+
+        TracingAccessTokenProvider(AccessTokenProvider delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public OAuth2AccessToken obtainAccessToken(OAuth2ProtectedResourceDetails details,
+                AccessTokenRequest parameters) throws UserRedirectRequiredException {
+            if (parameters.getAuthorizationCode() == null) {
+                // first leg: the provider only asks for a redirect
+                return delegate.obtainAccessToken(details, parameters);
+            }
+            // the client context only preserves the state of a redirect it sent, for the session
+            String state = parameters.getStateKey();
+            if (state != null && parameters.getPreservedState() != null) {
+                long issuedAt = issuedAtOf(state);
+                if (issuedAt > 0) {
+                    record(currentTrace.get(), Stage.AUTHORIZE, Math.max(0, System.currentTimeMillis() - issuedAt));
+                }
+            }
+            long start = System.nanoTime();
+            try {
+                return delegate.obtainAccessToken(details, parameters);
+            } finally {
+                recordSince(Stage.TOKEN_EXCHANGE, start);
+            }
+        }
+
+        @Override
+        public boolean supportsResource(OAuth2ProtectedResourceDetails resource) {
+            return delegate.supportsResource(resource);
+        }
+
+        @Override
+        public OAuth2AccessToken refreshAccessToken(OAuth2ProtectedResourceDetails resource,
+                OAuth2RefreshToken refreshToken, AccessTokenRequest request) throws UserRedirectRequiredException {
+            return delegate.refreshAccessToken(resource, refreshToken, request);
+        }
+
+        @Override
+        public boolean supportsRefresh(OAuth2ProtectedResourceDetails resource) {
+            return delegate.supportsRefresh(resource);
+        }
+    }
+
+    private class TracingTokenServices implements ResourceServerTokenServices {
+
+        private final ResourceServerTokenServices delegate;
+
+        TracingTokenServices(ResourceServerTokenServices delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
+            long start = System.nanoTime();
+            try {
+                return delegate.loadAuthentication(accessToken);
+            } finally {
+                recordSince(Stage.USERINFO, start);
+            }
+        }
+
+        @Override
+        public OAuth2AccessToken readAccessToken(String accessToken) {
+            return delegate.readAccessToken(accessToken);
+        }
+    }
+}
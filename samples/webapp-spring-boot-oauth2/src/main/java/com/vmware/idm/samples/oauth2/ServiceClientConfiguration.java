@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.oauth2;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Collections;
+
+/**
+ * Service-to-service calls: the application calls VMware Identity Manager APIs with its own identity, using
+ * an OAuth2 client created with the "client credentials" grant type.
+ * <p>
+ * Enabled when {@code vmware.service.client.clientId} is defined; the client is configured like the one
+ * used to log users in:
+ * <pre>
+ * vmware:
+ *   service:
+ *     client:
+ *       clientId: ...
+ *       clientSecret: ...
+ *       accessTokenUri: https://&lt;tenant&gt;/SAAS/auth/oauthtoken
+ *       scope: admin
+ * </pre>
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "vmware.service.client", name = "clientId")
+public class ServiceClientConfiguration {
+
+    @Bean
+    @ConfigurationProperties("vmware.service.client")
+    public ClientCredentialsResourceDetails serviceClient() {
+        return new ClientCredentialsResourceDetails();
+    }
+
+    @Bean
+    public ClientCredentialsTokenManager clientCredentialsTokenManager() {
+        return new ClientCredentialsTokenManager(serviceClient());
+    }
+
+    /**
+     * Every request sent with this template carries the shared client credentials access token.
+     */
+    @Bean
+    public RestTemplate serviceRestTemplate() {
+        RestTemplate restTemplate = new RestTemplate();
+        restTemplate.setInterceptors(Collections.singletonList(clientCredentialsTokenManager()));
+        return restTemplate;
+    }
+}
@@ -28,10 +28,13 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.core.annotation.Order;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.oauth2.client.OAuth2ClientContext;
 import org.springframework.security.oauth2.client.OAuth2RestTemplate;
 import org.springframework.security.oauth2.client.filter.OAuth2ClientAuthenticationProcessingFilter;
 import org.springframework.security.oauth2.client.filter.OAuth2ClientContextFilter;
+import org.springframework.security.oauth2.client.token.AccessTokenProviderChain;
+import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeAccessTokenProvider;
 import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeResourceDetails;
 import org.springframework.security.oauth2.config.annotation.web.configuration.EnableOAuth2Client;
 import org.springframework.security.web.authentication.LoginUrlAuthenticationEntryPoint;
@@ -44,6 +47,7 @@ import org.springframework.web.filter.CompositeFilter;
 import javax.servlet.Filter;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -57,6 +61,15 @@ public class SocialApplication extends WebSecurityConfigurerAdapter {
     @Autowired
     OAuth2ClientContext oauth2ClientContext;
 
+    /**
+     * Only defined when the HttpSession is replaced by a client session store, see {@link ClientSessionConfiguration}.
+     */
+    @Autowired(required = false)
+    ClientSessionStore clientSessionStore;
+
+    @Autowired
+    LoginFlowTracer loginFlowTracer;
+
     /**
      * This endpoint requires the user to be authenticated: this /user endpoint is now secured with cookies created
      * when the user authenticates through VMware Identity Manager.
@@ -79,6 +92,12 @@ public class SocialApplication extends WebSecurityConfigurerAdapter {
                 .csrfTokenRepository(CookieCsrfTokenRepository.withHttpOnlyFalse()).and()
                 .addFilterBefore(ssoFilter(), BasicAuthenticationFilter.class);
         // @formatter:on
+        if (clientSessionStore != null) {
+            // Any node can serve any request: nothing is kept in the HttpSession
+            http.sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS).and()
+                    .securityContext().securityContextRepository(
+                            new ClientSessionSecurityContextRepository(clientSessionStore));
+        }
     }
 
     public static void main(String[] args) {
@@ -97,6 +116,18 @@ public class SocialApplication extends WebSecurityConfigurerAdapter {
         return registration;
     }
 
+    /**
+     * Register the filter timing the login requests, before the OAuth2ClientContextFilter to include the redirect.
+     */
+    @Bean
+    public FilterRegistrationBean loginFlowTracingFilterRegistration() {
+        FilterRegistrationBean registration = new FilterRegistrationBean();
+        registration.setFilter(loginFlowTracer.filter());
+        registration.addUrlPatterns("/login/vmware");
+        registration.setOrder(-101);
+        return registration;
+    }
+
     @Bean
     // Defining a name allows us to use "vmware.xxx" instead of "security.oauth2.xxx" in the application.yml file
     @ConfigurationProperties("vmware")
@@ -116,12 +147,17 @@ public class SocialApplication extends WebSecurityConfigurerAdapter {
         OAuth2ClientAuthenticationProcessingFilter oAuth2ClientAuthenticationFilter = new OAuth2ClientAuthenticationProcessingFilter(
                 path);
         OAuth2RestTemplate oAuth2RestTemplate = new OAuth2RestTemplate(client.getClient(), oauth2ClientContext);
+        // The state parameter carries the correlation ID of the login, the code exchange is timed
+        AuthorizationCodeAccessTokenProvider accessTokenProvider = new AuthorizationCodeAccessTokenProvider();
+        loginFlowTracer.configure(accessTokenProvider);
+        oAuth2RestTemplate.setAccessTokenProvider(new AccessTokenProviderChain(
+                Collections.singletonList(loginFlowTracer.tracing(accessTokenProvider))));
         oAuth2ClientAuthenticationFilter.setRestTemplate(oAuth2RestTemplate);
         UserInfoTokenServices tokenServices = new UserInfoTokenServices(client.getResource().getUserInfoUri(),
                 client.getClient().getClientId());
         tokenServices.setRestTemplate(oAuth2RestTemplate);
         tokenServices.setPrincipalExtractor(client.getPrincipalExtractor());
-        oAuth2ClientAuthenticationFilter.setTokenServices(tokenServices);
+        oAuth2ClientAuthenticationFilter.setTokenServices(loginFlowTracer.tracing(tokenServices));
         return oAuth2ClientAuthenticationFilter;
     }
 
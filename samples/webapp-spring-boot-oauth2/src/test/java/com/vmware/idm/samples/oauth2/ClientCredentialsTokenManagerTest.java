@@ -0,0 +1,152 @@
+package com.vmware.idm.samples.oauth2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
+import org.springframework.security.oauth2.client.token.AccessTokenProvider;
+import org.springframework.security.oauth2.client.token.AccessTokenRequest;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the shared client credentials token cache.
+ */
+public class ClientCredentialsTokenManagerTest {
+
+    private AccessTokenProvider provider;
+    private ClientCredentialsTokenManager manager;
+
+    @Before
+    public void setUp() {
+        provider = mock(AccessTokenProvider.class);
+        manager = new ClientCredentialsTokenManager(new ClientCredentialsResourceDetails(), provider);
+    }
+
+    @After
+    public void tearDown() {
+        manager.destroy();
+    }
+
+    @Test
+    public void testTokenIsCached() throws Exception {
+        OAuth2AccessToken token = token("t1", TimeUnit.HOURS.toMillis(1));
+        when(provider.obtainAccessToken(any(), any(AccessTokenRequest.class))).thenReturn(token);
+
+        assertSame(token, manager.getAccessToken());
+        assertSame(token, manager.getAccessToken());
+        verify(provider, times(1)).obtainAccessToken(any(), any(AccessTokenRequest.class));
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneTokenRequest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        OAuth2AccessToken token = token("t1", TimeUnit.HOURS.toMillis(1));
+        when(provider.obtainAccessToken(any(), any(AccessTokenRequest.class))).thenAnswer(invocation -> {
+            release.await();
+            return token;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<OAuth2AccessToken>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(manager::getAccessToken));
+        }
+        release.countDown();
+        for (Future<OAuth2AccessToken> result : results) {
+            assertSame(token, result.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        verify(provider, times(1)).obtainAccessToken(any(), any(AccessTokenRequest.class));
+    }
+
+    @Test
+    public void testTokenIsRefreshedInBackgroundBeforeExpiry() throws Exception {
+        OAuth2AccessToken expiringSoon = token("t1", TimeUnit.SECONDS.toMillis(30));
+        OAuth2AccessToken renewed = token("t2", TimeUnit.HOURS.toMillis(1));
+        when(provider.obtainAccessToken(any(), any(AccessTokenRequest.class))).thenReturn(expiringSoon, renewed);
+
+        assertSame(expiringSoon, manager.getAccessToken());
+        // still valid: handed out while the new token is requested
+        assertSame(expiringSoon, manager.getAccessToken());
+
+        verify(provider, timeout(5000).times(2)).obtainAccessToken(any(), any(AccessTokenRequest.class));
+        Thread.sleep(100);
+        assertSame(renewed, manager.getAccessToken());
+    }
+
+    @Test
+    public void testExpiredTokenIsReplaced() throws Exception {
+        OAuth2AccessToken expired = token("t1", -1000);
+        OAuth2AccessToken renewed = token("t2", TimeUnit.HOURS.toMillis(1));
+        when(provider.obtainAccessToken(any(), any(AccessTokenRequest.class))).thenReturn(expired, renewed);
+
+        assertSame(expired, manager.getAccessToken());
+        assertSame(renewed, manager.getAccessToken());
+    }
+
+    @Test(expected = OAuth2AccessDeniedException.class)
+    public void testErrorIsPropagatedWhenNoToken() throws Exception {
+        when(provider.obtainAccessToken(any(), any(AccessTokenRequest.class)))
+                .thenThrow(new OAuth2AccessDeniedException("denied"));
+
+        manager.getAccessToken();
+    }
+
+    @Test
+    public void testCallersFailAfterDestroy() throws Exception {
+        manager.destroy();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                manager.getAccessToken();
+                fail("Expected RejectedExecutionException");
+            } catch (RejectedExecutionException expected) {
+                // the failed request is not left pending
+            }
+        }
+    }
+
+    @Test
+    public void testInterceptorAddsBearerToken() throws Exception {
+        when(provider.obtainAccessToken(any(), any(AccessTokenRequest.class)))
+                .thenReturn(token("t1", TimeUnit.HOURS.toMillis(1)));
+        MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.GET, new URI("http://localhost/api"));
+
+        manager.intercept(request, new byte[0], mock(ClientHttpRequestExecution.class));
+
+        assertEquals("Bearer t1", request.getHeaders().getFirst(HttpHeaders.AUTHORIZATION));
+    }
+
+    private OAuth2AccessToken token(String value, long expiresInMs) {
+        DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(value);
+        token.setExpiration(new Date(System.currentTimeMillis() + expiresInMs));
+        return token;
+    }
+}
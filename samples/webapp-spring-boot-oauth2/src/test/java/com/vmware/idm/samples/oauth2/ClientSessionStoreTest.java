@@ -0,0 +1,201 @@
+package com.vmware.idm.samples.oauth2;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.Cookie;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the session stores replacing the HttpSession.
+ */
+public class ClientSessionStoreTest {
+
+    private static final String SECRET = Base64.getEncoder().encodeToString(new byte[16]);
+
+    private static final ClientSession SESSION = ClientSession.EMPTY
+            .withPrincipal("user1", Arrays.asList("ROLE_USER"))
+            .withAccessToken("token-value", 1234L);
+
+    @Test
+    public void testSessionRoundTrip() throws Exception {
+        ClientSession session = SESSION.withPreservedState("state", "http://localhost/login/vmware");
+
+        assertEquals(session, ClientSession.fromBytes(session.toBytes()));
+        assertEquals(ClientSession.EMPTY, ClientSession.fromBytes(ClientSession.EMPTY.toBytes()));
+    }
+
+    @Test
+    public void testEncryptedCookieRoundTrip() throws Exception {
+        ClientSessionStore store = new EncryptedCookieClientSessionStore(SECRET, 60);
+        Cookie cookie = write(store, SESSION);
+
+        assertNotNull(cookie);
+        assertTrue(cookie.isHttpOnly());
+        assertEquals(SESSION, store.load(requestWith(cookie)));
+    }
+
+    @Test
+    public void testEncryptedCookieIsNotReadable() throws Exception {
+        Cookie cookie = write(new EncryptedCookieClientSessionStore(SECRET, 60), SESSION);
+
+        String decoded = new String(Base64.getUrlDecoder().decode(cookie.getValue()), "ISO-8859-1");
+        assertTrue(!decoded.contains("user1") && !decoded.contains("token-value"));
+    }
+
+    @Test
+    public void testTamperedCookieIsIgnored() throws Exception {
+        ClientSessionStore store = new EncryptedCookieClientSessionStore(SECRET, 60);
+        Cookie cookie = write(store, SESSION);
+
+        byte[] value = Base64.getUrlDecoder().decode(cookie.getValue());
+        value[value.length - 1] ^= 1;
+        Cookie tampered = new Cookie(cookie.getName(), Base64.getUrlEncoder().encodeToString(value));
+
+        assertEquals(ClientSession.EMPTY, store.load(requestWith(tampered)));
+        assertEquals(ClientSession.EMPTY, store.load(requestWith(new Cookie(cookie.getName(), "garbage"))));
+    }
+
+    @Test
+    public void testCookieFromOtherKeyIsIgnored() throws Exception {
+        Cookie cookie = write(new EncryptedCookieClientSessionStore(SECRET, 60), SESSION);
+        byte[] otherKey = new byte[16];
+        otherKey[0] = 1;
+
+        ClientSessionStore other = new EncryptedCookieClientSessionStore(Base64.getEncoder().encodeToString(otherKey), 60);
+        assertEquals(ClientSession.EMPTY, other.load(requestWith(cookie)));
+    }
+
+    @Test
+    public void testExpiredCookieIsIgnored() throws Exception {
+        EncryptedCookieClientSessionStore store = new EncryptedCookieClientSessionStore(SECRET, 60);
+        Cookie cookie = new Cookie(ClientSessionStore.DEFAULT_COOKIE_NAME,
+                store.encode(SESSION, System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(61)));
+
+        assertEquals(ClientSession.EMPTY, store.load(requestWith(cookie)));
+    }
+
+    @Test
+    public void testOldCookieIsIssuedAgain() throws Exception {
+        EncryptedCookieClientSessionStore store = new EncryptedCookieClientSessionStore(SECRET, 60);
+        Cookie cookie = new Cookie(ClientSessionStore.DEFAULT_COOKIE_NAME,
+                store.encode(SESSION, System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(40)));
+        MockHttpServletRequest request = requestWith(cookie);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        assertEquals(SESSION, store.load(request));
+        store.flush(request, response);
+
+        Cookie renewed = response.getCookie(ClientSessionStore.DEFAULT_COOKIE_NAME);
+        assertNotNull(renewed);
+        assertNotEquals(cookie.getValue(), renewed.getValue());
+        assertEquals(SESSION, store.load(requestWith(renewed)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncryptedCookieRequiresSecret() throws Exception {
+        new EncryptedCookieClientSessionStore(null, 60);
+    }
+
+    @Test
+    public void testInMemoryRoundTrip() throws Exception {
+        InMemoryClientSessionStore store = new InMemoryClientSessionStore(60);
+        Cookie cookie = write(store, SESSION);
+
+        // the cookie only holds a reference to the session
+        assertEquals(32, cookie.getValue().length());
+        assertEquals(SESSION, store.load(requestWith(cookie)));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testInMemorySessionExpires() throws Exception {
+        InMemoryClientSessionStore store = new InMemoryClientSessionStore(-1);
+        Cookie cookie = write(store, SESSION);
+
+        assertEquals(ClientSession.EMPTY, store.load(requestWith(cookie)));
+        store.purgeExpiredSessions();
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testInMemoryReferenceChangesOnLogin() throws Exception {
+        InMemoryClientSessionStore store = new InMemoryClientSessionStore(60);
+        Cookie anonymous = write(store, ClientSession.EMPTY.withPreservedState("state", "http://localhost/login"));
+
+        MockHttpServletRequest request = requestWith(anonymous);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        store.update(store.load(request).withPrincipal("user1", Arrays.asList("ROLE_USER")), request);
+        store.flush(request, response);
+
+        Cookie loggedIn = response.getCookie(ClientSessionStore.DEFAULT_COOKIE_NAME);
+        assertNotNull(loggedIn);
+        assertNotEquals(anonymous.getValue(), loggedIn.getValue());
+        assertEquals(ClientSession.EMPTY, store.load(requestWith(anonymous)));
+        assertEquals("user1", store.load(requestWith(loggedIn)).getPrincipal());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testInMemoryReferenceIsKeptForSameUser() throws Exception {
+        InMemoryClientSessionStore store = new InMemoryClientSessionStore(60);
+        Cookie cookie = write(store, SESSION);
+
+        MockHttpServletRequest request = requestWith(cookie);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        store.update(store.load(request).withAccessToken("other-token", 0), request);
+        store.flush(request, response);
+
+        assertNull(response.getCookie(ClientSessionStore.DEFAULT_COOKIE_NAME));
+        assertEquals("other-token", store.load(requestWith(cookie)).getAccessToken());
+    }
+
+    @Test
+    public void testRemoveDeletesCookie() throws Exception {
+        InMemoryClientSessionStore store = new InMemoryClientSessionStore(60);
+        Cookie cookie = write(store, SESSION);
+
+        MockHttpServletRequest request = requestWith(cookie);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        store.update(ClientSession.EMPTY, request);
+        store.flush(request, response);
+
+        assertEquals(0, response.getCookie(cookie.getName()).getMaxAge());
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testUnchangedSessionIsNotWritten() throws Exception {
+        ClientSessionStore store = new EncryptedCookieClientSessionStore(SECRET, 60);
+        MockHttpServletRequest request = requestWith(write(store, SESSION));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        store.update(store.load(request).withPrincipal("user1", Arrays.asList("ROLE_USER")), request);
+        store.flush(request, response);
+
+        assertNull(response.getCookie(ClientSessionStore.DEFAULT_COOKIE_NAME));
+    }
+
+    private Cookie write(ClientSessionStore store, ClientSession session) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        store.update(session, request);
+        store.flush(request, response);
+        return response.getCookie(ClientSessionStore.DEFAULT_COOKIE_NAME);
+    }
+
+    private MockHttpServletRequest requestWith(Cookie cookie) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(cookie);
+        return request;
+    }
+}
@@ -0,0 +1,142 @@
+package com.vmware.idm.samples.oauth2;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.oauth2.client.resource.UserRedirectRequiredException;
+import org.springframework.security.oauth2.client.token.AccessTokenProvider;
+import org.springframework.security.oauth2.client.token.DefaultAccessTokenRequest;
+import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeAccessTokenProvider;
+import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeResourceDetails;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.doubleThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the timing of the login stages.
+ */
+public class LoginFlowTracerTest {
+
+    private GaugeService gaugeService;
+    private LoginFlowTracer tracer;
+
+    @Before
+    public void setUp() {
+        gaugeService = mock(GaugeService.class);
+        tracer = new LoginFlowTracer(gaugeService);
+    }
+
+    @Test
+    public void testStateCarriesCorrelationIdAndTime() throws Exception {
+        String state = redirect();
+
+        assertEquals(12, LoginFlowTracer.correlationIdOf(state).length());
+        assertTrue(Math.abs(System.currentTimeMillis() - LoginFlowTracer.issuedAtOf(state)) < 5000);
+        verify(gaugeService).submit(eq("timer.login.redirect"), anyDouble());
+    }
+
+    @Test
+    public void testCallbackStagesAreRecorded() throws Exception {
+        String issuedTwoSecondsAgo = "abc." + Long.toString(System.currentTimeMillis() - 2000, Character.MAX_RADIX);
+
+        callback(issuedTwoSecondsAgo, "http://localhost/login/vmware");
+
+        verify(gaugeService).submit(eq("timer.login.token_exchange"), anyDouble());
+        verify(gaugeService).submit(eq("timer.login.userinfo"), anyDouble());
+        verify(gaugeService).submit(eq("timer.login.callback"), anyDouble());
+        verify(gaugeService).submit(eq("timer.login.authorize"),
+                doubleThat(closeTo(TimeUnit.SECONDS.toMillis(2), 1000)));
+    }
+
+    @Test
+    public void testStateNotMatchingTheSessionIsNotTimed() throws Exception {
+        String issuedLongAgo = "abc." + Long.toString(1, Character.MAX_RADIX);
+
+        callback(issuedLongAgo, null);
+
+        verify(gaugeService, never()).submit(eq("timer.login.authorize"), anyDouble());
+        verify(gaugeService).submit(eq("timer.login.callback"), anyDouble());
+    }
+
+    @Test
+    public void testFirstLegIsNotCountedAsTokenExchange() throws Exception {
+        tracer.tracing(mock(AccessTokenProvider.class))
+                .obtainAccessToken(new AuthorizationCodeResourceDetails(), new DefaultAccessTokenRequest());
+
+        verify(gaugeService, never()).submit(anyString(), anyDouble());
+    }
+
+    @Test
+    public void testForeignStateIsNotTimed() throws Exception {
+        assertEquals(-1, LoginFlowTracer.issuedAtOf("xyz"));
+        assertEquals(-1, LoginFlowTracer.issuedAtOf("xyz.not-a-time"));
+        assertEquals("xyz", LoginFlowTracer.correlationIdOf("xyz"));
+    }
+
+    /**
+     * Run the second leg of a login with the given state, preserved in the session by the first leg unless null.
+     */
+    private void callback(String state, Object preservedState) throws Exception {
+        AccessTokenProvider tokenProvider = tracer.tracing(mock(AccessTokenProvider.class));
+        ResourceServerTokenServices tokenServices = tracer.tracing(mock(ResourceServerTokenServices.class));
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/login/vmware");
+        request.addParameter("code", "code1");
+        request.addParameter("state", state);
+        tracer.filter().doFilter(request, new MockHttpServletResponse(), new MockFilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                DefaultAccessTokenRequest accessTokenRequest = new DefaultAccessTokenRequest();
+                accessTokenRequest.setAuthorizationCode("code1");
+                accessTokenRequest.setStateKey(state);
+                accessTokenRequest.setPreservedState(preservedState);
+                tokenProvider.obtainAccessToken(new AuthorizationCodeResourceDetails(), accessTokenRequest);
+                tokenServices.loadAuthentication("token1");
+            }
+        });
+    }
+
+    /**
+     * Run the first leg of a login with the real provider and return the state sent to Identity Manager.
+     */
+    private String redirect() throws Exception {
+        AuthorizationCodeAccessTokenProvider provider = new AuthorizationCodeAccessTokenProvider();
+        tracer.configure(provider);
+        AccessTokenProvider tracingProvider = tracer.tracing(provider);
+        AuthorizationCodeResourceDetails resource = new AuthorizationCodeResourceDetails();
+        resource.setUserAuthorizationUri("https://idm.example.com/SAAS/auth/oauth2/authorize");
+        resource.setPreEstablishedRedirectUri("http://localhost/login/vmware");
+
+        String[] state = new String[1];
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/login/vmware");
+        tracer.filter().doFilter(request, new MockHttpServletResponse(), new MockFilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                try {
+                    tracingProvider.obtainAccessToken(resource, new DefaultAccessTokenRequest());
+                    fail("A redirect is expected");
+                } catch (UserRedirectRequiredException e) {
+                    state[0] = e.getStateKey();
+                }
+            }
+        });
+        return state[0];
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.benchmark;
+
+import com.vmware.idm.samples.saml.binding.PooledSignatureHTTPRedirectDeflateEncoder;
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.binding.BasicSAMLMessageContext;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.binding.encoding.HTTPRedirectDeflateEncoder;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.credential.Credential;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.SAMLBootstrap;
+import org.springframework.security.saml.key.JKSKeyManager;
+
+import javax.xml.namespace.QName;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of redirecting the browser to the IdP with a signed AuthnRequest, with a new JCA signature for each message
+ * or with the ones kept by the threads of the {@link PooledSignatureHTTPRedirectDeflateEncoder}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HTTPRedirectEncoderBenchmark {
+
+    @Param({"default", "pooled"})
+    private String encoderType;
+
+    private HTTPRedirectDeflateEncoder encoder;
+    private Credential signingCredential;
+    private AuthnRequest authnRequest;
+    private SingleSignOnService endpoint;
+
+    @Setup
+    public void setUp() {
+        new SAMLBootstrap().postProcessBeanFactory(null);
+        encoder = "default".equals(encoderType) ? new HTTPRedirectDeflateEncoder()
+                : new PooledSignatureHTTPRedirectDeflateEncoder();
+        signingCredential = new JKSKeyManager(
+                new DefaultResourceLoader().getResource("classpath:/saml/samlKeystore.jks"), "secret",
+                Collections.singletonMap("apollo", "secret"), "apollo").getDefaultCredential();
+
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue("com:vmware:idm:samples");
+        authnRequest = build(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        authnRequest.setID("a1b2c3d4e5f6a7b8c9d0e1f2a3b4c5d6e7f8a9b");
+        authnRequest.setVersion(SAMLVersion.VERSION_20);
+        authnRequest.setIssueInstant(new DateTime());
+        authnRequest.setIssuer(issuer);
+        authnRequest.setAssertionConsumerServiceURL("https://localhost:8443/saml/SSO");
+        authnRequest.setProtocolBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+
+        endpoint = build(SingleSignOnService.DEFAULT_ELEMENT_NAME);
+        endpoint.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        endpoint.setLocation("https://idp.example.com/SAAS/auth/federation/sso");
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public MockHttpServletResponse encode() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        BasicSAMLMessageContext context = new BasicSAMLMessageContext();
+        context.setOutboundSAMLMessage(authnRequest);
+        context.setPeerEntityEndpoint(endpoint);
+        context.setRelayState("relay-state");
+        context.setOutboundSAMLMessageSigningCredential(signingCredential);
+        context.setOutboundMessageTransport(new HttpServletResponseAdapter(response, true));
+        encoder.encode(context);
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName name) {
+        return (T) Configuration.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+}
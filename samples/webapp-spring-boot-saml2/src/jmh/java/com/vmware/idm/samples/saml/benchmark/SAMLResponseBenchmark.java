@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.benchmark;
+
+import com.vmware.idm.samples.saml.core.AttributeUserResolver;
+import com.vmware.idm.samples.saml.core.AuthorityMapper;
+import com.vmware.idm.samples.saml.core.SAMLUserDetailsServiceImpl;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.binding.decoding.HTTPPostDecoder;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.security.MetadataCriteria;
+import org.opensaml.security.SAMLSignatureProfileValidator;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.xml.parse.StaticBasicParserPool;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.util.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.saml.SAMLBootstrap;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.websso.WebSSOProfileConsumerImpl;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of each stage of the consumption of a SAML response posted by an IdP to /saml/SSO, in the order the
+ * {@code SAMLProcessingFilter} runs them:
+ * <ol>
+ * <li>{@link #decodeHttpPost}: HTTP-POST binding, i.e. Base64 decoding, parsing, unmarshalling and destination
+ * check,</li>
+ * <li>{@link #parse} and {@link #unmarshall}: XML parsing through the {@code StaticBasicParserPool} alone, then
+ * followed by the unmarshalling into OpenSAML objects,</li>
+ * <li>{@link #validateSignature}: signature profile check and RSA-SHA256 validation of a signed assertion,</li>
+ * <li>{@link #decryptAssertion}: RSA-OAEP key transport and AES-128 decryption of an encrypted assertion,</li>
+ * <li>{@link #verifyResponse}: checks of {@code WebSSOProfileConsumerImpl} (status, issuer, subject confirmation,
+ * conditions, authentication statement) on a response without any signature or encryption,</li>
+ * <li>{@link #consumeSignedResponse} and {@link #consumeEncryptedResponse}: the same checks including the
+ * cryptography, as done for a real IdP,</li>
+ * <li>{@link #loadUserBySAML}: mapping of the SAML credential to the local user.</li>
+ * </ol>
+ * The responses are generated with fresh keys for each trial and vary in attribute count and value size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SAMLResponseBenchmark {
+
+    @Param({"1", "20", "100"})
+    private int attributeCount;
+
+    @Param({"16", "1024"})
+    private int attributeValueLength;
+
+    private StaticBasicParserPool parserPool;
+    private SAMLResponseFixture fixture;
+    private WebSSOProfileConsumerImpl consumer;
+    private SAMLUserDetailsServiceImpl userDetailsService;
+
+    private String postedResponse;
+    private byte[] signedResponseBytes;
+    private Signature assertionSignature;
+    private SignatureTrustEngine trustEngine;
+    private EncryptedAssertion encryptedAssertion;
+    private Response unsignedResponse;
+    private Response signedResponse;
+    private Response encryptedResponse;
+    private SAMLCredential credential;
+
+    @Setup
+    public void setUp() throws Exception {
+        new SAMLBootstrap().postProcessBeanFactory(null);
+        parserPool = new StaticBasicParserPool();
+        parserPool.initialize();
+        fixture = new SAMLResponseFixture();
+        consumer = new WebSSOProfileConsumerImpl();
+        // the same responses are consumed at each invocation, keep their DOM for the signature validation
+        consumer.setReleaseDOM(false);
+        // without the cache, to measure the mapping of each credential
+        userDetailsService = new SAMLUserDetailsServiceImpl(new AttributeUserResolver(
+                new AuthorityMapper(Collections.singletonList("ROLE_USER"), Collections.emptyMap())));
+
+        // responses are read back from their serialized form, as they are received from the IdP
+        signedResponseBytes = SAMLResponseFixture.toBytes(
+                fixture.createResponse(attributeCount, attributeValueLength, true, false));
+        postedResponse = Base64.encodeBytes(signedResponseBytes, Base64.DONT_BREAK_LINES);
+        signedResponse = SAMLResponseFixture.unmarshall(parserPool, signedResponseBytes);
+        assertionSignature = signedResponse.getAssertions().get(0).getSignature();
+        trustEngine = fixture.createTrustEngine();
+
+        encryptedResponse = SAMLResponseFixture.unmarshall(parserPool, SAMLResponseFixture.toBytes(
+                fixture.createResponse(attributeCount, attributeValueLength, true, true)));
+        encryptedAssertion = encryptedResponse.getEncryptedAssertions().get(0);
+
+        unsignedResponse = SAMLResponseFixture.unmarshall(parserPool, SAMLResponseFixture.toBytes(
+                fixture.createResponse(attributeCount, attributeValueLength, false, false)));
+
+        // fail fast if a response is not accepted
+        consumeEncryptedResponse();
+        verifyResponse();
+        credential = consumeSignedResponse();
+    }
+
+    @Benchmark
+    public SAMLMessageContext decodeHttpPost() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/saml/SSO");
+        request.setScheme("https");
+        request.setServerName("localhost");
+        request.setServerPort(8443);
+        request.setSecure(true);
+        request.addParameter("SAMLResponse", postedResponse);
+        request.addParameter("RelayState", "relay-state");
+
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setInboundMessageTransport(new HttpServletRequestAdapter(request));
+        new HTTPPostDecoder(parserPool).decode(context);
+        return context;
+    }
+
+    @Benchmark
+    public Document parse() throws Exception {
+        return parserPool.parse(new ByteArrayInputStream(signedResponseBytes));
+    }
+
+    @Benchmark
+    public Response unmarshall() throws Exception {
+        return SAMLResponseFixture.unmarshall(parserPool, signedResponseBytes);
+    }
+
+    @Benchmark
+    public boolean validateSignature() throws Exception {
+        new SAMLSignatureProfileValidator().validate(assertionSignature);
+        CriteriaSet criteriaSet = new CriteriaSet();
+        criteriaSet.add(new EntityIDCriteria(SAMLResponseFixture.IDP_ENTITY_ID));
+        criteriaSet.add(new MetadataCriteria(IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
+        criteriaSet.add(new UsageCriteria(UsageType.SIGNING));
+        if (!trustEngine.validate(assertionSignature, criteriaSet)) {
+            throw new IllegalStateException("Invalid signature");
+        }
+        return true;
+    }
+
+    @Benchmark
+    public Assertion decryptAssertion() throws Exception {
+        return fixture.createDecrypter().decrypt(encryptedAssertion);
+    }
+
+    @Benchmark
+    public SAMLCredential verifyResponse() throws Exception {
+        return consumer.processAuthenticationResponse(fixture.createContext(unsignedResponse, false));
+    }
+
+    @Benchmark
+    public SAMLCredential consumeSignedResponse() throws Exception {
+        return consumer.processAuthenticationResponse(fixture.createContext(signedResponse, true));
+    }
+
+    @Benchmark
+    public SAMLCredential consumeEncryptedResponse() throws Exception {
+        return consumer.processAuthenticationResponse(fixture.createContext(encryptedResponse, true));
+    }
+
+    @Benchmark
+    public Object loadUserBySAML() {
+        return userDetailsService.loadUserBySAML(credential);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.benchmark;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.impl.SAMLObjectContentReference;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.AttributeValue;
+import org.opensaml.saml2.core.Audience;
+import org.opensaml.saml2.core.AudienceRestriction;
+import org.opensaml.saml2.core.AuthnContext;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml2.encryption.Decrypter;
+import org.opensaml.saml2.encryption.Encrypter;
+import org.opensaml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.encryption.EncryptionConstants;
+import org.opensaml.xml.encryption.EncryptionParameters;
+import org.opensaml.xml.encryption.InlineEncryptedKeyResolver;
+import org.opensaml.xml.encryption.KeyEncryptionParameters;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.schema.XSString;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.BasicCredential;
+import org.opensaml.xml.security.credential.StaticCredentialResolver;
+import org.opensaml.xml.security.keyinfo.StaticKeyInfoCredentialResolver;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.w3c.dom.Element;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Builds the SAML responses an IdP would post to this application, signed and encrypted with keys generated for
+ * the benchmark, together with the context a {@code WebSSOProfileConsumer} needs to accept them.
+ */
+public class SAMLResponseFixture {
+
+    public static final String IDP_ENTITY_ID = "https://idm.example.com/SAAS/API/1.0/GET/metadata/idp.xml";
+    public static final String SP_ENTITY_ID = "com:vmware:idm:samples";
+    public static final String ASSERTION_CONSUMER_URL = "https://localhost:8443/saml/SSO";
+    public static final String USER_NAME = "jdoe@example.com";
+
+    // IdP signing key and SP encryption key
+    private final BasicCredential idpCredential;
+    private final BasicCredential spCredential;
+
+    public SAMLResponseFixture() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair idpKeyPair = generator.generateKeyPair();
+        KeyPair spKeyPair = generator.generateKeyPair();
+        idpCredential = SecurityHelper.getSimpleCredential(idpKeyPair.getPublic(), idpKeyPair.getPrivate());
+        spCredential = SecurityHelper.getSimpleCredential(spKeyPair.getPublic(), spKeyPair.getPrivate());
+    }
+
+    /**
+     * @param attributeCount       number of attributes of the assertion
+     * @param attributeValueLength number of characters of each attribute value
+     * @param signed               whether the assertion is signed by the IdP
+     * @param encrypted            whether the assertion is encrypted for the SP
+     */
+    public Response createResponse(int attributeCount, int attributeValueLength, boolean signed, boolean encrypted)
+            throws Exception {
+        DateTime now = new DateTime();
+        Response response = build(Response.DEFAULT_ELEMENT_NAME);
+        response.setID("_" + UUID.randomUUID());
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setIssueInstant(now);
+        response.setDestination(ASSERTION_CONSUMER_URL);
+        response.setIssuer(issuer());
+        Status status = build(Status.DEFAULT_ELEMENT_NAME);
+        StatusCode statusCode = build(StatusCode.DEFAULT_ELEMENT_NAME);
+        statusCode.setValue(StatusCode.SUCCESS_URI);
+        status.setStatusCode(statusCode);
+        response.setStatus(status);
+
+        Assertion assertion = createAssertion(now, attributeCount, attributeValueLength);
+        if (signed) {
+            sign(assertion);
+        }
+        if (encrypted) {
+            response.getEncryptedAssertions().add(encrypter().encrypt(assertion));
+        } else {
+            response.getAssertions().add(assertion);
+        }
+        Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
+        return response;
+    }
+
+    private Assertion createAssertion(DateTime now, int attributeCount, int attributeValueLength) {
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID("_" + UUID.randomUUID());
+        assertion.setVersion(SAMLVersion.VERSION_20);
+        assertion.setIssueInstant(now);
+        assertion.setIssuer(issuer());
+
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setFormat(NameID.EMAIL);
+        nameID.setValue(USER_NAME);
+        subject.setNameID(nameID);
+        SubjectConfirmation confirmation = build(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+        confirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+        SubjectConfirmationData confirmationData = build(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
+        confirmationData.setNotOnOrAfter(now.plusHours(1));
+        confirmationData.setRecipient(ASSERTION_CONSUMER_URL);
+        confirmation.setSubjectConfirmationData(confirmationData);
+        subject.getSubjectConfirmations().add(confirmation);
+        assertion.setSubject(subject);
+
+        Conditions conditions = build(Conditions.DEFAULT_ELEMENT_NAME);
+        conditions.setNotBefore(now.minusMinutes(1));
+        conditions.setNotOnOrAfter(now.plusHours(1));
+        AudienceRestriction audienceRestriction = build(AudienceRestriction.DEFAULT_ELEMENT_NAME);
+        Audience audience = build(Audience.DEFAULT_ELEMENT_NAME);
+        audience.setAudienceURI(SP_ENTITY_ID);
+        audienceRestriction.getAudiences().add(audience);
+        conditions.getAudienceRestrictions().add(audienceRestriction);
+        assertion.setConditions(conditions);
+
+        AuthnStatement authnStatement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        authnStatement.setAuthnInstant(now);
+        authnStatement.setSessionIndex("_" + UUID.randomUUID());
+        AuthnContext authnContext = build(AuthnContext.DEFAULT_ELEMENT_NAME);
+        AuthnContextClassRef classRef = build(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        classRef.setAuthnContextClassRef(AuthnContext.PPT_AUTHN_CTX);
+        authnContext.setAuthnContextClassRef(classRef);
+        authnStatement.setAuthnContext(authnContext);
+        assertion.getAuthnStatements().add(authnStatement);
+
+        AttributeStatement attributeStatement = build(AttributeStatement.DEFAULT_ELEMENT_NAME);
+        char[] value = new char[attributeValueLength];
+        Arrays.fill(value, 'v');
+        for (int i = 0; i < attributeCount; i++) {
+            Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+            attribute.setName("attribute" + i);
+            attribute.setNameFormat(Attribute.BASIC);
+            XSString attributeValue = (XSString) Configuration.getBuilderFactory().getBuilder(XSString.TYPE_NAME)
+                    .buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+            attributeValue.setValue(new String(value));
+            attribute.getAttributeValues().add(attributeValue);
+            attributeStatement.getAttributes().add(attribute);
+        }
+        assertion.getAttributeStatements().add(attributeStatement);
+        return assertion;
+    }
+
+    private void sign(Assertion assertion) throws Exception {
+        Signature signature = build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(idpCredential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        assertion.setSignature(signature);
+        ((SAMLObjectContentReference) signature.getContentReferences().get(0))
+                .setDigestAlgorithm(SignatureConstants.ALGO_ID_DIGEST_SHA256);
+        Configuration.getMarshallerFactory().getMarshaller(assertion).marshall(assertion);
+        Signer.signObject(signature);
+    }
+
+    private Encrypter encrypter() {
+        EncryptionParameters encryptionParameters = new EncryptionParameters();
+        encryptionParameters.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
+        KeyEncryptionParameters keyEncryptionParameters = new KeyEncryptionParameters();
+        keyEncryptionParameters.setAlgorithm(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP);
+        keyEncryptionParameters.setEncryptionCredential(
+                SecurityHelper.getSimpleCredential(spCredential.getPublicKey(), null));
+        Encrypter encrypter = new Encrypter(encryptionParameters, keyEncryptionParameters);
+        encrypter.setKeyPlacement(Encrypter.KeyPlacement.INLINE);
+        return encrypter;
+    }
+
+    private Issuer issuer() {
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(IDP_ENTITY_ID);
+        return issuer;
+    }
+
+    /**
+     * @return the serialized form of a marshalled message
+     */
+    public static byte[] toBytes(XMLObject message) {
+        return XMLHelper.nodeToString(message.getDOM()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse and unmarshall a message the way the SAML bindings do.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends XMLObject> T unmarshall(ParserPool parserPool, byte[] message) throws Exception {
+        Element element = parserPool.parse(new ByteArrayInputStream(message)).getDocumentElement();
+        Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(element);
+        return (T) unmarshaller.unmarshall(element);
+    }
+
+    /**
+     * @return a trust engine trusting the IdP signing key, like the one built from the IdP metadata
+     */
+    public SignatureTrustEngine createTrustEngine() {
+        return new ExplicitKeySignatureTrustEngine(new StaticCredentialResolver(
+                SecurityHelper.getSimpleCredential(idpCredential.getPublicKey(), null)),
+                Configuration.getGlobalSecurityConfiguration().getDefaultKeyInfoCredentialResolver());
+    }
+
+    /**
+     * @return a decrypter using the SP private key, like the one of {@code SAMLContextProviderImpl}
+     */
+    public Decrypter createDecrypter() {
+        Decrypter decrypter = new Decrypter(null, new StaticKeyInfoCredentialResolver(spCredential),
+                new InlineEncryptedKeyResolver());
+        decrypter.setRootInNewDocument(true);
+        return decrypter;
+    }
+
+    /**
+     * @return the context the SAML processing filter builds before calling the {@code WebSSOProfileConsumer}
+     */
+    public SAMLMessageContext createContext(Response response, boolean wantAssertionsSigned) {
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setInboundSAMLMessage(response);
+        context.setInboundSAMLBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+        context.setLocalEntityId(SP_ENTITY_ID);
+
+        SPSSODescriptor spDescriptor = build(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        spDescriptor.setWantAssertionsSigned(wantAssertionsSigned);
+        AssertionConsumerService assertionConsumerService = build(AssertionConsumerService.DEFAULT_ELEMENT_NAME);
+        assertionConsumerService.setBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+        assertionConsumerService.setLocation(ASSERTION_CONSUMER_URL);
+        spDescriptor.getAssertionConsumerServices().add(assertionConsumerService);
+        context.setLocalEntityRoleMetadata(spDescriptor);
+        context.setLocalEntityEndpoint(assertionConsumerService);
+        context.setLocalTrustEngine(createTrustEngine());
+        context.setLocalDecrypter(createDecrypter());
+
+        EntityDescriptor idpDescriptor = build(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        idpDescriptor.setEntityID(IDP_ENTITY_ID);
+        context.setPeerEntityId(IDP_ENTITY_ID);
+        context.setPeerEntityMetadata(idpDescriptor);
+        context.setPeerExtendedMetadata(new ExtendedMetadata());
+        return context;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName name) {
+        return (T) Configuration.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.binding;
+
+import org.opensaml.saml2.binding.encoding.HTTPRedirectDeflateEncoder;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTTP-Redirect encoder signing the query strings with a JCA {@link Signature} kept by each thread for each
+ * algorithm, instead of looking up and initializing a new one for each message.
+ * <p>
+ * A kept signature is initialized again only when the signing key changes, e.g. after a reload of the keystore: the
+ * key is compared by identity, so the key manager should return the same credential until its keys change. HMAC
+ * signatures are computed by the superclass.
+ */
+public class PooledSignatureHTTPRedirectDeflateEncoder extends HTTPRedirectDeflateEncoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledSignatureHTTPRedirectDeflateEncoder.class);
+
+    private static final ThreadLocal<Map<String, PooledSignature>> SIGNATURES = ThreadLocal.withInitial(HashMap::new);
+
+    @Override
+    protected String generateSignature(Credential signingCredential, String algorithmURI, String queryString)
+            throws MessageEncodingException {
+        Key key = SecurityHelper.extractSigningKey(signingCredential);
+        String jcaAlgorithm = SecurityHelper.getAlgorithmIDFromURI(algorithmURI);
+        if (!(key instanceof PrivateKey) || jcaAlgorithm == null || SecurityHelper.isHMAC(algorithmURI)) {
+            return super.generateSignature(signingCredential, algorithmURI, queryString);
+        }
+        Map<String, PooledSignature> signatures = SIGNATURES.get();
+        PooledSignature pooledSignature = signatures.remove(jcaAlgorithm);
+        try {
+            if (pooledSignature == null) {
+                pooledSignature = new PooledSignature(Signature.getInstance(jcaAlgorithm));
+            }
+            byte[] rawSignature = pooledSignature.sign((PrivateKey) key, queryString.getBytes(StandardCharsets.UTF_8));
+            // only kept once it signed successfully, an exception may leave it in any state
+            signatures.put(jcaAlgorithm, pooledSignature);
+            return Base64.encodeBytes(rawSignature, Base64.DONT_BREAK_LINES);
+        } catch (GeneralSecurityException e) {
+            LOG.error("Error during URL signing process", e);
+            throw new MessageEncodingException("Unable to sign URL query string", e);
+        }
+    }
+
+    private static final class PooledSignature {
+
+        private final Signature signature;
+        private PrivateKey key;
+
+        private PooledSignature(Signature signature) {
+            this.signature = signature;
+        }
+
+        private byte[] sign(PrivateKey signingKey, byte[] input) throws GeneralSecurityException {
+            if (signingKey != key) {
+                signature.initSign(signingKey);
+                key = signingKey;
+            }
+            // signing resets the signature to its state after the initialization, ready for the next message
+            signature.update(input);
+            return signature.sign();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.binding;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.saml2.binding.encoding.HTTPPostEncoder;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HTTPOutTransport;
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP-POST encoder writing the auto-submitted form without invoking Velocity for each message.
+ * <p>
+ * The template is rendered once per variant of the form (with or without RelayState, for a request or a response)
+ * when the encoder is created, with markers in place of the parameters. The fixed parts between the markers are
+ * kept as bytes and streamed to the response, followed by each parameter, so that the output is identical to the
+ * one of {@link HTTPPostEncoder}. As a consequence, the template and the templates it includes can only depend on
+ * the parameters set by {@link #populateVelocityContext}.
+ */
+public class PrecompiledHTTPPostEncoder extends HTTPPostEncoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PrecompiledHTTPPostEncoder.class);
+
+    private static final String[] PARAMETERS = {"action", "binding", "RelayState", "SAMLRequest", "SAMLResponse"};
+
+    private static final char MARKER = '\u0000';
+
+    private final CompiledTemplate requestTemplate;
+    private final CompiledTemplate requestWithRelayStateTemplate;
+    private final CompiledTemplate responseTemplate;
+    private final CompiledTemplate responseWithRelayStateTemplate;
+
+    public PrecompiledHTTPPostEncoder(VelocityEngine engine, String templateId) {
+        super(engine, templateId);
+        requestTemplate = compile(engine, templateId, "SAMLRequest", false);
+        requestWithRelayStateTemplate = compile(engine, templateId, "SAMLRequest", true);
+        responseTemplate = compile(engine, templateId, "SAMLResponse", false);
+        responseWithRelayStateTemplate = compile(engine, templateId, "SAMLResponse", true);
+    }
+
+    private CompiledTemplate compile(VelocityEngine engine, String templateId, String messageParameter,
+                                     boolean withRelayState) {
+        VelocityContext context = new VelocityContext();
+        for (String parameter : PARAMETERS) {
+            if (parameter.startsWith("SAML") && !parameter.equals(messageParameter)
+                    || parameter.equals("RelayState") && !withRelayState) {
+                continue;
+            }
+            context.put(parameter, MARKER + parameter + MARKER);
+        }
+        StringWriter out = new StringWriter();
+        engine.mergeTemplate(templateId, "UTF-8", context, out);
+
+        // the markers split the page into fixed parts and parameters, alternately
+        String[] parts = out.toString().split(String.valueOf(MARKER), -1);
+        List<byte[]> fixedParts = new ArrayList<>();
+        List<String> parameters = new ArrayList<>();
+        for (int i = 0; i < parts.length; i++) {
+            if (i % 2 == 0) {
+                fixedParts.add(parts[i].getBytes(StandardCharsets.UTF_8));
+            } else {
+                parameters.add(parts[i]);
+            }
+        }
+        return new CompiledTemplate(fixedParts.toArray(new byte[0][]), parameters.toArray(new String[0]));
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // raw type of the overridden method of OpenSAML
+    protected void postEncode(SAMLMessageContext messageContext, String endpointURL)
+            throws MessageEncodingException {
+        LOG.debug("Writing the precompiled POST body");
+        try {
+            VelocityContext context = new VelocityContext();
+            populateVelocityContext(context, messageContext, endpointURL);
+            HTTPOutTransport outTransport = (HTTPOutTransport) messageContext.getOutboundMessageTransport();
+            HTTPTransportUtils.addNoCacheHeaders(outTransport);
+            HTTPTransportUtils.setUTF8Encoding(outTransport);
+            HTTPTransportUtils.setContentType(outTransport, "text/html");
+            OutputStream out = outTransport.getOutgoingStream();
+            templateOf(context).write(context, out);
+            out.flush();
+        } catch (IOException e) {
+            LOG.error("Error writing the POST body", e);
+            throw new MessageEncodingException("Error creating output document", e);
+        }
+    }
+
+    private CompiledTemplate templateOf(VelocityContext context) {
+        boolean withRelayState = context.containsKey("RelayState");
+        if (context.containsKey("SAMLRequest")) {
+            return withRelayState ? requestWithRelayStateTemplate : requestTemplate;
+        }
+        return withRelayState ? responseWithRelayStateTemplate : responseTemplate;
+    }
+
+    private static final class CompiledTemplate {
+
+        private final byte[][] fixedParts;
+        private final String[] parameters;
+
+        private CompiledTemplate(byte[][] fixedParts, String[] parameters) {
+            this.fixedParts = fixedParts;
+            this.parameters = parameters;
+        }
+
+        private void write(VelocityContext context, OutputStream out) throws IOException {
+            for (int i = 0; i < parameters.length; i++) {
+                out.write(fixedParts[i]);
+                out.write(((String) context.get(parameters[i])).getBytes(StandardCharsets.UTF_8));
+            }
+            out.write(fixedParts[parameters.length]);
+        }
+    }
+}
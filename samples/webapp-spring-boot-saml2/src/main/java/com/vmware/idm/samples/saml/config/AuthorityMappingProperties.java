@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.config;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration of the authorities granted to the users, under the {@code authorities} prefix.
+ */
+public class AuthorityMappingProperties {
+
+    /**
+     * Authorities granted to all the users.
+     */
+    private List<String> defaults = new ArrayList<>();
+
+    /**
+     * Rules indexed by the authority they grant, as {@code attributeName=regularExpression}.
+     */
+    private Map<String, String> rules = new LinkedHashMap<>();
+
+    public List<String> getDefaults() {
+        return defaults;
+    }
+
+    public void setDefaults(List<String> defaults) {
+        this.defaults = defaults;
+    }
+
+    public Map<String, String> getRules() {
+        return rules;
+    }
+
+    public void setRules(Map<String, String> rules) {
+        this.rules = rules;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.config;
+
+import com.vmware.idm.samples.saml.startup.StartupMetrics;
+import com.vmware.idm.samples.saml.startup.StartupTimer;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class StartupConfig {
+
+    // Times the creation of the beans and logs the slowest ones once the application is ready. The post processors
+    // are created before the configuration, hence the static method
+    @Bean
+    public static StartupTimer startupTimer() {
+        return new StartupTimer(10);
+    }
+
+    // the static @Bean method isn't intercepted: calling it would create a second timer, never notified
+    @Bean
+    public PublicMetrics startupMetrics(StartupTimer startupTimer) {
+        return new StartupMetrics("startup", startupTimer, 10);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.config;
+
+import com.vmware.idm.samples.saml.core.AttributeUserResolver;
+import com.vmware.idm.samples.saml.core.AuthorityMapper;
+import com.vmware.idm.samples.saml.core.UserResolver;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class UserResolverConfig {
+
+    @Bean
+    @ConfigurationProperties(prefix = "authorities")
+    public AuthorityMappingProperties authorityMappingProperties() {
+        return new AuthorityMappingProperties();
+    }
+
+    // Mapping rules compiled once at startup
+    @Bean
+    public AuthorityMapper authorityMapper() {
+        AuthorityMappingProperties properties = authorityMappingProperties();
+        return new AuthorityMapper(properties.getDefaults(), properties.getRules());
+    }
+
+    // Users built from the SAML credential alone: there is no user store, hence nothing worth caching. A resolver
+    // looking the accounts up in a store would be wrapped in a CachingUserResolver, given the authorityMapper
+    @Bean
+    public UserResolver userResolver() {
+        return new AttributeUserResolver(authorityMapper());
+    }
+}
@@ -16,25 +16,65 @@
 
 package com.vmware.idm.samples.saml.config;
 
+import com.vmware.idm.samples.saml.binding.PooledSignatureHTTPRedirectDeflateEncoder;
+import com.vmware.idm.samples.saml.binding.PrecompiledHTTPPostEncoder;
 import com.vmware.idm.samples.saml.core.SAMLUserDetailsServiceImpl;
+import com.vmware.idm.samples.saml.http.HttpConnectionPoolMetrics;
+import com.vmware.idm.samples.saml.http.InstrumentedHttpConnectionManager;
+import com.vmware.idm.samples.saml.key.ReloadableKeyManager;
+import com.vmware.idm.samples.saml.metadata.CachedHTTPMetadataProvider;
+import com.vmware.idm.samples.saml.metadata.CachedMetadataDisplayFilter;
+import com.vmware.idm.samples.saml.metadata.EagerMetadataGeneratorFilter;
+import com.vmware.idm.samples.saml.metadata.EventPublishingMetadataManager;
+import com.vmware.idm.samples.saml.metadata.IdpCatalog;
+import com.vmware.idm.samples.saml.metadata.MetadataHealthIndicator;
+import com.vmware.idm.samples.saml.metadata.stream.StreamingHTTPMetadataProvider;
+import com.vmware.idm.samples.saml.session.InMemorySessionStore;
+import com.vmware.idm.samples.saml.session.SAMLAuthenticationSerializer;
+import com.vmware.idm.samples.saml.session.SessionStoreSecurityContextRepository;
+import com.vmware.idm.samples.saml.storage.AuthnRequestCodec;
+import com.vmware.idm.samples.saml.storage.CookieStorageContextProvider;
+import com.vmware.idm.samples.saml.timing.SAMLStageMetrics;
+import com.vmware.idm.samples.saml.timing.SAMLStageTimers;
+import com.vmware.idm.samples.saml.timing.TimedFilter;
+import com.vmware.idm.samples.saml.timing.TimedParserPool;
+import com.vmware.idm.samples.saml.timing.TimedSAMLAuthenticationProvider;
+import com.vmware.idm.samples.saml.timing.TimedSAMLProcessor;
+import com.vmware.idm.samples.saml.websso.BackChannelLogoutDispatcher;
+import com.vmware.idm.samples.saml.websso.BackChannelLogoutFilter;
+import com.vmware.idm.samples.saml.websso.BackChannelLogoutMetrics;
+import com.vmware.idm.samples.saml.websso.BackChannelSingleLogoutProfile;
+import com.vmware.idm.samples.saml.websso.ReplayCache;
+import com.vmware.idm.samples.saml.websso.ReplayCacheMetrics;
+import com.vmware.idm.samples.saml.websso.ReplayProtectedWebSSOProfileConsumer;
+import com.vmware.idm.samples.saml.websso.ReplayProtectedWebSSOProfileConsumerHoK;
+import com.vmware.idm.samples.saml.websso.StoringBeforeSendWebSSOProfile;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
 import org.apache.velocity.app.VelocityEngine;
-import org.opensaml.saml2.metadata.provider.HTTPMetadataProvider;
+import org.opensaml.saml2.binding.decoding.HTTPPostDecoder;
+import org.opensaml.saml2.binding.decoding.HTTPRedirectDeflateDecoder;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.xml.parse.ParserPool;
 import org.opensaml.xml.parse.StaticBasicParserPool;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.target.LazyInitTargetSource;
+import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.MethodInvokingFactoryBean;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.DefaultResourceLoader;
 import org.springframework.core.io.Resource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
@@ -50,10 +90,8 @@ import org.springframework.security.saml.SAMLLogoutProcessingFilter;
 import org.springframework.security.saml.SAMLProcessingFilter;
 import org.springframework.security.saml.SAMLWebSSOHoKProcessingFilter;
 import org.springframework.security.saml.context.SAMLContextProviderImpl;
-import org.springframework.security.saml.key.JKSKeyManager;
 import org.springframework.security.saml.key.KeyManager;
 import org.springframework.security.saml.log.SAMLDefaultLogger;
-import org.springframework.security.saml.metadata.CachingMetadataManager;
 import org.springframework.security.saml.metadata.ExtendedMetadata;
 import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
 import org.springframework.security.saml.metadata.MetadataDisplayFilter;
@@ -73,13 +111,10 @@ import org.springframework.security.saml.util.VelocityFactory;
 import org.springframework.security.saml.websso.ArtifactResolutionProfile;
 import org.springframework.security.saml.websso.ArtifactResolutionProfileImpl;
 import org.springframework.security.saml.websso.SingleLogoutProfile;
-import org.springframework.security.saml.websso.SingleLogoutProfileImpl;
 import org.springframework.security.saml.websso.WebSSOProfile;
 import org.springframework.security.saml.websso.WebSSOProfileConsumer;
 import org.springframework.security.saml.websso.WebSSOProfileConsumerHoKImpl;
-import org.springframework.security.saml.websso.WebSSOProfileConsumerImpl;
 import org.springframework.security.saml.websso.WebSSOProfileECPImpl;
-import org.springframework.security.saml.websso.WebSSOProfileImpl;
 import org.springframework.security.saml.websso.WebSSOProfileOptions;
 import org.springframework.security.web.DefaultSecurityFilterChain;
 import org.springframework.security.web.FilterChainProxy;
@@ -92,7 +127,9 @@ import org.springframework.security.web.authentication.logout.SecurityContextLog
 import org.springframework.security.web.authentication.logout.SimpleUrlLogoutSuccessHandler;
 import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.util.StringUtils;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -100,19 +137,88 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 @EnableWebSecurity
 @EnableGlobalMethodSecurity(securedEnabled = true)
 public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
 
+    @Value("${keystore.location}")
+    private String keystoreLocation;
+
     @Value("${keystore.secret}")
     private String keystoreSecret;
 
+    @Value("${keystore.check-interval}")
+    private long keystoreCheckInterval;
+
     @Value("${vmware.url}")
     private URL vmwareIdmUrl;
 
+    @Value("${sp.entity-base-url}")
+    private String spEntityBaseUrl;
+
+    @Value("${metadata.cache.directory}")
+    private File metadataCacheDirectory;
+
+    @Value("${metadata.aggregate.url}")
+    private String metadataAggregateUrl;
+
+    @Value("${metadata.aggregate.retained-entity-ids}")
+    private String metadataAggregateRetainedEntityIds;
+
+    @Value("${replay.cache.stripes}")
+    private int replayCacheStripes;
+
+    @Value("${replay.cache.max-size}")
+    private int replayCacheMaxSize;
+
+    @Value("${authn-request.cookie.secret}")
+    private String authnRequestCookieSecret;
+
+    @Value("${authn-request.cookie.validity}")
+    private long authnRequestCookieValidity;
+
+    @Value("${http.client.max-connections-per-host}")
+    private int httpClientMaxConnectionsPerHost;
+
+    @Value("${http.client.max-total-connections}")
+    private int httpClientMaxTotalConnections;
+
+    @Value("${http.client.connect-timeout}")
+    private int httpClientConnectTimeout;
+
+    @Value("${http.client.read-timeout}")
+    private int httpClientReadTimeout;
+
+    @Value("${http.client.pool-timeout}")
+    private long httpClientPoolTimeout;
+
+    @Value("${http.client.idle-timeout}")
+    private long httpClientIdleTimeout;
+
+    @Value("${logout.back-channel.threads}")
+    private int backChannelLogoutThreads;
+
+    @Value("${logout.back-channel.timeout}")
+    private long backChannelLogoutTimeout;
+
+    @Value("${session.store.timeout}")
+    private long sessionStoreTimeout;
+
+    @Value("${startup.lazy}")
+    private boolean lazyStartup;
+
+    @Value("${startup.background-metadata}")
+    private boolean backgroundMetadata;
+
+    @Autowired
+    private BeanFactory beanFactory;
+
     @Autowired
     private SAMLUserDetailsServiceImpl samlUserDetailsServiceImpl;
 
@@ -134,30 +240,70 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     }
 
     // Bindings, encoders and decoders used for creating and parsing messages
+    // The pool of connections to the IDPs is used for the metadata and the artifact resolution
+    @Bean
+    public InstrumentedHttpConnectionManager multiThreadedHttpConnectionManager() {
+        InstrumentedHttpConnectionManager connectionManager = new InstrumentedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(httpClientMaxConnectionsPerHost);
+        params.setMaxTotalConnections(httpClientMaxTotalConnections);
+        params.setConnectionTimeout(httpClientConnectTimeout);
+        params.setSoTimeout(httpClientReadTimeout);
+        params.setStaleCheckingEnabled(true);
+        connectionManager.evictIdleConnections(backgroundTaskScheduler(), httpClientIdleTimeout);
+        return connectionManager;
+    }
+
     @Bean
-    public MultiThreadedHttpConnectionManager multiThreadedHttpConnectionManager() {
-        return new MultiThreadedHttpConnectionManager();
+    public PublicMetrics httpConnectionPoolMetrics() {
+        return new HttpConnectionPoolMetrics("saml.http.pool", multiThreadedHttpConnectionManager());
     }
 
     @Bean
     public HttpClient httpClient() {
-        return new HttpClient(multiThreadedHttpConnectionManager());
+        HttpClient httpClient = new HttpClient(multiThreadedHttpConnectionManager());
+        // fail rather than queue forever when all the connections are in use
+        httpClient.getParams().setConnectionManagerTimeout(httpClientPoolTimeout);
+        return httpClient;
+    }
+
+    // Scheduler shared by the background tasks, e.g. the refresh of the IDP metadata
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService backgroundTaskScheduler() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("saml-background-");
+        threadFactory.setDaemon(true);
+        return Executors.newScheduledThreadPool(2, threadFactory);
+    }
+
+    // Timers of the stages of the processing of the SAML messages by IDP, also recorded as Flight Recorder events
+    @Bean
+    public SAMLStageTimers samlStageTimers() {
+        return new SAMLStageTimers();
+    }
+
+    @Bean
+    public PublicMetrics samlStageMetrics() {
+        return new SAMLStageMetrics("saml.stage", samlStageTimers());
     }
 
     // SAML Authentication Provider responsible for validating of received SAML
-    // messages
+    // messages, timing the validation and the mapping of the users
     @Bean
     public SAMLAuthenticationProvider samlAuthenticationProvider() {
-        SAMLAuthenticationProvider samlAuthenticationProvider = new SAMLAuthenticationProvider();
+        SAMLAuthenticationProvider samlAuthenticationProvider = new TimedSAMLAuthenticationProvider(samlStageTimers());
         samlAuthenticationProvider.setUserDetails(samlUserDetailsServiceImpl);
         samlAuthenticationProvider.setForcePrincipalAsString(false);
         return samlAuthenticationProvider;
     }
 
-    // Provider of default SAML Context
+    // Provider of default SAML Context, keeping the sent AuthnRequests in signed cookies rather than in the session
+    // and the trusted credentials of the entities in the index of the metadata manager, timing the checks of the
+    // signatures and the decryption
     @Bean
     public SAMLContextProviderImpl contextProvider() {
-        return new SAMLContextProviderImpl();
+        AuthnRequestCodec codec = new AuthnRequestCodec(authnRequestCookieSecret,
+                TimeUnit.SECONDS.toMillis(authnRequestCookieValidity));
+        return new CookieStorageContextProvider(codec, replayCache(), samlStageTimers());
     }
 
     // Initialization of OpenSAML library
@@ -172,51 +318,130 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         return new SAMLDefaultLogger();
     }
 
-    // SAML 2.0 WebSSO Assertion Consumer
+    // IDs of the assertions already consumed and of the AuthnRequests already answered, kept until they expire
+    @Bean(destroyMethod = "stopSweeping")
+    public ReplayCache replayCache() {
+        ReplayCache replayCache = new ReplayCache(replayCacheStripes);
+        replayCache.setMaxSize(replayCacheMaxSize);
+        replayCache.startSweeping(backgroundTaskScheduler(), TimeUnit.MINUTES.toMillis(1));
+        return replayCache;
+    }
+
+    @Bean
+    public PublicMetrics replayCacheMetrics() {
+        return new ReplayCacheMetrics("saml.replay", replayCache());
+    }
+
+    // Authentications of the users, kept in a store shared by the nodes rather than in the HTTP session
+    @Bean
+    public SessionStoreSecurityContextRepository securityContextRepository() {
+        return new SessionStoreSecurityContextRepository(sessionStore(), new SAMLAuthenticationSerializer(parserPool()),
+                TimeUnit.SECONDS.toMillis(sessionStoreTimeout));
+    }
+
+    // Reference store, local to the node: replace it with one backed by a distributed cache in a cluster
+    @Bean(destroyMethod = "stopSweeping")
+    public InMemorySessionStore sessionStore() {
+        InMemorySessionStore sessionStore = new InMemorySessionStore();
+        sessionStore.startSweeping(backgroundTaskScheduler(), TimeUnit.MINUTES.toMillis(1));
+        return sessionStore;
+    }
+
+    // SAML 2.0 WebSSO Assertion Consumer, rejecting the assertions already consumed
     @Bean
     public WebSSOProfileConsumer webSSOprofileConsumer() {
-        return new WebSSOProfileConsumerImpl();
+        return new ReplayProtectedWebSSOProfileConsumer(replayCache());
     }
 
-    // SAML 2.0 Holder-of-Key WebSSO Assertion Consumer
+    // SAML 2.0 Holder-of-Key WebSSO Assertion Consumer, rejecting the assertions already consumed, created on its
+    // first use when the startup is lazy
     @Bean
-    public WebSSOProfileConsumerHoKImpl hokWebSSOprofileConsumer() {
-        return new WebSSOProfileConsumerHoKImpl();
+    public WebSSOProfileConsumer hokWebSSOprofileConsumer() {
+        return lazyStartup ? lazyProxy(WebSSOProfileConsumer.class, "hokWebSSOprofileConsumerTarget")
+                : hokWebSSOprofileConsumerTarget();
     }
 
-    // SAML 2.0 Web SSO profile
+    @Bean
+    @Lazy
+    public WebSSOProfileConsumerHoKImpl hokWebSSOprofileConsumerTarget() {
+        return new ReplayProtectedWebSSOProfileConsumerHoK(replayCache());
+    }
+
+    // SAML 2.0 Web SSO profile, storing the AuthnRequest while the cookies can still be written
     @Bean
     public WebSSOProfile webSSOprofile() {
-        return new WebSSOProfileImpl();
+        return new StoringBeforeSendWebSSOProfile();
+    }
+
+    // SAML 2.0 Holder-of-Key Web SSO profile, created on its first use when the startup is lazy
+    @Bean
+    public WebSSOProfileConsumer hokWebSSOProfile() {
+        return lazyStartup ? lazyProxy(WebSSOProfileConsumer.class, "hokWebSSOProfileTarget")
+                : hokWebSSOProfileTarget();
     }
 
-    // SAML 2.0 Holder-of-Key Web SSO profile
     @Bean
-    public WebSSOProfileConsumerHoKImpl hokWebSSOProfile() {
+    @Lazy
+    public WebSSOProfileConsumerHoKImpl hokWebSSOProfileTarget() {
         return new WebSSOProfileConsumerHoKImpl();
     }
 
-    // SAML 2.0 ECP profile
+    // SAML 2.0 ECP profile, created on its first use when the startup is lazy
+    @Bean
+    public WebSSOProfile ecpprofile() {
+        return lazyStartup ? lazyProxy(WebSSOProfile.class, "ecpprofileTarget") : ecpprofileTarget();
+    }
+
     @Bean
-    public WebSSOProfileECPImpl ecpprofile() {
+    @Lazy
+    public WebSSOProfileECPImpl ecpprofileTarget() {
         return new WebSSOProfileECPImpl();
     }
 
+    // Proxy of a lazy bean, created on the first call to the proxy rather than at startup
+    private <T> T lazyProxy(Class<T> type, String targetBeanName) {
+        LazyInitTargetSource targetSource = new LazyInitTargetSource();
+        targetSource.setTargetBeanName(targetBeanName);
+        targetSource.setBeanFactory(beanFactory);
+        return ProxyFactory.getProxy(type, targetSource);
+    }
+
+    // SAML 2.0 Single Logout profile, sending the LogoutRequests over SOAP in the background when the IDP supports it
     @Bean
     public SingleLogoutProfile logoutprofile() {
-        return new SingleLogoutProfileImpl();
+        return new BackChannelSingleLogoutProfile(backChannelLogoutDispatcher());
     }
 
-    // Central storage of cryptographic keys
     @Bean
+    public BackChannelLogoutDispatcher backChannelLogoutDispatcher() {
+        return new BackChannelLogoutDispatcher(httpClient(), new SAMLProcessorImpl(soapBinding()),
+                backChannelLogoutExecutor(), backgroundTaskScheduler(), backChannelLogoutTimeout);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService backChannelLogoutExecutor() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("saml-logout-");
+        threadFactory.setDaemon(true);
+        return Executors.newFixedThreadPool(backChannelLogoutThreads, threadFactory);
+    }
+
+    @Bean
+    public PublicMetrics backChannelLogoutMetrics() {
+        return new BackChannelLogoutMetrics("saml.logout.back-channel", backChannelLogoutDispatcher());
+    }
+
+    // Central storage of cryptographic keys, reloaded when the file of the keystore changes
+    @Bean(destroyMethod = "stopWatching")
     public KeyManager keyManager() {
         DefaultResourceLoader loader = new DefaultResourceLoader();
-        Resource storeFile = loader.getResource("classpath:/saml/samlKeystore.jks");
+        Resource storeFile = loader.getResource(keystoreLocation);
         // The private key is under the 'apollo' alias and has the same password as the keystore itself
         Map<String, String> passwords = new HashMap<String, String>();
         passwords.put("apollo", keystoreSecret);
         String defaultKey = "apollo";
-        return new JKSKeyManager(storeFile, keystoreSecret, passwords, defaultKey);
+        ReloadableKeyManager keyManager = new ReloadableKeyManager(storeFile, keystoreSecret, passwords, defaultKey);
+        keyManager.startWatching(backgroundTaskScheduler(), keystoreCheckInterval);
+        return keyManager;
     }
 
     // Setup TLS Socket Factory
@@ -284,10 +509,11 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     public ExtendedMetadataDelegate ssoCircleExtendedMetadataProvider()
             throws MetadataProviderException {
         String idpSSOCircleMetadataURL = "https://idp.ssocircle.com/idp-meta.xml";
-        Timer backgroundTaskTimer = new Timer(true);
-        HTTPMetadataProvider httpMetadataProvider = new HTTPMetadataProvider(
-                backgroundTaskTimer, httpClient(), idpSSOCircleMetadataURL);
+        CachedHTTPMetadataProvider httpMetadataProvider = new CachedHTTPMetadataProvider(
+                backgroundTaskScheduler(), httpClient(), idpSSOCircleMetadataURL,
+                new File(metadataCacheDirectory, "idp-ssocircle.xml"));
         httpMetadataProvider.setParserPool(parserPool());
+        httpMetadataProvider.setBackgroundInitialization(backgroundMetadata);
         ExtendedMetadataDelegate extendedMetadataDelegate =
                 new ExtendedMetadataDelegate(httpMetadataProvider, extendedMetadata());
         extendedMetadataDelegate.setMetadataTrustCheck(true);
@@ -300,10 +526,11 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     public ExtendedMetadataDelegate vmwareIdmExtendedMetadataProvider()
             throws MetadataProviderException, MalformedURLException {
         String idpVMwareIdmMetadataURL = new URL(vmwareIdmUrl, "SAAS/API/1.0/GET/metadata/idp.xml").toString();
-        Timer backgroundTaskTimer = new Timer(true);
-        HTTPMetadataProvider httpMetadataProvider =
-                new HTTPMetadataProvider(backgroundTaskTimer, httpClient(), idpVMwareIdmMetadataURL);
+        CachedHTTPMetadataProvider httpMetadataProvider = new CachedHTTPMetadataProvider(
+                backgroundTaskScheduler(), httpClient(), idpVMwareIdmMetadataURL,
+                new File(metadataCacheDirectory, "idp-vmwareidm.xml"));
         httpMetadataProvider.setParserPool(parserPool());
+        httpMetadataProvider.setBackgroundInitialization(backgroundMetadata);
         ExtendedMetadataDelegate extendedMetadataDelegate =
                 new ExtendedMetadataDelegate(httpMetadataProvider, extendedMetadata());
         extendedMetadataDelegate.setMetadataTrustCheck(true);
@@ -311,15 +538,50 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         return extendedMetadataDelegate;
     }
 
+    // Aggregate metadata of a federation, streamed and indexed instead of parsed: its signature is required and
+    // must be trusted by a certificate of the keystore
+    private ExtendedMetadataDelegate federationExtendedMetadataProvider() {
+        StreamingHTTPMetadataProvider streamingMetadataProvider = new StreamingHTTPMetadataProvider(
+                backgroundTaskScheduler(), httpClient(), metadataAggregateUrl,
+                new File(metadataCacheDirectory, "federation.xml"));
+        streamingMetadataProvider.setParserPool(parserPool());
+        streamingMetadataProvider.setBackgroundInitialization(backgroundMetadata);
+        streamingMetadataProvider.setRetainedEntityIds(
+                StringUtils.commaDelimitedListToSet(metadataAggregateRetainedEntityIds.replace(" ", "")));
+        ExtendedMetadataDelegate extendedMetadataDelegate =
+                new ExtendedMetadataDelegate(streamingMetadataProvider, extendedMetadata());
+        extendedMetadataDelegate.setMetadataTrustCheck(true);
+        extendedMetadataDelegate.setMetadataRequireSignature(true);
+        return extendedMetadataDelegate;
+    }
+
     // IDP Metadata configuration - paths to metadata of IDPs in circle of trust
     // is here
     // Do no forget to call initalize method on providers
+    // The providers are reloaded as soon as the metadata of one of them changes, e.g. once loaded in the background
     @Bean
     @Qualifier("metadata")
-    public CachingMetadataManager metadata() throws MetadataProviderException, MalformedURLException {
+    public EventPublishingMetadataManager metadata() throws MetadataProviderException, MalformedURLException {
         List<MetadataProvider> providers = new ArrayList<MetadataProvider>();
         providers.add(vmwareIdmExtendedMetadataProvider());
-        return new CachingMetadataManager(providers);
+        if (StringUtils.hasText(metadataAggregateUrl)) {
+            providers.add(federationExtendedMetadataProvider());
+        }
+        EventPublishingMetadataManager metadataManager = new EventPublishingMetadataManager(providers);
+        metadataManager.setRefreshExecutor(backgroundTaskScheduler());
+        return metadataManager;
+    }
+
+    // Out of service on /health while the metadata of an IDP is loaded in the background
+    @Bean
+    public HealthIndicator metadataHealthIndicator() throws MetadataProviderException, MalformedURLException {
+        return new MetadataHealthIndicator(metadata());
+    }
+
+    // Searchable catalog of the IDPs, rebuilt when the metadata is refreshed
+    @Bean
+    public IdpCatalog idpCatalog() {
+        return new IdpCatalog();
     }
 
     // Filter automatically generates default SP metadata
@@ -330,14 +592,17 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         metadataGenerator.setExtendedMetadata(extendedMetadata());
         metadataGenerator.setIncludeDiscoveryExtension(false);
         metadataGenerator.setKeyManager(keyManager());
+        if (StringUtils.hasText(spEntityBaseUrl)) {
+            metadataGenerator.setEntityBaseURL(spEntityBaseUrl);
+        }
         return metadataGenerator;
     }
 
     // The filter is waiting for connections on URL suffixed with filterSuffix
-    // and presents SP metadata there
+    // and presents SP metadata there, marshalled once
     @Bean
     public MetadataDisplayFilter metadataDisplayFilter() {
-        return new MetadataDisplayFilter();
+        return new CachedMetadataDisplayFilter();
     }
 
     // Handler deciding where to redirect user after successful login
@@ -378,9 +643,10 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         return samlWebSSOProcessingFilter;
     }
 
+    // Generates the SP metadata at startup when its base URL is configured
     @Bean
     public MetadataGeneratorFilter metadataGeneratorFilter() {
-        return new MetadataGeneratorFilter(metadataGenerator());
+        return new EagerMetadataGeneratorFilter(metadataGenerator());
     }
 
     // Handler for successful logout
@@ -407,16 +673,16 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     @Bean
     public SAMLLogoutProcessingFilter samlLogoutProcessingFilter() {
         return new SAMLLogoutProcessingFilter(successLogoutHandler(),
-                logoutHandler());
+                logoutHandler(), securityContextRepository());
     }
 
     // Overrides default logout processing filter with the one processing SAML
     // messages
     @Bean
     public SAMLLogoutFilter samlLogoutFilter() {
-        return new SAMLLogoutFilter(successLogoutHandler(),
-                new LogoutHandler[]{logoutHandler()},
-                new LogoutHandler[]{logoutHandler()});
+        return new BackChannelLogoutFilter(successLogoutHandler(),
+                new LogoutHandler[]{logoutHandler(), securityContextRepository()},
+                new LogoutHandler[]{logoutHandler(), securityContextRepository()});
     }
 
     // Bindings
@@ -428,6 +694,7 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     }
 
     @Bean
+    @Lazy
     public HTTPArtifactBinding artifactBinding(ParserPool parserPool, VelocityEngine velocityEngine) {
         return new HTTPArtifactBinding(parserPool, velocityEngine, artifactResolutionProfile());
     }
@@ -437,40 +704,54 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         return new HTTPSOAP11Binding(parserPool());
     }
 
+    // The bindings of the processor parse the messages with a pool timing the parsing. It isn't a bean, as the pool
+    // is autowired by type
+    private ParserPool messageParserPool() {
+        return new TimedParserPool(parserPool(), samlStageTimers());
+    }
+
+    // The form posting the messages to the IDPs is rendered without invoking Velocity for each message
     @Bean
     public HTTPPostBinding httpPostBinding() {
-        return new HTTPPostBinding(parserPool(), velocityEngine());
+        return new HTTPPostBinding(messageParserPool(), new HTTPPostDecoder(messageParserPool()),
+                new PrecompiledHTTPPostEncoder(velocityEngine(), "/templates/saml2-post-binding.vm"));
     }
 
+    // The query strings are signed with a JCA signature kept by each thread
     @Bean
     public HTTPRedirectDeflateBinding httpRedirectDeflateBinding() {
-        return new HTTPRedirectDeflateBinding(parserPool());
+        return new HTTPRedirectDeflateBinding(new HTTPRedirectDeflateDecoder(messageParserPool()),
+                new PooledSignatureHTTPRedirectDeflateEncoder());
     }
 
     @Bean
     public HTTPSOAP11Binding httpSOAP11Binding() {
-        return new HTTPSOAP11Binding(parserPool());
+        return new HTTPSOAP11Binding(messageParserPool());
     }
 
     @Bean
+    @Lazy
     public HTTPPAOS11Binding httpPAOS11Binding() {
-        return new HTTPPAOS11Binding(parserPool());
+        return new HTTPPAOS11Binding(messageParserPool());
     }
 
-    // Processor
+    // Processor, timing the encoding and the decoding of the messages. The artifact and PAOS bindings are created on
+    // their first use when the startup is lazy
     @Bean
     public SAMLProcessorImpl processor() {
         Collection<SAMLBinding> bindings = new ArrayList<SAMLBinding>();
         bindings.add(httpRedirectDeflateBinding());
         bindings.add(httpPostBinding());
-        bindings.add(artifactBinding(parserPool(), velocityEngine()));
+        bindings.add(lazyStartup ? lazyProxy(SAMLBinding.class, "artifactBinding")
+                : artifactBinding(parserPool(), velocityEngine()));
         bindings.add(httpSOAP11Binding());
-        bindings.add(httpPAOS11Binding());
-        return new SAMLProcessorImpl(bindings);
+        bindings.add(lazyStartup ? lazyProxy(SAMLBinding.class, "httpPAOS11Binding") : httpPAOS11Binding());
+        return new TimedSAMLProcessor(bindings, samlStageTimers());
     }
 
     /**
-     * Define the security filter chain in order to support SSO Auth by using SAML 2.0
+     * Define the security filter chain in order to support SSO Auth by using SAML 2.0. The SAML filters are timed
+     * as stages named after them, under the IDP of each request.
      *
      * @return Filter chain proxy
      * @throws Exception
@@ -479,17 +760,17 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     public FilterChainProxy samlFilter() throws Exception {
         List<SecurityFilterChain> chains = new ArrayList<SecurityFilterChain>();
         chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/login/**"),
-                samlEntryPoint()));
+                new TimedFilter(samlEntryPoint(), "filter.login", samlStageTimers())));
         chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/logout/**"),
-                samlLogoutFilter()));
+                new TimedFilter(samlLogoutFilter(), "filter.logout", samlStageTimers())));
         chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/metadata/**"),
-                metadataDisplayFilter()));
+                new TimedFilter(metadataDisplayFilter(), "filter.metadata", samlStageTimers())));
         chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/SSO/**"),
-                samlWebSSOProcessingFilter()));
+                new TimedFilter(samlWebSSOProcessingFilter(), "filter.sso", samlStageTimers())));
         chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/SSOHoK/**"),
-                samlWebSSOHoKProcessingFilter()));
+                new TimedFilter(samlWebSSOHoKProcessingFilter(), "filter.sso-hok", samlStageTimers())));
         chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/SingleLogout/**"),
-                samlLogoutProcessingFilter()));
+                new TimedFilter(samlLogoutProcessingFilter(), "filter.single-logout", samlStageTimers())));
         chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/discovery/**"),
                 samlIDPDiscovery()));
         return new FilterChainProxy(chains);
@@ -515,6 +796,9 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
      */
     @Override
     protected void configure(HttpSecurity http) throws Exception {
+        http
+                .securityContext()
+                .securityContextRepository(securityContextRepository());
         http
                 .httpBasic()
                 .authenticationEntryPoint(samlEntryPoint());
@@ -528,10 +812,12 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
                 .authorizeRequests()
                 .antMatchers("/").permitAll()
                 .antMatchers("/error").permitAll()
+                .antMatchers("/health").permitAll()
                 .antMatchers("/saml/**").permitAll()
                 .anyRequest().authenticated();
         http
                 .logout()
+                .addLogoutHandler(securityContextRepository())
                 .logoutSuccessUrl("/");
     }
 
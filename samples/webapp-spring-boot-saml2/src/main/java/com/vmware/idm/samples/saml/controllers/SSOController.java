@@ -16,19 +16,20 @@
 
 package com.vmware.idm.samples.saml.controllers;
 
+import com.vmware.idm.samples.saml.metadata.IdpCatalog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.saml.metadata.MetadataManager;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 
 import javax.servlet.http.HttpServletRequest;
-import java.util.Set;
 
 @Controller
 @RequestMapping("/saml")
@@ -38,8 +39,13 @@ public class SSOController {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(SSOController.class);
 
+	// Number of IdPs per page of the selection
+	private static final int PAGE_SIZE = 20;
+
+	private static final int MAX_PAGE_SIZE = 100;
+
 	@Autowired
-	private MetadataManager metadata;
+	private IdpCatalog idpCatalog;
 
 	@RequestMapping(value = "/idpSelection", method = RequestMethod.GET)
 	public String idpSelection(HttpServletRequest request, Model model) {
@@ -48,10 +54,9 @@ public class SSOController {
 			return "redirect:/landing";
 		} else {
 			if (isForwarded(request)) {
-				Set<String> idps = metadata.getIDPEntityNames();
-				for (String idp : idps)
-					LOG.info("Configured Identity Provider for SSO: " + idp);
-				model.addAttribute("idps", idps);
+				// the page lists the first IdPs, the others are searched through '/idps'
+				model.addAttribute("idps", idpCatalog.search(null, 0, PAGE_SIZE).getIdps());
+				model.addAttribute("idpCount", idpCatalog.size());
 				return "saml/idpselection";
 			} else {
 				LOG.warn("Direct accesses to '/idpSelection' route are not allowed");
@@ -60,6 +65,17 @@ public class SSOController {
 		}
 	}
 
+	/*
+	 * Searches the IdPs by prefix of their entity ID, display name or domain hint.
+	 */
+	@RequestMapping(value = "/idps", method = RequestMethod.GET)
+	@ResponseBody
+	public IdpCatalog.Page idps(@RequestParam(value = "q", required = false) String query,
+			@RequestParam(value = "page", defaultValue = "0") int page,
+			@RequestParam(value = "size", defaultValue = "" + PAGE_SIZE) int size) {
+		return idpCatalog.search(query, Math.max(page, 0), Math.min(Math.max(size, 1), MAX_PAGE_SIZE));
+	}
+
 	/*
 	 * Checks if an HTTP request has been forwarded by a servlet.
 	 */
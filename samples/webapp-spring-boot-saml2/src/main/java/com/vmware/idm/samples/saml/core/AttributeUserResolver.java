@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.core;
+
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.saml.SAMLCredential;
+
+/**
+ * Resolver building the user from the SAML credential alone: the username is the NameID and the authorities are
+ * mapped from the attributes.
+ * <p>
+ * In a real scenario, the user would rather be located in a directory or a database, based on the information
+ * present in the credential.
+ */
+public class AttributeUserResolver implements UserResolver {
+
+    private final AuthorityMapper authorityMapper;
+
+    public AttributeUserResolver(AuthorityMapper authorityMapper) {
+        this.authorityMapper = authorityMapper;
+    }
+
+    @Override
+    public UserDetails resolveUser(SAMLCredential credential) {
+        String userID = credential.getNameID().getValue();
+        return new User(userID, "<abc123>", true, true, true, true, authorityMapper.map(credential));
+    }
+}
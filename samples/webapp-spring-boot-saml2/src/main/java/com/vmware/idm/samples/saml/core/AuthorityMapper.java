@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.core;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.saml.SAMLCredential;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Maps the attributes of a SAML credential to granted authorities.
+ * <p>
+ * The rules are compiled once, when the mapper is created: each one grants an authority when a value of an
+ * attribute matches a regular expression, e.g. {@code ROLE_ADMIN -> memberOf=^admins$}.
+ */
+public class AuthorityMapper {
+
+    private final List<GrantedAuthority> defaultAuthorities = new ArrayList<>();
+    private final List<Rule> rules = new ArrayList<>();
+
+    /**
+     * @param defaultAuthorities authorities granted to all the users
+     * @param rules              rules indexed by the authority they grant, as {@code attributeName=regularExpression}
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    public AuthorityMapper(Collection<String> defaultAuthorities, Map<String, String> rules) {
+        for (String authority : defaultAuthorities) {
+            this.defaultAuthorities.add(new SimpleGrantedAuthority(authority));
+        }
+        for (Map.Entry<String, String> rule : rules.entrySet()) {
+            this.rules.add(compile(rule.getKey(), rule.getValue()));
+        }
+    }
+
+    private static Rule compile(String authority, String rule) {
+        int separator = rule.indexOf('=');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Rule of " + authority + " is not attributeName=regularExpression: "
+                    + rule);
+        }
+        try {
+            return new Rule(new SimpleGrantedAuthority(authority), rule.substring(0, separator).trim(),
+                    Pattern.compile(rule.substring(separator + 1).trim()));
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid regular expression in the rule of " + authority, e);
+        }
+    }
+
+    /**
+     * @return the default authorities followed by the ones granted by the rules, without duplicates
+     */
+    public Set<GrantedAuthority> map(SAMLCredential credential) {
+        Set<GrantedAuthority> authorities = new LinkedHashSet<>(defaultAuthorities);
+        for (Rule rule : rules) {
+            if (rule.matches(credential)) {
+                authorities.add(rule.authority);
+            }
+        }
+        return authorities;
+    }
+
+    private static final class Rule {
+
+        private final GrantedAuthority authority;
+        private final String attributeName;
+        private final Pattern pattern;
+
+        private Rule(GrantedAuthority authority, String attributeName, Pattern pattern) {
+            this.authority = authority;
+            this.attributeName = attributeName;
+            this.pattern = pattern;
+        }
+
+        private boolean matches(SAMLCredential credential) {
+            String[] values = credential.getAttributeAsStringArray(attributeName);
+            if (values != null) {
+                for (String value : values) {
+                    if (value != null && pattern.matcher(value).find()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
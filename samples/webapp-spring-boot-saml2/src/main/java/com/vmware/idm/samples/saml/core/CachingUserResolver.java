@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.saml.SAMLCredential;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-through cache of the users located in a user store by another resolver, keyed by IdP and NameID.
+ * <p>
+ * A cached account is used until its time to live expires, so that repeated logins don't hit the user store again.
+ * Only the account is cached: the authorities mapped from the attributes are added at each login, from the
+ * assertion just received, so that a user removed from a group at the IdP loses the matching authorities on the
+ * next login. The delegate must therefore only return the authorities granted by the user store. The cache keeps
+ * its own copy of the accounts: Spring Security erases the password of the principal once authenticated.
+ */
+public class CachingUserResolver implements UserResolver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingUserResolver.class);
+
+    private final UserResolver delegate;
+    private final AuthorityMapper authorityMapper;
+    private final long timeToLive;
+    private final int maxSize;
+    private final Map<String, CachedUser> users = new ConcurrentHashMap<>();
+
+    /**
+     * @param delegate        resolver locating in the user store the accounts missing from the cache
+     * @param authorityMapper mapper of the attributes of each assertion to authorities
+     * @param timeToLive      time in ms during which an account is cached
+     * @param maxSize         maximum number of accounts cached, the oldest one being evicted to make room for a new
+     *                        one, 0 to cache none
+     */
+    public CachingUserResolver(UserResolver delegate, AuthorityMapper authorityMapper, long timeToLive,
+                               int maxSize) {
+        this.delegate = delegate;
+        this.authorityMapper = authorityMapper;
+        this.timeToLive = timeToLive;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public UserDetails resolveUser(SAMLCredential credential) {
+        String key = credential.getRemoteEntityID() + '!' + credential.getNameID().getValue();
+        long now = System.currentTimeMillis();
+        CachedUser cachedUser = users.get(key);
+        UserDetails account;
+        if (cachedUser != null && cachedUser.expiration > now) {
+            LOG.debug("User {} found in cache", key);
+            account = cachedUser.user;
+        } else {
+            account = delegate.resolveUser(credential);
+            if (maxSize > 0) {
+                if (users.size() >= maxSize) {
+                    evictExpired(now);
+                    if (users.size() >= maxSize) {
+                        evictOldest();
+                    }
+                }
+                users.put(key, new CachedUser(copyOf(account, account.getAuthorities()), now + timeToLive));
+            }
+        }
+        Set<GrantedAuthority> authorities = new HashSet<>(account.getAuthorities());
+        authorities.addAll(authorityMapper.map(credential));
+        return copyOf(account, authorities);
+    }
+
+    private void evictExpired(long now) {
+        Iterator<CachedUser> cachedUsers = users.values().iterator();
+        while (cachedUsers.hasNext()) {
+            if (cachedUsers.next().expiration <= now) {
+                cachedUsers.remove();
+            }
+        }
+    }
+
+    // the accounts share the same time to live, the one expiring first is the oldest
+    private void evictOldest() {
+        Map.Entry<String, CachedUser> oldest = null;
+        for (Map.Entry<String, CachedUser> entry : users.entrySet()) {
+            if (oldest == null || entry.getValue().expiration < oldest.getValue().expiration) {
+                oldest = entry;
+            }
+        }
+        if (oldest != null) {
+            users.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * Forget all the cached users, e.g. after a change in the user store.
+     */
+    public void clear() {
+        users.clear();
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    private static User copyOf(UserDetails user, Collection<? extends GrantedAuthority> authorities) {
+        return new User(user.getUsername(), user.getPassword(), user.isEnabled(), user.isAccountNonExpired(),
+                user.isCredentialsNonExpired(), user.isAccountNonLocked(), authorities);
+    }
+
+    private static final class CachedUser {
+
+        private final User user;
+        private final long expiration;
+
+        private CachedUser(User user, long expiration) {
+            this.user = user;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -18,40 +18,37 @@ package com.vmware.idm.samples.saml.core;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
-import org.springframework.security.core.userdetails.User;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.saml.SAMLCredential;
 import org.springframework.security.saml.userdetails.SAMLUserDetailsService;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
-import java.util.List;
-
 @Service
 public class SAMLUserDetailsServiceImpl implements SAMLUserDetailsService {
 	
 	// Logger
 	private static final Logger LOG = LoggerFactory.getLogger(SAMLUserDetailsServiceImpl.class);
 	
+	private final UserResolver userResolver;
+	
+	@Autowired
+	public SAMLUserDetailsServiceImpl(UserResolver userResolver) {
+		this.userResolver = userResolver;
+	}
+	
 	public Object loadUserBySAML(SAMLCredential credential)
 			throws UsernameNotFoundException {
 		
 		// The method is supposed to identify local account of user referenced by
 		// data in the SAML assertion and return UserDetails object describing the user.
+		// This is delegated to the UserResolver, which caches the accounts located
+		// in the user store, see UserResolverConfig.
 		
 		String userID = credential.getNameID().getValue();
 		
 		LOG.info(userID + " is logged in");
-		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
-		GrantedAuthority authority = new SimpleGrantedAuthority("ROLE_USER");
-		authorities.add(authority);
-
-		// In a real scenario, this implementation has to locate user in a arbitrary
-		// dataStore based on information present in the SAMLCredential and
-		// returns such a date in a form of application specific UserDetails object.
-		return new User(userID, "<abc123>", true, true, true, true, authorities);
+		return userResolver.resolveUser(credential);
 	}
 	
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.core;
+
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.saml.SAMLCredential;
+
+/**
+ * Locates the local account of the user authenticated by an IdP, e.g. in a directory or a database.
+ */
+public interface UserResolver {
+
+    /**
+     * @param credential the SAML credential of the user, i.e. its NameID and attributes
+     * @return the local account of the user
+     * @throws UsernameNotFoundException if the user has no local account
+     */
+    UserDetails resolveUser(SAMLCredential credential) throws UsernameNotFoundException;
+}
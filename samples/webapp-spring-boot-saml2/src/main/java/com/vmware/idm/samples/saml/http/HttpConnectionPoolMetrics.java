@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.http;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Exposes the state of an {@link InstrumentedHttpConnectionManager} on the /metrics endpoint, under the given prefix.
+ */
+public class HttpConnectionPoolMetrics implements PublicMetrics {
+
+    private final String prefix;
+    private final InstrumentedHttpConnectionManager connectionManager;
+
+    public HttpConnectionPoolMetrics(String prefix, InstrumentedHttpConnectionManager connectionManager) {
+        this.prefix = prefix;
+        this.connectionManager = connectionManager;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>(prefix + ".connections", connectionManager.getConnectionsInPool()));
+        metrics.add(new Metric<>(prefix + ".connections.in-use", connectionManager.getConnectionsInUseCount()));
+        metrics.add(new Metric<>(prefix + ".connections.max",
+                connectionManager.getParams().getMaxTotalConnections()));
+        metrics.add(new Metric<>(prefix + ".acquisitions", connectionManager.getAcquisitions()));
+        metrics.add(new Metric<>(prefix + ".acquisitions.timeouts", connectionManager.getAcquisitionTimeouts()));
+        metrics.add(new Metric<>(prefix + ".acquisitions.time", connectionManager.getAcquisitionTime()));
+        return metrics;
+    }
+}
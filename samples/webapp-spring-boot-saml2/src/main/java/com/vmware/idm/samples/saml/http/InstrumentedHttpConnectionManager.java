@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.http;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection pool of the HTTP client counting the connections acquired and in use, the time spent waiting for them
+ * and the requests timing out because the pool was exhausted, and closing the connections idle for too long.
+ * <p>
+ * The connections in use are counted here: {@code getConnectionsInUse()} of the parent class returns all the
+ * connections of the pool.
+ */
+public class InstrumentedHttpConnectionManager extends MultiThreadedHttpConnectionManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentedHttpConnectionManager.class);
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder acquisitionTimeouts = new LongAdder();
+    private final LongAdder acquisitionNanos = new LongAdder();
+    private final AtomicInteger connectionsInUse = new AtomicInteger();
+    private ScheduledFuture<?> idleConnectionEviction;
+
+    @Override
+    public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+            throws ConnectionPoolTimeoutException {
+        long start = System.nanoTime();
+        try {
+            HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+            acquisitions.increment();
+            connectionsInUse.incrementAndGet();
+            return connection;
+        } catch (ConnectionPoolTimeoutException e) {
+            acquisitionTimeouts.increment();
+            LOG.warn("No connection to {} available after {} ms, {} of {} connections in use",
+                    hostConfiguration.getHost(), timeout, connectionsInUse.get(), getConnectionsInPool());
+            throw e;
+        } finally {
+            acquisitionNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void releaseConnection(HttpConnection conn) {
+        super.releaseConnection(conn);
+        connectionsInUse.decrementAndGet();
+    }
+
+    /**
+     * Close periodically the connections idle for longer than the given timeout, before the server does.
+     *
+     * @param scheduler   scheduler running the evictions
+     * @param idleTimeout time in ms after which an idle connection is closed
+     */
+    public synchronized void evictIdleConnections(ScheduledExecutorService scheduler, long idleTimeout) {
+        if (idleConnectionEviction != null) {
+            idleConnectionEviction.cancel(false);
+        }
+        long period = Math.max(1000, idleTimeout / 2);
+        idleConnectionEviction = scheduler.scheduleWithFixedDelay(() -> {
+            closeIdleConnections(idleTimeout);
+            deleteClosedConnections();
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (idleConnectionEviction != null) {
+            idleConnectionEviction.cancel(false);
+            idleConnectionEviction = null;
+        }
+        super.shutdown();
+    }
+
+    /**
+     * @return number of connections acquired and not released yet
+     */
+    public int getConnectionsInUseCount() {
+        return connectionsInUse.get();
+    }
+
+    /**
+     * @return number of connections acquired from the pool
+     */
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * @return number of requests which did not get any connection in time
+     */
+    public long getAcquisitionTimeouts() {
+        return acquisitionTimeouts.sum();
+    }
+
+    /**
+     * @return total time in ms spent waiting for a connection of the pool
+     */
+    public long getAcquisitionTime() {
+        return TimeUnit.NANOSECONDS.toMillis(acquisitionNanos.sum());
+    }
+}
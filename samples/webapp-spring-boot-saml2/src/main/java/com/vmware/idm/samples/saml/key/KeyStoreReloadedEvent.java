@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.key;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Event published once a {@link ReloadableKeyManager} has swapped its keys for the ones of the modified keystore.
+ */
+public class KeyStoreReloadedEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    public KeyStoreReloadedEvent(ReloadableKeyManager keyManager) {
+        super(keyManager);
+    }
+
+    public ReloadableKeyManager getKeyManager() {
+        return (ReloadableKeyManager) getSource();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.key;
+
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.core.io.Resource;
+import org.springframework.security.saml.key.JKSKeyManager;
+import org.springframework.security.saml.key.KeyManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key manager reading a JKS keystore again when its file changes, so that the keys can be rolled over without a
+ * restart.
+ * <p>
+ * The keys of a keystore are swapped at once for the ones of the modified keystore, and a
+ * {@link KeyStoreReloadedEvent} is published. A keystore which can't be loaded, or whose keys can't be recovered
+ * with the passwords, is ignored until its file changes again. The credentials are recovered from the keystore once,
+ * rather than at each call, and the same instances are returned until the next reload.
+ */
+public class ReloadableKeyManager implements KeyManager, ApplicationEventPublisherAware {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReloadableKeyManager.class);
+
+    private final Resource storeFile;
+    private final String storePass;
+    private final Map<String, String> passwords;
+    private final String defaultKey;
+    private volatile Keys keys;
+    private ApplicationEventPublisher eventPublisher;
+    private long lastModified;
+    private long length;
+    private ScheduledFuture<?> watcher;
+
+    /**
+     * @param storeFile  the keystore, loaded at once
+     * @param storePass  password of the keystore
+     * @param passwords  passwords of the keys by alias
+     * @param defaultKey alias of the default key
+     */
+    public ReloadableKeyManager(Resource storeFile, String storePass, Map<String, String> passwords,
+                                String defaultKey) {
+        this.storeFile = storeFile;
+        this.storePass = storePass;
+        this.passwords = passwords;
+        this.defaultKey = defaultKey;
+        stat();
+        keys = load();
+    }
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Check periodically whether the file of the keystore changed. A keystore in a jar can't change and isn't
+     * checked.
+     *
+     * @param scheduler     scheduler running the checks
+     * @param checkInterval time in ms between two checks
+     */
+    public synchronized void startWatching(ScheduledExecutorService scheduler, long checkInterval) {
+        stopWatching();
+        if (file() == null) {
+            LOG.info("The keystore {} isn't a file and won't be reloaded", storeFile);
+            return;
+        }
+        watcher = scheduler.scheduleWithFixedDelay(this::checkForChanges, checkInterval, checkInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.cancel(false);
+            watcher = null;
+        }
+    }
+
+    /**
+     * Reload the keystore if its file changed since it was last read.
+     *
+     * @return whether the keys were swapped
+     */
+    public synchronized boolean checkForChanges() {
+        long previousLastModified = lastModified;
+        long previousLength = length;
+        stat();
+        if (lastModified == previousLastModified && length == previousLength) {
+            return false;
+        }
+        Keys reloadedKeys;
+        try {
+            reloadedKeys = load();
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to reload the keystore {}, keeping the current keys", storeFile, e);
+            return false;
+        }
+        keys = reloadedKeys;
+        LOG.info("Keystore {} reloaded with the keys {}", storeFile, reloadedKeys.keyManager.getAvailableCredentials());
+        if (eventPublisher != null) {
+            eventPublisher.publishEvent(new KeyStoreReloadedEvent(this));
+        }
+        return true;
+    }
+
+    private Keys load() {
+        Keys loadedKeys = new Keys(new JKSKeyManager(storeFile, storePass, passwords, defaultKey));
+        // recover the private keys now, so that a wrong password doesn't replace the current keys
+        for (String alias : passwords.keySet()) {
+            if (loadedKeys.keyManager.getAvailableCredentials().contains(alias) && loadedKeys.get(alias) == null) {
+                throw new IllegalStateException("Unable to recover the key " + alias);
+            }
+        }
+        return loadedKeys;
+    }
+
+    private void stat() {
+        File file = file();
+        if (file != null) {
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+    }
+
+    private File file() {
+        try {
+            File file = storeFile.getFile();
+            return file.isFile() ? file : null;
+        } catch (IOException e) {
+            // e.g. in a jar
+            return null;
+        }
+    }
+
+    @Override
+    public Credential getCredential(String keyName) {
+        return keys.get(keyName != null ? keyName : defaultKey);
+    }
+
+    @Override
+    public Credential getDefaultCredential() {
+        return getCredential(null);
+    }
+
+    @Override
+    public String getDefaultCredentialName() {
+        return defaultKey;
+    }
+
+    @Override
+    public Set<String> getAvailableCredentials() {
+        return keys.keyManager.getAvailableCredentials();
+    }
+
+    @Override
+    public X509Certificate getCertificate(String alias) {
+        return keys.keyManager.getCertificate(alias);
+    }
+
+    @Override
+    public Iterable<Credential> resolve(CriteriaSet criteriaSet) throws SecurityException {
+        return keys.keyManager.resolve(criteriaSet);
+    }
+
+    @Override
+    public Credential resolveSingle(CriteriaSet criteriaSet) throws SecurityException {
+        return keys.keyManager.resolveSingle(criteriaSet);
+    }
+
+    private static final class Keys {
+
+        private final JKSKeyManager keyManager;
+        private final ConcurrentMap<String, Credential> credentials = new ConcurrentHashMap<>();
+
+        private Keys(JKSKeyManager keyManager) {
+            this.keyManager = keyManager;
+        }
+
+        private Credential get(String alias) {
+            Credential credential = credentials.get(alias);
+            if (credential == null) {
+                credential = keyManager.getCredential(alias);
+                if (credential != null) {
+                    Credential concurrentCredential = credentials.putIfAbsent(alias, credential);
+                    if (concurrentCredential != null) {
+                        credential = concurrentCredential;
+                    }
+                }
+            }
+            return credential;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.joda.time.DateTime;
+import org.opensaml.saml2.common.SAML2Helper;
+import org.opensaml.saml2.metadata.provider.AbstractObservableMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.XMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StreamUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Metadata provider fetching the metadata of an IdP over HTTP and keeping the last good copy in a local file.
+ * <p>
+ * When the file exists, the provider starts with its content without waiting for the network, and refreshes it in
+ * the background. Refreshes run on a scheduler shared by all the providers, use conditional GETs (ETag and
+ * Last-Modified) and only parse the metadata again when its content changed. A failed refresh keeps the current
+ * metadata and is retried after {@link #setRetryDelay(long) the retry delay}.
+ * <p>
+ * The metadata is downloaded to a temporary file, then loaded by {@link #loadMetadata(File)}: subclasses can read it
+ * without holding the whole document in memory.
+ * <p>
+ * With {@link #setBackgroundInitialization(boolean) a background initialization}, even the cached metadata is parsed
+ * on the scheduler: the provider has no metadata until then, and {@link #isLoading()} tells when it is available.
+ * <p>
+ * The cached metadata is trusted like the downloaded one, so its directory is created readable by the owner only,
+ * and a cache file or directory owned by another user, or writable by other users, is ignored.
+ */
+public class CachedHTTPMetadataProvider extends AbstractObservableMetadataProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachedHTTPMetadataProvider.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final HttpClient httpClient;
+    private final String metadataURL;
+    private final File cacheFile;
+
+    private long minRefreshDelay = TimeUnit.MINUTES.toMillis(5);
+    private long maxRefreshDelay = TimeUnit.HOURS.toMillis(4);
+    private float refreshDelayFactor = 0.75f;
+    private long retryDelay = TimeUnit.MINUTES.toMillis(1);
+    private boolean backgroundInitialization;
+
+    private volatile XMLObject cachedMetadata;
+    private byte[] cachedMetadataHash;
+    private String cachedMetadataETag;
+    private String cachedMetadataLastModified;
+    private ScheduledFuture<?> nextRefresh;
+    private volatile boolean loading;
+
+    // Serializes the refreshes, while the monitor is only held to replace the metadata, not during the download
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    /**
+     * @param scheduler   scheduler running the refreshes of all the providers
+     * @param httpClient  client used to fetch the metadata
+     * @param metadataURL URL of the metadata
+     * @param cacheFile   file keeping the last good metadata, created if needed
+     */
+    public CachedHTTPMetadataProvider(ScheduledExecutorService scheduler, HttpClient httpClient, String metadataURL,
+                                      File cacheFile) {
+        this.scheduler = scheduler;
+        this.httpClient = httpClient;
+        this.metadataURL = metadataURL;
+        this.cacheFile = cacheFile;
+        // Without any cached metadata, keep on trying in the background rather than preventing the startup
+        setFailFastInitialization(false);
+    }
+
+    @Override
+    protected XMLObject doGetMetadata() throws MetadataProviderException {
+        return cachedMetadata;
+    }
+
+    @Override
+    protected void doInitialization() throws MetadataProviderException {
+        if (!backgroundInitialization) {
+            loadInitialMetadata();
+            return;
+        }
+        loading = true;
+        scheduler.execute(() -> {
+            try {
+                loadInitialMetadata();
+            } catch (MetadataProviderException e) {
+                LOG.error("Unable to load the metadata of {}, retrying in the background", metadataURL, e);
+            } finally {
+                loading = false;
+            }
+        });
+    }
+
+    private void loadInitialMetadata() throws MetadataProviderException {
+        if (!loadCachedMetadata()) {
+            refresh();
+        }
+    }
+
+    private synchronized boolean loadCachedMetadata() {
+        if (!cacheFile.isFile() || !isTrusted(cacheFile.getAbsoluteFile().getParentFile().toPath())
+                || !isTrusted(cacheFile.toPath())) {
+            return false;
+        }
+        try {
+            processNewMetadata(cacheFile);
+            LOG.info("Metadata of {} loaded from {}", metadataURL, cacheFile);
+            schedule(0);
+            return true;
+        } catch (MetadataProviderException e) {
+            LOG.warn("Ignoring the cached metadata {} of {}", cacheFile, metadataURL, e);
+            return false;
+        }
+    }
+
+    /**
+     * Fetch the metadata if it changed since the last refresh, and schedule the next refresh.
+     */
+    public void refresh() throws MetadataProviderException {
+        refreshLock.lock();
+        try {
+            long delay = retryDelay;
+            File metadataFile = null;
+            try {
+                metadataFile = fetchMetadata();
+                updateMetadata(metadataFile);
+                delay = computeNextRefreshDelay();
+            } catch (MetadataProviderException e) {
+                if (doGetMetadata() != null) {
+                    LOG.warn("Unable to refresh the metadata of {}, keeping the current one: {}", metadataURL,
+                            e.getMessage());
+                }
+                throw e;
+            } finally {
+                deleteQuietly(metadataFile);
+                schedule(delay);
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private synchronized void updateMetadata(File metadataFile) throws MetadataProviderException {
+        if (metadataFile == null) {
+            LOG.debug("Metadata of {} not modified", metadataURL);
+        } else if (Arrays.equals(hash(metadataFile), cachedMetadataHash)) {
+            LOG.debug("Metadata of {} unchanged", metadataURL);
+        } else {
+            processNewMetadata(metadataFile);
+            writeCacheFile(metadataFile);
+            LOG.info("New metadata loaded from {}", metadataURL);
+        }
+    }
+
+    private synchronized void schedule(long delay) {
+        if (nextRefresh != null) {
+            nextRefresh.cancel(false);
+        }
+        nextRefresh = scheduler.schedule(() -> {
+            try {
+                refresh();
+            } catch (MetadataProviderException e) {
+                LOG.debug("Refresh of the metadata of {} failed", metadataURL, e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        LOG.debug("Next refresh of the metadata of {} in {} ms", metadataURL, delay);
+    }
+
+    /**
+     * @return a temporary file with the metadata, or null if it was not modified since the last fetch
+     */
+    protected File fetchMetadata() throws MetadataProviderException {
+        GetMethod getMethod = new GetMethod(metadataURL);
+        getMethod.setRequestHeader("Accept-Encoding", "gzip,deflate");
+        if (cachedMetadataETag != null) {
+            getMethod.setRequestHeader("If-None-Match", cachedMetadataETag);
+        }
+        if (cachedMetadataLastModified != null) {
+            getMethod.setRequestHeader("If-Modified-Since", cachedMetadataLastModified);
+        }
+        try {
+            int status = httpClient.executeMethod(getMethod);
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+                return null;
+            }
+            if (status != HttpStatus.SC_OK) {
+                throw new MetadataProviderException("Status " + status + " returned by " + metadataURL);
+            }
+            File metadataFile = readBody(getMethod);
+            Header eTag = getMethod.getResponseHeader("ETag");
+            Header lastModified = getMethod.getResponseHeader("Last-Modified");
+            cachedMetadataETag = eTag != null ? eTag.getValue() : null;
+            cachedMetadataLastModified = lastModified != null ? lastModified.getValue() : null;
+            return metadataFile;
+        } catch (IOException e) {
+            throw new MetadataProviderException("Error retrieving metadata from " + metadataURL, e);
+        } finally {
+            getMethod.releaseConnection();
+        }
+    }
+
+    private File readBody(GetMethod getMethod) throws IOException {
+        InputStream body = getMethod.getResponseBodyAsStream();
+        Header contentEncoding = getMethod.getResponseHeader("Content-Encoding");
+        if (contentEncoding != null && "gzip".equalsIgnoreCase(contentEncoding.getValue())) {
+            body = new GZIPInputStream(body);
+        } else if (contentEncoding != null && "deflate".equalsIgnoreCase(contentEncoding.getValue())) {
+            body = new InflaterInputStream(body);
+        }
+        Path directory = cacheFile.getAbsoluteFile().getParentFile().toPath();
+        createPrivateDirectories(directory);
+        Path metadataFile = Files.createTempFile(directory, cacheFile.getName(), ".tmp");
+        try (InputStream in = body; OutputStream out = Files.newOutputStream(metadataFile)) {
+            StreamUtils.copy(in, out);
+        } catch (IOException e) {
+            Files.deleteIfExists(metadataFile);
+            throw e;
+        }
+        return metadataFile.toFile();
+    }
+
+    private void processNewMetadata(File metadataFile) throws MetadataProviderException {
+        loadMetadata(metadataFile);
+        cachedMetadataHash = hash(metadataFile);
+        emitChangeEvent();
+    }
+
+    /**
+     * Parse and filter the new metadata, and make it the current one.
+     *
+     * @param metadataFile file with the new metadata, which may be moved or deleted once loaded
+     * @throws MetadataProviderException if the metadata is invalid, in which case the current one is kept
+     */
+    protected void loadMetadata(File metadataFile) throws MetadataProviderException {
+        XMLObject metadata;
+        try {
+            metadata = unmarshallMetadata(new FileInputStream(metadataFile));
+            filterMetadata(metadata);
+        } catch (Exception e) {
+            throw new MetadataProviderException("Invalid metadata from " + metadataURL, e);
+        }
+        if (!isValid(metadata)) {
+            throw new MetadataProviderException("Metadata from " + metadataURL + " already expired");
+        }
+        releaseMetadataDOM(metadata);
+        cachedMetadata = metadata;
+    }
+
+    /**
+     * Replace the cache file atomically by the downloaded file so that a crash never leaves a truncated copy.
+     */
+    private void writeCacheFile(File metadataFile) {
+        try {
+            Files.move(metadataFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Unable to cache the metadata of {} in {}", metadataURL, cacheFile, e);
+        }
+    }
+
+    private static void createPrivateDirectories(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            return;
+        }
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(directory,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(directory);
+        }
+    }
+
+    /**
+     * @return whether the file or directory is owned by the user running the application, and not writable by
+     * other users
+     */
+    private boolean isTrusted(Path path) {
+        try {
+            UserPrincipal owner = Files.getOwner(path);
+            UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!owner.equals(user)) {
+                LOG.warn("Ignoring the cached metadata of {}: {} is owned by {}", metadataURL, path, owner);
+                return false;
+            }
+            if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+                if (permissions.contains(PosixFilePermission.GROUP_WRITE)
+                        || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                    LOG.warn("Ignoring the cached metadata of {}: {} is writable by other users", metadataURL, path);
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Ignoring the cached metadata of {}: unable to check the owner of {}", metadataURL, path, e);
+            return false;
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                LOG.debug("Unable to delete {}", file, e);
+            }
+        }
+    }
+
+    private long computeNextRefreshDelay() {
+        DateTime now = new DateTime();
+        DateTime expiration = getEarliestExpiration(now.plus(maxRefreshDelay), now);
+        long delay = (long) ((expiration.getMillis() - now.getMillis()) * refreshDelayFactor);
+        return Math.max(minRefreshDelay, delay);
+    }
+
+    /**
+     * @return the earliest expiration of the current metadata, or the default one if it expires later
+     */
+    protected DateTime getEarliestExpiration(DateTime defaultExpiration, DateTime now) {
+        return SAML2Helper.getEarliestExpiration(cachedMetadata, defaultExpiration, now);
+    }
+
+    private static byte[] hash(File metadataFile) throws MetadataProviderException {
+        try (InputStream in = new FileInputStream(metadataFile)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+            for (int count = in.read(buffer); count != -1; count = in.read(buffer)) {
+                digest.update(buffer, 0, count);
+            }
+            return digest.digest();
+        } catch (IOException e) {
+            throw new MetadataProviderException("Unable to read the metadata in " + metadataFile, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (nextRefresh != null) {
+            nextRefresh.cancel(false);
+        }
+        cachedMetadata = null;
+        super.destroy();
+    }
+
+    /**
+     * @return whether the metadata is still being loaded in the background after the initialization
+     */
+    public boolean isLoading() {
+        return loading;
+    }
+
+    public String getMetadataURL() {
+        return metadataURL;
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * @param minRefreshDelay minimum delay in ms between two refreshes
+     */
+    public void setMinRefreshDelay(long minRefreshDelay) {
+        this.minRefreshDelay = minRefreshDelay;
+    }
+
+    /**
+     * @param maxRefreshDelay maximum delay in ms between two refreshes, when the metadata does not expire earlier
+     */
+    public void setMaxRefreshDelay(long maxRefreshDelay) {
+        this.maxRefreshDelay = maxRefreshDelay;
+    }
+
+    /**
+     * @param refreshDelayFactor fraction of the metadata validity after which it is refreshed
+     */
+    public void setRefreshDelayFactor(float refreshDelayFactor) {
+        this.refreshDelayFactor = refreshDelayFactor;
+    }
+
+    /**
+     * @param retryDelay delay in ms before retrying a failed refresh
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * @param backgroundInitialization whether the initialization returns at once, the metadata being loaded on the
+     *                                 scheduler
+     */
+    public void setBackgroundInitialization(boolean backgroundInitialization) {
+        this.backgroundInitialization = backgroundInitialization;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.io.MarshallingException;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.MetadataDisplayFilter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Metadata display filter serving the metadata of the hosted SP from bytes marshalled, and signed when configured,
+ * only once.
+ * <p>
+ * The bytes are marshalled again when the entity descriptor, the signature settings of its extended metadata or the
+ * certificate of the signing key change. They are compressed with gzip when the client accepts it, and served with a
+ * strong ETag of their own encoding, answering 304 to a matching If-None-Match. The metadata of the other entities,
+ * reached through an alias, is still marshalled for each request.
+ */
+public class CachedMetadataDisplayFilter extends MetadataDisplayFilter {
+
+    private volatile CachedMetadata cachedMetadata;
+
+    @Override
+    protected void processMetadataDisplay(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        String entityId = manager.getHostedSPName();
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (entityId == null || !(path.equals(filterProcessesUrl) || path.equals(filterProcessesUrl + "/"))) {
+            super.processMetadataDisplay(request, response);
+            return;
+        }
+        CachedMetadata metadata = getMetadata(entityId);
+        boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+        String eTag = gzip ? metadata.gzipETag : metadata.eTag;
+        response.setHeader("ETag", eTag);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (eTag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType("application/samlmetadata+xml");
+        response.setCharacterEncoding("UTF-8");
+        response.addHeader("Content-Disposition", "attachment; filename=\"spring_saml_metadata.xml\"");
+        byte[] body = metadata.bytes;
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+            body = metadata.gzippedBytes;
+        }
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * @return the metadata of the given entity, marshalled again only if it changed since the last call
+     */
+    public CachedMetadata getMetadata(String entityId) throws ServletException {
+        try {
+            EntityDescriptor descriptor = manager.getEntityDescriptor(entityId);
+            if (descriptor == null) {
+                throw new ServletException("Metadata entity with ID " + entityId + " wasn't found");
+            }
+            // the manager returns a copy of the extended metadata, compare the settings used for the signature
+            ExtendedMetadata extendedMetadata = manager.getExtendedMetadata(entityId);
+            String signingConfiguration = null;
+            X509Certificate signingCertificate = null;
+            if (extendedMetadata.isLocal() && extendedMetadata.isSignMetadata()) {
+                String signingKey = extendedMetadata.getSigningKey() != null ? extendedMetadata.getSigningKey()
+                        : keyManager.getDefaultCredentialName();
+                signingConfiguration = signingKey + ' ' + extendedMetadata.getSigningAlgorithm() + ' '
+                        + extendedMetadata.getKeyInfoGeneratorName();
+                signingCertificate = keyManager.getCertificate(signingKey);
+            }
+            CachedMetadata metadata = cachedMetadata;
+            if (metadata == null || !metadata.isFor(descriptor, signingConfiguration, signingCertificate)) {
+                synchronized (this) {
+                    metadata = cachedMetadata;
+                    if (metadata == null || !metadata.isFor(descriptor, signingConfiguration, signingCertificate)) {
+                        log.info("Marshalling the metadata of {}", entityId);
+                        byte[] bytes = getMetadataAsString(descriptor).getBytes(StandardCharsets.UTF_8);
+                        metadata = new CachedMetadata(descriptor, signingConfiguration, signingCertificate, bytes);
+                        cachedMetadata = metadata;
+                    }
+                }
+            }
+            return metadata;
+        } catch (MarshallingException e) {
+            log.error("Error marshalling entity descriptor", e);
+            throw new ServletException(e);
+        } catch (MetadataProviderException e) {
+            log.error("Error retrieving metadata", e);
+            throw new ServletException("Error retrieving metadata", e);
+        }
+    }
+
+    /**
+     * @return whether the given Accept-Encoding header gives gzip, or the wildcard when gzip is not listed, a
+     * non-zero q-value
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            boolean accepted = qValue(parameters) > 0;
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                return accepted;
+            }
+            if (name.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    private static double qValue(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Forget the marshalled metadata, e.g. after a change of the keys not visible through the certificate.
+     */
+    public void invalidate() {
+        cachedMetadata = null;
+    }
+
+    public static final class CachedMetadata {
+
+        private final EntityDescriptor descriptor;
+        private final String signingConfiguration;
+        private final X509Certificate signingCertificate;
+        private final byte[] bytes;
+        private final byte[] gzippedBytes;
+        private final String eTag;
+        private final String gzipETag;
+
+        private CachedMetadata(EntityDescriptor descriptor, String signingConfiguration,
+                               X509Certificate signingCertificate, byte[] bytes) {
+            this.descriptor = descriptor;
+            this.signingConfiguration = signingConfiguration;
+            this.signingCertificate = signingCertificate;
+            this.bytes = bytes;
+            this.gzippedBytes = gzip(bytes);
+            String digest = sha256(bytes);
+            this.eTag = '"' + digest + '"';
+            this.gzipETag = '"' + digest + "-gzip\"";
+        }
+
+        private boolean isFor(EntityDescriptor descriptor, String signingConfiguration,
+                              X509Certificate signingCertificate) {
+            return this.descriptor == descriptor && Objects.equals(this.signingConfiguration, signingConfiguration)
+                    && Objects.equals(this.signingCertificate, signingCertificate);
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        private static byte[] gzip(byte[] bytes) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream(bytes.length / 2);
+            try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+                out.write(bytes);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return gzipped.toByteArray();
+        }
+
+        private static String sha256(byte[] bytes) {
+            try {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
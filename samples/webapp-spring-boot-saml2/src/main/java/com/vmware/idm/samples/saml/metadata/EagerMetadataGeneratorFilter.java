@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import com.vmware.idm.samples.saml.key.KeyStoreReloadedEvent;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.ApplicationListener;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+import org.springframework.security.saml.metadata.MetadataGenerator;
+import org.springframework.security.saml.metadata.MetadataGeneratorFilter;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.security.saml.metadata.MetadataMemoryProvider;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Metadata generator filter generating the metadata of the hosted SP at startup, rather than on the first request,
+ * when the entity base URL of the generator is set.
+ * <p>
+ * The metadata is then marshalled, and signed when configured, by a {@link CachedMetadataDisplayFilter} before the
+ * first request. Without an entity base URL, the filter falls back to the default behavior and derives it from the
+ * first request.
+ * <p>
+ * Once the keystore is reloaded, the metadata is generated again with the certificates of the new keys and replaces
+ * the generated one in the metadata manager, which drops the credentials it resolved with the previous keys.
+ */
+public class EagerMetadataGeneratorFilter extends MetadataGeneratorFilter
+        implements SmartInitializingSingleton, ApplicationListener<KeyStoreReloadedEvent> {
+
+    public EagerMetadataGeneratorFilter(MetadataGenerator generator) {
+        super(generator);
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (generator.getEntityBaseURL() == null) {
+            log.info("No entity base URL configured, the metadata will be generated on the first request");
+            return;
+        }
+        try {
+            processMetadataInitialization(null);
+            if (displayFilter instanceof CachedMetadataDisplayFilter) {
+                ((CachedMetadataDisplayFilter) displayFilter).getMetadata(manager.getHostedSPName());
+            }
+        } catch (ServletException e) {
+            throw new IllegalStateException("Error generating the metadata of the hosted SP", e);
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(KeyStoreReloadedEvent event) {
+        try {
+            regenerateMetadata();
+        } catch (MetadataProviderException e) {
+            log.error("Error generating the metadata of the hosted SP with the reloaded keys", e);
+        }
+    }
+
+    /**
+     * Generate the metadata of the hosted SP again and swap it for the one generated before, if any.
+     */
+    public void regenerateMetadata() throws MetadataProviderException {
+        synchronized (MetadataManager.class) {
+            String entityId = manager.getHostedSPName();
+            ExtendedMetadataDelegate generatedProvider = null;
+            for (ExtendedMetadataDelegate provider : manager.getAvailableProviders()) {
+                if (entityId != null && provider.getDelegate() instanceof MetadataMemoryProvider
+                        && provider.getEntityDescriptor(entityId) != null) {
+                    generatedProvider = provider;
+                }
+            }
+            if (generatedProvider == null) {
+                log.info("No generated metadata to replace");
+                return;
+            }
+            EntityDescriptor descriptor = generator.generateMetadata();
+            ExtendedMetadata extendedMetadata = generator.generateExtendedMetadata();
+            MetadataMemoryProvider memoryProvider = new MetadataMemoryProvider(descriptor);
+            memoryProvider.initialize();
+            // the lookups use the previous metadata until the refresh replaces it
+            manager.addMetadataProvider(new ExtendedMetadataDelegate(memoryProvider, extendedMetadata));
+            manager.removeMetadataProvider(generatedProvider);
+            manager.refreshMetadata();
+            log.info("Metadata of {} generated again", entityId);
+        }
+    }
+
+    @Override
+    protected String getDefaultBaseURL(HttpServletRequest request) {
+        if (request == null) {
+            return generator.getEntityBaseURL();
+        }
+        return super.getDefaultBaseURL(request);
+    }
+}
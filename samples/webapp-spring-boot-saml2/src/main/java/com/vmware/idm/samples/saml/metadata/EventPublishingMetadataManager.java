@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata;
+
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.security.credential.Credential;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.security.saml.metadata.CachingMetadataManager;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+
+import javax.xml.namespace.QName;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Caching metadata manager publishing a {@link MetadataRefreshedEvent} after each reload of its providers, so that
+ * the views built from the metadata can be updated.
+ * <p>
+ * Each reload builds an index of the entities, swapped in at once when complete: the entity IDs, the SHA-1 source
+ * IDs of the artifacts and the aliases of the local entities map to the provider owning the entity, its descriptor
+ * and its extended metadata. The lookups of descriptors, roles and extended metadata go to this index without
+ * walking the providers or waiting for a reload in progress, and an entity missing from it is unknown until the
+ * next reload, as with the caches of {@link CachingMetadataManager}. The credentials resolved from the metadata of
+ * an entity, and the ones found trusted, are kept in its index entry by the
+ * {@link IndexedMetadataCredentialResolver} and the {@link IndexedSignatureTrustEngine}.
+ * <p>
+ * The entities of the {@link IndexedMetadataProvider}s are registered from their index instead of their whole
+ * metadata, and their descriptors are requested from the provider each time instead of being kept in the index:
+ * the provider decides which ones are kept in memory.
+ * <p>
+ * With {@link #setRefreshExecutor(Executor) a refresh executor}, the providers are reloaded as soon as one of them
+ * changes, e.g. once its metadata is loaded in the background, instead of at the next check of the manager.
+ */
+public class EventPublishingMetadataManager extends CachingMetadataManager implements ApplicationEventPublisherAware {
+
+    private ApplicationEventPublisher eventPublisher;
+
+    private final Object refreshLock = new Object();
+    private Map<String, ExtendedMetadataDelegate> pendingEntities;
+    private Map<String, IndexedMetadataProvider> pendingIndexedEntities;
+    private volatile EntityIndex entityIndex;
+    private volatile Executor refreshExecutor;
+
+    public EventPublishingMetadataManager(List<MetadataProvider> providers) throws MetadataProviderException {
+        super(providers);
+        // the observer of the manager flagging the refresh as required comes first
+        getObservers().add(provider -> {
+            Executor executor = refreshExecutor;
+            if (executor != null) {
+                executor.execute(this::refreshIfRequired);
+            }
+        });
+    }
+
+    /**
+     * @param refreshExecutor executor reloading the providers when one of them changes
+     */
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    private void refreshIfRequired() {
+        if (isRefreshRequired()) {
+            setRefreshRequired(false);
+            try {
+                refreshMetadata();
+            } catch (RuntimeException e) {
+                log.warn("Metadata refreshing has failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Override
+    public void refreshMetadata() {
+        synchronized (refreshLock) {
+            pendingEntities = new LinkedHashMap<>();
+            pendingIndexedEntities = new HashMap<>();
+            super.refreshMetadata();
+            entityIndex = new EntityIndex(pendingEntities, pendingIndexedEntities, super.getIDPEntityNames(),
+                    super.getSPEntityNames());
+            pendingEntities = null;
+            pendingIndexedEntities = null;
+        }
+        if (eventPublisher != null) {
+            eventPublisher.publishEvent(new MetadataRefreshedEvent(this));
+        }
+    }
+
+    @Override
+    protected void initializeProviderData(ExtendedMetadataDelegate provider) throws MetadataProviderException {
+        if (!(provider.getDelegate() instanceof IndexedMetadataProvider)) {
+            super.initializeProviderData(provider);
+            // the first provider of an entity is the one answering for it, as when walking the providers
+            for (String entityId : parseProvider(provider)) {
+                if (!pendingEntities.containsKey(entityId)) {
+                    pendingEntities.put(entityId, provider);
+                }
+            }
+            return;
+        }
+        IndexedMetadataProvider indexedProvider = (IndexedMetadataProvider) provider.getDelegate();
+        log.debug("Initializing the indexed provider data {}", provider);
+        registerIndexedEntities(provider, indexedProvider.getIDPEntityIds());
+        registerIndexedEntities(provider, indexedProvider.getSPEntityIds());
+    }
+
+    private void registerIndexedEntities(ExtendedMetadataDelegate provider, Set<String> entityIds) {
+        IndexedMetadataProvider indexedProvider = (IndexedMetadataProvider) provider.getDelegate();
+        for (String entityId : entityIds) {
+            IndexedMetadataProvider otherProvider = pendingIndexedEntities.get(entityId);
+            if (otherProvider == indexedProvider) {
+                continue;
+            }
+            if (otherProvider != null || pendingEntities.containsKey(entityId)) {
+                log.warn("Provider {} contains entity {} which was already included in another metadata provider"
+                        + " and will be ignored", provider, entityId);
+            } else {
+                pendingEntities.put(entityId, provider);
+                pendingIndexedEntities.put(entityId, indexedProvider);
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getIDPEntityNames() {
+        EntityIndex index = entityIndex;
+        return index != null ? index.idpNames : super.getIDPEntityNames();
+    }
+
+    @Override
+    public Set<String> getSPEntityNames() {
+        EntityIndex index = entityIndex;
+        return index != null ? index.spNames : super.getSPEntityNames();
+    }
+
+    @Override
+    public boolean isIDPValid(String idpID) {
+        return getIDPEntityNames().contains(idpID);
+    }
+
+    @Override
+    public boolean isSPValid(String spID) {
+        return getSPEntityNames().contains(spID);
+    }
+
+    @Override
+    public EntityDescriptor getEntityDescriptor(String entityID) throws MetadataProviderException {
+        EntityIndex index = entityIndex;
+        if (index == null) {
+            return super.getEntityDescriptor(entityID);
+        }
+        Entry entry = entityID != null ? index.entries.get(entityID) : null;
+        return entry != null ? entry.getDescriptor() : null;
+    }
+
+    @Override
+    public EntityDescriptor getEntityDescriptor(byte[] hash) throws MetadataProviderException {
+        EntityIndex index = entityIndex;
+        if (index == null) {
+            return super.getEntityDescriptor(hash);
+        }
+        String entityId = hash != null ? index.sourceIds.get(ByteBuffer.wrap(hash)) : null;
+        return entityId != null ? getEntityDescriptor(entityId) : null;
+    }
+
+    @Override
+    public ExtendedMetadata getExtendedMetadata(String entityID) throws MetadataProviderException {
+        EntityIndex index = entityIndex;
+        if (index == null) {
+            return super.getExtendedMetadata(entityID);
+        }
+        Entry entry = entityID != null ? index.entries.get(entityID) : null;
+        ExtendedMetadata extendedMetadata = entry != null ? entry.getExtendedMetadata() : null;
+        return extendedMetadata != null ? extendedMetadata : getDefaultExtendedMetadata().clone();
+    }
+
+    @Override
+    public String getEntityIdForAlias(String entityAlias) throws MetadataProviderException {
+        EntityIndex index = entityIndex;
+        if (index == null) {
+            return super.getEntityIdForAlias(entityAlias);
+        }
+        return entityAlias != null ? index.aliases.get(entityAlias) : null;
+    }
+
+    @Override
+    public List<RoleDescriptor> getRole(String entityID, QName roleName) throws MetadataProviderException {
+        EntityIndex index = entityIndex;
+        if (index == null) {
+            return super.getRole(entityID, roleName);
+        }
+        Entry entry = entityID != null ? index.entries.get(entityID) : null;
+        return entry != null ? entry.provider.getRole(entityID, roleName) : null;
+    }
+
+    @Override
+    public RoleDescriptor getRole(String entityID, QName roleName, String supportedProtocol)
+            throws MetadataProviderException {
+        EntityIndex index = entityIndex;
+        if (index == null) {
+            return super.getRole(entityID, roleName, supportedProtocol);
+        }
+        Entry entry = entityID != null ? index.entries.get(entityID) : null;
+        return entry != null ? entry.provider.getRole(entityID, roleName, supportedProtocol) : null;
+    }
+
+    /**
+     * @return the catalog entry of the IdP read by its {@link IndexedMetadataProvider}, null if the entity isn't
+     * indexed
+     */
+    IdpEntry getIndexedIdpEntry(String entityId) {
+        EntityIndex index = entityIndex;
+        Entry entry = index != null && entityId != null ? index.entries.get(entityId) : null;
+        return entry != null && entry.indexedProvider != null ? entry.indexedProvider.getIdpEntry(entityId) : null;
+    }
+
+    /**
+     * @return the credentials resolved from the metadata of the entity, or found trusted, until the next reload,
+     * keyed by the criteria of the resolution, or null if the entity isn't indexed
+     */
+    ConcurrentMap<String, Collection<Credential>> getCredentialCache(String entityId) {
+        EntityIndex index = entityIndex;
+        Entry entry = index != null && entityId != null ? index.entries.get(entityId) : null;
+        return entry != null ? entry.credentials : null;
+    }
+
+    /**
+     * Entities known after a reload, with the names of the IDPs and SPs.
+     */
+    private final class EntityIndex {
+
+        private final Map<String, Entry> entries = new HashMap<>();
+        private final Map<ByteBuffer, String> sourceIds = new HashMap<>();
+        private final Map<String, String> aliases = new HashMap<>();
+        private final Set<String> idpNames;
+        private final Set<String> spNames;
+
+        private EntityIndex(Map<String, ExtendedMetadataDelegate> providers,
+                            Map<String, IndexedMetadataProvider> indexedProviders, Set<String> idpNames,
+                            Set<String> spNames) {
+            Set<String> allIdpNames = new HashSet<>(idpNames);
+            Set<String> allSpNames = new HashSet<>(spNames);
+            for (Map.Entry<String, ExtendedMetadataDelegate> entity : providers.entrySet()) {
+                String entityId = entity.getKey();
+                IndexedMetadataProvider indexedProvider = indexedProviders.get(entityId);
+                Entry entry;
+                if (indexedProvider != null) {
+                    entry = new Entry(entity.getValue(), entityId, indexedProvider);
+                    if (indexedProvider.getIDPEntityIds().contains(entityId)) {
+                        allIdpNames.add(entityId);
+                    }
+                    if (indexedProvider.getSPEntityIds().contains(entityId)) {
+                        allSpNames.add(entityId);
+                    }
+                } else {
+                    try {
+                        entry = new Entry(entity.getValue(), entityId);
+                    } catch (MetadataProviderException e) {
+                        log.error("Entity {} couldn't be read from provider {} and will be ignored", entityId,
+                                entity.getValue(), e);
+                        continue;
+                    }
+                    ExtendedMetadata extendedMetadata = entry.extendedMetadata;
+                    if (extendedMetadata != null && extendedMetadata.isLocal() && extendedMetadata.getAlias() != null
+                            && !aliases.containsKey(extendedMetadata.getAlias())) {
+                        aliases.put(extendedMetadata.getAlias(), entityId);
+                    }
+                }
+                entries.put(entityId, entry);
+                sourceIds.put(ByteBuffer.wrap(sourceId(entityId)), entityId);
+            }
+            this.idpNames = Collections.unmodifiableSet(allIdpNames);
+            this.spNames = Collections.unmodifiableSet(allSpNames);
+        }
+    }
+
+    /**
+     * Entity of the index. The descriptor and extended metadata of an entity of an {@link IndexedMetadataProvider}
+     * are requested from the provider, the extended metadata only once.
+     */
+    private static final class Entry {
+
+        private final ExtendedMetadataDelegate provider;
+        private final String entityId;
+        private final IndexedMetadataProvider indexedProvider;
+        private final EntityDescriptor descriptor;
+        private volatile ExtendedMetadata extendedMetadata;
+        private final ConcurrentMap<String, Collection<Credential>> credentials = new ConcurrentHashMap<>();
+
+        private Entry(ExtendedMetadataDelegate provider, String entityId) throws MetadataProviderException {
+            this.provider = provider;
+            this.entityId = entityId;
+            this.indexedProvider = null;
+            this.descriptor = provider.getEntityDescriptor(entityId);
+            this.extendedMetadata = cloneOf(provider.getExtendedMetadata(entityId));
+        }
+
+        private Entry(ExtendedMetadataDelegate provider, String entityId, IndexedMetadataProvider indexedProvider) {
+            this.provider = provider;
+            this.entityId = entityId;
+            this.indexedProvider = indexedProvider;
+            this.descriptor = null;
+        }
+
+        private EntityDescriptor getDescriptor() throws MetadataProviderException {
+            return indexedProvider != null ? indexedProvider.getEntityDescriptor(entityId) : descriptor;
+        }
+
+        private ExtendedMetadata getExtendedMetadata() throws MetadataProviderException {
+            if (indexedProvider != null && extendedMetadata == null) {
+                extendedMetadata = cloneOf(provider.getExtendedMetadata(entityId));
+            }
+            return extendedMetadata;
+        }
+
+        private static ExtendedMetadata cloneOf(ExtendedMetadata extendedMetadata) {
+            return extendedMetadata != null ? extendedMetadata.clone() : null;
+        }
+    }
+
+    /**
+     * @return the SHA-1 hash of the entity ID, identifying the issuer of an artifact
+     */
+    private static byte[] sourceId(String entityId) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(entityId.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
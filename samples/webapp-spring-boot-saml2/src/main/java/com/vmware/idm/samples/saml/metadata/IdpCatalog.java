@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata;
+
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.security.saml.metadata.MetadataManager;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory catalog of the IdPs known by the metadata manager, indexed by entity ID, display name and domain hint.
+ * <p>
+ * The catalog is an immutable snapshot replaced on each {@link MetadataRefreshedEvent}. The entries of the IdPs of an
+ * {@link IndexedMetadataProvider} are taken from its index, so that rebuilding doesn't parse the entities nor fill
+ * the cache of the provider. The others are reused while their entity descriptor doesn't change, only the new and
+ * modified ones are read from their metadata. The IdPs are sorted by display name and searched by prefix of their
+ * terms, see {@link IdpEntry}.
+ */
+public class IdpCatalog implements ApplicationListener<MetadataRefreshedEvent> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdpCatalog.class);
+
+    private static final Comparator<IdpEntry> DISPLAY_ORDER = Comparator
+            .comparing(IdpEntry::getDisplayName, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(IdpEntry::getEntityId);
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.<IdpEntry>emptyList());
+
+    @Override
+    public void onApplicationEvent(MetadataRefreshedEvent event) {
+        rebuild(event.getManager());
+    }
+
+    /**
+     * Replace the catalog by the IdPs currently known by the manager.
+     */
+    public synchronized void rebuild(MetadataManager manager) {
+        Map<String, IdpEntry> previous = snapshot.entriesById;
+        List<IdpEntry> entries = new ArrayList<>();
+        int changed = 0;
+        for (String entityId : manager.getIDPEntityNames()) {
+            try {
+                IdpEntry entry = indexedEntry(manager, entityId);
+                if (entry == null) {
+                    EntityDescriptor descriptor = manager.getEntityDescriptor(entityId);
+                    if (descriptor == null) {
+                        continue;
+                    }
+                    entry = previous.get(entityId);
+                    if (entry == null || entry.descriptor() != descriptor) {
+                        entry = IdpEntry.of(descriptor);
+                    }
+                }
+                if (entry != previous.get(entityId)) {
+                    changed++;
+                }
+                entries.add(entry);
+            } catch (MetadataProviderException e) {
+                LOG.warn("Metadata of IdP {} can't be read, it is left out of the catalog", entityId, e);
+            }
+        }
+        snapshot = new Snapshot(entries);
+        LOG.info("IdP catalog rebuilt with {} IdPs, {} new or modified", entries.size(), changed);
+    }
+
+    private static IdpEntry indexedEntry(MetadataManager manager, String entityId) {
+        return manager instanceof EventPublishingMetadataManager
+                ? ((EventPublishingMetadataManager) manager).getIndexedIdpEntry(entityId) : null;
+    }
+
+    /**
+     * @return the IdP with the given entity ID, null if unknown
+     */
+    public IdpEntry getIdp(String entityId) {
+        return snapshot.entriesById.get(entityId);
+    }
+
+    public int size() {
+        return snapshot.entries.size();
+    }
+
+    /**
+     * @param query prefix of a term of the IdPs, case insensitive, all the IdPs are returned when empty
+     * @param page  index of the page, starting at 0
+     * @param size  number of IdPs per page
+     * @return the page of the IdPs matching the query, sorted by display name
+     */
+    public Page search(String query, int page, int size) {
+        if (page < 0 || size <= 0) {
+            throw new IllegalArgumentException("Invalid page " + page + " of size " + size);
+        }
+        Snapshot snapshot = this.snapshot;
+        String prefix = query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
+        List<IdpEntry> idps = new ArrayList<>(Math.min(size, snapshot.entries.size()));
+        long first = (long) page * size;
+        int total;
+        if (prefix.isEmpty()) {
+            total = snapshot.entries.size();
+            for (long i = first; i < total && idps.size() < size; i++) {
+                idps.add(snapshot.entries.get((int) i));
+            }
+        } else {
+            BitSet matches = new BitSet(snapshot.entries.size());
+            for (BitSet positions : snapshot.index.subMap(prefix, true, prefix + Character.MAX_VALUE, false)
+                    .values()) {
+                matches.or(positions);
+            }
+            total = matches.cardinality();
+            int skipped = 0;
+            for (int i = matches.nextSetBit(0); i >= 0 && idps.size() < size; i = matches.nextSetBit(i + 1)) {
+                if (skipped++ >= first) {
+                    idps.add(snapshot.entries.get(i));
+                }
+            }
+        }
+        return new Page(idps, total, page, size);
+    }
+
+    private static final class Snapshot {
+
+        private final List<IdpEntry> entries;
+        private final Map<String, IdpEntry> entriesById = new HashMap<>();
+        private final NavigableMap<String, BitSet> index = new TreeMap<>();
+
+        private Snapshot(List<IdpEntry> entries) {
+            List<IdpEntry> sortedEntries = new ArrayList<>(entries);
+            sortedEntries.sort(DISPLAY_ORDER);
+            this.entries = Collections.unmodifiableList(sortedEntries);
+            for (int i = 0; i < sortedEntries.size(); i++) {
+                IdpEntry entry = sortedEntries.get(i);
+                entriesById.put(entry.getEntityId(), entry);
+                for (String term : entry.terms()) {
+                    index.computeIfAbsent(term, t -> new BitSet()).set(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Page of the IdPs matching a search.
+     */
+    public static final class Page {
+
+        private final List<IdpEntry> idps;
+        private final int total;
+        private final int page;
+        private final int size;
+
+        public Page(List<IdpEntry> idps, int total, int page, int size) {
+            this.idps = Collections.unmodifiableList(idps);
+            this.total = total;
+            this.page = page;
+            this.size = size;
+        }
+
+        public List<IdpEntry> getIdps() {
+            return idps;
+        }
+
+        /**
+         * @return the number of IdPs matching the search, in all the pages
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        public int getPage() {
+            return page;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+}
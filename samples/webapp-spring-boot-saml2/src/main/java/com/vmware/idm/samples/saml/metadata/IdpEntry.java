@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.OrganizationDisplayName;
+import org.opensaml.samlext.saml2mdui.DiscoHints;
+import org.opensaml.samlext.saml2mdui.DisplayName;
+import org.opensaml.samlext.saml2mdui.DomainHint;
+import org.opensaml.samlext.saml2mdui.UIInfo;
+import org.opensaml.xml.XMLObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * IdP listed by the {@link IdpCatalog}, with the information displayed to the user and the search terms extracted
+ * from its metadata.
+ * <p>
+ * The display name is the English {@code mdui:DisplayName} of the IdP, or its first one, falling back to the
+ * display name of the organization and then to the entity ID. The domain hints are the {@code mdui:DomainHint} of the
+ * IdP.
+ * <p>
+ * The entries of the {@link IndexedMetadataProvider indexed providers} are read while indexing their metadata, without
+ * the entity descriptor.
+ */
+public final class IdpEntry {
+
+    private final String entityId;
+    private final String displayName;
+    private final List<String> domainHints;
+    private final EntityDescriptor descriptor;
+    private final String[] terms;
+
+    private IdpEntry(String entityId, String displayName, List<String> domainHints, EntityDescriptor descriptor) {
+        this.entityId = entityId;
+        this.displayName = displayName;
+        this.domainHints = Collections.unmodifiableList(domainHints);
+        this.descriptor = descriptor;
+        this.terms = termsOf(entityId, displayName, domainHints);
+    }
+
+    static IdpEntry of(EntityDescriptor descriptor) {
+        String entityId = descriptor.getEntityID();
+        String displayName = null;
+        List<String> domainHints = new ArrayList<>();
+        IDPSSODescriptor idp = descriptor.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+        if (idp != null && idp.getExtensions() != null) {
+            for (XMLObject uiInfo : idp.getExtensions().getUnknownXMLObjects(UIInfo.DEFAULT_ELEMENT_NAME)) {
+                for (DisplayName name : ((UIInfo) uiInfo).getDisplayNames()) {
+                    if (name.getName() != null && (displayName == null
+                            || "en".equalsIgnoreCase(name.getName().getLanguage()))) {
+                        displayName = name.getName().getLocalString();
+                    }
+                }
+            }
+            for (XMLObject discoHints : idp.getExtensions().getUnknownXMLObjects(DiscoHints.DEFAULT_ELEMENT_NAME)) {
+                for (DomainHint hint : ((DiscoHints) discoHints).getDomainHints()) {
+                    if (hint.getHint() != null) {
+                        domainHints.add(hint.getHint().trim());
+                    }
+                }
+            }
+        }
+        if (displayName == null && descriptor.getOrganization() != null) {
+            for (OrganizationDisplayName name : descriptor.getOrganization().getDisplayNames()) {
+                if (name.getName() != null) {
+                    displayName = name.getName().getLocalString();
+                    break;
+                }
+            }
+        }
+        return new IdpEntry(entityId, displayNameOr(entityId, displayName), domainHints, descriptor);
+    }
+
+    /**
+     * @param displayName the display name read from the metadata, falling back to the entity ID when null or blank
+     * @param domainHints the trimmed domain hints
+     */
+    public static IdpEntry of(String entityId, String displayName, List<String> domainHints) {
+        return new IdpEntry(entityId, displayNameOr(entityId, displayName), new ArrayList<>(domainHints), null);
+    }
+
+    private static String displayNameOr(String entityId, String displayName) {
+        return displayName == null || displayName.trim().isEmpty() ? entityId : displayName.trim();
+    }
+
+    /**
+     * @return the lower case terms a query can be a prefix of: the entity ID with and without its scheme, the
+     * display name and each of its words, and the domain hints
+     */
+    private static String[] termsOf(String entityId, String displayName, List<String> domainHints) {
+        Set<String> terms = new LinkedHashSet<>();
+        String lowerCaseEntityId = entityId.toLowerCase(Locale.ROOT);
+        terms.add(lowerCaseEntityId);
+        int scheme = lowerCaseEntityId.indexOf("://");
+        if (scheme > 0) {
+            terms.add(lowerCaseEntityId.substring(scheme + 3));
+        }
+        String lowerCaseDisplayName = displayName.toLowerCase(Locale.ROOT);
+        terms.add(lowerCaseDisplayName);
+        for (String word : lowerCaseDisplayName.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                terms.add(word);
+            }
+        }
+        for (String domainHint : domainHints) {
+            terms.add(domainHint.toLowerCase(Locale.ROOT));
+        }
+        return terms.toArray(new String[0]);
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public List<String> getDomainHints() {
+        return domainHints;
+    }
+
+    /**
+     * @return the descriptor the entry was read from, null if it was read from an index
+     */
+    EntityDescriptor descriptor() {
+        return descriptor;
+    }
+
+    String[] terms() {
+        return terms;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.springframework.security.saml.context.SAMLContextProviderImpl;
+import org.springframework.security.saml.context.SAMLMessageContext;
+
+import javax.servlet.ServletException;
+
+/**
+ * Context provider resolving the credentials of the entities through the index of the
+ * {@link EventPublishingMetadataManager}, with an {@link IndexedMetadataCredentialResolver}, and validating the
+ * signatures with an {@link IndexedSignatureTrustEngine}. Another metadata manager is used as by its superclass.
+ */
+public class IndexedMetadataContextProvider extends SAMLContextProviderImpl {
+
+    @Override
+    public void afterPropertiesSet() throws ServletException {
+        if (metadataResolver == null && metadata instanceof EventPublishingMetadataManager) {
+            setMetadataResolver(new IndexedMetadataCredentialResolver((EventPublishingMetadataManager) metadata,
+                    keyManager));
+        }
+        super.afterPropertiesSet();
+    }
+
+    @Override
+    protected void populateTrustEngine(SAMLMessageContext samlContext) {
+        super.populateTrustEngine(samlContext);
+        if (metadata instanceof EventPublishingMetadataManager) {
+            samlContext.setLocalTrustEngine(new IndexedSignatureTrustEngine((EventPublishingMetadataManager) metadata,
+                    samlContext.getLocalTrustEngine()));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.opensaml.security.MetadataCriteria;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.springframework.security.saml.key.KeyManager;
+import org.springframework.security.saml.trust.MetadataCredentialResolver;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Credential resolver keeping the credentials resolved from the metadata of an entity in the index of the
+ * {@link EventPublishingMetadataManager}, instead of a cache guarded by a lock and cleared at each reload.
+ * <p>
+ * The credentials are resolved once per entity, role, protocol and usage until the next reload replaces the index.
+ * The entities missing from the index are resolved by the superclass.
+ */
+public class IndexedMetadataCredentialResolver extends MetadataCredentialResolver {
+
+    private final EventPublishingMetadataManager metadataManager;
+
+    public IndexedMetadataCredentialResolver(EventPublishingMetadataManager metadataManager, KeyManager keyManager) {
+        super(metadataManager, keyManager);
+        this.metadataManager = metadataManager;
+        setMeetAllCriteria(false);
+        setUnevaluableSatisfies(true);
+    }
+
+    @Override
+    protected Iterable<Credential> resolveFromSource(CriteriaSet criteriaSet) throws SecurityException {
+        checkCriteriaRequirements(criteriaSet);
+        String entityId = criteriaSet.get(EntityIDCriteria.class).getEntityID();
+        Map<String, Collection<Credential>> cache = metadataManager.getCredentialCache(entityId);
+        if (cache == null) {
+            return super.resolveFromSource(criteriaSet);
+        }
+        MetadataCriteria metadataCriteria = criteriaSet.get(MetadataCriteria.class);
+        UsageCriteria usageCriteria = criteriaSet.get(UsageCriteria.class);
+        UsageType usage = usageCriteria != null ? usageCriteria.getUsage() : UsageType.UNSPECIFIED;
+        String key = metadataCriteria.getRole() + " " + metadataCriteria.getProtocol() + " " + usage;
+        Collection<Credential> credentials = cache.get(key);
+        if (credentials == null) {
+            credentials = retrieveFromMetadata(entityId, metadataCriteria.getRole(), metadataCriteria.getProtocol(),
+                    usage);
+            cache.put(key, credentials);
+        }
+        return credentials;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata;
+
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+
+import java.util.Set;
+
+/**
+ * Metadata provider knowing the roles of its entities without parsing them, so that the
+ * {@link EventPublishingMetadataManager} doesn't walk its whole metadata at each refresh. Its entity descriptors are
+ * only read through {@link #getEntityDescriptor(String)}.
+ */
+public interface IndexedMetadataProvider extends MetadataProvider {
+
+    /**
+     * @return the entities with an IDPSSODescriptor supporting SAML 2.0
+     */
+    Set<String> getIDPEntityIds();
+
+    /**
+     * @return the catalog entry of the IdP, read from the index without parsing the entity, null if not an IdP
+     */
+    IdpEntry getIdpEntry(String entityId);
+
+    /**
+     * @return the entities with an SPSSODescriptor supporting SAML 2.0
+     */
+    Set<String> getSPEntityIds();
+}
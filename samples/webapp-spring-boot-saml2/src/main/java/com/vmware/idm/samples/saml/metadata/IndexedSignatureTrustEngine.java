@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.opensaml.security.MetadataCriteria;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xml.security.keyinfo.KeyInfoCriteria;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.validation.ValidationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Signature trust engine remembering the credentials of an entity found trusted by another engine, in the index of
+ * the {@link EventPublishingMetadataManager}.
+ * <p>
+ * A signature is first verified with the trusted credentials of the signing entity for the usage of the criteria,
+ * without resolving the credentials of the metadata or the KeyInfo of the signature again, nor evaluating their
+ * trust. When none verifies it, the signature is validated by the other engine and, if trusted, the credential of
+ * its KeyInfo verifying it is remembered until the next reload of the metadata. Raw signatures, from the
+ * HTTP-Redirect binding, are always validated by the other engine.
+ */
+public class IndexedSignatureTrustEngine implements SignatureTrustEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexedSignatureTrustEngine.class);
+
+    private final EventPublishingMetadataManager metadataManager;
+    private final SignatureTrustEngine delegate;
+
+    public IndexedSignatureTrustEngine(EventPublishingMetadataManager metadataManager, SignatureTrustEngine delegate) {
+        this.metadataManager = metadataManager;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean validate(Signature signature, CriteriaSet trustBasisCriteria) throws SecurityException {
+        EntityIDCriteria entityCriteria = trustBasisCriteria.get(EntityIDCriteria.class);
+        ConcurrentMap<String, Collection<Credential>> cache = entityCriteria != null
+                ? metadataManager.getCredentialCache(entityCriteria.getEntityID()) : null;
+        if (cache == null) {
+            return delegate.validate(signature, trustBasisCriteria);
+        }
+        String key = cacheKey(trustBasisCriteria);
+        Collection<Credential> trustedCredentials = cache.get(key);
+        if (trustedCredentials != null) {
+            for (Credential credential : trustedCredentials) {
+                if (verify(signature, credential)) {
+                    LOG.debug("Signature verified with a trusted credential of {}", entityCriteria.getEntityID());
+                    return true;
+                }
+            }
+        }
+        if (!delegate.validate(signature, trustBasisCriteria)) {
+            return false;
+        }
+        Credential credential = getKeyInfoCredential(signature);
+        if (credential != null) {
+            if (trustedCredentials == null) {
+                trustedCredentials = new CopyOnWriteArrayList<>();
+                Collection<Credential> otherCredentials = cache.putIfAbsent(key, trustedCredentials);
+                if (otherCredentials != null) {
+                    trustedCredentials = otherCredentials;
+                }
+            }
+            trustedCredentials.add(credential);
+            LOG.debug("Trusted credential of {} remembered until the next refresh", entityCriteria.getEntityID());
+        }
+        return true;
+    }
+
+    private String cacheKey(CriteriaSet trustBasisCriteria) {
+        MetadataCriteria metadataCriteria = trustBasisCriteria.get(MetadataCriteria.class);
+        UsageCriteria usageCriteria = trustBasisCriteria.get(UsageCriteria.class);
+        // the trust of a credential also depends on the engine, e.g. explicit key or PKIX
+        StringBuilder key = new StringBuilder("trusted ").append(delegate.getClass().getName());
+        if (metadataCriteria != null) {
+            key.append(' ').append(metadataCriteria.getRole()).append(' ').append(metadataCriteria.getProtocol());
+        }
+        return key.append(' ').append(usageCriteria != null ? usageCriteria.getUsage() : UsageType.SIGNING)
+                .toString();
+    }
+
+    /**
+     * @return the credential of the KeyInfo of the signature verifying it, or null if there is none
+     */
+    private Credential getKeyInfoCredential(Signature signature) throws SecurityException {
+        if (signature.getKeyInfo() == null) {
+            return null;
+        }
+        for (Credential credential : getKeyInfoResolver().resolve(
+                new CriteriaSet(new KeyInfoCriteria(signature.getKeyInfo())))) {
+            if (verify(signature, credential)) {
+                return credential;
+            }
+        }
+        return null;
+    }
+
+    private static boolean verify(Signature signature, Credential credential) {
+        try {
+            new SignatureValidator(credential).validate(signature);
+            return true;
+        } catch (ValidationException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean validate(byte[] signature, byte[] content, String algorithmURI, CriteriaSet trustBasisCriteria,
+                            Credential candidateCredential) throws SecurityException {
+        return delegate.validate(signature, content, algorithmURI, trustBasisCriteria, candidateCredential);
+    }
+
+    @Override
+    public KeyInfoCredentialResolver getKeyInfoResolver() {
+        return delegate.getKeyInfoResolver();
+    }
+}
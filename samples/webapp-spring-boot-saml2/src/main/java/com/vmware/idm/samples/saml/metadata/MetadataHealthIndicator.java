@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+import org.springframework.security.saml.metadata.MetadataManager;
+
+/**
+ * Health indicator reporting the application out of service while the metadata of an IDP is loaded in the
+ * background at startup, so that a readiness probe on /health doesn't send it logins before they can be processed.
+ */
+public class MetadataHealthIndicator extends AbstractHealthIndicator {
+
+    private final MetadataManager manager;
+
+    public MetadataHealthIndicator(MetadataManager manager) {
+        this.manager = manager;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        int loadingProviders = 0;
+        for (ExtendedMetadataDelegate provider : manager.getAvailableProviders()) {
+            if (provider.getDelegate() instanceof CachedHTTPMetadataProvider
+                    && ((CachedHTTPMetadataProvider) provider.getDelegate()).isLoading()) {
+                loadingProviders++;
+            }
+        }
+        if (loadingProviders > 0) {
+            builder.outOfService();
+        } else {
+            builder.up();
+        }
+        builder.withDetail("idps", manager.getIDPEntityNames().size()).withDetail("loading", loadingProviders);
+    }
+}
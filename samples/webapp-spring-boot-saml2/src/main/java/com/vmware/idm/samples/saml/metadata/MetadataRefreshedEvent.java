@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata;
+
+import org.springframework.context.ApplicationEvent;
+import org.springframework.security.saml.metadata.MetadataManager;
+
+/**
+ * Event published once the metadata manager has reloaded its providers, at startup and on each refresh.
+ */
+public class MetadataRefreshedEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    public MetadataRefreshedEvent(MetadataManager manager) {
+        super(manager);
+    }
+
+    public MetadataManager getManager() {
+        return (MetadataManager) getSource();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.Reference;
+import org.apache.xml.security.signature.SignedInfo;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transform;
+import org.apache.xml.security.transforms.Transforms;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.SigningUtil;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Verifier of the signature of an aggregate, given the {@code ds:Signature} element alone: only the signature is
+ * parsed into a DOM, the digest of the signed content is computed while it is streamed.
+ * <p>
+ * The signature must have a single reference to the whole document or to the root element, with the transforms used
+ * by the SAML metadata: enveloped signature then exclusive canonicalization. The signature value is verified with the
+ * certificate of its {@code KeyInfo}, which must be accepted by the trust engine. Only the RSA signature methods are
+ * supported: the other ones encode the signature value differently in XML and in the JCA.
+ */
+final class AggregateSignatureVerifier {
+
+    private final ParserPool parserPool;
+    private final SignatureTrustEngine trustEngine;
+
+    AggregateSignatureVerifier(ParserPool parserPool, SignatureTrustEngine trustEngine) {
+        this.parserPool = parserPool;
+        this.trustEngine = trustEngine;
+    }
+
+    /**
+     * Verify the signature value and the trust in the signer, and return the reference, whose digest still has to be
+     * checked against the content.
+     *
+     * @param signature {@code ds:Signature} element, as a standalone document
+     * @param rootId    ID of the root element
+     */
+    SignedReference verify(byte[] signature, String rootId) throws MetadataProviderException {
+        try {
+            Element signatureElement = parserPool.parse(new ByteArrayInputStream(signature)).getDocumentElement();
+            XMLSignature xmlSignature = new XMLSignature(signatureElement, "");
+            SignedInfo signedInfo = xmlSignature.getSignedInfo();
+            if (signedInfo.getLength() != 1) {
+                throw new MetadataProviderException("Signature of the metadata must have a single reference");
+            }
+            Reference reference = signedInfo.item(0);
+            String uri = reference.getURI();
+            if (!"".equals(uri) && !("#" + rootId).equals(uri)) {
+                throw new MetadataProviderException("Signature of the metadata doesn't reference its root: " + uri);
+            }
+            Set<String> inclusivePrefixes = checkTransforms(reference.getTransforms());
+
+            String signatureMethod = signedInfo.getSignatureMethodURI();
+            if (!"RSA".equals(SecurityHelper.getKeyAlgorithmFromURI(signatureMethod))) {
+                throw new MetadataProviderException("Unsupported signature method " + signatureMethod);
+            }
+            BasicX509Credential credential = credentialOf(signatureElement);
+            byte[] signatureValue = xmlSignature.getSignatureValue();
+            byte[] signedContent = signedInfo.getCanonicalizedOctetStream();
+            if (!SigningUtil.verifyWithURI(credential, signatureMethod, signatureValue, signedContent)) {
+                throw new MetadataProviderException("Invalid signature of the metadata");
+            }
+            CriteriaSet criteria = new CriteriaSet(new UsageCriteria(UsageType.SIGNING));
+            if (!trustEngine.validate(signatureValue, signedContent, signatureMethod, criteria, credential)) {
+                throw new MetadataProviderException("Signature of the metadata isn't trusted");
+            }
+
+            String digestAlgorithm = JCEMapper.translateURItoJCEID(
+                    reference.getMessageDigestAlgorithm().getAlgorithmURI());
+            if (digestAlgorithm == null) {
+                throw new MetadataProviderException("Unsupported digest method of the metadata signature");
+            }
+            return new SignedReference(digestAlgorithm, reference.getDigestValue(), inclusivePrefixes);
+        } catch (XMLParserException | XMLSecurityException | SecurityException e) {
+            throw new MetadataProviderException("Unable to verify the signature of the metadata", e);
+        }
+    }
+
+    /**
+     * @return the prefixes of the inclusive namespaces of the canonicalization, the default namespace being empty
+     */
+    private static Set<String> checkTransforms(Transforms transforms) throws MetadataProviderException,
+            XMLSecurityException {
+        if (transforms == null || transforms.getLength() != 2
+                || !Transforms.TRANSFORM_ENVELOPED_SIGNATURE.equals(transforms.item(0).getURI())) {
+            throw new MetadataProviderException("Signature of the metadata must be enveloped and canonicalized");
+        }
+        Transform canonicalization = transforms.item(1);
+        if (!SignatureConstants.TRANSFORM_C14N_EXCL_OMIT_COMMENTS.equals(canonicalization.getURI())
+                && !SignatureConstants.TRANSFORM_C14N_EXCL_WITH_COMMENTS.equals(canonicalization.getURI())) {
+            throw new MetadataProviderException("Unsupported canonicalization " + canonicalization.getURI());
+        }
+        for (Node child = canonicalization.getElement().getFirstChild(); child != null;
+             child = child.getNextSibling()) {
+            if (child instanceof Element && "InclusiveNamespaces".equals(child.getLocalName())
+                    && SignatureConstants.TRANSFORM_C14N_EXCL_OMIT_COMMENTS.equals(child.getNamespaceURI())) {
+                Set<String> prefixes = new LinkedHashSet<>();
+                for (String prefix : ((Element) child).getAttribute("PrefixList").trim().split("\\s+")) {
+                    if (!prefix.isEmpty()) {
+                        prefixes.add("#default".equals(prefix) ? "" : prefix);
+                    }
+                }
+                return prefixes;
+            }
+        }
+        return Collections.emptySet();
+    }
+
+    private static BasicX509Credential credentialOf(Element signatureElement) throws MetadataProviderException {
+        try {
+            Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(signatureElement);
+            Signature signature = (Signature) unmarshaller.unmarshall(signatureElement);
+            List<X509Certificate> certificates = signature.getKeyInfo() != null
+                    ? KeyInfoHelper.getCertificates(signature.getKeyInfo())
+                    : Collections.<X509Certificate>emptyList();
+            if (certificates.isEmpty()) {
+                throw new MetadataProviderException("Signature of the metadata without certificate");
+            }
+            BasicX509Credential credential = new BasicX509Credential();
+            credential.setEntityCertificate(certificates.get(0));
+            credential.setEntityCertificateChain(certificates);
+            credential.setUsageType(UsageType.SIGNING);
+            return credential;
+        } catch (UnmarshallingException | CertificateException e) {
+            throw new MetadataProviderException("Invalid KeyInfo in the signature of the metadata", e);
+        }
+    }
+
+    /**
+     * Reference of a verified signature.
+     */
+    static final class SignedReference {
+
+        final String digestAlgorithm;
+        final byte[] digestValue;
+        final Set<String> inclusivePrefixes;
+
+        SignedReference(String digestAlgorithm, byte[] digestValue, Set<String> inclusivePrefixes) {
+            this.digestAlgorithm = digestAlgorithm;
+            this.digestValue = digestValue;
+            this.inclusivePrefixes = inclusivePrefixes;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import javax.xml.XMLConstants;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Exclusive XML Canonicalization 1.0 of a subtree received as events, so that its digest can be computed without a
+ * DOM.
+ * <p>
+ * An element declares the namespaces it visibly utilizes, through its name or the names of its attributes, and the
+ * ones of the inclusive prefix list in scope, unless an output ancestor already declared them with the same value.
+ * Its attributes are sorted by namespace URI and local name. Character data and attribute values are escaped as
+ * defined by Canonical XML, empty elements are written with a start and an end tag. The comments are dropped, as
+ * they are by the same-document references of XML Signature.
+ */
+final class ExclusiveCanonicalizer implements XmlEventHandler {
+
+    private static final Comparator<StartTag.Attribute> ATTRIBUTE_ORDER = Comparator
+            .comparing((StartTag.Attribute attribute) -> attribute.namespaceURI)
+            .thenComparing(attribute -> attribute.localName);
+
+    private final Writer out;
+    private final Set<String> inclusivePrefixes;
+
+    // namespaces declared in the input and rendered in the output, by element
+    private final Deque<List<StartTag.Namespace>> declaredNamespaces = new ArrayDeque<>();
+    private final Deque<Map<String, String>> renderedNamespaces = new ArrayDeque<>();
+
+    /**
+     * @param out               writer receiving the canonical form, encoded in UTF-8
+     * @param inclusivePrefixes prefixes handled as by the inclusive canonicalization, the default namespace being
+     *                          the empty prefix
+     */
+    ExclusiveCanonicalizer(Writer out, Set<String> inclusivePrefixes) {
+        this.out = out;
+        this.inclusivePrefixes = inclusivePrefixes;
+    }
+
+    @Override
+    public void startElement(StartTag tag) throws IOException {
+        declaredNamespaces.push(tag.namespaces);
+
+        Map<String, String> utilized = new TreeMap<>();
+        utilized.put(tag.prefix, tag.namespaceURI);
+        for (StartTag.Attribute attribute : tag.attributes) {
+            if (!attribute.prefix.isEmpty()) {
+                utilized.put(attribute.prefix, attribute.namespaceURI);
+            }
+        }
+        for (String prefix : inclusivePrefixes) {
+            String namespaceURI = inScope(prefix);
+            if (namespaceURI != null) {
+                utilized.put(prefix, namespaceURI);
+            }
+        }
+
+        // the empty prefix sorts first, as the default namespace declaration must
+        Map<String, String> rendered = new TreeMap<>();
+        for (Map.Entry<String, String> namespace : utilized.entrySet()) {
+            String prefix = namespace.getKey();
+            String namespaceURI = namespace.getValue();
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                continue;
+            }
+            String renderedURI = rendered(prefix);
+            if (prefix.isEmpty() && namespaceURI.isEmpty()) {
+                if (renderedURI != null && !renderedURI.isEmpty()) {
+                    rendered.put(prefix, namespaceURI);
+                }
+            } else if (!namespaceURI.equals(renderedURI)) {
+                rendered.put(prefix, namespaceURI);
+            }
+        }
+        renderedNamespaces.push(rendered);
+
+        out.write('<');
+        out.write(tag.qualifiedName());
+        for (Map.Entry<String, String> namespace : rendered.entrySet()) {
+            out.write(namespace.getKey().isEmpty() ? " xmlns=\"" : " xmlns:" + namespace.getKey() + "=\"");
+            XmlEscaping.escapeAttribute(namespace.getValue(), out);
+            out.write('"');
+        }
+        List<StartTag.Attribute> attributes = tag.attributes;
+        if (attributes.size() > 1) {
+            attributes = new ArrayList<>(attributes);
+            attributes.sort(ATTRIBUTE_ORDER);
+        }
+        for (StartTag.Attribute attribute : attributes) {
+            out.write(' ');
+            out.write(attribute.qualifiedName());
+            out.write("=\"");
+            XmlEscaping.escapeAttribute(attribute.value, out);
+            out.write('"');
+        }
+        out.write('>');
+    }
+
+    /**
+     * @return the URI of the namespace in scope for the prefix in the input, null if not declared
+     */
+    private String inScope(String prefix) {
+        for (List<StartTag.Namespace> namespaces : declaredNamespaces) {
+            for (StartTag.Namespace namespace : namespaces) {
+                if (namespace.prefix.equals(prefix)) {
+                    return namespace.namespaceURI;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the URI of the namespace declared for the prefix by the nearest output ancestor, null if none
+     */
+    private String rendered(String prefix) {
+        for (Map<String, String> namespaces : renderedNamespaces) {
+            String namespaceURI = namespaces.get(prefix);
+            if (namespaceURI != null) {
+                return namespaceURI;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void endElement(StartTag tag) throws IOException {
+        out.write("</");
+        out.write(tag.qualifiedName());
+        out.write('>');
+        declaredNamespaces.pop();
+        renderedNamespaces.pop();
+    }
+
+    @Override
+    public void characters(String text) throws IOException {
+        XmlEscaping.escapeText(text, out);
+    }
+
+    @Override
+    public void comment(String text) {
+        // the same-document references exclude the comments, even with the #WithComments algorithm
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws IOException {
+        XmlEscaping.writeProcessingInstruction(target, data, out);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+}
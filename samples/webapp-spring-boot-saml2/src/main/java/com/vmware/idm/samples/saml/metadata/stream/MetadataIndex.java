@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import com.vmware.idm.samples.saml.metadata.IdpEntry;
+import org.joda.time.DateTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Entity descriptors of an aggregate, stored one after the other in a file mapped in memory, and indexed by entity
+ * ID.
+ * <p>
+ * Each entity descriptor is a standalone XML document, declaring the namespaces it inherited from the aggregate, so
+ * that it can be parsed on its own.
+ */
+final class MetadataIndex {
+
+    private final File storeFile;
+    private final MappedByteBuffer store;
+    private final Map<String, Entry> entries;
+    private final Map<String, IdpEntry> idpEntries;
+    private final Set<String> spEntityIds;
+    private final DateTime expiration;
+
+    MetadataIndex(File storeFile, Map<String, Entry> entries, Map<String, IdpEntry> idpEntries,
+                  Set<String> spEntityIds, DateTime expiration) throws IOException {
+        this.storeFile = storeFile;
+        try (RandomAccessFile file = new RandomAccessFile(storeFile, "r")) {
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new IOException("Entity store " + storeFile + " is larger than 2 GB");
+            }
+            // the mapping stays valid once the channel is closed
+            this.store = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        this.entries = entries;
+        this.idpEntries = idpEntries;
+        this.spEntityIds = Collections.unmodifiableSet(spEntityIds);
+        this.expiration = expiration;
+    }
+
+    /**
+     * @return the XML document of the entity descriptor, null if the aggregate doesn't contain it
+     */
+    InputStream open(String entityId) {
+        Entry entry = entries.get(entityId);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer buffer = store.duplicate();
+        buffer.position(entry.offset);
+        buffer.limit(entry.offset + entry.length);
+        return new ByteBufferInputStream(buffer.slice());
+    }
+
+    boolean contains(String entityId) {
+        return entries.containsKey(entityId);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the entities with an IDPSSODescriptor supporting SAML 2.0
+     */
+    Set<String> getIDPEntityIds() {
+        return Collections.unmodifiableSet(idpEntries.keySet());
+    }
+
+    /**
+     * @return the catalog entry of the IdP, read while indexing, null if the entity isn't an IdP
+     */
+    IdpEntry getIdpEntry(String entityId) {
+        return idpEntries.get(entityId);
+    }
+
+    /**
+     * @return the entities with an SPSSODescriptor supporting SAML 2.0
+     */
+    Set<String> getSPEntityIds() {
+        return spEntityIds;
+    }
+
+    /**
+     * @return the earliest validUntil or end of cache duration of the aggregate and its entities, null if none
+     */
+    DateTime getExpiration() {
+        return expiration;
+    }
+
+    File getStoreFile() {
+        return storeFile;
+    }
+
+    static final class Entry {
+
+        private final int offset;
+        private final int length;
+
+        Entry(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
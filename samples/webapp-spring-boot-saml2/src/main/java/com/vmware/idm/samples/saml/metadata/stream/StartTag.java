@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Start tag of an element read by a {@link XMLStreamReader}, with its attributes and the namespaces it declares.
+ */
+final class StartTag {
+
+    final String prefix;
+    final String namespaceURI;
+    final String localName;
+    final List<Attribute> attributes;
+    final List<Namespace> namespaces;
+
+    private StartTag(String prefix, String namespaceURI, String localName, List<Attribute> attributes,
+                     List<Namespace> namespaces) {
+        this.prefix = prefix;
+        this.namespaceURI = namespaceURI;
+        this.localName = localName;
+        this.attributes = attributes;
+        this.namespaces = namespaces;
+    }
+
+    /**
+     * @param reader reader positioned on a START_ELEMENT
+     */
+    static StartTag of(XMLStreamReader reader) {
+        List<Attribute> attributes = Collections.emptyList();
+        if (reader.getAttributeCount() > 0) {
+            attributes = new ArrayList<>(reader.getAttributeCount());
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                attributes.add(new Attribute(emptyIfNull(reader.getAttributePrefix(i)),
+                        emptyIfNull(reader.getAttributeNamespace(i)), reader.getAttributeLocalName(i),
+                        reader.getAttributeValue(i)));
+            }
+        }
+        List<Namespace> namespaces = Collections.emptyList();
+        if (reader.getNamespaceCount() > 0) {
+            namespaces = new ArrayList<>(reader.getNamespaceCount());
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                namespaces.add(new Namespace(emptyIfNull(reader.getNamespacePrefix(i)),
+                        emptyIfNull(reader.getNamespaceURI(i))));
+            }
+        }
+        return new StartTag(emptyIfNull(reader.getPrefix()), emptyIfNull(reader.getNamespaceURI()),
+                reader.getLocalName(), attributes, namespaces);
+    }
+
+    boolean is(String namespaceURI, String localName) {
+        return this.localName.equals(localName) && this.namespaceURI.equals(namespaceURI);
+    }
+
+    /**
+     * @return the value of the attribute without namespace with the given name, null if absent
+     */
+    String getAttribute(String localName) {
+        return getAttribute("", localName);
+    }
+
+    /**
+     * @return the value of the attribute with the given namespace, empty for none, and name, null if absent
+     */
+    String getAttribute(String namespaceURI, String localName) {
+        for (Attribute attribute : attributes) {
+            if (attribute.namespaceURI.equals(namespaceURI) && attribute.localName.equals(localName)) {
+                return attribute.value;
+            }
+        }
+        return null;
+    }
+
+    String qualifiedName() {
+        return prefix.isEmpty() ? localName : prefix + ':' + localName;
+    }
+
+    private static String emptyIfNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    static final class Attribute {
+
+        final String prefix;
+        final String namespaceURI;
+        final String localName;
+        final String value;
+
+        Attribute(String prefix, String namespaceURI, String localName, String value) {
+            this.prefix = prefix;
+            this.namespaceURI = namespaceURI;
+            this.localName = localName;
+            this.value = value;
+        }
+
+        String qualifiedName() {
+            return prefix.isEmpty() ? localName : prefix + ':' + localName;
+        }
+    }
+
+    static final class Namespace {
+
+        /**
+         * Empty for the default namespace.
+         */
+        final String prefix;
+        final String namespaceURI;
+
+        Namespace(String prefix, String namespaceURI) {
+            this.prefix = prefix;
+            this.namespaceURI = namespaceURI;
+        }
+    }
+}
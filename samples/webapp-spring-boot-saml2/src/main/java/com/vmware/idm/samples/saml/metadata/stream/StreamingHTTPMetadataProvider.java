@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import com.vmware.idm.samples.saml.metadata.CachedHTTPMetadataProvider;
+import com.vmware.idm.samples.saml.metadata.IdpEntry;
+import com.vmware.idm.samples.saml.metadata.IndexedMetadataProvider;
+import org.apache.commons.httpclient.HttpClient;
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.FilterException;
+import org.opensaml.saml2.metadata.provider.MetadataFilter;
+import org.opensaml.saml2.metadata.provider.MetadataFilterChain;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.saml2.metadata.provider.SignatureValidationFilter;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provider of the metadata of a federation, fetched over HTTP as a large aggregate, without keeping it in memory.
+ * <p>
+ * The aggregate is streamed by the {@link StreamingMetadataIndexer}, which verifies its signature with the trust
+ * engine of the {@link SignatureValidationFilter} set by the metadata manager and copies its entity descriptors to a
+ * file mapped in memory. Only the {@link #setRetainedEntityIds(Set) retained entities} are parsed once loaded and
+ * returned by {@link #getMetadata()}. The other ones are parsed when requested and the last ones requested are kept
+ * in memory, up to {@link #setMaxCachedEntities(int) a maximum}. The entities signed on their own are verified by
+ * the signature filter when parsed, the other metadata filters are ignored.
+ */
+public class StreamingHTTPMetadataProvider extends CachedHTTPMetadataProvider implements IndexedMetadataProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingHTTPMetadataProvider.class);
+
+    private final AtomicInteger storeVersion = new AtomicInteger();
+
+    private Set<String> retainedEntityIds = Collections.emptySet();
+    private int maxCachedEntities = 1000;
+
+    private volatile LoadedMetadata loadedMetadata;
+
+    /**
+     * @param scheduler   scheduler running the refreshes of all the providers
+     * @param httpClient  client used to fetch the metadata
+     * @param metadataURL URL of the aggregate
+     * @param cacheFile   file keeping the last good aggregate, created if needed, next to which the entity
+     *                    descriptors are stored
+     */
+    public StreamingHTTPMetadataProvider(ScheduledExecutorService scheduler, HttpClient httpClient,
+                                         String metadataURL, File cacheFile) {
+        super(scheduler, httpClient, metadataURL, cacheFile);
+    }
+
+    @Override
+    protected void loadMetadata(File metadataFile) throws MetadataProviderException {
+        SignatureValidationFilter signatureFilter = getSignatureValidationFilter();
+        AggregateSignatureVerifier verifier = signatureFilter != null
+                ? new AggregateSignatureVerifier(getParserPool(), signatureFilter.getSignatureTrustEngine())
+                : null;
+        StreamingMetadataIndexer indexer = new StreamingMetadataIndexer(verifier,
+                signatureFilter != null && signatureFilter.getRequireSignature());
+        File storeFile = new File(getCacheFile().getAbsoluteFile().getParentFile(),
+                getCacheFile().getName() + '.' + storeVersion.incrementAndGet() + ".entities");
+        LoadedMetadata metadata;
+        try {
+            MetadataIndex index;
+            try (InputStream in = new FileInputStream(metadataFile)) {
+                index = indexer.index(in, storeFile);
+            }
+            metadata = new LoadedMetadata(index, maxCachedEntities);
+            for (String entityId : retainedEntityIds) {
+                EntityDescriptor descriptor = parseEntityDescriptor(index, entityId, signatureFilter);
+                if (descriptor == null) {
+                    LOG.warn("Entity {} not found in the metadata of {}", entityId, getMetadataURL());
+                } else {
+                    metadata.retain(descriptor);
+                }
+            }
+        } catch (IOException | MetadataProviderException e) {
+            delete(storeFile);
+            throw e instanceof MetadataProviderException ? (MetadataProviderException) e
+                    : new MetadataProviderException("Unable to index the metadata of " + getMetadataURL(), e);
+        }
+        LOG.info("{} entities indexed from {}, {} IdPs", metadata.index.size(), getMetadataURL(),
+                metadata.index.getIDPEntityIds().size());
+        LoadedMetadata previousMetadata = loadedMetadata;
+        loadedMetadata = metadata;
+        if (previousMetadata != null) {
+            delete(previousMetadata.index.getStoreFile());
+        }
+    }
+
+    /**
+     * @return the signature filter set by the metadata manager, null if none
+     */
+    private SignatureValidationFilter getSignatureValidationFilter() {
+        MetadataFilter filter = getMetadataFilter();
+        if (filter instanceof SignatureValidationFilter) {
+            return (SignatureValidationFilter) filter;
+        }
+        if (filter instanceof MetadataFilterChain) {
+            for (MetadataFilter chainedFilter : ((MetadataFilterChain) filter).getFilters()) {
+                if (chainedFilter instanceof SignatureValidationFilter) {
+                    return (SignatureValidationFilter) chainedFilter;
+                }
+            }
+        }
+        return null;
+    }
+
+    private EntityDescriptor parseEntityDescriptor(MetadataIndex index, String entityId,
+                                                   SignatureValidationFilter signatureFilter)
+            throws MetadataProviderException {
+        InputStream in = index.open(entityId);
+        if (in == null) {
+            return null;
+        }
+        try {
+            XMLObject metadata = unmarshallMetadata(in);
+            if (!(metadata instanceof EntityDescriptor)) {
+                throw new MetadataProviderException("Unexpected metadata stored for " + entityId);
+            }
+            EntityDescriptor descriptor = (EntityDescriptor) metadata;
+            if (descriptor.isSigned() && signatureFilter != null) {
+                signatureFilter.doFilter(descriptor);
+            }
+            releaseMetadataDOM(descriptor);
+            return descriptor;
+        } catch (UnmarshallingException | FilterException e) {
+            throw new MetadataProviderException("Invalid metadata of " + entityId, e);
+        }
+    }
+
+    @Override
+    protected XMLObject doGetMetadata() {
+        LoadedMetadata metadata = loadedMetadata;
+        return metadata != null ? metadata.retainedDescriptors : null;
+    }
+
+    @Override
+    protected EntityDescriptor doGetEntityDescriptor(String entityID) throws MetadataProviderException {
+        LoadedMetadata metadata = loadedMetadata;
+        if (metadata == null) {
+            return null;
+        }
+        EntityDescriptor descriptor = metadata.get(entityID);
+        if (descriptor == null && metadata.index.contains(entityID)) {
+            LOG.debug("Parsing the metadata of {}", entityID);
+            descriptor = parseEntityDescriptor(metadata.index, entityID, getSignatureValidationFilter());
+            metadata.cache(descriptor);
+        }
+        return descriptor;
+    }
+
+    @Override
+    protected DateTime getEarliestExpiration(DateTime defaultExpiration, DateTime now) {
+        LoadedMetadata metadata = loadedMetadata;
+        DateTime expiration = metadata != null ? metadata.index.getExpiration() : null;
+        return expiration != null && expiration.isBefore(defaultExpiration) ? expiration : defaultExpiration;
+    }
+
+    @Override
+    public Set<String> getIDPEntityIds() {
+        LoadedMetadata metadata = loadedMetadata;
+        return metadata != null ? metadata.index.getIDPEntityIds() : Collections.<String>emptySet();
+    }
+
+    @Override
+    public IdpEntry getIdpEntry(String entityId) {
+        LoadedMetadata metadata = loadedMetadata;
+        return metadata != null ? metadata.index.getIdpEntry(entityId) : null;
+    }
+
+    @Override
+    public Set<String> getSPEntityIds() {
+        LoadedMetadata metadata = loadedMetadata;
+        return metadata != null ? metadata.index.getSPEntityIds() : Collections.<String>emptySet();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        LoadedMetadata metadata = loadedMetadata;
+        loadedMetadata = null;
+        if (metadata != null) {
+            delete(metadata.index.getStoreFile());
+        }
+        super.destroy();
+    }
+
+    private static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOG.warn("Unable to delete {}", file, e);
+        }
+    }
+
+    /**
+     * @param retainedEntityIds entities parsed as soon as the metadata is loaded and kept in memory
+     */
+    public void setRetainedEntityIds(Set<String> retainedEntityIds) {
+        this.retainedEntityIds = new LinkedHashSet<>(retainedEntityIds);
+    }
+
+    /**
+     * @param maxCachedEntities maximum number of entities kept in memory once requested, besides the retained ones
+     */
+    public void setMaxCachedEntities(int maxCachedEntities) {
+        this.maxCachedEntities = maxCachedEntities;
+    }
+
+    /**
+     * Index of a version of the aggregate, with the entities parsed from it.
+     */
+    private static final class LoadedMetadata {
+
+        private final MetadataIndex index;
+        private final EntitiesDescriptor retainedDescriptors;
+        private final Map<String, EntityDescriptor> retainedDescriptorsById = new HashMap<>();
+        private final Map<String, EntityDescriptor> cachedDescriptors;
+
+        private LoadedMetadata(MetadataIndex index, int maxCachedEntities) {
+            this.index = index;
+            @SuppressWarnings("unchecked")
+            XMLObjectBuilder<EntitiesDescriptor> builder = Configuration.getBuilderFactory()
+                    .getBuilder(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+            this.retainedDescriptors = builder.buildObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+            this.cachedDescriptors = Collections.synchronizedMap(new LeastRecentlyUsedMap(maxCachedEntities));
+        }
+
+        private void retain(EntityDescriptor descriptor) {
+            retainedDescriptors.getEntityDescriptors().add(descriptor);
+            retainedDescriptorsById.put(descriptor.getEntityID(), descriptor);
+        }
+
+        private EntityDescriptor get(String entityId) {
+            EntityDescriptor descriptor = retainedDescriptorsById.get(entityId);
+            return descriptor != null ? descriptor : cachedDescriptors.get(entityId);
+        }
+
+        private void cache(EntityDescriptor descriptor) {
+            if (descriptor != null) {
+                cachedDescriptors.put(descriptor.getEntityID(), descriptor);
+            }
+        }
+    }
+
+    /**
+     * Entities parsed on demand, evicting the least recently used beyond the maximum size.
+     */
+    private static final class LeastRecentlyUsedMap extends LinkedHashMap<String, EntityDescriptor> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private LeastRecentlyUsedMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, EntityDescriptor> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import com.vmware.idm.samples.saml.metadata.IdpEntry;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.samlext.saml2mdui.UIInfo;
+import org.opensaml.xml.util.XMLConstants;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads an aggregate with StAX, verifying its signature on the fly, and copies each of its entity descriptors to a
+ * store file indexed by entity ID, so that the aggregate never has to be held in memory as a DOM.
+ * <p>
+ * The {@code ds:Signature} of the root is parsed on its own by the {@link AggregateSignatureVerifier}. The events
+ * preceding it are kept until the signature is known, then the whole root element, except the signature, is
+ * canonicalized into the digest of the reference. The nodes outside of the root element are not part of the digest,
+ * a signature referencing the whole document with processing instructions around the root is therefore rejected.
+ * <p>
+ * The entities expired, without entity ID or duplicated are left out of the index. The DTDs are rejected.
+ * <p>
+ * The display name and domain hints of the IdPs are read on the way, so that the {@link IdpEntry IdP entries} of the
+ * catalog are built without parsing the entities.
+ */
+final class StreamingMetadataIndexer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingMetadataIndexer.class);
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private final AggregateSignatureVerifier verifier;
+    private final boolean requireSignature;
+
+    /**
+     * @param verifier         verifier of the signature of the aggregate, null to ignore it
+     * @param requireSignature whether an aggregate without signature is rejected, when verified
+     */
+    StreamingMetadataIndexer(AggregateSignatureVerifier verifier, boolean requireSignature) {
+        this.verifier = verifier;
+        this.requireSignature = verifier != null && requireSignature;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * @param metadata  aggregate, or single entity descriptor
+     * @param storeFile file receiving the entity descriptors, replaced if it exists
+     * @throws MetadataProviderException if the metadata is invalid, expired or its signature can't be verified
+     */
+    MetadataIndex index(InputStream metadata, File storeFile) throws IOException, MetadataProviderException {
+        Indexing indexing;
+        try (CountingOutputStream store = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(storeFile)))) {
+            indexing = new Indexing(store);
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(metadata);
+            try {
+                indexing.read(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new MetadataProviderException("Invalid metadata: " + e.getMessage(), e);
+        }
+        return new MetadataIndex(storeFile, indexing.entries, indexing.idpEntries, indexing.spEntityIds,
+                indexing.expiration);
+    }
+
+    private enum DigestState {
+        /**
+         * The aggregate isn't signed, or its signature is ignored.
+         */
+        NONE,
+        /**
+         * The events are kept until the signature is read.
+         */
+        PENDING,
+        /**
+         * The events are canonicalized into the digest.
+         */
+        STREAMING
+    }
+
+    /**
+     * Text of an element displayed in the IdP catalog.
+     */
+    private enum DisplayText {
+        DISPLAY_NAME,
+        DOMAIN_HINT,
+        ORGANIZATION_DISPLAY_NAME
+    }
+
+    /**
+     * Call of a method of an event handler, possibly delayed until the handler is known.
+     */
+    private interface EventCall {
+
+        void call(XmlEventHandler handler) throws IOException;
+    }
+
+    /**
+     * State of the reading of one aggregate.
+     */
+    private final class Indexing {
+
+        private final CountingOutputStream store;
+        private final Writer storeWriter;
+        private final DateTime now = new DateTime(ISOChronology.getInstanceUTC());
+
+        private final Map<String, MetadataIndex.Entry> entries = new HashMap<>();
+        private final Map<String, IdpEntry> idpEntries = new HashMap<>();
+        private final Set<String> spEntityIds = new HashSet<>();
+        private DateTime expiration;
+
+        private final Deque<StartTag> elements = new ArrayDeque<>();
+        private int expiredDepth;
+
+        private String rootId;
+        private DigestState digestState;
+        private List<EventCall> pendingEvents = new ArrayList<>();
+        private ByteArrayOutputStream signature;
+        private Writer signatureOut;
+        private SubtreeWriter signatureWriter;
+        private int signatureDepth;
+        private AggregateSignatureVerifier.SignedReference signedReference;
+        private MessageDigest digest;
+        private ExclusiveCanonicalizer canonicalizer;
+
+        private String entityId;
+        private SubtreeWriter entityWriter;
+        private int entityDepth;
+        private int entityOffset;
+        private boolean entityIsIdp;
+        private boolean entityIsSp;
+
+        private DisplayText displayText;
+        private int displayTextDepth;
+        private String displayTextLanguage;
+        private StringBuilder text;
+        private String displayName;
+        private String organizationDisplayName;
+        private List<String> domainHints;
+
+        private Indexing(CountingOutputStream store) {
+            this.store = store;
+            this.storeWriter = new OutputStreamWriter(store, StandardCharsets.UTF_8);
+        }
+
+        private void read(XMLStreamReader reader) throws XMLStreamException, IOException,
+                MetadataProviderException {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElement(StartTag.of(reader));
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement();
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (!elements.isEmpty()) {
+                            String text = reader.getText();
+                            if (this.text != null) {
+                                this.text.append(text);
+                            }
+                            dispatch(handler -> handler.characters(text));
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        if (!elements.isEmpty()) {
+                            String text = reader.getText();
+                            dispatch(handler -> handler.comment(text));
+                        }
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        if (!elements.isEmpty()) {
+                            String target = reader.getPITarget();
+                            String data = reader.getPIData();
+                            dispatch(handler -> handler.processingInstruction(target, data));
+                        }
+                        break;
+                    case XMLStreamConstants.DTD:
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        throw new MetadataProviderException("DTDs are not allowed in the metadata");
+                    default:
+                        break;
+                }
+            }
+            storeWriter.flush();
+        }
+
+        private void startElement(StartTag tag) throws IOException, MetadataProviderException {
+            int depth = elements.size() + 1;
+            boolean entitiesDescriptor = tag.is(SAMLConstants.SAML20MD_NS, "EntitiesDescriptor");
+            boolean entityDescriptor = tag.is(SAMLConstants.SAML20MD_NS, "EntityDescriptor");
+            if (depth == 1) {
+                if (!entitiesDescriptor && !entityDescriptor) {
+                    throw new MetadataProviderException("Unexpected root element " + tag.qualifiedName());
+                }
+                rootId = tag.getAttribute("ID");
+                digestState = verifier != null ? DigestState.PENDING : DigestState.NONE;
+            } else if (depth == 2 && digestState == DigestState.PENDING) {
+                if (tag.is(XMLConstants.XMLSIG_NS, "Signature")) {
+                    signature = new ByteArrayOutputStream();
+                    signatureOut = new OutputStreamWriter(signature, StandardCharsets.UTF_8);
+                    signatureWriter = new SubtreeWriter(signatureOut, inheritedNamespaces());
+                    signatureDepth = depth;
+                } else {
+                    unsigned();
+                }
+            }
+            if ((entitiesDescriptor || entityDescriptor) && isExpired(tag)) {
+                if (depth == 1) {
+                    throw new MetadataProviderException("Metadata already expired");
+                }
+                if (expiredDepth == 0) {
+                    expiredDepth = depth;
+                }
+            }
+            if (entityDescriptor && entityDepth == 0) {
+                startEntity(tag, depth);
+            } else if (entityDepth > 0 && depth == entityDepth + 1) {
+                if (tag.is(SAMLConstants.SAML20MD_NS, "IDPSSODescriptor") && supportsSAML2(tag)) {
+                    entityIsIdp = true;
+                } else if (tag.is(SAMLConstants.SAML20MD_NS, "SPSSODescriptor") && supportsSAML2(tag)) {
+                    entityIsSp = true;
+                }
+            } else if (entityDepth > 0) {
+                startDisplayText(tag, depth);
+            }
+            dispatch(handler -> handler.startElement(tag));
+            elements.push(tag);
+        }
+
+        private void endElement() throws IOException, MetadataProviderException {
+            int depth = elements.size();
+            StartTag tag = elements.pop();
+            dispatch(handler -> handler.endElement(tag));
+            if (text != null && depth == displayTextDepth) {
+                endDisplayText();
+            }
+            if (signatureWriter != null && depth == signatureDepth) {
+                signatureWriter = null;
+                signatureRead();
+            }
+            if (depth == entityDepth) {
+                endEntity();
+            }
+            if (depth == expiredDepth) {
+                expiredDepth = 0;
+            }
+            if (depth == 1) {
+                if (digestState == DigestState.PENDING) {
+                    unsigned();
+                } else if (digestState == DigestState.STREAMING) {
+                    canonicalizer.flush();
+                    if (!MessageDigest.isEqual(digest.digest(), signedReference.digestValue)) {
+                        throw new MetadataProviderException("Digest of the metadata doesn't match its signature");
+                    }
+                    LOG.debug("Signature of the metadata verified");
+                }
+            }
+        }
+
+        /**
+         * Send the event to the writer of the current entity, and to the signature or the digest.
+         */
+        private void dispatch(EventCall call) throws IOException {
+            if (entityWriter != null) {
+                call.call(entityWriter);
+            }
+            if (signatureWriter != null) {
+                call.call(signatureWriter);
+            } else if (digestState == DigestState.PENDING) {
+                pendingEvents.add(call);
+            } else if (digestState == DigestState.STREAMING) {
+                call.call(canonicalizer);
+            }
+        }
+
+        private void unsigned() throws MetadataProviderException {
+            if (requireSignature) {
+                throw new MetadataProviderException("Metadata isn't signed");
+            }
+            LOG.debug("Metadata isn't signed");
+            digestState = DigestState.NONE;
+            pendingEvents = null;
+        }
+
+        private void signatureRead() throws IOException, MetadataProviderException {
+            signatureOut.flush();
+            signedReference = verifier.verify(signature.toByteArray(), rootId);
+            signature = null;
+            signatureOut = null;
+            try {
+                digest = MessageDigest.getInstance(signedReference.digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new MetadataProviderException("Unsupported digest method of the metadata signature", e);
+            }
+            canonicalizer = new ExclusiveCanonicalizer(
+                    new OutputStreamWriter(new DigestingOutputStream(digest), StandardCharsets.UTF_8),
+                    signedReference.inclusivePrefixes);
+            for (EventCall call : pendingEvents) {
+                call.call(canonicalizer);
+            }
+            pendingEvents = null;
+            digestState = DigestState.STREAMING;
+        }
+
+        private void startEntity(StartTag tag, int depth) throws IOException {
+            entityDepth = depth;
+            entityId = tag.getAttribute("entityID");
+            entityIsIdp = false;
+            entityIsSp = false;
+            displayName = null;
+            organizationDisplayName = null;
+            domainHints = new ArrayList<>();
+            if (entityId == null) {
+                LOG.warn("Ignoring an entity without entityID");
+            } else if (entries.containsKey(entityId)) {
+                LOG.warn("Ignoring the duplicate entity {}", entityId);
+            } else if (expiredDepth > 0) {
+                LOG.debug("Ignoring the expired entity {}", entityId);
+            } else {
+                storeWriter.flush();
+                entityOffset = (int) store.count;
+                entityWriter = new SubtreeWriter(storeWriter, inheritedNamespaces());
+            }
+        }
+
+        private void endEntity() throws IOException {
+            if (entityWriter != null) {
+                storeWriter.flush();
+                if (store.count > Integer.MAX_VALUE) {
+                    throw new IOException("Entity store larger than 2 GB");
+                }
+                entries.put(entityId, new MetadataIndex.Entry(entityOffset, (int) store.count - entityOffset));
+                if (entityIsIdp) {
+                    idpEntries.put(entityId, IdpEntry.of(entityId,
+                            displayName != null ? displayName : organizationDisplayName, domainHints));
+                }
+                if (entityIsSp) {
+                    spEntityIds.add(entityId);
+                }
+                entityWriter = null;
+            }
+            entityDepth = 0;
+        }
+
+        /**
+         * Start collecting the text of the element if it is one of the IdP information displayed in the catalog: an
+         * {@code mdui:DisplayName} or {@code mdui:DomainHint} in the extensions of the IDPSSODescriptor, or an
+         * {@code md:OrganizationDisplayName}.
+         */
+        private void startDisplayText(StartTag tag, int depth) {
+            Iterator<StartTag> ancestors = elements.iterator();
+            int relativeDepth = depth - entityDepth;
+            if (relativeDepth == 2) {
+                if (tag.is(SAMLConstants.SAML20MD_NS, "OrganizationDisplayName")
+                        && ancestors.next().is(SAMLConstants.SAML20MD_NS, "Organization")) {
+                    startText(DisplayText.ORGANIZATION_DISPLAY_NAME, depth, null);
+                }
+            } else if (relativeDepth == 4) {
+                StartTag parent = ancestors.next();
+                StartTag extensions = ancestors.next();
+                StartTag role = ancestors.next();
+                if (!extensions.is(SAMLConstants.SAML20MD_NS, "Extensions")
+                        || !role.is(SAMLConstants.SAML20MD_NS, "IDPSSODescriptor") || !supportsSAML2(role)) {
+                    return;
+                }
+                if (tag.is(UIInfo.MDUI_NS, "DisplayName")
+                        && parent.is(UIInfo.MDUI_NS, "UIInfo")) {
+                    startText(DisplayText.DISPLAY_NAME, depth, tag.getAttribute(XMLConstants.XML_NS, "lang"));
+                } else if (tag.is(UIInfo.MDUI_NS, "DomainHint")
+                        && parent.is(UIInfo.MDUI_NS, "DiscoHints")) {
+                    startText(DisplayText.DOMAIN_HINT, depth, null);
+                }
+            }
+        }
+
+        private void startText(DisplayText displayText, int depth, String language) {
+            this.displayText = displayText;
+            this.displayTextDepth = depth;
+            this.displayTextLanguage = language;
+            this.text = new StringBuilder();
+        }
+
+        /**
+         * Keep the text read, like {@link IdpEntry#of(org.opensaml.saml2.metadata.EntityDescriptor)}: the English
+         * display name or else the first one, the first display name of the organization and all the domain hints.
+         */
+        private void endDisplayText() {
+            String value = text.toString();
+            switch (displayText) {
+                case DISPLAY_NAME:
+                    if (displayName == null || "en".equalsIgnoreCase(displayTextLanguage)) {
+                        displayName = value;
+                    }
+                    break;
+                case DOMAIN_HINT:
+                    domainHints.add(value.trim());
+                    break;
+                case ORGANIZATION_DISPLAY_NAME:
+                    if (organizationDisplayName == null) {
+                        organizationDisplayName = value;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            text = null;
+            displayText = null;
+        }
+
+        /**
+         * @return the namespaces declared by the current element and its ancestors, by prefix
+         */
+        private Map<String, String> inheritedNamespaces() {
+            if (elements.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<String, String> namespaces = new LinkedHashMap<>();
+            for (Iterator<StartTag> ancestors = elements.descendingIterator(); ancestors.hasNext(); ) {
+                for (StartTag.Namespace namespace : ancestors.next().namespaces) {
+                    namespaces.put(namespace.prefix, namespace.namespaceURI);
+                }
+            }
+            return namespaces;
+        }
+
+        /**
+         * Take the validity of the element into account in the expiration of the index.
+         *
+         * @return whether the element already expired
+         */
+        private boolean isExpired(StartTag tag) throws MetadataProviderException {
+            try {
+                String validUntil = tag.getAttribute("validUntil");
+                String cacheDuration = tag.getAttribute("cacheDuration");
+                if (cacheDuration != null) {
+                    updateExpiration(now.plus(XMLHelper.durationToLong(cacheDuration.trim())));
+                }
+                if (validUntil != null) {
+                    DateTime end = new DateTime(validUntil.trim(), ISOChronology.getInstanceUTC());
+                    updateExpiration(end);
+                    return !end.isAfter(now);
+                }
+                return false;
+            } catch (IllegalArgumentException e) {
+                throw new MetadataProviderException("Invalid validity of " + tag.qualifiedName(), e);
+            }
+        }
+
+        private void updateExpiration(DateTime end) {
+            if (expiration == null || end.isBefore(expiration)) {
+                expiration = end;
+            }
+        }
+    }
+
+    private static boolean supportsSAML2(StartTag tag) {
+        String protocols = tag.getAttribute("protocolSupportEnumeration");
+        return protocols != null && Arrays.asList(protocols.trim().split("\\s+")).contains(SAMLConstants.SAML20P_NS);
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+
+    private static final class DigestingOutputStream extends OutputStream {
+
+        private final MessageDigest digest;
+
+        private DigestingOutputStream(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            digest.update(bytes, offset, length);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes a subtree as a standalone XML document: the namespaces in scope at its root, declared by its ancestors, are
+ * declared again on the root. The comments are dropped.
+ */
+final class SubtreeWriter implements XmlEventHandler {
+
+    private final Writer out;
+    private final Map<String, String> inheritedNamespaces;
+    private boolean root = true;
+
+    /**
+     * @param out                 writer receiving the subtree
+     * @param inheritedNamespaces namespaces declared by the ancestors of the root, by prefix
+     */
+    SubtreeWriter(Writer out, Map<String, String> inheritedNamespaces) {
+        this.out = out;
+        this.inheritedNamespaces = inheritedNamespaces;
+    }
+
+    @Override
+    public void startElement(StartTag tag) throws IOException {
+        out.write('<');
+        out.write(tag.qualifiedName());
+        if (root) {
+            Map<String, String> namespaces = new LinkedHashMap<>(inheritedNamespaces);
+            for (StartTag.Namespace namespace : tag.namespaces) {
+                namespaces.put(namespace.prefix, namespace.namespaceURI);
+            }
+            for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+                // an empty default namespace is the absence of declaration
+                if (!namespace.getKey().isEmpty() || !namespace.getValue().isEmpty()) {
+                    writeNamespace(namespace.getKey(), namespace.getValue());
+                }
+            }
+            root = false;
+        } else {
+            for (StartTag.Namespace namespace : tag.namespaces) {
+                writeNamespace(namespace.prefix, namespace.namespaceURI);
+            }
+        }
+        for (StartTag.Attribute attribute : tag.attributes) {
+            out.write(' ');
+            out.write(attribute.qualifiedName());
+            out.write("=\"");
+            XmlEscaping.escapeAttribute(attribute.value, out);
+            out.write('"');
+        }
+        out.write('>');
+    }
+
+    private void writeNamespace(String prefix, String namespaceURI) throws IOException {
+        out.write(prefix.isEmpty() ? " xmlns=\"" : " xmlns:" + prefix + "=\"");
+        XmlEscaping.escapeAttribute(namespaceURI, out);
+        out.write('"');
+    }
+
+    @Override
+    public void endElement(StartTag tag) throws IOException {
+        out.write("</");
+        out.write(tag.qualifiedName());
+        out.write('>');
+    }
+
+    @Override
+    public void characters(String text) throws IOException {
+        XmlEscaping.escapeText(text, out);
+    }
+
+    @Override
+    public void comment(String text) {
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws IOException {
+        XmlEscaping.writeProcessingInstruction(target, data, out);
+    }
+}
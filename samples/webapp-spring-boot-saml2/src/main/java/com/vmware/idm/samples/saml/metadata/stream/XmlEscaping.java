@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Escaping of the character data and the attribute values, as defined by Canonical XML: the output is both
+ * canonical and well-formed.
+ */
+final class XmlEscaping {
+
+    private XmlEscaping() {
+    }
+
+    static void escapeText(String text, Writer out) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '\r':
+                    out.write("&#xD;");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+
+    static void escapeAttribute(String value, Writer out) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '"':
+                    out.write("&quot;");
+                    break;
+                case '\t':
+                    out.write("&#x9;");
+                    break;
+                case '\n':
+                    out.write("&#xA;");
+                    break;
+                case '\r':
+                    out.write("&#xD;");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+
+    static void writeProcessingInstruction(String target, String data, Writer out) throws IOException {
+        out.write("<?");
+        out.write(target);
+        if (data != null && !data.isEmpty()) {
+            out.write(' ');
+            out.write(data);
+        }
+        out.write("?>");
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import java.io.IOException;
+
+/**
+ * Receiver of the events of a subtree read by the {@link StreamingMetadataIndexer}.
+ */
+interface XmlEventHandler {
+
+    void startElement(StartTag tag) throws IOException;
+
+    void endElement(StartTag tag) throws IOException;
+
+    void characters(String text) throws IOException;
+
+    void comment(String text) throws IOException;
+
+    void processingInstruction(String target, String data) throws IOException;
+}
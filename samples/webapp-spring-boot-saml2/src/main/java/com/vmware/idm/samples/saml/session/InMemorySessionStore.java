@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reference {@link SessionStore}, keeping the values in the memory of the node.
+ * <p>
+ * It isn't shared: a cluster needs sticky sessions with it, or a store backed by a distributed cache. The expired
+ * values are ignored when read and swept in the background.
+ */
+public class InMemorySessionStore implements SessionStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InMemorySessionStore.class);
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> sweeper;
+
+    @Override
+    public byte[] get(String id) {
+        Entry entry = entries.get(id);
+        return entry != null && entry.expiration > System.currentTimeMillis() ? entry.value : null;
+    }
+
+    @Override
+    public void put(String id, byte[] value, long timeToLive) {
+        entries.put(id, new Entry(value, System.currentTimeMillis() + timeToLive));
+    }
+
+    @Override
+    public void remove(String id) {
+        entries.remove(id);
+    }
+
+    /**
+     * Remove the expired values.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiration <= now) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        LOG.debug("{} expired sessions removed from the store", removed);
+    }
+
+    /**
+     * Sweep the expired values periodically.
+     *
+     * @param scheduler     scheduler running the sweeps
+     * @param sweepInterval delay in ms between two sweeps
+     */
+    public synchronized void startSweeping(ScheduledExecutorService scheduler, long sweepInterval) {
+        stopSweeping();
+        sweeper = scheduler.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopSweeping() {
+        if (sweeper != null) {
+            sweeper.cancel(false);
+            sweeper = null;
+        }
+    }
+
+    /**
+     * @return number of values currently stored, including the expired ones not swept yet
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+
+        private final byte[] value;
+        private final long expiration;
+
+        private Entry(byte[] value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.session;
+
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary form of the authentications of the SAML users, kept in a {@link SessionStore}.
+ * <p>
+ * Only the {@link ExpiringUsernameAuthenticationToken}s built by the {@code SAMLAuthenticationProvider} are supported,
+ * with a {@link UserDetails} or string principal and a {@link SAMLCredential}. The user is written field by field,
+ * without its password, erased once authenticated. The credential is written as the compressed XML of its assertion,
+ * and of its NameID and attributes when they don't come from the assertion, e.g. once decrypted. It is only parsed
+ * again when the credential of the deserialized authentication is accessed, e.g. on a global logout, and an
+ * authentication serialized again before that reuses its bytes.
+ */
+public class SAMLAuthenticationSerializer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SAMLAuthenticationSerializer.class);
+
+    private static final byte VERSION = 1;
+
+    private static final byte NO_NAME_ID = 0;
+    private static final byte SUBJECT_NAME_ID = 1;
+    private static final byte OTHER_NAME_ID = 2;
+
+    private final ParserPool parserPool;
+
+    /**
+     * @param parserPool pool parsing the XML of the credentials
+     */
+    public SAMLAuthenticationSerializer(ParserPool parserPool) {
+        this.parserPool = parserPool;
+    }
+
+    /**
+     * @return the authentication in binary form, or null if it isn't supported
+     */
+    public byte[] serialize(Authentication authentication) {
+        if (!(authentication instanceof ExpiringUsernameAuthenticationToken)) {
+            return null;
+        }
+        ExpiringUsernameAuthenticationToken token = (ExpiringUsernameAuthenticationToken) authentication;
+        Object principal = token.getPrincipal();
+        if (!(principal instanceof UserDetails || principal instanceof String)) {
+            return null;
+        }
+        byte[] credential;
+        if (token instanceof StoredAuthenticationToken && !((StoredAuthenticationToken) token).isDecoded()) {
+            credential = ((StoredAuthenticationToken) token).encodedCredential;
+        } else if (token.getCredentials() instanceof SAMLCredential) {
+            try {
+                credential = encodeCredential((SAMLCredential) token.getCredentials());
+            } catch (MarshallingException | IOException e) {
+                LOG.warn("Unable to serialize the SAML credential of {}", token.getName(), e);
+                return null;
+            }
+        } else if (token.getCredentials() == null) {
+            credential = null;
+        } else {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(token.getTokenExpiration() != null ? token.getTokenExpiration().getTime() : -1);
+            if (principal instanceof UserDetails) {
+                UserDetails user = (UserDetails) principal;
+                out.writeBoolean(true);
+                out.writeUTF(user.getUsername());
+                out.writeBoolean(user.isEnabled());
+                out.writeBoolean(user.isAccountNonExpired());
+                out.writeBoolean(user.isCredentialsNonExpired());
+                out.writeBoolean(user.isAccountNonLocked());
+                writeAuthorities(out, user.getAuthorities());
+            } else {
+                out.writeBoolean(false);
+                out.writeUTF((String) principal);
+            }
+            writeAuthorities(out, token.getAuthorities());
+            // the provider sets the user as the details
+            out.writeBoolean(token.getDetails() != null && token.getDetails() == principal);
+            writeBytes(out, credential);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the authentication, or null if the bytes weren't produced by this serializer
+     */
+    public Authentication deserialize(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            long expiration = in.readLong();
+            Object principal;
+            if (in.readBoolean()) {
+                String username = in.readUTF();
+                boolean enabled = in.readBoolean();
+                boolean accountNonExpired = in.readBoolean();
+                boolean credentialsNonExpired = in.readBoolean();
+                boolean accountNonLocked = in.readBoolean();
+                principal = new User(username, "", enabled, accountNonExpired, credentialsNonExpired,
+                        accountNonLocked, readAuthorities(in));
+            } else {
+                principal = in.readUTF();
+            }
+            List<GrantedAuthority> authorities = readAuthorities(in);
+            boolean principalAsDetails = in.readBoolean();
+            StoredAuthenticationToken token = new StoredAuthenticationToken(
+                    expiration >= 0 ? new Date(expiration) : null, principal, authorities, this, readBytes(in));
+            if (principalAsDetails) {
+                token.setDetails(principal);
+            }
+            return token;
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Invalid serialized authentication", e);
+            return null;
+        }
+    }
+
+    private byte[] encodeCredential(SAMLCredential credential) throws MarshallingException, IOException {
+        Assertion assertion = credential.getAuthenticationAssertion();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeUTF(credential.getRemoteEntityID());
+            writeNullable(out, credential.getLocalEntityID());
+            writeNullable(out, credential.getRelayState());
+            writeXml(out, assertion);
+            NameID nameID = credential.getNameID();
+            if (nameID == null) {
+                out.writeByte(NO_NAME_ID);
+            } else if (assertion.getSubject() != null && nameID == assertion.getSubject().getNameID()) {
+                out.writeByte(SUBJECT_NAME_ID);
+            } else {
+                out.writeByte(OTHER_NAME_ID);
+                writeXml(out, nameID);
+            }
+            List<Attribute> attributes = credential.getAttributes();
+            boolean assertionAttributes = attributes.equals(attributesOf(assertion));
+            out.writeBoolean(assertionAttributes);
+            if (!assertionAttributes) {
+                out.writeInt(attributes.size());
+                for (Attribute attribute : attributes) {
+                    writeXml(out, attribute);
+                }
+            }
+            Serializable additionalData = credential.getAdditionalData();
+            if (additionalData == null) {
+                writeBytes(out, null);
+            } else {
+                ByteArrayOutputStream serializedData = new ByteArrayOutputStream();
+                try (ObjectOutputStream dataOut = new ObjectOutputStream(serializedData)) {
+                    dataOut.writeObject(additionalData);
+                }
+                writeBytes(out, serializedData.toByteArray());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private SAMLCredential decodeCredential(byte[] credential) throws IOException, XMLParserException,
+            UnmarshallingException, ClassNotFoundException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(credential)))) {
+            String remoteEntityID = in.readUTF();
+            String localEntityID = readNullable(in);
+            String relayState = readNullable(in);
+            Assertion assertion = readXml(in);
+            NameID nameID;
+            byte nameIDType = in.readByte();
+            if (nameIDType == SUBJECT_NAME_ID) {
+                nameID = assertion.getSubject().getNameID();
+            } else if (nameIDType == OTHER_NAME_ID) {
+                nameID = readXml(in);
+            } else {
+                nameID = null;
+            }
+            List<Attribute> attributes;
+            if (in.readBoolean()) {
+                attributes = attributesOf(assertion);
+            } else {
+                int count = in.readInt();
+                attributes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    attributes.add(readXml(in));
+                }
+            }
+            byte[] serializedData = readBytes(in);
+            Serializable additionalData = null;
+            if (serializedData != null) {
+                try (ObjectInputStream dataIn = new ObjectInputStream(new ByteArrayInputStream(serializedData))) {
+                    additionalData = (Serializable) dataIn.readObject();
+                }
+            }
+            return new SAMLCredential(nameID, assertion, remoteEntityID, relayState, attributes, localEntityID,
+                    additionalData);
+        }
+    }
+
+    private static List<Attribute> attributesOf(Assertion assertion) {
+        List<Attribute> attributes = new ArrayList<>();
+        for (AttributeStatement statement : assertion.getAttributeStatements()) {
+            attributes.addAll(statement.getAttributes());
+        }
+        return attributes;
+    }
+
+    private static void writeXml(DataOutputStream out, XMLObject object) throws MarshallingException, IOException {
+        Element element = Configuration.getMarshallerFactory().getMarshaller(object).marshall(object);
+        writeBytes(out, XMLHelper.nodeToString(element).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends XMLObject> T readXml(DataInputStream in) throws IOException, XMLParserException,
+            UnmarshallingException {
+        Element element = parserPool.parse(new ByteArrayInputStream(readBytes(in))).getDocumentElement();
+        return (T) Configuration.getUnmarshallerFactory().getUnmarshaller(element).unmarshall(element);
+    }
+
+    private static void writeAuthorities(DataOutputStream out, Collection<? extends GrantedAuthority> authorities)
+            throws IOException {
+        out.writeInt(authorities.size());
+        for (GrantedAuthority authority : authorities) {
+            out.writeUTF(authority.getAuthority());
+        }
+    }
+
+    private static List<GrantedAuthority> readAuthorities(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<GrantedAuthority> authorities = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            authorities.add(new SimpleGrantedAuthority(in.readUTF()));
+        }
+        return authorities;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value != null ? value.length : -1);
+        if (value != null) {
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Deserialized authentication, parsing its SAML credential on the first access.
+     */
+    private static final class StoredAuthenticationToken extends ExpiringUsernameAuthenticationToken {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient SAMLAuthenticationSerializer serializer;
+        private final byte[] encodedCredential;
+        private volatile SAMLCredential credential;
+        private volatile boolean decoded;
+
+        private StoredAuthenticationToken(Date expiration, Object principal,
+                                          Collection<? extends GrantedAuthority> authorities,
+                                          SAMLAuthenticationSerializer serializer, byte[] encodedCredential) {
+            super(expiration, principal, null, authorities);
+            this.serializer = serializer;
+            this.encodedCredential = encodedCredential;
+            this.decoded = encodedCredential == null;
+        }
+
+        @Override
+        public Object getCredentials() {
+            if (!decoded) {
+                synchronized (this) {
+                    if (!decoded) {
+                        try {
+                            credential = serializer.decodeCredential(encodedCredential);
+                        } catch (IOException | XMLParserException | UnmarshallingException
+                                | ClassNotFoundException e) {
+                            LOG.error("Unable to read the SAML credential of {}", getName(), e);
+                        }
+                        decoded = true;
+                    }
+                }
+            }
+            return credential;
+        }
+
+        private boolean isDecoded() {
+            return decoded;
+        }
+
+        // a copy without the encoded credential, which needs the serializer
+        private Object writeReplace() {
+            ExpiringUsernameAuthenticationToken token = new ExpiringUsernameAuthenticationToken(
+                    getTokenExpiration(), getPrincipal(), getCredentials(), getAuthorities());
+            token.setDetails(getDetails());
+            return token;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.session;
+
+/**
+ * Store shared by the nodes of a cluster, keeping the serialized authentications of the users by session ID.
+ * <p>
+ * Implementations would typically delegate to a distributed cache, e.g. Redis or Hazelcast, handling the expiration
+ * of the entries themselves.
+ */
+public interface SessionStore {
+
+    /**
+     * @return the value stored under the given ID, or null if it's missing or expired
+     */
+    byte[] get(String id);
+
+    /**
+     * Store a value, replacing the one stored under the same ID.
+     *
+     * @param timeToLive time in ms after which the value expires
+     */
+    void put(String id, byte[] value, long timeToLive);
+
+    void remove(String id);
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.authentication.AuthenticationTrustResolver;
+import org.springframework.security.authentication.AuthenticationTrustResolverImpl;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.SaveContextOnUpdateOrErrorResponseWrapper;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Security context repository keeping the authentications in a {@link SessionStore} shared by the nodes of a
+ * cluster, rather than in the HTTP session.
+ * <p>
+ * The authentication is stored in the compact form of a {@link SAMLAuthenticationSerializer} under a random ID, sent
+ * in a cookie. A new ID is generated for each new authentication, and the previous entry removed. The entry is
+ * written again only when half of its time to live elapsed, so that most requests only read the store. The SAML
+ * credential of the authentication is parsed only when accessed. The authentications the serializer doesn't support
+ * aren't stored.
+ */
+public class SessionStoreSecurityContextRepository implements SecurityContextRepository, LogoutHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionStoreSecurityContextRepository.class);
+
+    static final String COOKIE_NAME = "saml_session";
+
+    private static final String STATE_ATTRIBUTE = SessionStoreSecurityContextRepository.class.getName() + ".STATE";
+
+    private final SessionStore store;
+    private final SAMLAuthenticationSerializer serializer;
+    private final long timeToLive;
+    private final SecureRandom random = new SecureRandom();
+    private final AuthenticationTrustResolver trustResolver = new AuthenticationTrustResolverImpl();
+
+    /**
+     * @param store      store shared by the nodes
+     * @param serializer serializer of the authentications
+     * @param timeToLive time in ms after which an authentication expires when the user isn't active
+     */
+    public SessionStoreSecurityContextRepository(SessionStore store, SAMLAuthenticationSerializer serializer,
+                                                 long timeToLive) {
+        this.store = store;
+        this.serializer = serializer;
+        this.timeToLive = timeToLive;
+    }
+
+    @Override
+    public SecurityContext loadContext(HttpRequestResponseHolder requestResponseHolder) {
+        HttpServletRequest request = requestResponseHolder.getRequest();
+        State state = new State();
+        request.setAttribute(STATE_ATTRIBUTE, state);
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        Cookie cookie = WebUtils.getCookie(request, COOKIE_NAME);
+        byte[] value = cookie != null ? store.get(cookie.getValue()) : null;
+        if (value != null && value.length > Long.BYTES) {
+            Authentication authentication = serializer.deserialize(Arrays.copyOfRange(value, Long.BYTES, value.length));
+            if (authentication != null) {
+                state.id = cookie.getValue();
+                state.storedAt = ByteBuffer.wrap(value).getLong();
+                state.authentication = authentication;
+                context.setAuthentication(authentication);
+            }
+        } else if (cookie != null) {
+            LOG.debug("Session {} missing or expired", cookie.getValue());
+        }
+        if (cookie != null && state.id == null) {
+            // forget the cookie, or an entry the serializer doesn't read anymore
+            state.id = cookie.getValue();
+        }
+        requestResponseHolder.setResponse(new SaveToStoreResponseWrapper(requestResponseHolder.getResponse(),
+                request, state));
+        return context;
+    }
+
+    @Override
+    public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+        SaveToStoreResponseWrapper wrapper = WebUtils.getNativeResponse(response, SaveToStoreResponseWrapper.class);
+        if (wrapper == null) {
+            throw new IllegalStateException("Cannot invoke saveContext on response " + response
+                    + ". You must use the HttpRequestResponseHolder.response after invoking loadContext");
+        }
+        if (!wrapper.isContextSaved()) {
+            wrapper.saveContext(context);
+        }
+    }
+
+    @Override
+    public boolean containsContext(HttpServletRequest request) {
+        State state = (State) request.getAttribute(STATE_ATTRIBUTE);
+        if (state != null) {
+            return state.authentication != null;
+        }
+        Cookie cookie = WebUtils.getCookie(request, COOKIE_NAME);
+        return cookie != null && store.get(cookie.getValue()) != null;
+    }
+
+    /**
+     * Remove the authentication of the user from the store and expire the cookie.
+     */
+    @Override
+    public void logout(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
+        State state = (State) request.getAttribute(STATE_ATTRIBUTE);
+        Cookie cookie = WebUtils.getCookie(request, COOKIE_NAME);
+        String id = state != null ? state.id : cookie != null ? cookie.getValue() : null;
+        if (id == null) {
+            return;
+        }
+        store.remove(id);
+        if (!response.isCommitted()) {
+            response.addCookie(cookie(request, "", 0));
+        }
+        if (state != null) {
+            state.id = null;
+            state.authentication = null;
+        }
+    }
+
+    private void store(SecurityContext context, HttpServletRequest request, HttpServletResponse response,
+                       State state) {
+        Authentication authentication = context.getAuthentication();
+        if (authentication == null || trustResolver.isAnonymous(authentication)) {
+            if (state.id != null) {
+                LOG.debug("Removing session {}", state.id);
+                store.remove(state.id);
+                response.addCookie(cookie(request, "", 0));
+                state.id = null;
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (authentication == state.authentication && now - state.storedAt < timeToLive / 2) {
+            return;
+        }
+        byte[] serialized = serializer.serialize(authentication);
+        if (serialized == null) {
+            LOG.debug("Authentication of {} not supported, not stored", authentication.getName());
+            return;
+        }
+        byte[] value = ByteBuffer.allocate(Long.BYTES + serialized.length).putLong(now).put(serialized).array();
+        if (authentication == state.authentication) {
+            store.put(state.id, value, timeToLive);
+        } else {
+            if (state.id != null) {
+                store.remove(state.id);
+            }
+            state.id = newId();
+            store.put(state.id, value, timeToLive);
+            response.addCookie(cookie(request, state.id, -1));
+            LOG.debug("Authentication of {} stored in session {}", authentication.getName(), state.id);
+        }
+        state.storedAt = now;
+        state.authentication = authentication;
+    }
+
+    private String newId() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static Cookie cookie(HttpServletRequest request, String value, int maxAge) {
+        Cookie cookie = new Cookie(COOKIE_NAME, value);
+        cookie.setPath(request.getContextPath() + "/");
+        cookie.setMaxAge(maxAge);
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        return cookie;
+    }
+
+    private static final class State {
+
+        private String id;
+        private long storedAt;
+        private Authentication authentication;
+    }
+
+    /**
+     * Stores the context before the response is committed, while the cookie can still be set.
+     */
+    private final class SaveToStoreResponseWrapper extends SaveContextOnUpdateOrErrorResponseWrapper {
+
+        private final HttpServletRequest request;
+        private final State state;
+
+        private SaveToStoreResponseWrapper(HttpServletResponse response, HttpServletRequest request, State state) {
+            super(response, true);
+            this.request = request;
+            this.state = state;
+        }
+
+        @Override
+        protected void saveContext(SecurityContext context) {
+            store(context, request, (HttpServletResponse) getResponse(), state);
+        }
+    }
+}
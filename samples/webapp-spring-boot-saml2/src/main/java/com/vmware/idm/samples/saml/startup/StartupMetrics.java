@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.startup;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes the startup time measured by a {@link StartupTimer} and the time spent creating the slowest beans on the
+ * /metrics endpoint, under the given prefix.
+ */
+public class StartupMetrics implements PublicMetrics {
+
+    private final String prefix;
+    private final StartupTimer timer;
+    private final int publishedBeans;
+
+    public StartupMetrics(String prefix, StartupTimer timer, int publishedBeans) {
+        this.prefix = prefix;
+        this.timer = timer;
+        this.publishedBeans = publishedBeans;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>(prefix + ".time", timer.getStartupTime()));
+        metrics.add(new Metric<>(prefix + ".beans.time", timer.getBeansTime()));
+        for (Map.Entry<String, Long> bean : timer.getSlowestBeans(publishedBeans).entrySet()) {
+            metrics.add(new Metric<>(prefix + ".beans." + bean.getKey() + ".time", bean.getValue()));
+        }
+        return metrics;
+    }
+}
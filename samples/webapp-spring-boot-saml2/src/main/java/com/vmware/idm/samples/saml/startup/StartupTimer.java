@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.startup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessorAdapter;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bean post processor timing the creation of each bean, from its instantiation to the end of its initialization,
+ * and the startup of the application until it is ready to serve requests.
+ * <p>
+ * The time of a bean excludes the time spent creating the beans it depends on, so that the slowest beans are the
+ * ones actually slow to create. The bean factory post processors, e.g. the {@code SAMLBootstrap}, and the bean post
+ * processors created before this one aren't timed, but are part of the startup time.
+ */
+public class StartupTimer extends InstantiationAwareBeanPostProcessorAdapter
+        implements ApplicationListener<ApplicationReadyEvent> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupTimer.class);
+
+    private final int loggedBeans;
+    private final Map<String, Long> beanTimes = new ConcurrentHashMap<>();
+    // beans being created by each thread, the innermost first
+    private final ThreadLocal<Deque<Creation>> creations = ThreadLocal.withInitial(ArrayDeque::new);
+    private volatile long startupTime = -1;
+
+    /**
+     * @param loggedBeans number of the slowest beans logged once the application is ready
+     */
+    public StartupTimer(int loggedBeans) {
+        this.loggedBeans = loggedBeans;
+    }
+
+    @Override
+    public Object postProcessBeforeInstantiation(Class<?> beanClass, String beanName) {
+        creations.get().push(new Creation(beanName, System.nanoTime()));
+        return null;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        // the objects of the factory beans are post processed without being instantiated, and a failed creation
+        // leaves its bean on the stack
+        Deque<Creation> stack = creations.get();
+        if (!contains(stack, beanName)) {
+            return bean;
+        }
+        long now = System.nanoTime();
+        Creation creation;
+        do {
+            creation = stack.pop();
+        } while (!creation.beanName.equals(beanName));
+        long time = now - creation.start;
+        beanTimes.merge(beanName, time - creation.nestedTime, Long::sum);
+        if (stack.isEmpty()) {
+            creations.remove();
+        } else {
+            stack.peek().nestedTime += time;
+        }
+        return bean;
+    }
+
+    private static boolean contains(Deque<Creation> stack, String beanName) {
+        for (Creation creation : stack) {
+            if (creation.beanName.equals(beanName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        startupTime = ManagementFactory.getRuntimeMXBean().getUptime();
+        StringBuilder slowestBeans = new StringBuilder();
+        for (Map.Entry<String, Long> bean : getSlowestBeans(loggedBeans).entrySet()) {
+            slowestBeans.append(slowestBeans.length() == 0 ? "" : ", ").append(bean.getKey()).append(' ')
+                    .append(bean.getValue()).append(" ms");
+        }
+        LOG.info("Ready {} ms after the start of the JVM, {} ms spent creating {} beans, the slowest: {}",
+                startupTime, getBeansTime(), beanTimes.size(), slowestBeans);
+    }
+
+    /**
+     * @return the time in ms from the start of the JVM until the application was ready, or -1 if it isn't yet
+     */
+    public long getStartupTime() {
+        return startupTime;
+    }
+
+    /**
+     * @return the time in ms spent creating the timed beans
+     */
+    public long getBeansTime() {
+        long time = 0;
+        for (long beanTime : beanTimes.values()) {
+            time += beanTime;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(time);
+    }
+
+    /**
+     * @return the time in ms spent creating each of the slowest beans, the slowest first
+     */
+    public Map<String, Long> getSlowestBeans(int count) {
+        List<Map.Entry<String, Long>> beans = new ArrayList<>(beanTimes.entrySet());
+        beans.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> slowestBeans = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, Long>> iterator = beans.iterator();
+        while (slowestBeans.size() < count && iterator.hasNext()) {
+            Map.Entry<String, Long> bean = iterator.next();
+            slowestBeans.put(bean.getKey(), TimeUnit.NANOSECONDS.toMillis(bean.getValue()));
+        }
+        return slowestBeans;
+    }
+
+    private static final class Creation {
+
+        private final String beanName;
+        private final long start;
+        private long nestedTime;
+
+        private Creation(String beanName, long start) {
+            this.beanName = beanName;
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.storage;
+
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnContextComparisonTypeEnumeration;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.RequestedAuthnContext;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Encodes the parts of an AuthnRequest checked by the WebSSO consumer in a compact, HMAC-SHA256 protected string:
+ * its ID, expiration, assertion consumer service, binding and requested authentication context.
+ * <p>
+ * Any node sharing the secret can decode it and check the InResponseTo of the response, without keeping the sent
+ * request on the server side. Without a secret, a random key is generated: only this process can decode the
+ * requests it encoded, which does not work in a cluster.
+ */
+public class AuthnRequestCodec {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AuthnRequestCodec.class);
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long validity;
+
+    /**
+     * @param secret   secret shared by all the nodes of the SP, or null or empty to generate a key for this process
+     * @param validity delay in ms during which the response to a request is accepted
+     */
+    public AuthnRequestCodec(String secret, long validity) {
+        if (secret == null || secret.isEmpty()) {
+            LOG.warn("No secret set to sign the AuthnRequest cookies, using a random key: the responses to the "
+                    + "requests sent by another node or before a restart will be rejected");
+            byte[] randomKey = new byte[32];
+            new SecureRandom().nextBytes(randomKey);
+            this.key = new SecretKeySpec(randomKey, HMAC_ALGORITHM);
+        } else {
+            this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        }
+        this.validity = validity;
+    }
+
+    /**
+     * @return the encoded request, valid until now plus the validity
+     */
+    public String encode(AuthnRequest request) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(request.getID());
+            out.writeLong(System.currentTimeMillis() + validity);
+            writeNullable(out, request.getAssertionConsumerServiceURL());
+            out.writeInt(request.getAssertionConsumerServiceIndex() != null
+                    ? request.getAssertionConsumerServiceIndex() : -1);
+            writeNullable(out, request.getProtocolBinding());
+            RequestedAuthnContext authnContext = request.getRequestedAuthnContext();
+            if (authnContext == null) {
+                out.writeInt(-1);
+            } else {
+                List<AuthnContextClassRef> classRefs = authnContext.getAuthnContextClassRefs();
+                out.writeInt(classRefs.size());
+                for (AuthnContextClassRef classRef : classRefs) {
+                    out.writeUTF(classRef.getAuthnContextClassRef());
+                }
+                writeNullable(out, authnContext.getComparison() != null
+                        ? authnContext.getComparison().toString() : null);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        return ENCODER.encodeToString(payload) + '.' + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * @return the request, or null if the value was not produced by this codec or if it expired
+     */
+    public AuthnRequest decode(String value) {
+        int separator = value.indexOf('.');
+        if (separator < 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(value.substring(0, separator));
+            signature = DECODER.decode(value.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(sign(payload), signature)) {
+            LOG.debug("Invalid signature of the encoded AuthnRequest {}", value);
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            AuthnRequest request = build(AuthnRequest.DEFAULT_ELEMENT_NAME);
+            request.setID(in.readUTF());
+            if (in.readLong() < System.currentTimeMillis()) {
+                LOG.debug("AuthnRequest {} expired", request.getID());
+                return null;
+            }
+            request.setAssertionConsumerServiceURL(readNullable(in));
+            int index = in.readInt();
+            request.setAssertionConsumerServiceIndex(index >= 0 ? index : null);
+            request.setProtocolBinding(readNullable(in));
+            int classRefCount = in.readInt();
+            if (classRefCount >= 0) {
+                RequestedAuthnContext authnContext = build(RequestedAuthnContext.DEFAULT_ELEMENT_NAME);
+                for (int i = 0; i < classRefCount; i++) {
+                    AuthnContextClassRef classRef = build(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+                    classRef.setAuthnContextClassRef(in.readUTF());
+                    authnContext.getAuthnContextClassRefs().add(classRef);
+                }
+                String comparison = readNullable(in);
+                if (comparison != null) {
+                    authnContext.setComparison(comparisonOf(comparison));
+                }
+                request.setRequestedAuthnContext(authnContext);
+            }
+            return request;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static AuthnContextComparisonTypeEnumeration comparisonOf(String comparison) {
+        for (AuthnContextComparisonTypeEnumeration value : new AuthnContextComparisonTypeEnumeration[]{
+                AuthnContextComparisonTypeEnumeration.EXACT, AuthnContextComparisonTypeEnumeration.MINIMUM,
+                AuthnContextComparisonTypeEnumeration.MAXIMUM, AuthnContextComparisonTypeEnumeration.BETTER}) {
+            if (value.toString().equals(comparison)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T build(QName name) {
+        XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+        XMLObjectBuilder<?> builder = builderFactory.getBuilder(name);
+        return (T) builder.buildObject(name);
+    }
+
+    public long getValidity() {
+        return validity;
+    }
+}
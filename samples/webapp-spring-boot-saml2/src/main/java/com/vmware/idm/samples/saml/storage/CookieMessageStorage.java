@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.storage;
+
+import com.vmware.idm.samples.saml.websso.ReplayCache;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.xml.XMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml.storage.HttpSessionStorage;
+import org.springframework.security.saml.storage.SAMLMessageStorage;
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Message storage keeping the sent AuthnRequests in cookies of the browser instead of the HTTP session, so that
+ * {@code /saml/login} does not create a session for each anonymous visitor and the response of the IdP can be
+ * consumed by any node.
+ * <p>
+ * Each request is kept in its own cookie, encoded and signed by the {@link AuthnRequestCodec}, so that several
+ * logins can be in progress in the same browser. A request is accepted only once thanks to the {@link ReplayCache},
+ * and until it expires. The other messages, e.g. the LogoutRequests of the authenticated users, are still kept in
+ * the session.
+ */
+public class CookieMessageStorage implements SAMLMessageStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CookieMessageStorage.class);
+
+    static final String COOKIE_PREFIX = "saml_";
+
+    private final AuthnRequestCodec codec;
+    private final ReplayCache replayCache;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private String storedMessageID;
+    private SAMLMessageStorage sessionStorage;
+
+    public CookieMessageStorage(AuthnRequestCodec codec, ReplayCache replayCache, HttpServletRequest request,
+                                HttpServletResponse response) {
+        this.codec = codec;
+        this.replayCache = replayCache;
+        this.request = request;
+        this.response = response;
+    }
+
+    @Override
+    public void storeMessage(String messageID, XMLObject message) {
+        if (!(message instanceof AuthnRequest)) {
+            getSessionStorage().storeMessage(messageID, message);
+            return;
+        }
+        if (messageID.equals(storedMessageID)) {
+            // already stored before being sent, see StoringBeforeSendWebSSOProfile
+            return;
+        }
+        if (response.isCommitted()) {
+            LOG.warn("AuthnRequest {} stored after the response was sent, the response of the IdP will be rejected",
+                    messageID);
+            return;
+        }
+        response.addCookie(cookie(messageID, codec.encode((AuthnRequest) message), codec.getValidity() / 1000));
+        storedMessageID = messageID;
+    }
+
+    @Override
+    public XMLObject retrieveMessage(String messageID) {
+        Cookie cookie = WebUtils.getCookie(request, COOKIE_PREFIX + messageID);
+        if (cookie == null) {
+            return request.getSession(false) != null ? getSessionStorage().retrieveMessage(messageID) : null;
+        }
+        if (!response.isCommitted()) {
+            response.addCookie(cookie(messageID, "", 0));
+        }
+        AuthnRequest authnRequest = codec.decode(cookie.getValue());
+        if (authnRequest == null || !messageID.equals(authnRequest.getID())) {
+            LOG.debug("AuthnRequest {} invalid or expired", messageID);
+            return null;
+        }
+        if (!replayCache.add("InResponseTo!" + messageID, System.currentTimeMillis() + codec.getValidity())) {
+            LOG.debug("AuthnRequest {} already answered", messageID);
+            return null;
+        }
+        return authnRequest;
+    }
+
+    private Cookie cookie(String messageID, String value, long maxAge) {
+        Cookie cookie = new Cookie(COOKIE_PREFIX + messageID, value);
+        cookie.setPath(request.getContextPath() + "/saml/");
+        cookie.setMaxAge((int) maxAge);
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        return cookie;
+    }
+
+    private SAMLMessageStorage getSessionStorage() {
+        if (sessionStorage == null) {
+            sessionStorage = new HttpSessionStorage(request);
+        }
+        return sessionStorage;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.storage;
+
+import com.vmware.idm.samples.saml.timing.SAMLStageTimers;
+import com.vmware.idm.samples.saml.timing.StageTimingContextProvider;
+import com.vmware.idm.samples.saml.websso.ReplayCache;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.storage.EmptyStorageFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Context provider keeping the sent messages in a {@link CookieMessageStorage}.
+ * <p>
+ * The {@code SAMLMessageStorageFactory} of Spring SAML only gets the request, while the cookies are written to the
+ * response.
+ */
+public class CookieStorageContextProvider extends StageTimingContextProvider {
+
+    private final AuthnRequestCodec codec;
+    private final ReplayCache replayCache;
+
+    public CookieStorageContextProvider(AuthnRequestCodec codec, ReplayCache replayCache, SAMLStageTimers timers) {
+        super(timers);
+        this.codec = codec;
+        this.replayCache = replayCache;
+        // the default factory would create a session for each request
+        setStorageFactory(new EmptyStorageFactory());
+    }
+
+    @Override
+    protected void populateGenericContext(HttpServletRequest request, HttpServletResponse response,
+                                          SAMLMessageContext context) throws MetadataProviderException {
+        super.populateGenericContext(request, response, context);
+        context.setMessageStorage(new CookieMessageStorage(codec, replayCache, request, response));
+    }
+}
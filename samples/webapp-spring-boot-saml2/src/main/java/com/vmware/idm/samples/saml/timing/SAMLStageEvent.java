@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.timing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of a stage of the processing of a SAML message.
+ * <p>
+ * Only referenced by {@link SAMLStageTimers} once it checked that the JVM supports the Flight Recorder, through
+ * static methods taking and returning the event as an Object.
+ */
+@Name("com.vmware.idm.samples.saml.Stage")
+@Label("SAML Stage")
+@Category("SAML")
+@Description("Stage of the processing of a SAML message, for an IdP")
+class SAMLStageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("IdP")
+    String entityId;
+
+    @Label("Success")
+    boolean success;
+
+    static Object begin(String stage) {
+        SAMLStageEvent event = new SAMLStageEvent();
+        event.stage = stage;
+        event.begin();
+        return event;
+    }
+
+    static void end(Object event) {
+        ((SAMLStageEvent) event).end();
+    }
+
+    static void commit(Object event, String entityId, boolean success) {
+        SAMLStageEvent stageEvent = (SAMLStageEvent) event;
+        if (stageEvent.shouldCommit()) {
+            stageEvent.entityId = entityId;
+            stageEvent.success = success;
+            stageEvent.commit();
+        }
+    }
+}
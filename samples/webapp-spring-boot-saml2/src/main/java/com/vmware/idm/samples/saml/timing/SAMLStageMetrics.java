@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.timing;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes the {@link SAMLStageTimers} on the /metrics endpoint, as {@code <prefix>.<stage>.<IdP entity ID>.*} with
+ * the count, the failures and the mean and max durations in ms.
+ */
+public class SAMLStageMetrics implements PublicMetrics {
+
+    private final String prefix;
+    private final SAMLStageTimers timers;
+
+    public SAMLStageMetrics(String prefix, SAMLStageTimers timers) {
+        this.prefix = prefix;
+        this.timers = timers;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        for (Map.Entry<String, Map<String, SAMLStageTimers.Timer>> stage : timers.getTimers().entrySet()) {
+            for (Map.Entry<String, SAMLStageTimers.Timer> entity : stage.getValue().entrySet()) {
+                String name = prefix + '.' + stage.getKey() + '.' + entity.getKey();
+                SAMLStageTimers.Timer timer = entity.getValue();
+                metrics.add(new Metric<>(name + ".count", timer.getCount()));
+                metrics.add(new Metric<>(name + ".failures", timer.getFailures()));
+                metrics.add(new Metric<>(name + ".time.mean", timer.getMeanTime()));
+                metrics.add(new Metric<>(name + ".time.max", timer.getMaxTime()));
+            }
+        }
+        return metrics;
+    }
+}
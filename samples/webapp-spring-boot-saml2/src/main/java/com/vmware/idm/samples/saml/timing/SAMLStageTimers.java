@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.timing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers of the stages of the processing of the SAML messages, for each IdP, also recorded as JDK Flight Recorder
+ * events when the JVM supports them.
+ * <p>
+ * A stage is timed by a {@link Sample}, stopped with the entity ID of the IdP when it is known. Within an exchange,
+ * i.e. a request processed by a {@link TimedFilter}, the stages stopped before the IdP is known, e.g. the parsing of
+ * the message, are recorded once a later stage identifies it, or at the end of the exchange. Stages may nest: the
+ * decoding includes the parsing and the check of the signature of the message, and the validation includes the
+ * decryption and the check of the signature of the assertions.
+ */
+public class SAMLStageTimers {
+
+    public static final String ENCODE = "encode";
+    public static final String DECODE = "decode";
+    public static final String PARSE = "parse";
+    public static final String SIGNATURE = "signature";
+    public static final String DECRYPT = "decrypt";
+    public static final String VALIDATION = "validation";
+    public static final String USER_MAPPING = "user-mapping";
+
+    /**
+     * Entity ID of the stages of an exchange which didn't identify any IdP.
+     */
+    public static final String NO_ENTITY = "none";
+
+    private static final Logger LOG = LoggerFactory.getLogger(SAMLStageTimers.class);
+
+    private static final boolean EVENTS_SUPPORTED = eventsSupported();
+
+    private final Map<String, Map<String, Timer>> timers = new ConcurrentHashMap<>();
+    private final ThreadLocal<Exchange> exchange = new ThreadLocal<>();
+
+    /**
+     * @return the sample timing the given stage from now
+     */
+    public Sample start(String stage) {
+        return new Sample(stage, EVENTS_SUPPORTED ? SAMLStageEvent.begin(stage) : null);
+    }
+
+    /**
+     * Stop the sample and record it under the given IdP or, when null, under the IdP of the current exchange.
+     */
+    public void stop(Sample sample, String entityId, boolean success) {
+        sample.stop(success);
+        Exchange current = exchange.get();
+        if (current == null) {
+            record(sample, entityId != null ? entityId : NO_ENTITY);
+        } else if (entityId != null && current.entityId == null) {
+            current.entityId = entityId;
+            record(sample, entityId);
+            current.flush(this);
+        } else if (entityId != null || current.entityId != null) {
+            record(sample, entityId != null ? entityId : current.entityId);
+        } else {
+            current.pending.add(sample);
+        }
+    }
+
+    /**
+     * Start an exchange in the current thread, unless one is already in progress.
+     *
+     * @return whether the exchange was started and must be ended by the caller
+     */
+    public boolean beginExchange() {
+        if (exchange.get() != null) {
+            return false;
+        }
+        exchange.set(new Exchange());
+        return true;
+    }
+
+    /**
+     * End the exchange of the current thread, recording its pending stages.
+     */
+    public void endExchange() {
+        Exchange current = exchange.get();
+        exchange.remove();
+        if (current != null) {
+            if (current.entityId == null) {
+                current.entityId = NO_ENTITY;
+            }
+            current.flush(this);
+        }
+    }
+
+    /**
+     * @return the timers of each stage, by entity ID of the IdP
+     */
+    public Map<String, Map<String, Timer>> getTimers() {
+        return Collections.unmodifiableMap(timers);
+    }
+
+    private void record(Sample sample, String entityId) {
+        timers.computeIfAbsent(sample.stage, stage -> new ConcurrentHashMap<>())
+                .computeIfAbsent(entityId, id -> new Timer())
+                .record(sample.duration, sample.success);
+        if (sample.event != null) {
+            SAMLStageEvent.commit(sample.event, entityId, sample.success);
+        }
+    }
+
+    private static boolean eventsSupported() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            LOG.info("Flight Recorder isn't available, the SAML stages are only timed");
+            return false;
+        }
+    }
+
+    public static final class Sample {
+
+        private final String stage;
+        private final long start = System.nanoTime();
+        // the Flight Recorder event, typed as an Object so that its class is only loaded when supported
+        private final Object event;
+        private long duration;
+        private boolean success;
+
+        private Sample(String stage, Object event) {
+            this.stage = stage;
+            this.event = event;
+        }
+
+        private void stop(boolean success) {
+            this.duration = System.nanoTime() - start;
+            this.success = success;
+            if (event != null) {
+                SAMLStageEvent.end(event);
+            }
+        }
+    }
+
+    public static final class Timer {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalTime = new LongAdder();
+        private final LongAccumulator maxTime = new LongAccumulator(Long::max, 0);
+
+        private void record(long duration, boolean success) {
+            count.increment();
+            if (!success) {
+                failures.increment();
+            }
+            totalTime.add(duration);
+            maxTime.accumulate(duration);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * @return the mean duration in ms
+         */
+        public double getMeanTime() {
+            long count = getCount();
+            return count == 0 ? 0.0 : (double) totalTime.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        /**
+         * @return the longest duration in ms
+         */
+        public double getMaxTime() {
+            return (double) maxTime.get() / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+    private static final class Exchange {
+
+        private final List<Sample> pending = new ArrayList<>();
+        private String entityId;
+
+        private void flush(SAMLStageTimers timers) {
+            for (Sample sample : pending) {
+                timers.record(sample, entityId);
+            }
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.timing;
+
+import com.vmware.idm.samples.saml.metadata.IndexedMetadataContextProvider;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.core.EncryptedAttribute;
+import org.opensaml.saml2.core.EncryptedID;
+import org.opensaml.saml2.core.NewEncryptedID;
+import org.opensaml.saml2.core.NewID;
+import org.opensaml.saml2.encryption.Decrypter;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.springframework.security.saml.context.SAMLMessageContext;
+
+/**
+ * Context provider timing the checks of the signatures and the decryption of the elements of the messages as stages
+ * of the {@link SAMLStageTimers}.
+ */
+public class StageTimingContextProvider extends IndexedMetadataContextProvider {
+
+    private final SAMLStageTimers timers;
+
+    public StageTimingContextProvider(SAMLStageTimers timers) {
+        this.timers = timers;
+    }
+
+    @Override
+    protected void populateTrustEngine(SAMLMessageContext samlContext) {
+        super.populateTrustEngine(samlContext);
+        samlContext.setLocalTrustEngine(new TimedSignatureTrustEngine(samlContext.getLocalTrustEngine(), timers));
+    }
+
+    @Override
+    protected void populateDecrypter(SAMLMessageContext samlContext) {
+        super.populateDecrypter(samlContext);
+        samlContext.setLocalDecrypter(new TimedDecrypter(samlContext.getLocalDecrypter(), samlContext, timers));
+    }
+
+    private static final class TimedSignatureTrustEngine implements SignatureTrustEngine {
+
+        private final SignatureTrustEngine delegate;
+        private final SAMLStageTimers timers;
+
+        private TimedSignatureTrustEngine(SignatureTrustEngine delegate, SAMLStageTimers timers) {
+            this.delegate = delegate;
+            this.timers = timers;
+        }
+
+        @Override
+        public boolean validate(Signature signature, CriteriaSet trustBasisCriteria) throws SecurityException {
+            SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.SIGNATURE);
+            boolean trusted = false;
+            try {
+                trusted = delegate.validate(signature, trustBasisCriteria);
+                return trusted;
+            } finally {
+                timers.stop(sample, entityIdOf(trustBasisCriteria), trusted);
+            }
+        }
+
+        @Override
+        public boolean validate(byte[] signature, byte[] content, String algorithmURI, CriteriaSet trustBasisCriteria,
+                                Credential candidateCredential) throws SecurityException {
+            SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.SIGNATURE);
+            boolean trusted = false;
+            try {
+                trusted = delegate.validate(signature, content, algorithmURI, trustBasisCriteria,
+                        candidateCredential);
+                return trusted;
+            } finally {
+                timers.stop(sample, entityIdOf(trustBasisCriteria), trusted);
+            }
+        }
+
+        @Override
+        public KeyInfoCredentialResolver getKeyInfoResolver() {
+            return delegate.getKeyInfoResolver();
+        }
+
+        private static String entityIdOf(CriteriaSet criteria) {
+            EntityIDCriteria entityCriteria = criteria != null ? criteria.get(EntityIDCriteria.class) : null;
+            return entityCriteria != null ? entityCriteria.getEntityID() : null;
+        }
+    }
+
+    /**
+     * Decrypter with the resolvers of the one of the superclass, timing the decryption under the peer entity of the
+     * context, known once the message is decoded.
+     */
+    private static final class TimedDecrypter extends Decrypter {
+
+        private final SAMLMessageContext context;
+        private final SAMLStageTimers timers;
+
+        private TimedDecrypter(Decrypter decrypter, SAMLMessageContext context, SAMLStageTimers timers) {
+            super(decrypter.getKeyResolver(), decrypter.getKEKResolver(), decrypter.getEncryptedKeyResolver());
+            setRootInNewDocument(decrypter.isRootInNewDocument());
+            this.context = context;
+            this.timers = timers;
+        }
+
+        @Override
+        public Assertion decrypt(EncryptedAssertion encryptedAssertion) throws DecryptionException {
+            SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.DECRYPT);
+            boolean success = false;
+            try {
+                Assertion assertion = super.decrypt(encryptedAssertion);
+                success = true;
+                return assertion;
+            } finally {
+                timers.stop(sample, context.getPeerEntityId(), success);
+            }
+        }
+
+        @Override
+        public Attribute decrypt(EncryptedAttribute encryptedAttribute) throws DecryptionException {
+            SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.DECRYPT);
+            boolean success = false;
+            try {
+                Attribute attribute = super.decrypt(encryptedAttribute);
+                success = true;
+                return attribute;
+            } finally {
+                timers.stop(sample, context.getPeerEntityId(), success);
+            }
+        }
+
+        @Override
+        public SAMLObject decrypt(EncryptedID encryptedID) throws DecryptionException {
+            SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.DECRYPT);
+            boolean success = false;
+            try {
+                SAMLObject id = super.decrypt(encryptedID);
+                success = true;
+                return id;
+            } finally {
+                timers.stop(sample, context.getPeerEntityId(), success);
+            }
+        }
+
+        @Override
+        public NewID decrypt(NewEncryptedID newEncryptedID) throws DecryptionException {
+            SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.DECRYPT);
+            boolean success = false;
+            try {
+                NewID id = super.decrypt(newEncryptedID);
+                success = true;
+                return id;
+            } finally {
+                timers.stop(sample, context.getPeerEntityId(), success);
+            }
+        }
+    }
+}
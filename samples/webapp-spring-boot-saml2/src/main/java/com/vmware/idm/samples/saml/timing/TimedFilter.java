@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.timing;
+
+import org.springframework.security.web.WebAttributes;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Filter timing another filter as a stage of the {@link SAMLStageTimers}, in an exchange recording the stages of the
+ * request under the IdP identified while processing it.
+ * <p>
+ * The request fails when the filter throws an exception, answers an error status or forwards an authentication
+ * exception to the failure URL.
+ */
+public class TimedFilter implements Filter {
+
+    private final Filter delegate;
+    private final String stage;
+    private final SAMLStageTimers timers;
+
+    public TimedFilter(Filter delegate, String stage, SAMLStageTimers timers) {
+        this.delegate = delegate;
+        this.stage = stage;
+        this.timers = timers;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        delegate.init(filterConfig);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!timers.beginExchange()) {
+            delegate.doFilter(request, response, chain);
+            return;
+        }
+        SAMLStageTimers.Sample sample = timers.start(stage);
+        boolean success = false;
+        try {
+            delegate.doFilter(request, response, chain);
+            success = ((HttpServletResponse) response).getStatus() < HttpServletResponse.SC_BAD_REQUEST
+                    && request.getAttribute(WebAttributes.AUTHENTICATION_EXCEPTION) == null;
+        } finally {
+            timers.stop(sample, null, success);
+            timers.endExchange();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        delegate.destroy();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.timing;
+
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.validation.Schema;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Parser pool timing the parsing of the messages decoded by the bindings, recorded under the IdP identified later in
+ * the exchange.
+ */
+public class TimedParserPool implements ParserPool {
+
+    private final ParserPool delegate;
+    private final SAMLStageTimers timers;
+
+    public TimedParserPool(ParserPool delegate, SAMLStageTimers timers) {
+        this.delegate = delegate;
+        this.timers = timers;
+    }
+
+    @Override
+    public Document parse(InputStream input) throws XMLParserException {
+        SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.PARSE);
+        boolean success = false;
+        try {
+            Document document = delegate.parse(input);
+            success = true;
+            return document;
+        } finally {
+            timers.stop(sample, null, success);
+        }
+    }
+
+    @Override
+    public Document parse(Reader input) throws XMLParserException {
+        SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.PARSE);
+        boolean success = false;
+        try {
+            Document document = delegate.parse(input);
+            success = true;
+            return document;
+        } finally {
+            timers.stop(sample, null, success);
+        }
+    }
+
+    @Override
+    public DocumentBuilder getBuilder() throws XMLParserException {
+        return delegate.getBuilder();
+    }
+
+    @Override
+    public void returnBuilder(DocumentBuilder builder) {
+        delegate.returnBuilder(builder);
+    }
+
+    @Override
+    public Document newDocument() throws XMLParserException {
+        return delegate.newDocument();
+    }
+
+    @Override
+    public Schema getSchema() {
+        return delegate.getSchema();
+    }
+
+    @Override
+    public void setSchema(Schema schema) {
+        delegate.setSchema(schema);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.timing;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.validation.ValidationException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.security.saml.SAMLAuthenticationProvider;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.websso.WebSSOProfileConsumer;
+
+/**
+ * Authentication provider timing the validation of the responses by the WebSSO consumers and the mapping of the
+ * users as stages of the {@link SAMLStageTimers}.
+ */
+public class TimedSAMLAuthenticationProvider extends SAMLAuthenticationProvider {
+
+    private final SAMLStageTimers timers;
+
+    public TimedSAMLAuthenticationProvider(SAMLStageTimers timers) {
+        this.timers = timers;
+    }
+
+    // the overridden setters must be annotated again to be autowired
+    @Override
+    @Autowired
+    @Qualifier("webSSOprofileConsumer")
+    public void setConsumer(WebSSOProfileConsumer consumer) {
+        super.setConsumer(new TimedWebSSOProfileConsumer(consumer, timers));
+    }
+
+    @Override
+    @Autowired
+    @Qualifier("hokWebSSOprofileConsumer")
+    public void setHokConsumer(WebSSOProfileConsumer hokConsumer) {
+        super.setHokConsumer(new TimedWebSSOProfileConsumer(hokConsumer, timers));
+    }
+
+    @Override
+    protected Object getUserDetails(SAMLCredential credential) {
+        SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.USER_MAPPING);
+        boolean success = false;
+        try {
+            Object userDetails = super.getUserDetails(credential);
+            success = true;
+            return userDetails;
+        } finally {
+            timers.stop(sample, credential.getRemoteEntityID(), success);
+        }
+    }
+
+    private static final class TimedWebSSOProfileConsumer implements WebSSOProfileConsumer {
+
+        private final WebSSOProfileConsumer delegate;
+        private final SAMLStageTimers timers;
+
+        private TimedWebSSOProfileConsumer(WebSSOProfileConsumer delegate, SAMLStageTimers timers) {
+            this.delegate = delegate;
+            this.timers = timers;
+        }
+
+        @Override
+        public SAMLCredential processAuthenticationResponse(SAMLMessageContext context) throws SAMLException,
+                SecurityException, ValidationException, DecryptionException {
+            SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.VALIDATION);
+            boolean success = false;
+            try {
+                SAMLCredential credential = delegate.processAuthenticationResponse(context);
+                success = true;
+                return credential;
+            } finally {
+                timers.stop(sample, context.getPeerEntityId(), success);
+            }
+        }
+    }
+}
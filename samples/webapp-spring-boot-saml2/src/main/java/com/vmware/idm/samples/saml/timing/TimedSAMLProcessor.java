@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.timing;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.xml.security.SecurityException;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.processor.SAMLBinding;
+import org.springframework.security.saml.processor.SAMLProcessorImpl;
+
+import java.util.Collection;
+
+/**
+ * SAML processor timing the encoding and the decoding of the messages by the bindings, under the peer entity of the
+ * context.
+ */
+public class TimedSAMLProcessor extends SAMLProcessorImpl {
+
+    private final SAMLStageTimers timers;
+
+    public TimedSAMLProcessor(Collection<SAMLBinding> bindings, SAMLStageTimers timers) {
+        super(bindings);
+        this.timers = timers;
+    }
+
+    @Override
+    public SAMLMessageContext retrieveMessage(SAMLMessageContext samlContext, SAMLBinding binding)
+            throws SAMLException, MetadataProviderException, MessageDecodingException, SecurityException {
+        SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.DECODE);
+        boolean success = false;
+        try {
+            SAMLMessageContext context = super.retrieveMessage(samlContext, binding);
+            success = true;
+            return context;
+        } finally {
+            timers.stop(sample, samlContext.getPeerEntityId(), success);
+        }
+    }
+
+    @Override
+    protected SAMLMessageContext sendMessage(SAMLMessageContext samlContext, boolean sign, SAMLBinding binding)
+            throws SAMLException, MetadataProviderException, MessageEncodingException {
+        SAMLStageTimers.Sample sample = timers.start(SAMLStageTimers.ENCODE);
+        boolean success = false;
+        try {
+            SAMLMessageContext context = super.sendMessage(samlContext, sign, binding);
+            success = true;
+            return context;
+        } finally {
+            timers.stop(sample, samlContext.getPeerEntityId(), success);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.opensaml.common.SAMLException;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.LogoutResponse;
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.transport.http.HttpClientInTransport;
+import org.opensaml.ws.transport.http.HttpClientOutTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.processor.SAMLProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the LogoutRequests of a global logout to the participants of the session over the SOAP binding, in parallel
+ * and in the background, so that the user is redirected as soon as the local logout is done.
+ * <p>
+ * Each LogoutRequest is posted with the pooled HTTP client by a thread of the executor, and aborted when no
+ * LogoutResponse was received within the timeout. A logout is incomplete when one of its participants didn't answer
+ * with a successful LogoutResponse; the incomplete logouts, failures and timeouts are counted for the
+ * {@link BackChannelLogoutMetrics}.
+ */
+public class BackChannelLogoutDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackChannelLogoutDispatcher.class);
+
+    private final HttpClient httpClient;
+    private final SAMLProcessor processor;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final long timeout;
+
+    private final AtomicLong logouts = new AtomicLong();
+    private final AtomicLong incompleteLogouts = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param httpClient client posting the LogoutRequests
+     * @param processor  processor supporting the SOAP binding
+     * @param executor   executor sending the LogoutRequests
+     * @param scheduler  scheduler aborting the LogoutRequests timed out
+     * @param timeout    time in ms given to each participant to answer
+     */
+    public BackChannelLogoutDispatcher(HttpClient httpClient, SAMLProcessor processor, Executor executor,
+                                       ScheduledExecutorService scheduler, long timeout) {
+        this.httpClient = httpClient;
+        this.processor = processor;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sends the LogoutRequests of the contexts, one per participant, to their peer entity endpoint.
+     *
+     * @return a future completed when all the participants answered or timed out, with the number of participants
+     * which didn't log the user out
+     */
+    public CompletableFuture<Integer> dispatch(List<SAMLMessageContext> contexts) {
+        logouts.incrementAndGet();
+        List<CompletableFuture<Boolean>> outcomes = new ArrayList<>(contexts.size());
+        for (SAMLMessageContext context : contexts) {
+            try {
+                outcomes.add(CompletableFuture.supplyAsync(() -> send(context), executor));
+            } catch (RejectedExecutionException e) {
+                LOG.warn("Back-channel logout of {} rejected", context.getPeerEntityId(), e);
+                requests.incrementAndGet();
+                failures.incrementAndGet();
+                outcomes.add(CompletableFuture.completedFuture(false));
+            }
+        }
+        return CompletableFuture.allOf(outcomes.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            int failed = 0;
+            for (CompletableFuture<Boolean> outcome : outcomes) {
+                if (!outcome.join()) {
+                    failed++;
+                }
+            }
+            if (failed > 0) {
+                incompleteLogouts.incrementAndGet();
+            }
+            return failed;
+        });
+    }
+
+    private boolean send(SAMLMessageContext context) {
+        requests.incrementAndGet();
+        String location = context.getPeerEntityEndpoint().getLocation();
+        PostMethod postMethod = new PostMethod(location);
+        postMethod.getParams().setSoTimeout((int) timeout);
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> abort = scheduler.schedule(() -> {
+            timedOut.set(true);
+            postMethod.abort();
+        }, timeout, TimeUnit.MILLISECONDS);
+        try {
+            context.setOutboundMessageTransport(new HttpClientOutTransport(postMethod));
+            context.setInboundMessageTransport(new HttpClientInTransport(postMethod, location));
+            boolean signMessage = context.getPeerExtendedMetadata().isRequireLogoutRequestSigned();
+            processor.sendMessage(context, signMessage, SAMLConstants.SAML2_SOAP11_BINDING_URI);
+            LOG.debug("Sending LogoutRequest to {}", location);
+            int responseCode = httpClient.executeMethod(postMethod);
+            if (responseCode != 200) {
+                throw new MessageDecodingException("Problem communicating with the single logout service of "
+                        + context.getPeerEntityId() + ", received response " + responseCode);
+            }
+            processor.retrieveMessage(context, SAMLConstants.SAML2_SOAP11_BINDING_URI);
+            checkLogoutResponse(context);
+            LOG.debug("User logged out from {}", context.getPeerEntityId());
+            return true;
+        } catch (Exception e) {
+            if (timedOut.get()) {
+                LOG.warn("Back-channel logout of {} timed out after {} ms", context.getPeerEntityId(), timeout);
+                timeouts.incrementAndGet();
+            } else {
+                LOG.warn("Back-channel logout of {} failed", context.getPeerEntityId(), e);
+                failures.incrementAndGet();
+            }
+            return false;
+        } finally {
+            abort.cancel(false);
+            postMethod.releaseConnection();
+        }
+    }
+
+    private static void checkLogoutResponse(SAMLMessageContext context) throws SAMLException {
+        SAMLObject message = context.getInboundSAMLMessage();
+        if (!(message instanceof LogoutResponse)) {
+            throw new SAMLException("Message is not of a LogoutResponse object type");
+        }
+        LogoutResponse logoutResponse = (LogoutResponse) message;
+        String requestId = ((RequestAbstractType) context.getOutboundSAMLMessage()).getID();
+        if (!requestId.equals(logoutResponse.getInResponseTo())) {
+            throw new SAMLException("LogoutResponse is not in response to LogoutRequest " + requestId);
+        }
+        StatusCode statusCode = logoutResponse.getStatus() != null ? logoutResponse.getStatus().getStatusCode()
+                : null;
+        if (statusCode == null || !StatusCode.SUCCESS_URI.equals(statusCode.getValue())) {
+            throw new SAMLException("LogoutResponse has status "
+                    + (statusCode != null ? statusCode.getValue() : null));
+        }
+    }
+
+    public long getLogouts() {
+        return logouts.get();
+    }
+
+    public long getIncompleteLogouts() {
+        return incompleteLogouts.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+}
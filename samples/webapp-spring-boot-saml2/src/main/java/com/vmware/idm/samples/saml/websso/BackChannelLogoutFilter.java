@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.saml.SAMLLogoutFilter;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+import org.springframework.security.web.authentication.logout.LogoutSuccessHandler;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Logout filter completing a global logout with the success handler when the single logout profile wrote nothing to
+ * the response, as the {@link BackChannelSingleLogoutProfile} does when the LogoutRequest goes over the back channel.
+ * <p>
+ * {@link SAMLLogoutFilter} only calls its success handler for a local logout, expecting the profile to redirect the
+ * browser to the IDP for a global one. The global logouts going through the browser commit the response and are left
+ * as they are.
+ */
+public class BackChannelLogoutFilter extends SAMLLogoutFilter {
+
+    private final LogoutSuccessHandler successHandler;
+
+    public BackChannelLogoutFilter(LogoutSuccessHandler successHandler, LogoutHandler[] localHandler,
+                                   LogoutHandler[] globalHandlers) {
+        super(successHandler, localHandler, globalHandlers);
+        this.successHandler = successHandler;
+    }
+
+    @Override
+    public void processLogout(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        super.processLogout(request, response, chain);
+        if (requiresLogout(request, response) && !response.isCommitted()) {
+            successHandler.onLogoutSuccess(request, response, authentication);
+        }
+    }
+}
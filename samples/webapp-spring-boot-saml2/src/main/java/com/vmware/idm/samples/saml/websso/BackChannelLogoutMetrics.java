@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Exposes the outcomes of a {@link BackChannelLogoutDispatcher} on the /metrics endpoint, under the given prefix.
+ */
+public class BackChannelLogoutMetrics implements PublicMetrics {
+
+    private final String prefix;
+    private final BackChannelLogoutDispatcher dispatcher;
+
+    public BackChannelLogoutMetrics(String prefix, BackChannelLogoutDispatcher dispatcher) {
+        this.prefix = prefix;
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>(prefix + ".logouts", dispatcher.getLogouts()));
+        metrics.add(new Metric<>(prefix + ".logouts.incomplete", dispatcher.getIncompleteLogouts()));
+        metrics.add(new Metric<>(prefix + ".requests", dispatcher.getRequests()));
+        metrics.add(new Metric<>(prefix + ".requests.failures", dispatcher.getFailures()));
+        metrics.add(new Metric<>(prefix + ".requests.timeouts", dispatcher.getTimeouts()));
+        return metrics;
+    }
+}
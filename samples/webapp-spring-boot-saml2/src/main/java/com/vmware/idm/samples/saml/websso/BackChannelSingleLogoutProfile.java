@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.websso.SingleLogoutProfileImpl;
+
+import java.util.Collections;
+
+/**
+ * Single logout profile sending the LogoutRequest to the IDP over the SOAP binding, through a
+ * {@link BackChannelLogoutDispatcher}, when the IDP has a SOAP single logout service.
+ * <p>
+ * The LogoutRequest is sent in the background: nothing is written to the response, which the
+ * {@link BackChannelLogoutFilter} completes with the redirection of its success handler. The IDPs without a SOAP
+ * single logout service still get the LogoutRequest through the browser, as with {@link SingleLogoutProfileImpl}.
+ */
+public class BackChannelSingleLogoutProfile extends SingleLogoutProfileImpl {
+
+    private final BackChannelLogoutDispatcher dispatcher;
+
+    public BackChannelSingleLogoutProfile(BackChannelLogoutDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // SAMLMessageContext extends the raw BasicSAMLMessageContext
+    public void sendLogoutRequest(SAMLMessageContext context, SAMLCredential credential)
+            throws SAMLException, MetadataProviderException, MessageEncodingException {
+        if (credential == null) {
+            return;
+        }
+        IDPSSODescriptor idpDescriptor = (IDPSSODescriptor) context.getPeerEntityRoleMetadata();
+        SingleLogoutService logoutService = getSoapLogoutService(idpDescriptor);
+        if (logoutService == null) {
+            super.sendLogoutRequest(context, credential);
+            return;
+        }
+        LogoutRequest logoutRequest = getLogoutRequest(context, credential, logoutService);
+        context.setCommunicationProfileId(getProfileIdentifier());
+        context.setOutboundMessage(logoutRequest);
+        context.setOutboundSAMLMessage(logoutRequest);
+        context.setPeerEntityEndpoint(logoutService);
+        dispatcher.dispatch(Collections.singletonList(context));
+    }
+
+    private static SingleLogoutService getSoapLogoutService(IDPSSODescriptor idpDescriptor) {
+        for (SingleLogoutService logoutService : idpDescriptor.getSingleLogoutServices()) {
+            if (SAMLConstants.SAML2_SOAP11_BINDING_URI.equals(logoutService.getBinding())) {
+                return logoutService;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the identifiers of the SAML messages already consumed, e.g. the IDs of the assertions.
+ * <p>
+ * An identifier is only kept until the message it belongs to expires: past that moment the message is rejected
+ * anyway, so the memory used is proportional to the login rate times the validity window. The entries are spread
+ * over independently locked stripes so that concurrent logins rarely wait for each other, and the expired ones are
+ * swept in the background. A cache holding {@link #setMaxSize(int) its maximum size} rejects new identifiers rather
+ * than forgetting valid ones.
+ */
+public class ReplayCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplayCache.class);
+
+    private final Stripe[] stripes;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    private int maxSize = 100000;
+    private ScheduledFuture<?> sweeper;
+
+    /**
+     * @param stripeCount number of independently locked stripes, rounded up to a power of two
+     */
+    public ReplayCache(int stripeCount) {
+        Assert.isTrue(stripeCount > 0, "stripeCount must be positive");
+        int count = Integer.highestOneBit(stripeCount - 1) << 1;
+        stripes = new Stripe[Math.max(1, count)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Record the identifier of a message being consumed.
+     *
+     * @param id         identifier of the message
+     * @param expiration time in ms after which the message is not accepted anymore
+     * @return false if the identifier was already recorded and did not expire, i.e. the message is replayed, or if
+     * the cache is full
+     */
+    public boolean add(String id, long expiration) {
+        checks.increment();
+        long now = System.currentTimeMillis();
+        Stripe stripe = stripeOf(id);
+        synchronized (stripe) {
+            Long recordedExpiration = stripe.entries.get(id);
+            if (recordedExpiration != null && recordedExpiration > now) {
+                replays.increment();
+                return false;
+            }
+            if (recordedExpiration == null) {
+                if (size.incrementAndGet() > maxSize) {
+                    size.decrementAndGet();
+                    overflows.increment();
+                    LOG.warn("Replay cache full ({} entries), rejecting message {}", maxSize, id);
+                    return false;
+                }
+            }
+            stripe.entries.put(id, expiration);
+            return true;
+        }
+    }
+
+    /**
+     * Remove the expired identifiers.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Long> expirations = stripe.entries.values().iterator();
+                while (expirations.hasNext()) {
+                    if (expirations.next() <= now) {
+                        expirations.remove();
+                        removed++;
+                    }
+                }
+            }
+        }
+        size.addAndGet(-removed);
+        LOG.debug("{} expired entries removed from the replay cache", removed);
+    }
+
+    /**
+     * Sweep the expired identifiers periodically.
+     *
+     * @param scheduler     scheduler running the sweeps
+     * @param sweepInterval delay in ms between two sweeps
+     */
+    public synchronized void startSweeping(ScheduledExecutorService scheduler, long sweepInterval) {
+        stopSweeping();
+        sweeper = scheduler.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopSweeping() {
+        if (sweeper != null) {
+            sweeper.cancel(false);
+            sweeper = null;
+        }
+    }
+
+    private Stripe stripeOf(String id) {
+        int hash = id.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * @return number of identifiers currently recorded, including the expired ones not swept yet
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return number of identifiers checked
+     */
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    /**
+     * @return number of identifiers found in the cache, i.e. of replayed messages
+     */
+    public long getReplays() {
+        return replays.sum();
+    }
+
+    /**
+     * @return number of identifiers rejected because the cache was full
+     */
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * @param maxSize maximum number of identifiers recorded
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    private static final class Stripe {
+
+        private final Map<String, Long> entries = new HashMap<>();
+    }
+}
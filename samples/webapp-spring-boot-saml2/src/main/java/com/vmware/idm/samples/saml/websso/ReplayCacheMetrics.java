@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Exposes the state of a {@link ReplayCache} on the /metrics endpoint, under the given prefix.
+ */
+public class ReplayCacheMetrics implements PublicMetrics {
+
+    private final String prefix;
+    private final ReplayCache replayCache;
+
+    public ReplayCacheMetrics(String prefix, ReplayCache replayCache) {
+        this.prefix = prefix;
+        this.replayCache = replayCache;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        long checks = replayCache.getChecks();
+        long replays = replayCache.getReplays();
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>(prefix + ".size", replayCache.size()));
+        metrics.add(new Metric<>(prefix + ".checks", checks));
+        metrics.add(new Metric<>(prefix + ".replays", replays));
+        metrics.add(new Metric<>(prefix + ".overflows", replayCache.getOverflows()));
+        metrics.add(new Metric<>(prefix + ".hit-rate", checks == 0 ? 0.0 : (double) replays / checks));
+        return metrics;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.validation.ValidationException;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.websso.WebSSOProfileConsumerImpl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSSO assertion consumer accepting each assertion only once.
+ * <p>
+ * The ID of an assertion is recorded in the {@link ReplayCache} once the assertion passed all the other checks, so
+ * that forged assertions can't fill the cache. It is kept until the assertion becomes too old to be accepted, i.e.
+ * its issue instant plus the maximum assertion time and the allowed skew.
+ */
+public class ReplayProtectedWebSSOProfileConsumer extends WebSSOProfileConsumerImpl {
+
+    private final ReplayCache replayCache;
+
+    public ReplayProtectedWebSSOProfileConsumer(ReplayCache replayCache) {
+        this.replayCache = replayCache;
+    }
+
+    @Override
+    protected void verifyAssertion(Assertion assertion, AuthnRequest request, SAMLMessageContext context)
+            throws AuthenticationException, SAMLException, SecurityException, ValidationException,
+            DecryptionException {
+        super.verifyAssertion(assertion, request, context);
+        recordAssertion(replayCache, assertion, context, getMaxAssertionTime() + getResponseSkew());
+    }
+
+    /**
+     * Record the ID of the given verified assertion, kept for the given number of seconds after its issue instant.
+     *
+     * @throws SAMLException if the assertion has no ID or was already recorded
+     */
+    static void recordAssertion(ReplayCache replayCache, Assertion assertion, SAMLMessageContext context,
+                                long maxAgeSeconds) throws SAMLException {
+        if (assertion.getID() == null) {
+            throw new SAMLException("Assertion does not have any ID and can't be checked for replay");
+        }
+        long expiration = assertion.getIssueInstant().getMillis() + TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+        if (!replayCache.add(context.getPeerEntityId() + '!' + assertion.getID(), expiration)) {
+            throw new SAMLException("Assertion " + assertion.getID() + " was already used");
+        }
+    }
+
+    public ReplayCache getReplayCache() {
+        return replayCache;
+    }
+}
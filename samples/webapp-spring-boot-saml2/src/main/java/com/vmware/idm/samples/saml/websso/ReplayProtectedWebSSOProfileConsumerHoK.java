@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.validation.ValidationException;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.websso.WebSSOProfileConsumerHoKImpl;
+
+/**
+ * Holder-of-Key WebSSO assertion consumer accepting each assertion only once, like the
+ * {@link ReplayProtectedWebSSOProfileConsumer} and with the same {@link ReplayCache}.
+ */
+public class ReplayProtectedWebSSOProfileConsumerHoK extends WebSSOProfileConsumerHoKImpl {
+
+    private final ReplayCache replayCache;
+
+    public ReplayProtectedWebSSOProfileConsumerHoK(ReplayCache replayCache) {
+        this.replayCache = replayCache;
+    }
+
+    @Override
+    protected void verifyAssertion(Assertion assertion, AuthnRequest request, SAMLMessageContext context)
+            throws AuthenticationException, SAMLException, SecurityException, ValidationException,
+            DecryptionException {
+        super.verifyAssertion(assertion, request, context);
+        ReplayProtectedWebSSOProfileConsumer.recordAssertion(replayCache, assertion, context,
+                getMaxAssertionTime() + getResponseSkew());
+    }
+
+    public ReplayCache getReplayCache() {
+        return replayCache;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.storage.SAMLMessageStorage;
+import org.springframework.security.saml.websso.WebSSOProfileImpl;
+import org.springframework.security.saml.websso.WebSSOProfileOptions;
+
+/**
+ * WebSSO profile storing the AuthnRequest before sending it rather than after.
+ * <p>
+ * Once the request is sent, the response to the browser is committed: a storage writing to the response, such as
+ * the {@link com.vmware.idm.samples.saml.storage.CookieMessageStorage}, can't add anything anymore.
+ */
+public class StoringBeforeSendWebSSOProfile extends WebSSOProfileImpl {
+
+    @Override
+    protected AuthnRequest getAuthnRequest(SAMLMessageContext context, WebSSOProfileOptions options,
+                                           AssertionConsumerService assertionConsumer,
+                                           SingleSignOnService bindingService)
+            throws SAMLException, MetadataProviderException {
+        AuthnRequest authnRequest = super.getAuthnRequest(context, options, assertionConsumer, bindingService);
+        SAMLMessageStorage messageStorage = context.getMessageStorage();
+        if (messageStorage != null) {
+            messageStorage.storeMessage(authnRequest.getID(), authnRequest);
+        }
+        return authnRequest;
+    }
+}
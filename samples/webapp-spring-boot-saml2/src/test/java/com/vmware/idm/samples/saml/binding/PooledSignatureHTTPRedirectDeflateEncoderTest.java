@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.binding;
+
+import org.joda.time.DateTime;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.Configuration;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.binding.BasicSAMLMessageContext;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.binding.encoding.HTTPRedirectDeflateEncoder;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.ws.message.encoder.MessageEncoder;
+import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.credential.Credential;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.key.JKSKeyManager;
+
+import javax.xml.namespace.QName;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class PooledSignatureHTTPRedirectDeflateEncoderTest {
+
+    private static JKSKeyManager keyManager;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        DefaultBootstrap.bootstrap();
+        keyManager = new JKSKeyManager(new DefaultResourceLoader().getResource("classpath:/saml/samlKeystore.jks"),
+                "secret", Collections.singletonMap("apollo", "secret"), "apollo");
+    }
+
+    @Test
+    public void testSignatureIsIdenticalToTheDefaultEncoder() throws Exception {
+        MessageEncoder pooledEncoder = new PooledSignatureHTTPRedirectDeflateEncoder();
+        Credential credential = keyManager.getDefaultCredential();
+        String expected = encode(new HTTPRedirectDeflateEncoder(), credential);
+
+        assertTrue(expected.contains("&Signature="));
+        assertEquals(expected, encode(pooledEncoder, credential));
+        // the pooled signature is reset by the previous message
+        assertEquals(expected, encode(pooledEncoder, credential));
+    }
+
+    @Test
+    public void testSignatureIsInitializedAgainForAnotherKey() throws Exception {
+        MessageEncoder pooledEncoder = new PooledSignatureHTTPRedirectDeflateEncoder();
+        Credential credential = keyManager.getDefaultCredential();
+        Credential reloadedCredential = keyManager.getDefaultCredential();
+        assertNotSame(credential.getPrivateKey(), reloadedCredential.getPrivateKey());
+
+        String expected = encode(new HTTPRedirectDeflateEncoder(), credential);
+
+        assertEquals(expected, encode(pooledEncoder, credential));
+        assertEquals(expected, encode(pooledEncoder, reloadedCredential));
+    }
+
+    private static String encode(MessageEncoder encoder, Credential credential) throws Exception {
+        SingleSignOnService endpoint = build(SingleSignOnService.DEFAULT_ELEMENT_NAME);
+        endpoint.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        endpoint.setLocation("https://idp.example.com/sso");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        BasicSAMLMessageContext<SAMLObject, SAMLObject, SAMLObject> context = new BasicSAMLMessageContext<>();
+        context.setOutboundSAMLMessage(authnRequest());
+        context.setPeerEntityEndpoint(endpoint);
+        context.setRelayState("relay");
+        context.setOutboundSAMLMessageSigningCredential(credential);
+        context.setOutboundMessageTransport(new HttpServletResponseAdapter(response, true));
+
+        encoder.encode(context);
+        return response.getRedirectedUrl();
+    }
+
+    private static AuthnRequest authnRequest() {
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue("com:vmware:idm:samples");
+        AuthnRequest authnRequest = build(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        authnRequest.setID("a1b2c3");
+        authnRequest.setVersion(SAMLVersion.VERSION_20);
+        authnRequest.setIssueInstant(new DateTime(0));
+        authnRequest.setIssuer(issuer);
+        authnRequest.setAssertionConsumerServiceURL("https://localhost:8443/saml/SSO");
+        return authnRequest;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName name) {
+        return (T) Configuration.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.binding;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.joda.time.DateTime;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.Configuration;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.binding.BasicSAMLMessageContext;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.binding.encoding.HTTPPostEncoder;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.LogoutResponse;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.ws.message.encoder.MessageEncoder;
+import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
+import org.opensaml.xml.XMLObject;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.util.VelocityFactory;
+
+import javax.xml.namespace.QName;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrecompiledHTTPPostEncoderTest {
+
+    private static final String TEMPLATE_ID = "/templates/saml2-post-binding.vm";
+
+    private static HTTPPostEncoder velocityEncoder;
+    private static HTTPPostEncoder precompiledEncoder;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        DefaultBootstrap.bootstrap();
+        VelocityEngine velocityEngine = VelocityFactory.getEngine();
+        velocityEncoder = new HTTPPostEncoder(velocityEngine, TEMPLATE_ID);
+        precompiledEncoder = new PrecompiledHTTPPostEncoder(velocityEngine, TEMPLATE_ID);
+    }
+
+    @Test
+    public void testAuthnRequestIsIdenticalToVelocity() throws Exception {
+        assertIdentical(authnRequest(), null);
+    }
+
+    @Test
+    public void testAuthnRequestWithRelayStateIsIdenticalToVelocity() throws Exception {
+        assertIdentical(authnRequest(), "https://localhost:8443/landing?a=1&b=<\"2\">");
+    }
+
+    @Test
+    public void testLogoutResponseIsIdenticalToVelocity() throws Exception {
+        LogoutResponse logoutResponse = build(LogoutResponse.DEFAULT_ELEMENT_NAME);
+        logoutResponse.setID("_logout");
+        logoutResponse.setVersion(SAMLVersion.VERSION_20);
+        logoutResponse.setIssueInstant(new DateTime(0));
+        logoutResponse.setInResponseTo("_request");
+
+        assertIdentical(logoutResponse, "relay");
+    }
+
+    private void assertIdentical(SAMLObject message, String relayState) throws Exception {
+        MockHttpServletResponse expected = encode(velocityEncoder, message, relayState);
+        MockHttpServletResponse actual = encode(precompiledEncoder, message, relayState);
+
+        assertEquals(expected.getContentType(), actual.getContentType());
+        assertEquals(expected.getHeaderNames(), actual.getHeaderNames());
+        assertArrayEquals(expected.getContentAsByteArray(), actual.getContentAsByteArray());
+        assertTrue(actual.getContentAsString().contains("<form action=\"https&#x3a;&#x2f;&#x2f;idp.example.com"));
+    }
+
+    private MockHttpServletResponse encode(MessageEncoder encoder, SAMLObject message, String relayState)
+            throws Exception {
+        SingleSignOnService endpoint = build(SingleSignOnService.DEFAULT_ELEMENT_NAME);
+        endpoint.setBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+        endpoint.setLocation("https://idp.example.com/sso?tenant=a&b");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        BasicSAMLMessageContext<SAMLObject, SAMLObject, SAMLObject> context = new BasicSAMLMessageContext<>();
+        context.setOutboundSAMLMessage(message);
+        context.setPeerEntityEndpoint(endpoint);
+        context.setRelayState(relayState);
+        context.setOutboundMessageTransport(new HttpServletResponseAdapter(response, true));
+
+        encoder.encode(context);
+        return response;
+    }
+
+    private static AuthnRequest authnRequest() {
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue("com:vmware:idm:samples");
+        AuthnRequest authnRequest = build(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        authnRequest.setID("a1b2c3");
+        authnRequest.setVersion(SAMLVersion.VERSION_20);
+        authnRequest.setIssueInstant(new DateTime(0));
+        authnRequest.setIssuer(issuer);
+        authnRequest.setAssertionConsumerServiceURL("https://localhost:8443/saml/SSO");
+        return authnRequest;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName name) {
+        return (T) Configuration.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+}
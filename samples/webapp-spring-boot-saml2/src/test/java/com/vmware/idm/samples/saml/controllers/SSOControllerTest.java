@@ -17,23 +17,21 @@
 package com.vmware.idm.samples.saml.controllers;
 
 import com.vmware.idm.samples.saml.CommonTestSupport;
+import com.vmware.idm.samples.saml.metadata.IdpCatalog;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.security.saml.metadata.MetadataManager;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.web.servlet.View;
 
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
 
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.model;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.view;
@@ -42,15 +40,14 @@ import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standal
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 public class SSOControllerTest extends CommonTestSupport {
 
-    private static final Set<String> IDPS =
-            Collections.unmodifiableSet(
-                    new HashSet<>(Arrays.asList("idp1", "idp2", "idp3")));
+    private static final IdpCatalog.Page IDPS =
+            new IdpCatalog.Page(Collections.emptyList(), 3, 0, 20);
 
     @InjectMocks
     SSOController ssoController;
 
     @Mock
-    private MetadataManager metadata;
+    private IdpCatalog idpCatalog;
 
     @Mock
     private View mockView;
@@ -80,15 +77,30 @@ public class SSOControllerTest extends CommonTestSupport {
     @Test
     public void testIdpSelectionWithForwarding() throws Exception {
         // given
-        when(metadata.getIDPEntityNames()).thenReturn(IDPS);
+        when(idpCatalog.search(null, 0, 20)).thenReturn(IDPS);
+        when(idpCatalog.size()).thenReturn(3);
 
         // when / then
         mockMvc.perform(get("/saml/idpSelection").session(mockAnonymousHttpSession())
                 .requestAttr("javax.servlet.forward.request_uri", "http://forward.to")
         )
                 .andExpect(status().isOk())
-                .andExpect(model().attribute("idps", IDPS))
+                .andExpect(model().attribute("idps", IDPS.getIdps()))
+                .andExpect(model().attribute("idpCount", 3))
                 .andExpect(view().name("saml/idpselection"));
     }
 
+    @Test
+    public void testIdpSearch() throws Exception {
+        // given
+        when(idpCatalog.search("exa", 1, 100)).thenReturn(new IdpCatalog.Page(Collections.emptyList(), 3, 1, 100));
+
+        // when / then
+        mockMvc.perform(get("/saml/idps").param("q", "exa").param("page", "1").param("size", "1000"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.total").value(3))
+                .andExpect(jsonPath("$.page").value(1))
+                .andExpect(jsonPath("$.size").value(100));
+    }
+
 }
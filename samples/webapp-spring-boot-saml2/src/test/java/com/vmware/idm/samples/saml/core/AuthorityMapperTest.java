@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.core;
+
+import org.junit.Test;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.saml.SAMLCredential;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AuthorityMapperTest {
+
+    @Test
+    public void testAuthoritiesAreMappedFromAttributes() {
+        Map<String, String> rules = new LinkedHashMap<>();
+        rules.put("ROLE_ADMIN", "memberOf=^admins$");
+        rules.put("ROLE_AUDITOR", "memberOf=^auditors$");
+        rules.put("ROLE_EMPLOYEE", "email=@vmware\\.com$");
+        AuthorityMapper mapper = new AuthorityMapper(Collections.singletonList("ROLE_USER"), rules);
+        SAMLCredential credential = mock(SAMLCredential.class);
+        when(credential.getAttributeAsStringArray("memberOf")).thenReturn(new String[]{"users", "admins"});
+        when(credential.getAttributeAsStringArray("email")).thenReturn(new String[]{"jdoe@vmware.com"});
+
+        assertEquals(AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN", "ROLE_EMPLOYEE"),
+                new ArrayList<>(mapper.map(credential)));
+    }
+
+    @Test
+    public void testMissingAttributeGrantsDefaultAuthorities() {
+        AuthorityMapper mapper = new AuthorityMapper(Collections.singletonList("ROLE_USER"),
+                Collections.singletonMap("ROLE_ADMIN", "memberOf=admins"));
+
+        assertEquals(AuthorityUtils.createAuthorityList("ROLE_USER"),
+                new ArrayList<>(mapper.map(mock(SAMLCredential.class))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRuleIsRejectedAtStartup() {
+        new AuthorityMapper(Collections.emptyList(), Collections.singletonMap("ROLE_ADMIN", "memberOf=[admins"));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.core;
+
+import com.vmware.idm.samples.saml.CommonTestSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.NameID;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.saml.SAMLCredential;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CachingUserResolverTest extends CommonTestSupport {
+
+    private UserResolver delegate;
+    private AuthorityMapper authorityMapper;
+    private SAMLCredential credential;
+
+    @Before
+    public void setUp() {
+        delegate = mock(UserResolver.class);
+        when(delegate.resolveUser(any(SAMLCredential.class)))
+                .thenAnswer(invocation -> new User(USER_NAME, USER_PASSWORD, AUTHORITIES));
+        NameID nameID = mock(NameID.class);
+        when(nameID.getValue()).thenReturn(USER_NAME);
+        authorityMapper = mock(AuthorityMapper.class);
+        when(authorityMapper.map(any(SAMLCredential.class))).thenReturn(Collections.<GrantedAuthority>emptySet());
+        credential = mock(SAMLCredential.class);
+        when(credential.getNameID()).thenReturn(nameID);
+        when(credential.getRemoteEntityID()).thenReturn("https://idp.example.com");
+    }
+
+    @Test
+    public void testRepeatedLoginIsResolvedFromCache() {
+        CachingUserResolver resolver = new CachingUserResolver(delegate, authorityMapper, 60000, 10);
+
+        resolver.resolveUser(credential);
+        UserDetails user = resolver.resolveUser(credential);
+
+        verify(delegate, times(1)).resolveUser(credential);
+        assertEquals(USER_NAME, user.getUsername());
+        assertEquals(AUTHORITIES, new ArrayList<>(user.getAuthorities()));
+    }
+
+    @Test
+    public void testAuthoritiesAreMappedFromEachAssertion() {
+        CachingUserResolver resolver = new CachingUserResolver(delegate, authorityMapper, 60000, 10);
+        SimpleGrantedAuthority admin = new SimpleGrantedAuthority("ROLE_ADMIN");
+        when(authorityMapper.map(credential))
+                .thenReturn(Collections.<GrantedAuthority>singleton(admin))
+                .thenReturn(Collections.<GrantedAuthority>emptySet());
+
+        UserDetails first = resolver.resolveUser(credential);
+        // removed from the admins group at the IdP
+        UserDetails second = resolver.resolveUser(credential);
+
+        verify(delegate, times(1)).resolveUser(credential);
+        assertTrue(first.getAuthorities().contains(admin));
+        assertFalse(second.getAuthorities().contains(admin));
+        assertEquals(AUTHORITIES, new ArrayList<>(second.getAuthorities()));
+    }
+
+    @Test
+    public void testExpiredUserIsResolvedAgain() {
+        CachingUserResolver resolver = new CachingUserResolver(delegate, authorityMapper, -1, 10);
+
+        resolver.resolveUser(credential);
+        resolver.resolveUser(credential);
+
+        verify(delegate, times(2)).resolveUser(credential);
+    }
+
+    @Test
+    public void testErasedCredentialsDoNotAffectTheCache() {
+        CachingUserResolver resolver = new CachingUserResolver(delegate, authorityMapper, 60000, 10);
+
+        User first = (User) resolver.resolveUser(credential);
+        first.eraseCredentials();
+        User second = (User) resolver.resolveUser(credential);
+
+        assertNotSame(first, second);
+        assertEquals(USER_PASSWORD, second.getPassword());
+    }
+
+    @Test
+    public void testFullCacheStillResolvesUsers() {
+        CachingUserResolver resolver = new CachingUserResolver(delegate, authorityMapper, 60000, 0);
+
+        resolver.resolveUser(credential);
+        resolver.resolveUser(credential);
+
+        assertEquals(0, resolver.size());
+        verify(delegate, times(2)).resolveUser(credential);
+    }
+
+    @Test
+    public void testOldestUserIsEvictedFromAFullCache() throws Exception {
+        CachingUserResolver resolver = new CachingUserResolver(delegate, authorityMapper, 60000, 1);
+        NameID otherNameID = mock(NameID.class);
+        when(otherNameID.getValue()).thenReturn("other");
+        SAMLCredential other = mock(SAMLCredential.class);
+        when(other.getNameID()).thenReturn(otherNameID);
+        when(other.getRemoteEntityID()).thenReturn("https://idp.example.com");
+
+        resolver.resolveUser(credential);
+        Thread.sleep(2);
+        resolver.resolveUser(other);
+        resolver.resolveUser(other);
+        resolver.resolveUser(credential);
+
+        assertEquals(1, resolver.size());
+        verify(delegate, times(1)).resolveUser(other);
+        verify(delegate, times(2)).resolveUser(credential);
+    }
+}
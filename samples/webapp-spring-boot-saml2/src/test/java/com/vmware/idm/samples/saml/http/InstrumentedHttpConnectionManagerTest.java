@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.http;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class InstrumentedHttpConnectionManagerTest {
+
+    private HttpServer server;
+    private InstrumentedHttpConnectionManager connectionManager;
+    private HttpClient httpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, 2);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write("ok".getBytes());
+            }
+        });
+        server.start();
+        connectionManager = new InstrumentedHttpConnectionManager();
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(1);
+        httpClient = new HttpClient(connectionManager);
+        httpClient.getParams().setConnectionManagerTimeout(100);
+    }
+
+    @After
+    public void tearDown() {
+        connectionManager.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testExhaustedPoolTimesOut() throws Exception {
+        GetMethod first = new GetMethod(url());
+        httpClient.executeMethod(first);
+        try {
+            httpClient.executeMethod(new GetMethod(url()));
+            fail("The only connection is still in use");
+        } catch (ConnectionPoolTimeoutException e) {
+            // expected
+        } finally {
+            first.releaseConnection();
+        }
+
+        assertEquals(1, connectionManager.getAcquisitions());
+        assertEquals(1, connectionManager.getAcquisitionTimeouts());
+    }
+
+    @Test
+    public void testConnectionsInUseAreCounted() throws Exception {
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(2);
+        GetMethod first = new GetMethod(url());
+        GetMethod second = new GetMethod(url());
+        httpClient.executeMethod(first);
+        httpClient.executeMethod(second);
+        assertEquals(2, connectionManager.getConnectionsInUseCount());
+
+        second.releaseConnection();
+
+        assertEquals(1, connectionManager.getConnectionsInUseCount());
+        assertEquals(2, connectionManager.getConnectionsInPool());
+        first.releaseConnection();
+        assertEquals(0, connectionManager.getConnectionsInUseCount());
+    }
+
+    @Test
+    public void testIdleConnectionsAreClosed() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            GetMethod get = new GetMethod(url());
+            httpClient.executeMethod(get);
+            get.releaseConnection();
+            assertEquals(1, connectionManager.getConnectionsInPool());
+
+            connectionManager.evictIdleConnections(scheduler, 0);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (connectionManager.getConnectionsInPool() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+
+            assertEquals(0, connectionManager.getConnectionsInPool());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.key;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.xml.security.credential.Credential;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class ReloadableKeyManagerTest {
+
+    private static final Map<String, String> PASSWORDS = Collections.singletonMap("apollo", "secret");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCredentialsAreKeptUntilTheKeystoreChanges() throws Exception {
+        File storeFile = folder.newFile("samlKeystore.jks");
+        writeKeystore(storeFile, null, 1000);
+        ReloadableKeyManager keyManager = keyManager(storeFile);
+        ApplicationEventPublisher eventPublisher = mock(ApplicationEventPublisher.class);
+        keyManager.setApplicationEventPublisher(eventPublisher);
+        Credential credential = keyManager.getDefaultCredential();
+
+        assertSame(credential, keyManager.getCredential("apollo"));
+        assertFalse(keyManager.checkForChanges());
+
+        writeKeystore(storeFile, "apollo-next", 2000);
+
+        assertTrue(keyManager.checkForChanges());
+        assertTrue(keyManager.getAvailableCredentials().contains("apollo-next"));
+        assertNotSame(credential, keyManager.getDefaultCredential());
+        ArgumentCaptor<KeyStoreReloadedEvent> event = ArgumentCaptor.forClass(KeyStoreReloadedEvent.class);
+        verify(eventPublisher).publishEvent(event.capture());
+        assertSame(keyManager, event.getValue().getKeyManager());
+    }
+
+    @Test
+    public void testInvalidKeystoreIsIgnored() throws Exception {
+        File storeFile = folder.newFile("samlKeystore.jks");
+        writeKeystore(storeFile, null, 1000);
+        ReloadableKeyManager keyManager = keyManager(storeFile);
+        Credential credential = keyManager.getDefaultCredential();
+
+        Files.write(storeFile.toPath(), new byte[]{1, 2, 3});
+        storeFile.setLastModified(2000);
+
+        assertFalse(keyManager.checkForChanges());
+        assertSame(credential, keyManager.getDefaultCredential());
+        assertFalse(keyManager.checkForChanges());
+    }
+
+    private static ReloadableKeyManager keyManager(File storeFile) {
+        return new ReloadableKeyManager(new FileSystemResource(storeFile), "secret", PASSWORDS, "apollo");
+    }
+
+    /**
+     * Write the sample keystore, with a copy of its key under the additional alias when not null.
+     */
+    private static void writeKeystore(File storeFile, String additionalAlias, long lastModified) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = ReloadableKeyManagerTest.class.getResourceAsStream("/saml/samlKeystore.jks")) {
+            keyStore.load(in, "secret".toCharArray());
+        }
+        if (additionalAlias != null) {
+            KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection("secret".toCharArray());
+            keyStore.setEntry(additionalAlias, keyStore.getEntry("apollo", protection), protection);
+        }
+        try (OutputStream out = new FileOutputStream(storeFile)) {
+            keyStore.store(out, "secret".toCharArray());
+        }
+        storeFile.setLastModified(lastModified);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.httpclient.HttpClient;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.parse.StaticBasicParserPool;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CachedHTTPMetadataProviderTest {
+
+    private static final String IDP_ENTITY_ID = "https://idp.example.com";
+
+    private static final byte[] METADATA = ("<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+            + " entityID=\"" + IDP_ENTITY_ID + "\"><md:IDPSSODescriptor"
+            + " protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\"><md:SingleSignOnService"
+            + " Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\""
+            + " Location=\"https://idp.example.com/sso\"/>"
+            + "</md:IDPSSODescriptor></md:EntityDescriptor>").getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger conditionalRequests = new AtomicInteger();
+    private volatile String eTag;
+
+    private ScheduledExecutorService scheduler;
+    private StaticBasicParserPool parserPool;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        DefaultBootstrap.bootstrap();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/idp.xml", exchange -> {
+            requests.incrementAndGet();
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                conditionalRequests.incrementAndGet();
+            }
+            if (eTag != null && eTag.equals(ifNoneMatch)) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                if (eTag != null) {
+                    exchange.getResponseHeaders().set("ETag", eTag);
+                }
+                exchange.sendResponseHeaders(200, METADATA.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(METADATA);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        parserPool = new StaticBasicParserPool();
+        parserPool.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        server.stop(0);
+    }
+
+    @Test
+    public void testCachedMetadataIsUsedWithoutNetwork() throws Exception {
+        File cacheFile = folder.newFile("idp.xml");
+        Files.write(cacheFile.toPath(), METADATA);
+        // nothing listens on port 1
+        CachedHTTPMetadataProvider provider = provider("http://localhost:1/idp.xml", cacheFile);
+
+        provider.initialize();
+
+        assertNotNull(provider.getEntityDescriptor(IDP_ENTITY_ID));
+    }
+
+    @Test
+    public void testFetchedMetadataIsCached() throws Exception {
+        File cacheFile = new File(folder.getRoot(), "cache/idp.xml");
+        CachedHTTPMetadataProvider provider = provider(url(), cacheFile);
+
+        provider.initialize();
+
+        assertNotNull(provider.getEntityDescriptor(IDP_ENTITY_ID));
+        assertArrayEquals(METADATA, Files.readAllBytes(cacheFile.toPath()));
+    }
+
+    @Test
+    public void testCacheDirectoryIsPrivate() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        File cacheFile = new File(folder.getRoot(), "cache/idp.xml");
+        CachedHTTPMetadataProvider provider = provider(url(), cacheFile);
+
+        provider.initialize();
+
+        assertEquals(PosixFilePermissions.fromString("rwx------"),
+                Files.getPosixFilePermissions(cacheFile.getParentFile().toPath()));
+    }
+
+    @Test
+    public void testCacheWritableByOtherUsersIsIgnored() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        File cacheFile = folder.newFile("idp.xml");
+        Files.write(cacheFile.toPath(), METADATA);
+        Files.setPosixFilePermissions(cacheFile.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+        CachedHTTPMetadataProvider provider = provider("http://localhost:1/idp.xml", cacheFile);
+
+        provider.initialize();
+
+        assertNull(provider.getEntityDescriptor(IDP_ENTITY_ID));
+    }
+
+    @Test
+    public void testMetadataIsReadDuringRefresh() throws Exception {
+        CountDownLatch responding = new CountDownLatch(1);
+        CountDownLatch respond = new CountDownLatch(1);
+        server.createContext("/slow.xml", exchange -> {
+            responding.countDown();
+            try {
+                respond.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, METADATA.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(METADATA);
+            }
+            exchange.close();
+        });
+        File cacheFile = folder.newFile("idp.xml");
+        Files.write(cacheFile.toPath(), METADATA);
+        CachedHTTPMetadataProvider provider = provider(
+                "http://localhost:" + server.getAddress().getPort() + "/slow.xml", cacheFile);
+        provider.setMinRefreshDelay(TimeUnit.HOURS.toMillis(1));
+        provider.initialize();
+        responding.await(5, TimeUnit.SECONDS);
+
+        // the refresh started at initialization is waiting for the IdP: the provider is not locked meanwhile
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> read = reader.submit(() -> {
+                synchronized (provider) {
+                    return provider.getEntityDescriptor(IDP_ENTITY_ID);
+                }
+            });
+            assertNotNull(read.get(1, TimeUnit.SECONDS));
+        } finally {
+            respond.countDown();
+            reader.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedFetchWithoutCacheDoesNotPreventStartup() throws Exception {
+        CachedHTTPMetadataProvider provider = provider("http://localhost:1/idp.xml",
+                new File(folder.getRoot(), "idp.xml"));
+
+        provider.initialize();
+
+        assertNull(provider.getEntityDescriptor(IDP_ENTITY_ID));
+    }
+
+    @Test
+    public void testNotModifiedMetadataIsNotParsedAgain() throws Exception {
+        eTag = "\"v1\"";
+        CachedHTTPMetadataProvider provider = provider(url(), new File(folder.getRoot(), "idp.xml"));
+        AtomicInteger changes = new AtomicInteger();
+        provider.initialize();
+        provider.getObservers().add(changed -> changes.incrementAndGet());
+
+        provider.refresh();
+
+        assertEquals(2, requests.get());
+        assertEquals(1, conditionalRequests.get());
+        assertEquals(0, changes.get());
+    }
+
+    @Test
+    public void testUnchangedMetadataIsNotParsedAgain() throws Exception {
+        CachedHTTPMetadataProvider provider = provider(url(), new File(folder.getRoot(), "idp.xml"));
+        AtomicInteger changes = new AtomicInteger();
+        provider.initialize();
+        provider.getObservers().add(changed -> changes.incrementAndGet());
+
+        // no ETag: the whole metadata is downloaded again
+        provider.refresh();
+
+        assertEquals(2, requests.get());
+        assertEquals(0, changes.get());
+    }
+
+    private CachedHTTPMetadataProvider provider(String url, File cacheFile) {
+        CachedHTTPMetadataProvider provider = new CachedHTTPMetadataProvider(scheduler, new HttpClient(), url,
+                cacheFile);
+        provider.setParserPool(parserPool);
+        return provider;
+    }
+
+    private String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/idp.xml";
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.SAMLBootstrap;
+import org.springframework.security.saml.key.JKSKeyManager;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.MetadataGenerator;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CachedMetadataDisplayFilterTest {
+
+    private static final String ENTITY_ID = "com:vmware:idm:samples";
+
+    private MetadataManager manager;
+    private CachedMetadataDisplayFilter displayFilter;
+    private EagerMetadataGeneratorFilter generatorFilter;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        new SAMLBootstrap().postProcessBeanFactory(null);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        JKSKeyManager keyManager = new JKSKeyManager(
+                new DefaultResourceLoader().getResource("classpath:/saml/samlKeystore.jks"), "secret",
+                Collections.singletonMap("apollo", "secret"), "apollo");
+        manager = new MetadataManager(new ArrayList<MetadataProvider>());
+        manager.setKeyManager(keyManager);
+
+        ExtendedMetadata extendedMetadata = new ExtendedMetadata();
+        extendedMetadata.setSignMetadata(true);
+        MetadataGenerator generator = new MetadataGenerator();
+        generator.setEntityId(ENTITY_ID);
+        generator.setEntityBaseURL("https://sp.example.com");
+        generator.setExtendedMetadata(extendedMetadata);
+        generator.setKeyManager(keyManager);
+
+        displayFilter = new CachedMetadataDisplayFilter();
+        displayFilter.setManager(manager);
+        displayFilter.setKeyManager(keyManager);
+
+        generatorFilter = new EagerMetadataGeneratorFilter(generator);
+        generatorFilter.setManager(manager);
+        generatorFilter.setDisplayFilter(displayFilter);
+        generatorFilter.afterSingletonsInstantiated();
+    }
+
+    @Test
+    public void generatesTheMetadataAtStartup() throws Exception {
+        assertEquals(ENTITY_ID, manager.getHostedSPName());
+        assertSame(displayFilter.getMetadata(ENTITY_ID), displayFilter.getMetadata(ENTITY_ID));
+    }
+
+    @Test
+    public void replacesTheGeneratedMetadata() throws Exception {
+        EntityDescriptor descriptor = manager.getEntityDescriptor(ENTITY_ID);
+        CachedMetadataDisplayFilter.CachedMetadata metadata = displayFilter.getMetadata(ENTITY_ID);
+
+        generatorFilter.regenerateMetadata();
+
+        assertEquals(ENTITY_ID, manager.getHostedSPName());
+        assertEquals(1, manager.getAvailableProviders().size());
+        assertNotSame(descriptor, manager.getEntityDescriptor(ENTITY_ID));
+        assertNotSame(metadata, displayFilter.getMetadata(ENTITY_ID));
+    }
+
+    @Test
+    public void servesTheSameSignedBytesWithAnETag() throws Exception {
+        MockHttpServletResponse first = get(null, null);
+        MockHttpServletResponse second = get(null, null);
+
+        assertEquals(200, first.getStatus());
+        assertTrue(first.getContentType().startsWith("application/samlmetadata+xml"));
+        assertEquals("UTF-8", first.getCharacterEncoding());
+        assertEquals(displayFilter.getMetadata(ENTITY_ID).getETag(), first.getHeader("ETag"));
+        assertTrue(first.getContentAsString().contains("entityID=\"" + ENTITY_ID + "\""));
+        assertTrue(first.getContentAsString().contains("SignatureValue"));
+        assertArrayEquals(first.getContentAsByteArray(), second.getContentAsByteArray());
+        assertEquals(first.getContentAsByteArray().length, first.getContentLength());
+    }
+
+    @Test
+    public void answersNotModifiedToAMatchingETag() throws Exception {
+        String eTag = get(null, null).getHeader("ETag");
+
+        MockHttpServletResponse response = get(eTag, null);
+
+        assertEquals(304, response.getStatus());
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertEquals(200, get("\"other\"", null).getStatus());
+        assertEquals(200, get(eTag, "gzip").getStatus());
+    }
+
+    @Test
+    public void compressesWhenTheClientAcceptsGzip() throws Exception {
+        byte[] plain = get(null, null).getContentAsByteArray();
+
+        MockHttpServletResponse response = get(null, "gzip, deflate");
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        String eTag = displayFilter.getMetadata(ENTITY_ID).getETag();
+        assertEquals(eTag.substring(0, eTag.length() - 1) + "-gzip\"", response.getHeader("ETag"));
+        byte[] gzipped = response.getContentAsByteArray();
+        assertTrue(gzipped.length < plain.length);
+        assertArrayEquals(plain, StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(gzipped))));
+        assertEquals(304, get(response.getHeader("ETag"), "gzip, deflate").getStatus());
+    }
+
+    @Test
+    public void compressesOnlyWithANonZeroQValue() throws Exception {
+        assertNull(get(null, "gzip;q=0, deflate").getHeader("Content-Encoding"));
+        assertNull(get(null, "deflate, gzip; q=0.000").getHeader("Content-Encoding"));
+        assertNull(get(null, "identity").getHeader("Content-Encoding"));
+        assertEquals("gzip", get(null, "deflate, gzip;q=0.5").getHeader("Content-Encoding"));
+        assertEquals("gzip", get(null, "*").getHeader("Content-Encoding"));
+        assertNull(get(null, "gzip;q=0, *").getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void marshalsAgainOnlyWhenInvalidated() throws Exception {
+        CachedMetadataDisplayFilter.CachedMetadata metadata = displayFilter.getMetadata(ENTITY_ID);
+
+        displayFilter.invalidate();
+
+        CachedMetadataDisplayFilter.CachedMetadata regenerated = displayFilter.getMetadata(ENTITY_ID);
+        assertNotSame(metadata, regenerated);
+        assertSame(regenerated, displayFilter.getMetadata(ENTITY_ID));
+    }
+
+    private MockHttpServletResponse get(String ifNoneMatch, String acceptEncoding) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/saml/metadata");
+        if (ifNoneMatch != null) {
+            request.addHeader("If-None-Match", ifNoneMatch);
+        }
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        displayFilter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.DOMMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.security.MetadataCriteria;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.util.Base64;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.security.saml.SAMLBootstrap;
+import org.springframework.security.saml.key.JKSKeyManager;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventPublishingMetadataManagerTest {
+
+    static final String SAML2_PROTOCOL = "urn:oasis:names:tc:SAML:2.0:protocol";
+
+    static BasicParserPool parserPool;
+    static JKSKeyManager keyManager;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<MetadataProvider> providers = new ArrayList<>();
+    private EventPublishingMetadataManager manager;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        new SAMLBootstrap().postProcessBeanFactory(null);
+        parserPool = new BasicParserPool();
+        parserPool.setNamespaceAware(true);
+        keyManager = new JKSKeyManager(new DefaultResourceLoader().getResource("classpath:/saml/samlKeystore.jks"),
+                "secret", Collections.singletonMap("apollo", "secret"), "apollo");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        providers.add(provider(idp("https://idp.example.com"), new ExtendedMetadata()));
+        ExtendedMetadata local = new ExtendedMetadata();
+        local.setLocal(true);
+        local.setAlias("sp");
+        providers.add(provider(sp("https://sp.example.com"), local));
+        manager = new EventPublishingMetadataManager(providers);
+        manager.setKeyManager(keyManager);
+        manager.refreshMetadata();
+    }
+
+    @Test
+    public void testEntitiesAreLookedUpByIdAndSourceId() throws Exception {
+        assertEquals(Collections.singleton("https://idp.example.com"), manager.getIDPEntityNames());
+        assertSame(manager.getEntityDescriptor("https://idp.example.com"),
+                manager.getEntityDescriptor(sha1("https://idp.example.com")));
+        assertEquals("https://sp.example.com", manager.getEntityDescriptor(sha1("https://sp.example.com"))
+                .getEntityID());
+        assertNull(manager.getEntityDescriptor("https://unknown.example.com"));
+        assertNull(manager.getEntityDescriptor(sha1("https://unknown.example.com")));
+        assertEquals("https://idp.example.com/sso", ((IDPSSODescriptor) manager.getRole("https://idp.example.com",
+                IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAML2_PROTOCOL)).getSingleSignOnServices().get(0)
+                .getLocation());
+        assertNull(manager.getRole("https://unknown.example.com", IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                SAML2_PROTOCOL));
+    }
+
+    @Test
+    public void testLocalEntitiesAreLookedUpByAlias() throws Exception {
+        assertEquals("https://sp.example.com", manager.getEntityIdForAlias("sp"));
+        assertNull(manager.getEntityIdForAlias("idp"));
+        assertTrue(manager.getExtendedMetadata("https://sp.example.com").isLocal());
+        assertFalse(manager.getExtendedMetadata("https://idp.example.com").isLocal());
+        assertFalse(manager.getExtendedMetadata("https://unknown.example.com").isLocal());
+    }
+
+    @Test
+    public void testFirstProviderOfAnEntityIsIndexed() throws Exception {
+        providers.add(provider(idp("https://idp.example.com").replace("/sso", "/other"), new ExtendedMetadata()));
+        manager.setProviders(providers);
+        manager.refreshMetadata();
+
+        assertEquals("https://idp.example.com/sso", manager.getEntityDescriptor("https://idp.example.com")
+                .getIDPSSODescriptor(SAML2_PROTOCOL).getSingleSignOnServices().get(0).getLocation());
+    }
+
+    @Test
+    public void testIndexIsReplacedOnRefresh() throws Exception {
+        providers.remove(0);
+        manager.setProviders(providers);
+        manager.refreshMetadata();
+
+        assertTrue(manager.getIDPEntityNames().isEmpty());
+        assertNull(manager.getEntityDescriptor("https://idp.example.com"));
+        assertNull(manager.getEntityDescriptor(sha1("https://idp.example.com")));
+        assertEquals("https://sp.example.com", manager.getEntityIdForAlias("sp"));
+    }
+
+    @Test
+    public void testCredentialsAreResolvedOncePerRefresh() throws Exception {
+        IndexedMetadataCredentialResolver resolver = new IndexedMetadataCredentialResolver(manager, keyManager);
+        CriteriaSet criteria = new CriteriaSet(new EntityIDCriteria("https://idp.example.com"));
+        criteria.add(new MetadataCriteria(IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAML2_PROTOCOL));
+        criteria.add(new UsageCriteria(UsageType.SIGNING));
+
+        Credential credential = resolver.resolveSingle(criteria);
+        assertEquals(keyManager.getCertificate("apollo"), ((X509Credential) credential).getEntityCertificate());
+        assertSame(credential, resolver.resolveSingle(criteria));
+
+        manager.refreshMetadata();
+
+        assertNotSame(credential, resolver.resolveSingle(criteria));
+        criteria.add(new EntityIDCriteria("https://unknown.example.com"), true);
+        assertNull(resolver.resolveSingle(criteria));
+    }
+
+    @Test
+    public void testMetadataLoadedInTheBackgroundIsIndexedAtOnce() throws Exception {
+        File cacheFile = folder.newFile("idp.xml");
+        Files.write(cacheFile.toPath(), idp("https://idp.example.com").getBytes(StandardCharsets.UTF_8));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            CountDownLatch paused = new CountDownLatch(1);
+            scheduler.execute(() -> {
+                try {
+                    paused.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            // nothing listens on port 1
+            CachedHTTPMetadataProvider provider = new CachedHTTPMetadataProvider(scheduler, new HttpClient(),
+                    "http://localhost:1/idp.xml", cacheFile);
+            provider.setParserPool(parserPool);
+            provider.setBackgroundInitialization(true);
+            ExtendedMetadataDelegate delegate = new ExtendedMetadataDelegate(provider, new ExtendedMetadata());
+            delegate.setMetadataTrustCheck(false);
+            EventPublishingMetadataManager manager =
+                    new EventPublishingMetadataManager(Collections.<MetadataProvider>singletonList(delegate));
+            manager.setKeyManager(keyManager);
+            manager.setRefreshExecutor(Runnable::run);
+            MetadataHealthIndicator healthIndicator = new MetadataHealthIndicator(manager);
+            manager.refreshMetadata();
+
+            assertTrue(manager.getIDPEntityNames().isEmpty());
+            assertEquals(Status.OUT_OF_SERVICE, healthIndicator.health().getStatus());
+
+            paused.countDown();
+            scheduler.submit(() -> null).get();
+
+            assertEquals(Collections.singleton("https://idp.example.com"), manager.getIDPEntityNames());
+            assertEquals(Status.UP, healthIndicator.health().getStatus());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    static String idp(String entityId) throws Exception {
+        return "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+                + " xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\" entityID=\"" + entityId + "\">"
+                + "<md:IDPSSODescriptor protocolSupportEnumeration=\"" + SAML2_PROTOCOL + "\">"
+                + "<md:KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>"
+                + Base64.encodeBytes(keyManager.getCertificate("apollo").getEncoded(), Base64.DONT_BREAK_LINES)
+                + "</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>"
+                + "<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\""
+                + " Location=\"" + entityId + "/sso\"/></md:IDPSSODescriptor></md:EntityDescriptor>";
+    }
+
+    private static String sp(String entityId) {
+        return "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"" + entityId
+                + "\"><md:SPSSODescriptor protocolSupportEnumeration=\"" + SAML2_PROTOCOL + "\">"
+                + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+                + " Location=\"" + entityId + "/acs\" index=\"0\"/></md:SPSSODescriptor></md:EntityDescriptor>";
+    }
+
+    static ExtendedMetadataDelegate provider(String xml, ExtendedMetadata extendedMetadata)
+            throws Exception {
+        DOMMetadataProvider provider = new DOMMetadataProvider(parserPool
+                .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))).getDocumentElement());
+        provider.setParserPool(parserPool);
+        provider.initialize();
+        ExtendedMetadataDelegate delegate = new ExtendedMetadataDelegate(provider, extendedMetadata);
+        delegate.setMetadataTrustCheck(false);
+        return delegate;
+    }
+
+    private static byte[] sha1(String entityId) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(entityId.getBytes(StandardCharsets.UTF_8));
+    }
+}
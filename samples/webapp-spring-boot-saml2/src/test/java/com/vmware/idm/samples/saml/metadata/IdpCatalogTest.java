@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IdpCatalogTest {
+
+    private static BasicParserPool parserPool;
+
+    private final Map<String, EntityDescriptor> descriptors = new HashMap<>();
+    private MetadataManager manager;
+    private IdpCatalog catalog;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        DefaultBootstrap.bootstrap();
+        parserPool = new BasicParserPool();
+        parserPool.setNamespaceAware(true);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        manager = mock(MetadataManager.class);
+        catalog = new IdpCatalog();
+        add("https://idp.acme.com", "Acme Corporation", "acme.com");
+        add("https://login.example.org/saml", "Example University", "example.org");
+        add("urn:zeta", null, null);
+        refresh();
+    }
+
+    @Test
+    public void listsTheIdpsByDisplayName() throws Exception {
+        IdpCatalog.Page page = catalog.search("", 0, 10);
+
+        assertEquals(3, page.getTotal());
+        assertEquals(Arrays.asList("Acme Corporation", "Example University", "urn:zeta"), displayNames(page));
+        assertEquals(Arrays.asList("acme.com"), catalog.getIdp("https://idp.acme.com").getDomainHints());
+        assertNull(catalog.getIdp("https://unknown"));
+    }
+
+    @Test
+    public void searchesByPrefixOfTheTerms() throws Exception {
+        assertEquals(Arrays.asList("Example University"), displayNames(catalog.search("UNIV", 0, 10)));
+        assertEquals(Arrays.asList("Example University"), displayNames(catalog.search("example.o", 0, 10)));
+        assertEquals(Arrays.asList("Acme Corporation"), displayNames(catalog.search("idp.acme", 0, 10)));
+        assertEquals(Arrays.asList("Acme Corporation"), displayNames(catalog.search(" https://idp", 0, 10)));
+        assertEquals(Arrays.asList("urn:zeta"), displayNames(catalog.search("urn:", 0, 10)));
+        assertEquals(0, catalog.search("nothing", 0, 10).getTotal());
+    }
+
+    @Test
+    public void pagesTheResults() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            add("https://idp" + i + ".campus.edu", String.format("Campus %02d", i), null);
+        }
+        refresh();
+
+        IdpCatalog.Page page = catalog.search("campus", 2, 10);
+
+        assertEquals(25, page.getTotal());
+        assertEquals(Arrays.asList("Campus 20", "Campus 21", "Campus 22", "Campus 23", "Campus 24"),
+                displayNames(page));
+        assertEquals(0, catalog.search("campus", 3, 10).getIdps().size());
+    }
+
+    @Test
+    public void reusesTheEntriesOfTheUnchangedIdps() throws Exception {
+        IdpEntry acme = catalog.getIdp("https://idp.acme.com");
+        IdpEntry example = catalog.getIdp("https://login.example.org/saml");
+
+        add("https://login.example.org/saml", "Example College", "example.org");
+        descriptors.remove("urn:zeta");
+        refresh();
+
+        assertSame(acme, catalog.getIdp("https://idp.acme.com"));
+        assertEquals("Example College", catalog.getIdp("https://login.example.org/saml").getDisplayName());
+        assertEquals(example.getEntityId(), catalog.getIdp("https://login.example.org/saml").getEntityId());
+        assertEquals(2, catalog.size());
+        assertEquals(0, catalog.search("univ", 0, 10).getTotal());
+    }
+
+    @Test
+    public void takesTheEntriesOfTheIndexedIdpsWithoutParsingThem() throws Exception {
+        EventPublishingMetadataManager indexedManager = mock(EventPublishingMetadataManager.class);
+        IdpEntry indexed = IdpEntry.of("https://idp.indexed.org", " Indexed University ",
+                Collections.singletonList("indexed.org"));
+        when(indexedManager.getIDPEntityNames()).thenReturn(Collections.singleton("https://idp.indexed.org"));
+        when(indexedManager.getIndexedIdpEntry("https://idp.indexed.org")).thenReturn(indexed);
+
+        catalog.rebuild(indexedManager);
+
+        assertSame(indexed, catalog.getIdp("https://idp.indexed.org"));
+        assertEquals("Indexed University", indexed.getDisplayName());
+        assertEquals(1, catalog.search("indexed.org", 0, 10).getTotal());
+        verify(indexedManager, never()).getEntityDescriptor(anyString());
+    }
+
+    private void refresh() throws Exception {
+        when(manager.getIDPEntityNames()).thenReturn(new HashSet<>(descriptors.keySet()));
+        for (Map.Entry<String, EntityDescriptor> descriptor : descriptors.entrySet()) {
+            when(manager.getEntityDescriptor(descriptor.getKey())).thenReturn(descriptor.getValue());
+        }
+        catalog.onApplicationEvent(new MetadataRefreshedEvent(manager));
+    }
+
+    private void add(String entityId, String displayName, String domainHint) throws Exception {
+        StringBuilder xml = new StringBuilder("<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+                + " xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\" entityID=\"" + entityId + "\">"
+                + "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">");
+        if (displayName != null) {
+            xml.append("<md:Extensions><mdui:UIInfo><mdui:DisplayName xml:lang=\"fr\">Autre</mdui:DisplayName>")
+                    .append("<mdui:DisplayName xml:lang=\"en\">").append(displayName).append("</mdui:DisplayName>")
+                    .append("</mdui:UIInfo>");
+            if (domainHint != null) {
+                xml.append("<mdui:DiscoHints><mdui:DomainHint>").append(domainHint)
+                        .append("</mdui:DomainHint></mdui:DiscoHints>");
+            }
+            xml.append("</md:Extensions>");
+        }
+        xml.append("<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\"")
+                .append(" Location=\"").append(entityId).append("/sso\"/>")
+                .append("</md:IDPSSODescriptor></md:EntityDescriptor>");
+        Element element = parserPool.parse(new ByteArrayInputStream(xml.toString().getBytes(StandardCharsets.UTF_8)))
+                .getDocumentElement();
+        descriptors.put(entityId,
+                (EntityDescriptor) Configuration.getUnmarshallerFactory().getUnmarshaller(element).unmarshall(element));
+    }
+
+    private static List<String> displayNames(IdpCatalog.Page page) {
+        List<String> displayNames = new ArrayList<>();
+        for (IdpEntry idp : page.getIdps()) {
+            displayNames.add(idp.getDisplayName());
+        }
+        return displayNames;
+    }
+}
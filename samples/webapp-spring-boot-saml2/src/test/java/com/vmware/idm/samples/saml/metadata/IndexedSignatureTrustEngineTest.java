@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.metadata;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.security.MetadataCriteria;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class IndexedSignatureTrustEngineTest {
+
+    private static final String IDP_ENTITY_ID = "https://idp.example.com";
+
+    private EventPublishingMetadataManager manager;
+    private SignatureTrustEngine delegate;
+    private IndexedSignatureTrustEngine trustEngine;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        EventPublishingMetadataManagerTest.bootstrap();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        manager = new EventPublishingMetadataManager(Collections.<MetadataProvider>singletonList(
+                EventPublishingMetadataManagerTest.provider(EventPublishingMetadataManagerTest.idp(IDP_ENTITY_ID),
+                        new ExtendedMetadata())));
+        manager.setKeyManager(EventPublishingMetadataManagerTest.keyManager);
+        manager.refreshMetadata();
+        delegate = spy(new ExplicitKeySignatureTrustEngine(
+                new IndexedMetadataCredentialResolver(manager, EventPublishingMetadataManagerTest.keyManager),
+                Configuration.getGlobalSecurityConfiguration().getDefaultKeyInfoCredentialResolver()));
+        trustEngine = new IndexedSignatureTrustEngine(manager, delegate);
+    }
+
+    @Test
+    public void testTrustedCredentialIsRememberedUntilTheRefresh() throws Exception {
+        assertTrue(trustEngine.validate(sign("first"), criteria(IDP_ENTITY_ID)));
+        assertTrue(trustEngine.validate(sign("second"), criteria(IDP_ENTITY_ID)));
+        verify(delegate, times(1)).validate(any(Signature.class), any(CriteriaSet.class));
+
+        manager.refreshMetadata();
+
+        assertTrue(trustEngine.validate(sign("third"), criteria(IDP_ENTITY_ID)));
+        verify(delegate, times(2)).validate(any(Signature.class), any(CriteriaSet.class));
+    }
+
+    @Test
+    public void testInvalidSignatureIsValidatedByTheDelegate() throws Exception {
+        assertTrue(trustEngine.validate(sign("first"), criteria(IDP_ENTITY_ID)));
+        Signature signature = sign("second");
+        ((Assertion) signature.getParent()).getIssuer().getDOM().setTextContent("https://evil.example.com");
+
+        assertFalse(trustEngine.validate(signature, criteria(IDP_ENTITY_ID)));
+        verify(delegate, times(2)).validate(any(Signature.class), any(CriteriaSet.class));
+    }
+
+    @Test
+    public void testUnknownEntityIsValidatedByTheDelegate() throws Exception {
+        assertFalse(trustEngine.validate(sign("first"), criteria("https://unknown.example.com")));
+        assertFalse(trustEngine.validate(sign("second"), criteria("https://unknown.example.com")));
+        verify(delegate, times(2)).validate(any(Signature.class), any(CriteriaSet.class));
+    }
+
+    private static CriteriaSet criteria(String entityId) {
+        CriteriaSet criteria = new CriteriaSet(new EntityIDCriteria(entityId));
+        criteria.add(new MetadataCriteria(IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                EventPublishingMetadataManagerTest.SAML2_PROTOCOL));
+        criteria.add(new UsageCriteria(UsageType.SIGNING));
+        return criteria;
+    }
+
+    private static Signature sign(String id) throws Exception {
+        XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+        Assertion assertion = (Assertion) builderFactory.getBuilder(Assertion.DEFAULT_ELEMENT_NAME)
+                .buildObject(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID(id);
+        Issuer issuer = (Issuer) builderFactory.getBuilder(Issuer.DEFAULT_ELEMENT_NAME)
+                .buildObject(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(IDP_ENTITY_ID);
+        assertion.setIssuer(issuer);
+        Credential signingCredential = EventPublishingMetadataManagerTest.keyManager.getCredential("apollo");
+        Signature signature = (Signature) builderFactory.getBuilder(Signature.DEFAULT_ELEMENT_NAME)
+                .buildObject(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(signingCredential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        SecurityHelper.prepareSignatureParams(signature, signingCredential, null, null);
+        assertion.setSignature(signature);
+        Configuration.getMarshallerFactory().getMarshaller(assertion).marshall(assertion);
+        Signer.signObject(signature);
+        return signature;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.parse.StaticBasicParserPool;
+import org.w3c.dom.Document;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExclusiveCanonicalizerTest {
+
+    private static StaticBasicParserPool parserPool;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        DefaultBootstrap.bootstrap();
+        parserPool = new StaticBasicParserPool();
+        parserPool.initialize();
+    }
+
+    @Test
+    public void testUnusedNamespacesAreDropped() throws Exception {
+        assertCanonicalizedAsXmlsec("<a:root xmlns:a=\"urn:a\" xmlns:b=\"urn:b\" xmlns=\"urn:default\">"
+                + "<a:child xmlns:c=\"urn:c\"><b:leaf/></a:child></a:root>");
+    }
+
+    @Test
+    public void testRedeclaredNamespacesAreRenderedOnce() throws Exception {
+        assertCanonicalizedAsXmlsec("<root xmlns=\"urn:default\" xmlns:a=\"urn:a\">"
+                + "<child xmlns=\"urn:default\"><a:x xmlns:a=\"urn:other\"/><a:y/></child>"
+                + "<plain xmlns=\"\"><nested/></plain></root>");
+    }
+
+    @Test
+    public void testAttributesAreSortedAndEscaped() throws Exception {
+        assertCanonicalizedAsXmlsec("<root xmlns:z=\"urn:a\" xmlns:a=\"urn:z\" b='1' z:c=\"2\" a:d=\"3\""
+                + " a=\"&quot;&lt;&amp;&#9;&#10;&#13;>\" xml:lang=\"en\">"
+                + "text &amp; &lt;markup&gt; &#13; <![CDATA[<cdata>]]><?pi data?><!-- comment --></root>");
+    }
+
+    @Test
+    public void testInclusivePrefixesAreRendered() throws Exception {
+        assertCanonicalizedAsXmlsec("<root xmlns=\"urn:default\" xmlns:a=\"urn:a\" xmlns:b=\"urn:b\">"
+                + "<child/></root>", "#default", "a");
+    }
+
+    private static void assertCanonicalizedAsXmlsec(String xml, String... inclusivePrefixes) throws Exception {
+        Document document = parserPool.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        String expected = new String(Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS)
+                .canonicalizeSubtree(document.getDocumentElement(), String.join(" ", inclusivePrefixes)),
+                StandardCharsets.UTF_8);
+
+        Set<String> prefixes = new LinkedHashSet<>();
+        for (String prefix : Arrays.asList(inclusivePrefixes)) {
+            prefixes.add("#default".equals(prefix) ? "" : prefix);
+        }
+        StringWriter out = new StringWriter();
+        ExclusiveCanonicalizer canonicalizer = new ExclusiveCanonicalizer(out,
+                prefixes.isEmpty() ? Collections.<String>emptySet() : prefixes);
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        XMLStreamReader reader = factory.createXMLStreamReader(new StringReader(xml));
+        Deque<StartTag> elements = new ArrayDeque<>();
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    elements.push(StartTag.of(reader));
+                    canonicalizer.startElement(elements.peek());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    canonicalizer.endElement(elements.pop());
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    canonicalizer.characters(reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    canonicalizer.comment(reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    canonicalizer.processingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+                default:
+                    break;
+            }
+        }
+        canonicalizer.flush();
+
+        assertEquals(expected, out.toString());
+    }
+}
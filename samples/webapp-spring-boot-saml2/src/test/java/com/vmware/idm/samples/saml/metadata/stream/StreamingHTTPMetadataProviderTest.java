@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.idm.samples.saml.metadata.EventPublishingMetadataManager;
+import org.apache.commons.httpclient.HttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.xml.parse.StaticBasicParserPool;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.security.saml.key.JKSKeyManager;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingHTTPMetadataProviderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] signedAggregate;
+
+    private HttpServer server;
+    private ScheduledExecutorService scheduler;
+    private StreamingHTTPMetadataProvider provider;
+    private EventPublishingMetadataManager manager;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        StreamingMetadataIndexerTest.bootstrap();
+        signedAggregate = StreamingMetadataIndexerTest.sign(StreamingMetadataIndexerTest.AGGREGATE)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/federation.xml", exchange -> {
+            exchange.sendResponseHeaders(200, signedAggregate.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(signedAggregate);
+            }
+            exchange.close();
+        });
+        server.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        StaticBasicParserPool parserPool = new StaticBasicParserPool();
+        parserPool.initialize();
+        provider = new StreamingHTTPMetadataProvider(scheduler, new HttpClient(),
+                "http://localhost:" + server.getAddress().getPort() + "/federation.xml",
+                new File(folder.getRoot(), "federation.xml"));
+        provider.setParserPool(parserPool);
+        provider.setRetainedEntityIds(Collections.singleton(StreamingMetadataIndexerTest.SP_ENTITY_ID));
+        ExtendedMetadataDelegate delegate = new ExtendedMetadataDelegate(provider, new ExtendedMetadata());
+        delegate.setMetadataTrustCheck(true);
+        delegate.setMetadataRequireSignature(true);
+
+        manager = new EventPublishingMetadataManager(Collections.<MetadataProvider>singletonList(delegate));
+        manager.setKeyManager(new JKSKeyManager(
+                new DefaultResourceLoader().getResource("classpath:/saml/samlKeystore.jks"), "secret",
+                Collections.singletonMap("apollo", "secret"), "apollo"));
+        manager.refreshMetadata();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        server.stop(0);
+    }
+
+    @Test
+    public void testEntitiesAreRegisteredFromTheIndex() throws Exception {
+        assertEquals(Collections.singleton(StreamingMetadataIndexerTest.IDP_ENTITY_ID), manager.getIDPEntityNames());
+        assertTrue(manager.isSPValid(StreamingMetadataIndexerTest.SP_ENTITY_ID));
+        assertFalse(manager.isIDPValid("https://idp2.example.com"));
+    }
+
+    @Test
+    public void testEntitiesAreParsedOnDemand() throws Exception {
+        assertNotNull(manager.getEntityDescriptor(StreamingMetadataIndexerTest.IDP_ENTITY_ID));
+        assertSame(manager.getEntityDescriptor(StreamingMetadataIndexerTest.IDP_ENTITY_ID),
+                manager.getEntityDescriptor(StreamingMetadataIndexerTest.IDP_ENTITY_ID));
+        assertNull(manager.getEntityDescriptor("https://idp2.example.com"));
+        assertNotNull(manager.getRole(StreamingMetadataIndexerTest.IDP_ENTITY_ID,
+                IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                "urn:oasis:names:tc:SAML:2.0:protocol"));
+    }
+
+    @Test
+    public void testOnlyRetainedEntitiesAreInTheMetadata() throws Exception {
+        EntitiesDescriptor metadata = (EntitiesDescriptor) provider.getMetadata();
+
+        assertEquals(1, metadata.getEntityDescriptors().size());
+        assertEquals(StreamingMetadataIndexerTest.SP_ENTITY_ID, metadata.getEntityDescriptors().get(0).getEntityID());
+    }
+
+    @Test
+    public void testStoreIsDeletedWithTheProvider() throws Exception {
+        File storeFile = new File(folder.getRoot(), "federation.xml.1.entities");
+        assertTrue(storeFile.isFile());
+
+        manager.destroy();
+
+        assertFalse(storeFile.exists());
+    }
+}
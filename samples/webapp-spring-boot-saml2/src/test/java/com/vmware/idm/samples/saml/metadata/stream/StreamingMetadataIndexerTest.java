@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.metadata.stream;
+
+import com.vmware.idm.samples.saml.metadata.IdpEntry;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.samlext.saml2mdui.UIInfo;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.parse.StaticBasicParserPool;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.BasicCredential;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.StaticCredentialResolver;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.security.saml.SAMLBootstrap;
+import org.springframework.security.saml.key.JKSKeyManager;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingMetadataIndexerTest {
+
+    static final String IDP_ENTITY_ID = "https://idp1.example.com";
+    static final String SP_ENTITY_ID = "https://sp.example.com";
+
+    static final String AGGREGATE = "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+            + " xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\" ID=\"aggregate\" Name=\"federation\">\n"
+            + "  <md:EntityDescriptor entityID=\"" + IDP_ENTITY_ID + "\">\n"
+            + "    <md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+            + "      <md:Extensions><mdui:UIInfo>"
+            + "<mdui:DisplayName xml:lang=\"en\">Example &amp; Co &lt;IdP&gt;</mdui:DisplayName>"
+            + "<mdui:DisplayName xml:lang=\"fr\">Exemple</mdui:DisplayName>"
+            + "</mdui:UIInfo><mdui:DiscoHints><mdui:DomainHint> example.com </mdui:DomainHint></mdui:DiscoHints>"
+            + "</md:Extensions>\n"
+            + "      <md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\""
+            + " Location=\"https://idp1.example.com/sso?a=1&amp;b=&quot;2&quot;\"/>\n"
+            + "    </md:IDPSSODescriptor>\n"
+            + "  </md:EntityDescriptor>\n"
+            + "  <md:EntitiesDescriptor Name=\"nested\">\n"
+            + "    <EntityDescriptor xmlns=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"" + SP_ENTITY_ID
+            + "\">\n"
+            + "      <SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+            + "        <AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+            + " Location=\"https://sp.example.com/acs\" index=\"0\"/>\n"
+            + "      </SPSSODescriptor>\n"
+            + "    </EntityDescriptor>\n"
+            + "  </md:EntitiesDescriptor>\n"
+            + "  <md:EntityDescriptor entityID=\"https://idp2.example.com\" validUntil=\"2000-01-01T00:00:00Z\">\n"
+            + "    <md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+            + "      <md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\""
+            + " Location=\"https://idp2.example.com/sso\"/>\n"
+            + "    </md:IDPSSODescriptor>\n"
+            + "  </md:EntityDescriptor>\n"
+            + "</md:EntitiesDescriptor>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StaticBasicParserPool parserPool;
+    private static Credential signingCredential;
+
+    private SignatureTrustEngine trustEngine;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        new SAMLBootstrap().postProcessBeanFactory(null);
+        parserPool = new StaticBasicParserPool();
+        parserPool.initialize();
+        JKSKeyManager keyManager = new JKSKeyManager(
+                new DefaultResourceLoader().getResource("classpath:/saml/samlKeystore.jks"), "secret",
+                Collections.singletonMap("apollo", "secret"), "apollo");
+        signingCredential = keyManager.getCredential("apollo");
+    }
+
+    @Before
+    public void setUp() {
+        trustEngine = trustEngine(signingCredential);
+    }
+
+    @Test
+    public void testSignedAggregateIsIndexed() throws Exception {
+        MetadataIndex index = index(sign(AGGREGATE), true);
+
+        assertEquals(2, index.size());
+        assertEquals(Collections.singleton(IDP_ENTITY_ID), index.getIDPEntityIds());
+        assertEquals(Collections.singleton(SP_ENTITY_ID), index.getSPEntityIds());
+        assertEquals(new DateTime("2000-01-01T00:00:00Z").getMillis(),
+                index.getExpiration().getMillis());
+    }
+
+    @Test
+    public void testCatalogEntriesOfTheIdpsAreReadWhileIndexing() throws Exception {
+        MetadataIndex index = index(sign(AGGREGATE), true);
+
+        IdpEntry idp = index.getIdpEntry(IDP_ENTITY_ID);
+        assertEquals("Example & Co <IdP>", idp.getDisplayName());
+        assertEquals(Collections.singletonList("example.com"), idp.getDomainHints());
+        assertNull(index.getIdpEntry(SP_ENTITY_ID));
+    }
+
+    @Test
+    public void testIndexedEntitiesCanBeParsedOnTheirOwn() throws Exception {
+        MetadataIndex index = index(sign(AGGREGATE), true);
+
+        EntityDescriptor idp = parse(index.open(IDP_ENTITY_ID));
+        EntityDescriptor sp = parse(index.open(SP_ENTITY_ID));
+
+        UIInfo uiInfo = (UIInfo) idp.getIDPSSODescriptor("urn:oasis:names:tc:SAML:2.0:protocol").getExtensions()
+                .getUnknownXMLObjects(UIInfo.DEFAULT_ELEMENT_NAME).get(0);
+        assertEquals("Example & Co <IdP>", uiInfo.getDisplayNames().get(0).getName().getLocalString());
+        assertEquals("https://idp1.example.com/sso?a=1&b=\"2\"", idp.getIDPSSODescriptor(
+                "urn:oasis:names:tc:SAML:2.0:protocol").getSingleSignOnServices().get(0).getLocation());
+        assertEquals(SP_ENTITY_ID, sp.getEntityID());
+        assertNull(index.open("https://idp2.example.com"));
+    }
+
+    @Test
+    public void testEquivalentSerializationIsVerified() throws Exception {
+        String signed = sign(AGGREGATE)
+                .replace("<md:EntitiesDescriptor Name=\"nested\">",
+                        "<!-- nested group --><md:EntitiesDescriptor Name='nested' >")
+                .replace("Example &amp; Co &lt;IdP&gt;", "<![CDATA[Example & Co <IdP>]]>");
+
+        MetadataIndex index = index(signed, true);
+
+        assertEquals(2, index.size());
+    }
+
+    @Test(expected = MetadataProviderException.class)
+    public void testTamperedAggregateIsRejected() throws Exception {
+        index(sign(AGGREGATE).replace("https://idp1.example.com/sso", "https://evil.example.com/sso"), true);
+    }
+
+    @Test(expected = MetadataProviderException.class)
+    public void testUntrustedSignatureIsRejected() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        BasicCredential otherCredential = new BasicCredential();
+        otherCredential.setPublicKey(generator.generateKeyPair().getPublic());
+        trustEngine = trustEngine(otherCredential);
+
+        index(sign(AGGREGATE), true);
+    }
+
+    @Test(expected = MetadataProviderException.class)
+    public void testUnsignedAggregateIsRejectedWhenSignatureIsRequired() throws Exception {
+        index(AGGREGATE, true);
+    }
+
+    @Test
+    public void testUnsignedAggregateIsIndexedWhenSignatureIsOptional() throws Exception {
+        MetadataIndex index = index(AGGREGATE, false);
+
+        assertTrue(index.contains(IDP_ENTITY_ID));
+        assertFalse(index.contains("https://idp2.example.com"));
+    }
+
+    @Test(expected = MetadataProviderException.class)
+    public void testExpiredAggregateIsRejected() throws Exception {
+        index(AGGREGATE.replace("Name=\"federation\"", "validUntil=\"2000-01-01T00:00:00Z\""), false);
+    }
+
+    @Test(expected = MetadataProviderException.class)
+    public void testDTDIsRejected() throws Exception {
+        index("<!DOCTYPE md:EntitiesDescriptor [<!ENTITY e \"e\">]>" + AGGREGATE, false);
+    }
+
+    private MetadataIndex index(String metadata, boolean requireSignature) throws Exception {
+        StreamingMetadataIndexer indexer = new StreamingMetadataIndexer(
+                new AggregateSignatureVerifier(parserPool, trustEngine), requireSignature);
+        File storeFile = folder.newFile();
+        return indexer.index(new ByteArrayInputStream(metadata.getBytes(StandardCharsets.UTF_8)), storeFile);
+    }
+
+    private static EntityDescriptor parse(InputStream in) throws Exception {
+        Element element = parserPool.parse(in).getDocumentElement();
+        return (EntityDescriptor) Configuration.getUnmarshallerFactory().getUnmarshaller(element).unmarshall(element);
+    }
+
+    static SignatureTrustEngine trustEngine(Credential trustedCredential) {
+        return new ExplicitKeySignatureTrustEngine(new StaticCredentialResolver(trustedCredential),
+                Configuration.getGlobalSecurityConfiguration().getDefaultKeyInfoCredentialResolver());
+    }
+
+    /**
+     * @return the metadata signed with the key of the sample keystore, as OpenSAML signs it
+     */
+    static String sign(String metadata) throws Exception {
+        Element element = parserPool.parse(new ByteArrayInputStream(metadata.getBytes(StandardCharsets.UTF_8)))
+                .getDocumentElement();
+        EntitiesDescriptor descriptor = (EntitiesDescriptor) Configuration.getUnmarshallerFactory()
+                .getUnmarshaller(element).unmarshall(element);
+        Signature signature = (Signature) Configuration.getBuilderFactory().getBuilder(Signature.DEFAULT_ELEMENT_NAME)
+                .buildObject(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(signingCredential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        SecurityHelper.prepareSignatureParams(signature, signingCredential, null, null);
+        descriptor.setSignature(signature);
+        XMLObject signed = descriptor;
+        Configuration.getMarshallerFactory().getMarshaller(signed).marshall(signed);
+        Signer.signObject(signature);
+        return XMLHelper.nodeToString(signed.getDOM());
+    }
+}
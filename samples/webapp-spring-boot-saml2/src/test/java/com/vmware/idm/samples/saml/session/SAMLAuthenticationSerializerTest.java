@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.session;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.Configuration;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.AttributeValue;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.parse.StaticBasicParserPool;
+import org.opensaml.xml.schema.XSString;
+import org.opensaml.xml.schema.impl.XSStringBuilder;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SAMLAuthenticationSerializerTest {
+
+    private static final String IDP = "https://idp.example.org/saml";
+
+    private static final String SP = "com:vmware:idm:samples";
+
+    private static SAMLAuthenticationSerializer serializer;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        DefaultBootstrap.bootstrap();
+        StaticBasicParserPool parserPool = new StaticBasicParserPool();
+        parserPool.initialize();
+        serializer = new SAMLAuthenticationSerializer(parserPool);
+    }
+
+    @Test
+    public void testAuthenticationIsRestored() {
+        User user = new User("jdoe", "", AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN"));
+        ExpiringUsernameAuthenticationToken token = new ExpiringUsernameAuthenticationToken(new Date(1500000000000L),
+                user, credential(), user.getAuthorities());
+        token.setDetails(user);
+
+        Authentication restored = serializer.deserialize(serializer.serialize(token));
+
+        assertEquals(new Date(1500000000000L), ((ExpiringUsernameAuthenticationToken) restored).getTokenExpiration());
+        assertEquals(user, restored.getPrincipal());
+        assertEquals(user.getAuthorities(), ((User) restored.getPrincipal()).getAuthorities());
+        assertEquals(new ArrayList<>(user.getAuthorities()), restored.getAuthorities());
+        assertSame(restored.getPrincipal(), restored.getDetails());
+
+        SAMLCredential credential = (SAMLCredential) restored.getCredentials();
+        assertEquals(IDP, credential.getRemoteEntityID());
+        assertEquals(SP, credential.getLocalEntityID());
+        assertEquals("relay", credential.getRelayState());
+        assertEquals("jdoe", credential.getNameID().getValue());
+        assertSame(credential.getAuthenticationAssertion().getSubject().getNameID(), credential.getNameID());
+        assertEquals("jdoe@example.org", credential.getAttributeAsString("email"));
+        assertEquals("additional", credential.getAdditionalData());
+    }
+
+    @Test
+    public void testCredentialIsReusedUntilAccessed() {
+        ExpiringUsernameAuthenticationToken token = new ExpiringUsernameAuthenticationToken(null, "jdoe",
+                credential(), AuthorityUtils.createAuthorityList("ROLE_USER"));
+        byte[] serialized = serializer.serialize(token);
+
+        Authentication restored = serializer.deserialize(serialized);
+
+        assertArrayEquals(serialized, serializer.serialize(restored));
+        assertEquals("jdoe", restored.getPrincipal());
+        assertNull(((ExpiringUsernameAuthenticationToken) restored).getTokenExpiration());
+    }
+
+    @Test
+    public void testRestoredAuthenticationIsJavaSerializable() throws Exception {
+        ExpiringUsernameAuthenticationToken token = new ExpiringUsernameAuthenticationToken(null, "jdoe", null,
+                AuthorityUtils.createAuthorityList("ROLE_USER"));
+
+        Authentication restored = serializer.deserialize(serializer.serialize(token));
+
+        assertNull(restored.getCredentials());
+        try (ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream())) {
+            out.writeObject(restored);
+        }
+    }
+
+    @Test
+    public void testUnsupportedAuthenticationIsNotSerialized() {
+        assertNull(serializer.serialize(new ExpiringUsernameAuthenticationToken(null, "jdoe", "password",
+                AuthorityUtils.createAuthorityList("ROLE_USER"))));
+    }
+
+    @Test
+    public void testInvalidBytesAreRejected() {
+        assertNull(serializer.deserialize(new byte[]{1, 2, 3}));
+        assertNull(serializer.deserialize(new byte[0]));
+    }
+
+    static SAMLCredential credential() {
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setValue("jdoe");
+        nameID.setFormat(NameID.UNSPECIFIED);
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        subject.setNameID(nameID);
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(IDP);
+        XSString value = new XSStringBuilder().buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+        value.setValue("jdoe@example.org");
+        Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+        attribute.setName("email");
+        attribute.getAttributeValues().add(value);
+        AttributeStatement statement = build(AttributeStatement.DEFAULT_ELEMENT_NAME);
+        statement.getAttributes().add(attribute);
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID("a1b2c3d4");
+        assertion.setIssuer(issuer);
+        assertion.setSubject(subject);
+        assertion.getAttributeStatements().add(statement);
+        return new SAMLCredential(nameID, assertion, IDP, "relay", Collections.singletonList(attribute), SP,
+                "additional");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName name) {
+        return (T) Configuration.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+}
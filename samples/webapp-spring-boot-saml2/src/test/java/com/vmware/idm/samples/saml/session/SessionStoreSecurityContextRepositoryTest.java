@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.session;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.parse.StaticBasicParserPool;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.http.Cookie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionStoreSecurityContextRepositoryTest {
+
+    private static SAMLAuthenticationSerializer serializer;
+
+    private final InMemorySessionStore store = new InMemorySessionStore();
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        DefaultBootstrap.bootstrap();
+        StaticBasicParserPool parserPool = new StaticBasicParserPool();
+        parserPool.initialize();
+        serializer = new SAMLAuthenticationSerializer(parserPool);
+    }
+
+    @Test
+    public void testAuthenticationIsLoadedByAnotherNode() {
+        Cookie cookie = login(repository());
+
+        MockHttpServletRequest request = request(cookie);
+        SecurityContext context = repository().loadContext(new HttpRequestResponseHolder(request,
+                new MockHttpServletResponse()));
+
+        assertEquals("jdoe", context.getAuthentication().getName());
+        assertEquals("jdoe", ((SAMLCredential) context.getAuthentication().getCredentials()).getNameID().getValue());
+        assertTrue(repository().containsContext(request));
+        assertNull(request.getSession(false));
+    }
+
+    @Test
+    public void testUnchangedAuthenticationIsNotStoredAgain() {
+        SessionStoreSecurityContextRepository repository = repository();
+        Cookie cookie = login(repository);
+        byte[] value = store.get(cookie.getValue());
+
+        MockHttpServletRequest request = request(cookie);
+        HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, new MockHttpServletResponse());
+        SecurityContext context = repository.loadContext(holder);
+        repository.saveContext(context, request, holder.getResponse());
+
+        assertSame(value, store.get(cookie.getValue()));
+        assertNull(response(holder).getCookie(SessionStoreSecurityContextRepository.COOKIE_NAME));
+    }
+
+    @Test
+    public void testNewAuthenticationIsStoredUnderNewId() {
+        SessionStoreSecurityContextRepository repository = repository();
+        Cookie cookie = login(repository);
+
+        Cookie newCookie = save(repository, request(cookie), authentication());
+
+        assertNotEquals(cookie.getValue(), newCookie.getValue());
+        assertNull(store.get(cookie.getValue()));
+        assertNotNull(store.get(newCookie.getValue()));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testLogoutRemovesAuthentication() {
+        SessionStoreSecurityContextRepository repository = repository();
+        Cookie cookie = login(repository);
+
+        MockHttpServletRequest request = request(cookie);
+        HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, new MockHttpServletResponse());
+        SecurityContext context = repository.loadContext(holder);
+        repository.logout(request, holder.getResponse(), context.getAuthentication());
+        repository.saveContext(SecurityContextHolder.createEmptyContext(), request, holder.getResponse());
+
+        assertNull(store.get(cookie.getValue()));
+        assertEquals(0, response(holder).getCookie(SessionStoreSecurityContextRepository.COOKIE_NAME).getMaxAge());
+        assertFalse(repository().containsContext(request(cookie)));
+    }
+
+    @Test
+    public void testExpiredAuthenticationIsNotLoaded() {
+        SessionStoreSecurityContextRepository repository = new SessionStoreSecurityContextRepository(store,
+                serializer, -1);
+        Cookie cookie = login(repository);
+
+        MockHttpServletRequest request = request(cookie);
+        SecurityContext context = repository.loadContext(new HttpRequestResponseHolder(request,
+                new MockHttpServletResponse()));
+
+        assertNull(context.getAuthentication());
+        store.sweep();
+        assertEquals(0, store.size());
+    }
+
+    private SessionStoreSecurityContextRepository repository() {
+        return new SessionStoreSecurityContextRepository(store, serializer, 60000);
+    }
+
+    private Cookie login(SessionStoreSecurityContextRepository repository) {
+        return save(repository, new MockHttpServletRequest("POST", "/saml/SSO"), authentication());
+    }
+
+    private static Cookie save(SessionStoreSecurityContextRepository repository, MockHttpServletRequest request,
+                               ExpiringUsernameAuthenticationToken authentication) {
+        HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, new MockHttpServletResponse());
+        repository.loadContext(holder);
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(authentication);
+        repository.saveContext(context, request, holder.getResponse());
+        return response(holder).getCookie(SessionStoreSecurityContextRepository.COOKIE_NAME);
+    }
+
+    private static ExpiringUsernameAuthenticationToken authentication() {
+        User user = new User("jdoe", "", AuthorityUtils.createAuthorityList("ROLE_USER"));
+        ExpiringUsernameAuthenticationToken authentication = new ExpiringUsernameAuthenticationToken(null, user,
+                SAMLAuthenticationSerializerTest.credential(), user.getAuthorities());
+        authentication.setDetails(user);
+        return authentication;
+    }
+
+    private static MockHttpServletRequest request(Cookie cookie) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.setCookies(cookie);
+        return request;
+    }
+
+    private static MockHttpServletResponse response(HttpRequestResponseHolder holder) {
+        return WebUtils.getNativeResponse(holder.getResponse(), MockHttpServletResponse.class);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.startup;
+
+import com.vmware.idm.samples.saml.config.StartupConfig;
+import org.junit.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupTimerTest {
+
+    private final StartupTimer timer = new StartupTimer(10);
+
+    @Test
+    public void testTimeOfTheDependenciesIsExcluded() throws Exception {
+        create("outer", 10, () -> create("inner", 50, null));
+
+        Map<String, Long> beans = timer.getSlowestBeans(10);
+        assertEquals(Arrays.asList("inner", "outer"), Arrays.asList(beans.keySet().toArray()));
+        assertTrue(beans.get("inner") >= 50);
+        assertTrue(beans.get("outer") < beans.get("inner"));
+        assertEquals(-1, timer.getStartupTime());
+    }
+
+    @Test
+    public void testFailedCreationsAndFactoryBeanObjectsAreIgnored() throws Exception {
+        timer.postProcessBeforeInstantiation(Object.class, "outer");
+        timer.postProcessBeforeInstantiation(Object.class, "failing");
+        timer.postProcessAfterInitialization(new Object(), "product");
+        timer.postProcessAfterInitialization(new Object(), "outer");
+
+        Map<String, Long> beans = timer.getSlowestBeans(10);
+        assertTrue(beans.containsKey("outer"));
+        assertFalse(beans.containsKey("failing"));
+        assertFalse(beans.containsKey("product"));
+    }
+
+    @Test
+    public void testMetricsOfTheRegisteredTimerArePublished() throws Exception {
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(StartupConfig.class)) {
+            context.publishEvent(new ApplicationReadyEvent(new SpringApplication(), new String[0], context));
+
+            Map<String, Number> metrics = new HashMap<>();
+            for (Metric<?> metric : context.getBean(PublicMetrics.class).metrics()) {
+                metrics.put(metric.getName(), metric.getValue());
+            }
+            assertTrue(metrics.get("startup.time").longValue() > 0);
+            assertTrue(metrics.containsKey("startup.beans.startupMetrics.time"));
+        }
+    }
+
+    private void create(String beanName, long time, Creation dependencies) throws Exception {
+        timer.postProcessBeforeInstantiation(Object.class, beanName);
+        Thread.sleep(time);
+        if (dependencies != null) {
+            dependencies.create();
+        }
+        timer.postProcessAfterInitialization(new Object(), beanName);
+    }
+
+    private interface Creation {
+
+        void create() throws Exception;
+    }
+}
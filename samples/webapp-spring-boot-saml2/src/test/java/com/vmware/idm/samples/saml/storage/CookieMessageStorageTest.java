@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.storage;
+
+import com.vmware.idm.samples.saml.websso.ReplayCache;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.Configuration;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.xml.XMLObject;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.Cookie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CookieMessageStorageTest {
+
+    private static final String REQUEST_ID = "a1b2c3d4";
+
+    private static final String ACS_URL = "https://localhost:8443/saml/SSO";
+
+    private final ReplayCache replayCache = new ReplayCache(4);
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        DefaultBootstrap.bootstrap();
+    }
+
+    @Test
+    public void testAuthnRequestIsRetrievedWithoutSession() {
+        Cookie cookie = store(new AuthnRequestCodec("secret", 60000));
+
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/saml/SSO");
+        request.setCookies(cookie);
+        XMLObject message = new CookieMessageStorage(new AuthnRequestCodec("secret", 60000), replayCache, request,
+                new MockHttpServletResponse()).retrieveMessage(REQUEST_ID);
+
+        AuthnRequest authnRequest = (AuthnRequest) message;
+        assertEquals(REQUEST_ID, authnRequest.getID());
+        assertEquals(ACS_URL, authnRequest.getAssertionConsumerServiceURL());
+        assertEquals(SAMLConstants.SAML2_POST_BINDING_URI, authnRequest.getProtocolBinding());
+        assertNull(request.getSession(false));
+    }
+
+    @Test
+    public void testAuthnRequestIsAnsweredOnlyOnce() {
+        Cookie cookie = store(new AuthnRequestCodec("secret", 60000));
+
+        assertNotNull(retrieve(cookie, "secret"));
+        assertNull(retrieve(cookie, "secret"));
+    }
+
+    @Test
+    public void testCookieSignedWithAnotherSecretIsRejected() {
+        Cookie cookie = store(new AuthnRequestCodec("another secret", 60000));
+
+        assertNull(retrieve(cookie, "secret"));
+    }
+
+    @Test
+    public void testRandomKeyIsOnlyKnownByItsCodec() {
+        AuthnRequestCodec codec = new AuthnRequestCodec("", 60000);
+
+        assertNull(retrieve(store(codec), new AuthnRequestCodec("", 60000)));
+        assertNotNull(retrieve(store(codec), codec));
+    }
+
+    @Test
+    public void testExpiredAuthnRequestIsRejected() {
+        Cookie cookie = store(new AuthnRequestCodec("secret", -1));
+
+        assertNull(retrieve(cookie, "secret"));
+    }
+
+    @Test
+    public void testOtherMessagesAreKeptInSession() {
+        LogoutRequest logoutRequest = (LogoutRequest) Configuration.getBuilderFactory()
+                .getBuilder(LogoutRequest.DEFAULT_ELEMENT_NAME).buildObject(LogoutRequest.DEFAULT_ELEMENT_NAME);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/saml/logout");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CookieMessageStorage storage = new CookieMessageStorage(new AuthnRequestCodec("secret", 60000), replayCache,
+                request, response);
+
+        storage.storeMessage("logout", logoutRequest);
+
+        assertEquals(0, response.getCookies().length);
+        assertSame(logoutRequest, storage.retrieveMessage("logout"));
+    }
+
+    private Cookie store(AuthnRequestCodec codec) {
+        AuthnRequest authnRequest = (AuthnRequest) Configuration.getBuilderFactory()
+                .getBuilder(AuthnRequest.DEFAULT_ELEMENT_NAME).buildObject(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        authnRequest.setID(REQUEST_ID);
+        authnRequest.setAssertionConsumerServiceURL(ACS_URL);
+        authnRequest.setProtocolBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/saml/login");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        new CookieMessageStorage(codec, replayCache, request, response).storeMessage(REQUEST_ID, authnRequest);
+
+        assertNull(request.getSession(false));
+        return response.getCookie(CookieMessageStorage.COOKIE_PREFIX + REQUEST_ID);
+    }
+
+    private XMLObject retrieve(Cookie cookie, String secret) {
+        return retrieve(cookie, new AuthnRequestCodec(secret, 60000));
+    }
+
+    private XMLObject retrieve(Cookie cookie, AuthnRequestCodec codec) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/saml/SSO");
+        request.setCookies(cookie);
+        return new CookieMessageStorage(codec, replayCache, request, new MockHttpServletResponse())
+                .retrieveMessage(REQUEST_ID);
+    }
+}
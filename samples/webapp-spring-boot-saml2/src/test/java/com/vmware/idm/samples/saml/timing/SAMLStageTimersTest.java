@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.idm.samples.saml.timing;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.web.WebAttributes;
+import org.springframework.web.filter.GenericFilterBean;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SAMLStageTimersTest {
+
+    private static final String IDP = "http://idp.example.com/metadata";
+
+    private final SAMLStageTimers timers = new SAMLStageTimers();
+
+    @Test
+    public void testStageIsRecordedUnderItsIdp() {
+        timers.stop(timers.start(SAMLStageTimers.SIGNATURE), IDP, true);
+        timers.stop(timers.start(SAMLStageTimers.SIGNATURE), IDP, false);
+
+        SAMLStageTimers.Timer timer = timer(SAMLStageTimers.SIGNATURE, IDP);
+        assertEquals(2, timer.getCount());
+        assertEquals(1, timer.getFailures());
+        assertTrue(timer.getMaxTime() >= timer.getMeanTime());
+    }
+
+    @Test
+    public void testPendingStagesAreRecordedOnceTheIdpIsKnown() {
+        assertTrue(timers.beginExchange());
+        assertFalse(timers.beginExchange());
+        timers.stop(timers.start(SAMLStageTimers.PARSE), null, true);
+        assertNull(timers.getTimers().get(SAMLStageTimers.PARSE));
+
+        timers.stop(timers.start(SAMLStageTimers.DECODE), IDP, true);
+        timers.stop(timers.start(SAMLStageTimers.USER_MAPPING), null, true);
+        timers.endExchange();
+
+        assertEquals(1, timer(SAMLStageTimers.PARSE, IDP).getCount());
+        assertEquals(1, timer(SAMLStageTimers.DECODE, IDP).getCount());
+        assertEquals(1, timer(SAMLStageTimers.USER_MAPPING, IDP).getCount());
+    }
+
+    @Test
+    public void testExchangeWithoutIdp() {
+        timers.beginExchange();
+        timers.stop(timers.start(SAMLStageTimers.PARSE), null, false);
+        timers.endExchange();
+
+        assertEquals(1, timer(SAMLStageTimers.PARSE, SAMLStageTimers.NO_ENTITY).getFailures());
+        assertTrue(timers.beginExchange());
+        timers.endExchange();
+    }
+
+    @Test
+    public void testFilterOutcomes() throws Exception {
+        Filter identifying = new DecodingFilter(false);
+        Filter failing = new DecodingFilter(true);
+
+        new TimedFilter(identifying, "filter.sso", timers).doFilter(new MockHttpServletRequest(),
+                new MockHttpServletResponse(), new MockFilterChain());
+        new TimedFilter(failing, "filter.sso", timers).doFilter(new MockHttpServletRequest(),
+                new MockHttpServletResponse(), new MockFilterChain());
+        MockHttpServletResponse notFound = new MockHttpServletResponse();
+        notFound.setStatus(404);
+        new TimedFilter(identifying, "filter.sso", timers).doFilter(new MockHttpServletRequest(), notFound,
+                new MockFilterChain());
+
+        SAMLStageTimers.Timer timer = timer("filter.sso", IDP);
+        assertEquals(3, timer.getCount());
+        assertEquals(2, timer.getFailures());
+        assertEquals(3, timer(SAMLStageTimers.DECODE, IDP).getCount());
+    }
+
+    private class DecodingFilter extends GenericFilterBean {
+
+        private final boolean failing;
+
+        private DecodingFilter(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) {
+            timers.stop(timers.start(SAMLStageTimers.DECODE), IDP, true);
+            if (failing) {
+                request.setAttribute(WebAttributes.AUTHENTICATION_EXCEPTION, new BadCredentialsException("Invalid"));
+            }
+        }
+    }
+
+    private SAMLStageTimers.Timer timer(String stage, String entityId) {
+        Map<String, SAMLStageTimers.Timer> byEntity = timers.getTimers().get(stage);
+        return byEntity.get(entityId);
+    }
+}
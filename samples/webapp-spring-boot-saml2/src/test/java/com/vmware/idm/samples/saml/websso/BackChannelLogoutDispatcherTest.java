@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml2.metadata.provider.DOMMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.security.trust.TrustEngine;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.springframework.security.saml.SAMLBootstrap;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.security.saml.processor.HTTPSOAP11Binding;
+import org.springframework.security.saml.processor.SAMLProcessorImpl;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+public class BackChannelLogoutDispatcherTest {
+
+    private static final String IDP_ENTITY_ID = "https://idp.example.com";
+    private static final String SP_ENTITY_ID = "https://sp.example.com";
+    private static final String SUCCESS = "urn:oasis:names:tc:SAML:2.0:status:Success";
+
+    private static BasicParserPool parserPool;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+    private MetadataManager metadataManager;
+    private BackChannelLogoutDispatcher dispatcher;
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        new SAMLBootstrap().postProcessBeanFactory(null);
+        parserPool = new BasicParserPool();
+        parserPool.setNamespaceAware(true);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        executor = Executors.newFixedThreadPool(2);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        DOMMetadataProvider provider = new DOMMetadataProvider(parserPool.parse(new ByteArrayInputStream(
+                metadata().getBytes(StandardCharsets.UTF_8))).getDocumentElement());
+        provider.setParserPool(parserPool);
+        provider.initialize();
+        ExtendedMetadataDelegate delegate = new ExtendedMetadataDelegate(provider, new ExtendedMetadata());
+        delegate.setMetadataTrustCheck(false);
+        metadataManager = new MetadataManager(Collections.<MetadataProvider>singletonList(delegate));
+        metadataManager.refreshMetadata();
+
+        dispatcher = new BackChannelLogoutDispatcher(new HttpClient(new MultiThreadedHttpConnectionManager()),
+                new SAMLProcessorImpl(new HTTPSOAP11Binding(parserPool)), executor, scheduler, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testParticipantsAreLoggedOutInParallel() throws Exception {
+        CountDownLatch received = new CountDownLatch(2);
+        respond("/idp1", received, SUCCESS);
+        respond("/idp2", received, SUCCESS);
+
+        int failed = dispatcher.dispatch(Arrays.asList(context("/idp1"), context("/idp2"))).get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, failed);
+        assertEquals(1, dispatcher.getLogouts());
+        assertEquals(0, dispatcher.getIncompleteLogouts());
+        assertEquals(2, dispatcher.getRequests());
+    }
+
+    @Test
+    public void testFailedParticipantIsCounted() throws Exception {
+        respond("/idp1", new CountDownLatch(0), SUCCESS);
+        respond("/idp2", new CountDownLatch(0), "urn:oasis:names:tc:SAML:2.0:status:Responder");
+
+        int failed = dispatcher.dispatch(Arrays.asList(context("/idp1"), context("/idp2"))).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, failed);
+        assertEquals(1, dispatcher.getIncompleteLogouts());
+        assertEquals(1, dispatcher.getFailures());
+        assertEquals(0, dispatcher.getTimeouts());
+    }
+
+    @Test
+    public void testSlowParticipantTimesOut() throws Exception {
+        respond("/idp1", new CountDownLatch(0), SUCCESS);
+        // waits for a request which never comes
+        respond("/idp2", new CountDownLatch(2), SUCCESS);
+
+        int failed = dispatcher.dispatch(Arrays.asList(context("/idp1"), context("/idp2"))).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, failed);
+        assertEquals(1, dispatcher.getIncompleteLogouts());
+        assertEquals(0, dispatcher.getFailures());
+        assertEquals(1, dispatcher.getTimeouts());
+    }
+
+    /**
+     * Answers the LogoutRequests posted to the path with the status, once all the requests counted by the latch were
+     * received.
+     */
+    private void respond(String path, CountDownLatch received, String status) {
+        server.createContext(path, exchange -> {
+            received.countDown();
+            try {
+                received.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = ("<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap11:Body>"
+                    + "<samlp:LogoutResponse xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+                    + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_response\" Version=\"2.0\""
+                    + " IssueInstant=\"" + new DateTime() + "\" InResponseTo=\"_request" + path + "\">"
+                    + "<saml:Issuer>" + IDP_ENTITY_ID + "</saml:Issuer><samlp:Status><samlp:StatusCode Value=\""
+                    + status + "\"/></samlp:Status></samlp:LogoutResponse></soap11:Body></soap11:Envelope>")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            exchange.close();
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private SAMLMessageContext context(String path) throws Exception {
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setMetadataProvider(metadataManager);
+        context.setLocalEntityId(SP_ENTITY_ID);
+        context.setLocalEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        context.setLocalEntityMetadata(metadataManager.getEntityDescriptor(SP_ENTITY_ID));
+        context.setLocalEntityRoleMetadata(context.getLocalEntityMetadata()
+                .getSPSSODescriptor("urn:oasis:names:tc:SAML:2.0:protocol"));
+        context.setLocalExtendedMetadata(new ExtendedMetadata());
+        context.setLocalTrustEngine(mock(SignatureTrustEngine.class));
+        context.setLocalSSLTrustEngine(mock(TrustEngine.class));
+        context.setPeerEntityId(IDP_ENTITY_ID);
+        context.setPeerEntityRole(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        ExtendedMetadata peerExtendedMetadata = new ExtendedMetadata();
+        peerExtendedMetadata.setRequireLogoutRequestSigned(false);
+        context.setPeerExtendedMetadata(peerExtendedMetadata);
+
+        SingleLogoutService logoutService = (SingleLogoutService) ((SAMLObjectBuilder<?>) Configuration
+                .getBuilderFactory().getBuilder(SingleLogoutService.DEFAULT_ELEMENT_NAME)).buildObject();
+        logoutService.setBinding("urn:oasis:names:tc:SAML:2.0:bindings:SOAP");
+        logoutService.setLocation("http://localhost:" + server.getAddress().getPort() + path);
+        context.setPeerEntityEndpoint(logoutService);
+
+        LogoutRequest logoutRequest = ((SAMLObjectBuilder<LogoutRequest>) Configuration.getBuilderFactory()
+                .getBuilder(LogoutRequest.DEFAULT_ELEMENT_NAME)).buildObject();
+        logoutRequest.setID("_request" + path);
+        logoutRequest.setVersion(SAMLVersion.VERSION_20);
+        logoutRequest.setIssueInstant(new DateTime());
+        logoutRequest.setDestination(logoutService.getLocation());
+        Issuer issuer = ((SAMLObjectBuilder<Issuer>) Configuration.getBuilderFactory()
+                .getBuilder(Issuer.DEFAULT_ELEMENT_NAME)).buildObject();
+        issuer.setValue(SP_ENTITY_ID);
+        logoutRequest.setIssuer(issuer);
+        context.setOutboundMessage(logoutRequest);
+        context.setOutboundSAMLMessage(logoutRequest);
+        return context;
+    }
+
+    private static String metadata() {
+        return "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\">"
+                + "<md:EntityDescriptor entityID=\"" + IDP_ENTITY_ID + "\">"
+                + "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+                + "<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\""
+                + " Location=\"" + IDP_ENTITY_ID + "/sso\"/></md:IDPSSODescriptor></md:EntityDescriptor>"
+                + "<md:EntityDescriptor entityID=\"" + SP_ENTITY_ID + "\">"
+                + "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+                + "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+                + " Location=\"" + SP_ENTITY_ID + "/acs\" index=\"0\"/></md:SPSSODescriptor></md:EntityDescriptor>"
+                + "</md:EntitiesDescriptor>";
+    }
+}
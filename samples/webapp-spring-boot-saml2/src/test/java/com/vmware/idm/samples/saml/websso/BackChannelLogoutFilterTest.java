@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.context.SAMLContextProvider;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.log.SAMLLogger;
+import org.springframework.security.saml.websso.SingleLogoutProfile;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+import org.springframework.security.web.authentication.logout.SecurityContextLogoutHandler;
+import org.springframework.security.web.authentication.logout.SimpleUrlLogoutSuccessHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BackChannelLogoutFilterTest {
+
+    private final SAMLMessageContext context = new SAMLMessageContext();
+    private final SAMLCredential credential = mock(SAMLCredential.class);
+    private SingleLogoutProfile profile;
+    private BackChannelLogoutFilter filter;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+
+    @Before
+    public void setUp() throws Exception {
+        SimpleUrlLogoutSuccessHandler successHandler = new SimpleUrlLogoutSuccessHandler();
+        successHandler.setDefaultTargetUrl("/");
+        LogoutHandler[] handlers = {new SecurityContextLogoutHandler()};
+        filter = new BackChannelLogoutFilter(successHandler, handlers, handlers);
+        profile = mock(SingleLogoutProfile.class);
+        filter.setProfile(profile);
+        SAMLContextProvider contextProvider = mock(SAMLContextProvider.class);
+        when(contextProvider.getLocalAndPeerEntity(any(HttpServletRequest.class), any(HttpServletResponse.class)))
+                .thenReturn(context);
+        filter.setContextProvider(contextProvider);
+        filter.setSamlLogger(mock(SAMLLogger.class));
+
+        SecurityContextHolder.clearContext();
+        SecurityContextHolder.getContext().setAuthentication(new ExpiringUsernameAuthenticationToken(null, "user",
+                credential, Collections.<GrantedAuthority>emptyList()));
+        request = new MockHttpServletRequest("GET", "/saml/logout");
+        response = new MockHttpServletResponse();
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testBackChannelGlobalLogoutRedirectsToTheSuccessUrl() throws Exception {
+        filter.doFilter(request, response, new MockFilterChain());
+
+        verify(profile).sendLogoutRequest(context, credential);
+        assertEquals("/", response.getRedirectedUrl());
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+    }
+
+    @Test
+    public void testFrontChannelGlobalLogoutIsLeftToTheProfile() throws Exception {
+        doAnswer(invocation -> {
+            response.sendRedirect("https://idp.example.com/slo");
+            return null;
+        }).when(profile).sendLogoutRequest(context, credential);
+
+        filter.doFilter(request, response, new MockFilterChain());
+
+        assertEquals("https://idp.example.com/slo", response.getRedirectedUrl());
+    }
+
+    @Test
+    public void testLocalLogoutRedirectsOnce() throws Exception {
+        request.setParameter("local", "true");
+
+        filter.doFilter(request, response, new MockFilterChain());
+
+        verify(profile, never()).sendLogoutRequest(any(SAMLMessageContext.class), any(SAMLCredential.class));
+        assertEquals("/", response.getRedirectedUrl());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayCacheTest {
+
+    private static final long IN_ONE_HOUR = System.currentTimeMillis() + 3600000;
+
+    @Test
+    public void testReplayIsRejected() {
+        ReplayCache replayCache = new ReplayCache(4);
+
+        assertTrue(replayCache.add("id-1", IN_ONE_HOUR));
+        assertTrue(replayCache.add("id-2", IN_ONE_HOUR));
+        assertFalse(replayCache.add("id-1", IN_ONE_HOUR));
+
+        assertEquals(2, replayCache.size());
+        assertEquals(3, replayCache.getChecks());
+        assertEquals(1, replayCache.getReplays());
+    }
+
+    @Test
+    public void testExpiredEntriesAreSwept() {
+        ReplayCache replayCache = new ReplayCache(4);
+        replayCache.add("expired", System.currentTimeMillis() - 1);
+        replayCache.add("valid", IN_ONE_HOUR);
+
+        replayCache.sweep();
+
+        assertEquals(1, replayCache.size());
+        assertFalse(replayCache.add("valid", IN_ONE_HOUR));
+    }
+
+    @Test
+    public void testExpiredEntryIsNotAReplay() {
+        ReplayCache replayCache = new ReplayCache(4);
+        replayCache.add("id", System.currentTimeMillis() - 1);
+
+        assertTrue(replayCache.add("id", IN_ONE_HOUR));
+        assertEquals(1, replayCache.size());
+    }
+
+    @Test
+    public void testFullCacheRejectsNewEntries() {
+        ReplayCache replayCache = new ReplayCache(4);
+        replayCache.setMaxSize(2);
+        replayCache.add("id-1", IN_ONE_HOUR);
+        replayCache.add("id-2", IN_ONE_HOUR);
+
+        assertFalse(replayCache.add("id-3", IN_ONE_HOUR));
+        assertEquals(2, replayCache.size());
+        assertEquals(1, replayCache.getOverflows());
+    }
+
+    @Test
+    public void testStripeCountIsAPowerOfTwo() {
+        assertEquals(1, new ReplayCache(1).getStripeCount());
+        assertEquals(16, new ReplayCache(16).getStripeCount());
+        assertEquals(32, new ReplayCache(17).getStripeCount());
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vmware.idm.samples.saml.websso;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.Assertion;
+import org.springframework.security.saml.context.SAMLMessageContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ReplayProtectedWebSSOProfileConsumerTest {
+
+    private final ReplayCache replayCache = new ReplayCache(4);
+    private final SAMLMessageContext context = new SAMLMessageContext();
+
+    @Test(expected = SAMLException.class)
+    public void testHolderOfKeyAssertionIsAcceptedOnlyOnce() throws Exception {
+        ReplayProtectedWebSSOProfileConsumerHoK consumer = new ReplayProtectedWebSSOProfileConsumerHoK(replayCache);
+        context.setPeerEntityId("https://idp.example.com");
+        Assertion assertion = assertion("id-1");
+
+        ReplayProtectedWebSSOProfileConsumer.recordAssertion(consumer.getReplayCache(), assertion, context, 60);
+        assertEquals(1, replayCache.size());
+        ReplayProtectedWebSSOProfileConsumer.recordAssertion(consumer.getReplayCache(), assertion, context, 60);
+    }
+
+    @Test(expected = SAMLException.class)
+    public void testAssertionWithoutIdIsRejected() throws Exception {
+        ReplayProtectedWebSSOProfileConsumer.recordAssertion(replayCache, assertion(null), context, 60);
+    }
+
+    private static Assertion assertion(String id) {
+        Assertion assertion = mock(Assertion.class);
+        when(assertion.getID()).thenReturn(id);
+        when(assertion.getIssueInstant()).thenReturn(new DateTime());
+        return assertion;
+    }
+}